@@ -0,0 +1,71 @@
+package jetbrains.buildServer.clouds.azure.benchmarks
+
+import jetbrains.buildServer.clouds.azure.arm.AzureConstants
+import jetbrains.buildServer.clouds.azure.arm.utils.ArmTemplateBuilder
+import jetbrains.buildServer.clouds.azure.arm.utils.AzureUtils
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+
+/**
+ * Builds deployment templates the same way as image handlers do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class ArmTemplateBuilderBenchmark {
+    @Param("3", "50")
+    var tagsCount = 0
+
+    private lateinit var myVmTemplate: String
+    private lateinit var myContainerTemplate: String
+    private lateinit var myTags: Map<String, String>
+    private lateinit var myEnvironment: List<Pair<String, String>>
+    private lateinit var myCustomData: String
+
+    @Setup
+    fun setup() {
+        myVmTemplate = AzureUtils.getResourceAsString("/templates/vm-template.json")
+        myContainerTemplate = AzureUtils.getResourceAsString("/templates/container-template.json")
+        myTags = AzureBenchmarkFixtures.getTags("image") + (0 until tagsCount).associate { "tag$it" to "value$it" }
+        myEnvironment = AzureBenchmarkFixtures.createEnvironment(tagsCount).toList()
+        myCustomData = AzureBenchmarkFixtures.createEnvironment(100).toString()
+    }
+
+    @Benchmark
+    fun buildVmTemplate(): String {
+        val builder = ArmTemplateBuilder(myVmTemplate)
+                .setPublicIp()
+                .setParameterValue("vmName", "image-1")
+                .addParameter(AzureConstants.IMAGE_ID, "string", "This is the identifier of custom image")
+                .setParameterValue(AzureConstants.IMAGE_ID, "imageId")
+                .setCustomImage()
+                .setParameterValue("networkId", "networkId")
+                .setParameterValue("subnetName", "default")
+                .setStorageAccountType("Premium_LRS")
+                .setParameterValue("vmSize", "Standard_D2s_v3")
+                .setupIdentity(null, true)
+                .setVMTags(myTags)
+                .setCustomData(myCustomData)
+        return builder.toString() + builder.serializeParameters()
+    }
+
+    @Benchmark
+    fun buildContainerTemplate(): String {
+        val builder = ArmTemplateBuilder(myContainerTemplate)
+                .setParameterValue("containerName", "image-1")
+                .setParameterValue(AzureConstants.IMAGE_ID, "jetbrains/teamcity-agent")
+                .addContainer("image-1", myEnvironment)
+                .setParameterValue("networkId", "networkId")
+                .setParameterValue("subnetName", "default")
+                .addContainerNetwork()
+                .setTags("[parameters('containerName')]", myTags)
+        return builder.toString() + builder.serializeParameters()
+    }
+}
@@ -0,0 +1,147 @@
+package jetbrains.buildServer.clouds.azure.benchmarks
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import io.mockk.mockk
+import jetbrains.buildServer.clouds.InstanceStatus
+import jetbrains.buildServer.clouds.azure.arm.AzureCloudDeployTarget
+import jetbrains.buildServer.clouds.azure.arm.AzureCloudImage
+import jetbrains.buildServer.clouds.azure.arm.AzureCloudImageDetails
+import jetbrains.buildServer.clouds.azure.arm.AzureCloudImageType
+import jetbrains.buildServer.clouds.azure.arm.AzureConstants
+import jetbrains.buildServer.clouds.azure.arm.connector.tasks.FetchInstancesTaskInstanceDescriptor
+import jetbrains.buildServer.clouds.base.connector.AbstractInstance
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import java.util.*
+
+/**
+ * Synthetic data used by benchmarks, all fixtures are generated offline and are reproducible.
+ */
+object AzureBenchmarkFixtures {
+    const val PROFILE_ID = "arm-1"
+    const val SERVER_ID = "server-1"
+
+    private val mapper = ObjectMapper()
+
+    private val RESOURCE_GRAPH_COLUMNS = listOf(
+            "resourceId" to "string",
+            "resourceName" to "string",
+            "nicId" to "string",
+            "resourceType" to "string",
+            "provisioningState" to "string",
+            "startDate" to "datetime",
+            "powerStateCode" to "string",
+            "resourceTags" to "string",
+            "publicIpAddress" to "string"
+    )
+
+    fun createImageDetails(sourceId: String, maxInstances: Int = 10, target: AzureCloudDeployTarget = AzureCloudDeployTarget.SpecificGroup) = AzureCloudImageDetails(
+            mySourceId = sourceId,
+            deployTarget = target,
+            regionId = "westeurope",
+            groupId = "group",
+            imageType = AzureCloudImageType.Image,
+            imageUrl = null,
+            imageId = "/subscriptions/subscription/resourceGroups/images/providers/Microsoft.Compute/images/$sourceId",
+            instanceId = null,
+            osType = "Linux",
+            networkId = "/subscriptions/subscription/resourceGroups/network/providers/Microsoft.Network/virtualNetworks/network",
+            subnetId = "default",
+            vmNamePrefix = sourceId,
+            vmSize = null,
+            vmPublicIp = false,
+            myMaxInstances = maxInstances,
+            username = "teamcity",
+            storageAccountType = null,
+            template = null,
+            numberCores = null,
+            memory = null,
+            storageAccount = null,
+            registryUsername = null,
+            agentPoolId = null,
+            profileId = PROFILE_ID,
+            myReuseVm = false,
+            spotVm = null,
+            enableSpotPrice = null,
+            spotPrice = null,
+            enableAcceleratedNetworking = null,
+            disableTemplateModification = null,
+            enableSystemAssignedIdentity = null
+    )
+
+    fun createImage(details: AzureCloudImageDetails) =
+            AzureCloudImage(details, mockk(relaxed = true), CoroutineScope(Dispatchers.Unconfined), mockk(relaxed = true))
+
+    fun createImages(count: Int, maxInstances: Int = 10) =
+            (0 until count).map { createImage(createImageDetails("image$it", maxInstances)) }
+
+    fun getTags(sourceId: String, profileId: String = PROFILE_ID) = mapOf(
+            AzureConstants.TAG_SERVER to SERVER_ID,
+            AzureConstants.TAG_PROFILE to profileId,
+            AzureConstants.TAG_SOURCE to sourceId
+    )
+
+    /**
+     * Instances are spread over images, every tenth instance belongs to another profile.
+     */
+    fun createInstanceDescriptors(count: Int, images: List<AzureCloudImage>): List<FetchInstancesTaskInstanceDescriptor> {
+        return (0 until count).map {
+            val sourceId = images[it % images.size].imageDetails.sourceId
+            val name = "$sourceId-${it / images.size + 1}"
+            FetchInstancesTaskInstanceDescriptor(
+                    getResourceId(name),
+                    name,
+                    getTags(sourceId, if (it % 10 == 9) "arm-2" else PROFILE_ID),
+                    null,
+                    "Succeeded",
+                    Date(0),
+                    "running",
+                    null
+            )
+        }
+    }
+
+    /**
+     * @return Resource Graph response in the format of fetch_instances query.
+     */
+    fun createResourceGraphJson(rowsCount: Int): String {
+        val columns = RESOURCE_GRAPH_COLUMNS.map { (name, type) -> mapOf("name" to name, "type" to type) }
+        val rows = (0 until rowsCount).map {
+            val name = "image${it % 10}-${it / 10 + 1}"
+            listOf(
+                    getResourceId(name),
+                    name,
+                    "/subscriptions/subscription/resourceGroups/group/providers/Microsoft.Network/networkInterfaces/$name-net",
+                    "microsoft.compute/virtualmachines",
+                    "Succeeded",
+                    "2024-01-01T10:00:00.0000000Z",
+                    if (it % 4 == 0) "deallocated" else "running",
+                    mapper.writeValueAsString(getTags("image${it % 10}")),
+                    if (it % 2 == 0) "" else "10.0.${it / 250 % 250}.${it % 250}"
+            )
+        }
+        return mapper.writeValueAsString(mapOf("columns" to columns, "rows" to rows))
+    }
+
+    fun createEnvironment(count: Int): Map<String, String> {
+        val random = Random(count.toLong())
+        return (0 until count).associate { "ENV_VARIABLE_$it" to UUID(random.nextLong(), random.nextLong()).toString() }
+    }
+
+    private fun getResourceId(name: String) =
+            "/subscriptions/subscription/resourceGroups/group/providers/Microsoft.Compute/virtualMachines/$name"
+
+    class BenchmarkInstance(private val myName: String, private val myStatus: InstanceStatus) : AbstractInstance() {
+        override fun getName(): String = myName
+
+        override fun getStartDate(): Date? = null
+
+        override fun getIpAddress(): String? = null
+
+        override fun getInstanceStatus(): InstanceStatus = myStatus
+
+        override fun getProperty(name: String): String? = null
+
+        override fun getProperties(): Map<String, String> = emptyMap()
+    }
+}
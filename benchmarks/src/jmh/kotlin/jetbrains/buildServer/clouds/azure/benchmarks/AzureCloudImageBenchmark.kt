@@ -0,0 +1,58 @@
+package jetbrains.buildServer.clouds.azure.benchmarks
+
+import jetbrains.buildServer.clouds.CanStartNewInstanceResult
+import jetbrains.buildServer.clouds.InstanceStatus
+import jetbrains.buildServer.clouds.azure.arm.AzureCloudImage
+import jetbrains.buildServer.clouds.azure.arm.AzureCloudInstance
+import jetbrains.buildServer.clouds.azure.benchmarks.AzureBenchmarkFixtures.BenchmarkInstance
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+
+/**
+ * Instance state checks which TeamCity performs on each queue processing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class AzureCloudImageBenchmark {
+    @Param("1000")
+    var instancesPerImage = 0
+
+    private lateinit var myImage: AzureCloudImage
+    private lateinit var myRealInstances: Map<String, BenchmarkInstance>
+    private lateinit var myInstance: AzureCloudInstance
+
+    @Setup
+    fun setup() {
+        myImage = AzureBenchmarkFixtures.createImage(AzureBenchmarkFixtures.createImageDetails("image", instancesPerImage * 2))
+        myRealInstances = (1..instancesPerImage).associate {
+            val status = when (it % 4) {
+                0 -> InstanceStatus.STOPPED
+                1 -> InstanceStatus.STARTING
+                else -> InstanceStatus.RUNNING
+            }
+            "image-$it" to BenchmarkInstance("image-$it", status)
+        }
+        myImage.detectNewInstances(myRealInstances.toMutableMap())
+        myInstance = myImage.instances.first { it.status == InstanceStatus.RUNNING }
+    }
+
+    @Benchmark
+    fun canStartNewInstance(): CanStartNewInstanceResult = myImage.canStartNewInstance()
+
+    @Benchmark
+    fun canStartNewInstanceAfterStatusChange(): CanStartNewInstanceResult {
+        myInstance.status = if (myInstance.status == InstanceStatus.RUNNING) InstanceStatus.STOPPED else InstanceStatus.RUNNING
+        return myImage.canStartNewInstance()
+    }
+
+    @Benchmark
+    fun detectNewInstances() = myImage.detectNewInstances(myRealInstances.toMutableMap())
+}
@@ -0,0 +1,40 @@
+package jetbrains.buildServer.clouds.azure.benchmarks
+
+import jetbrains.buildServer.clouds.azure.AzureCompress
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class AzureCompressBenchmark {
+    @Param("10", "100", "1000")
+    var entriesCount = 0
+
+    private lateinit var myEnvironment: Map<String, String>
+    private lateinit var myEncoded: String
+    private lateinit var myEncodedLegacy: String
+
+    @Setup
+    fun setup() {
+        myEnvironment = AzureBenchmarkFixtures.createEnvironment(entriesCount)
+        myEncoded = AzureCompress.encode(myEnvironment)
+        myEncodedLegacy = AzureCompress.encodeLegacy(myEnvironment)
+    }
+
+    @Benchmark
+    fun encode() = AzureCompress.encode(myEnvironment)
+
+    @Benchmark
+    fun decode() = AzureCompress.decode(myEncoded)
+
+    @Benchmark
+    fun decodeLegacy() = AzureCompress.decode(myEncodedLegacy)
+}
@@ -0,0 +1,65 @@
+package jetbrains.buildServer.clouds.azure.benchmarks
+
+import jetbrains.buildServer.clouds.InstanceStatus
+import jetbrains.buildServer.clouds.azure.AzureInstanceIndex
+import jetbrains.buildServer.clouds.azure.arm.AzureCloudImage
+import jetbrains.buildServer.clouds.azure.arm.AzureCloudInstance
+import jetbrains.buildServer.clouds.azure.benchmarks.AzureBenchmarkFixtures.BenchmarkInstance
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+
+/**
+ * Agent to instance lookup: scan over all images versus the profile instance index.
+ * Instances of the last image are looked up, which is the worst case for the scan.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class AzureInstanceIndexBenchmark {
+    @Param("50")
+    var imagesCount = 0
+
+    @Param("1000")
+    var instancesPerImage = 0
+
+    private lateinit var myImages: List<AzureCloudImage>
+    private lateinit var myIndex: AzureInstanceIndex<AzureCloudInstance>
+    private lateinit var myLookups: List<String>
+    private var myLookup = 0
+
+    @Setup
+    fun setup() {
+        myIndex = AzureInstanceIndex(AzureBenchmarkFixtures.PROFILE_ID)
+        myImages = AzureBenchmarkFixtures.createImages(imagesCount, instancesPerImage * 2)
+        myImages.forEach { image ->
+            image.addInstancesListener(myIndex)
+            val realInstances = (1..instancesPerImage).associate {
+                val name = "${image.imageDetails.sourceId}-$it"
+                name to BenchmarkInstance(name, InstanceStatus.RUNNING)
+            }
+            image.detectNewInstances(realInstances.toMutableMap())
+        }
+        myLookups = myImages.last().instances.map { it.name }
+    }
+
+    @Benchmark
+    fun scanImages(): AzureCloudInstance? {
+        val name = nextName()
+        return myImages.asSequence().mapNotNull { it.findInstanceById(name) }.firstOrNull()
+    }
+
+    @Benchmark
+    fun findInIndex(): AzureCloudInstance? = myIndex.findByName(nextName())
+
+    private fun nextName(): String {
+        myLookup = (myLookup + 1) % myLookups.size
+        return myLookups[myLookup]
+    }
+}
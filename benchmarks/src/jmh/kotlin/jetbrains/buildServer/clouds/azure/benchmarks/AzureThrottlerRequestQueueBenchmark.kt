@@ -0,0 +1,67 @@
+package jetbrains.buildServer.clouds.azure.benchmarks
+
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerRequestQueueImpl
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerTaskParameterEqualityComparer
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.infra.Blackhole
+import rx.subjects.PublishSubject
+import java.time.Clock
+import java.time.LocalDateTime
+import java.util.concurrent.TimeUnit
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class AzureThrottlerRequestQueueBenchmark {
+    @Param("100", "1000", "10000")
+    var queueSize = 0
+
+    @Param("1", "10", "100")
+    var distinctParameters = 0
+
+    private lateinit var myParameters: Array<String>
+    private lateinit var myTime: LocalDateTime
+
+    @Setup
+    fun setup() {
+        myParameters = Array(queueSize) { "parameter-${it % distinctParameters}" }
+        myTime = LocalDateTime.now(Clock.systemUTC()).minusMinutes(1)
+    }
+
+    @Benchmark
+    fun addAndExtractAll(blackhole: Blackhole) {
+        val queue = AzureThrottlerRequestQueueImpl<String, String, String>(EQUALITY_COMPARER)
+        for (parameter in myParameters) {
+            queue.addRequest(myTime, parameter, PublishSubject.create(), createdDate = myTime)
+        }
+        while (true) {
+            val batch = queue.extractNextBatch()
+            if (batch.count() == 0) break
+            blackhole.consume(batch)
+        }
+    }
+
+    @Benchmark
+    fun addAndExtractByParameter(blackhole: Blackhole) {
+        val queue = AzureThrottlerRequestQueueImpl<String, String, String>(EQUALITY_COMPARER)
+        for (parameter in myParameters) {
+            queue.addRequest(myTime, parameter, PublishSubject.create(), createdDate = myTime)
+        }
+        for (index in distinctParameters - 1 downTo 0) {
+            blackhole.consume(queue.extractBatchFor("parameter-$index"))
+        }
+    }
+
+    companion object {
+        private val EQUALITY_COMPARER = object : AzureThrottlerTaskParameterEqualityComparer<String> {
+            override fun areParametersEqual(parameter: String, other: String) = parameter == other
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package jetbrains.buildServer.clouds.azure.benchmarks
+
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureTaskContext
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerAdapter
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerAdapterResult
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerStrategyImpl
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerStrategyTask
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerStrategyTaskContainer
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerTaskQueueCallHistoryImpl
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerTaskQueueCallHistoryStatistics
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerTaskTimeExecutionType
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlingSource
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import rx.Single
+import java.time.Clock
+import java.time.LocalDateTime
+import java.util.concurrent.TimeUnit
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class AzureThrottlerStrategyBenchmark {
+    @Param("10", "50")
+    var taskCount = 0
+
+    @Param("100", "1000")
+    var historySize = 0
+
+    private lateinit var myStrategy: AzureThrottlerStrategyImpl<Unit, String>
+
+    @Setup
+    fun setup() {
+        val tasks = (0 until taskCount).map {
+            val type = if (it % 2 == 0) AzureThrottlerTaskTimeExecutionType.Periodical else AzureThrottlerTaskTimeExecutionType.Random
+            BenchmarkTask("task$it", type, historySize)
+        }
+        myStrategy = AzureThrottlerStrategyImpl(BenchmarkAdapter(), { 50 }, { 10 }, { 90 }, { 100L }, { 10000L })
+        myStrategy.setContainer(object : AzureThrottlerStrategyTaskContainer<String> {
+            override fun getTaskList(): List<AzureThrottlerStrategyTask<String>> = tasks
+        })
+    }
+
+    @Benchmark
+    fun applyTaskChanges() = myStrategy.applyTaskChanges()
+
+    private class BenchmarkTask(
+            override val taskId: String,
+            override val timeExecutionType: AzureThrottlerTaskTimeExecutionType,
+            historySize: Int
+    ) : AzureThrottlerStrategyTask<String> {
+        private val myHistory = AzureThrottlerTaskQueueCallHistoryImpl()
+        private var myCacheTimeout = 0L
+
+        init {
+            for (index in 0 until historySize) {
+                myHistory.addRequestCall()
+                myHistory.addExecutionCall(5L)
+            }
+        }
+
+        override val lastUpdatedDateTime: LocalDateTime = LocalDateTime.now(Clock.systemUTC())
+
+        override fun getStatistics(startDateTime: LocalDateTime): AzureThrottlerTaskQueueCallHistoryStatistics = myHistory.getStatistics(startDateTime)
+
+        override fun setCacheTimeout(timeoutInSeconds: Long, source: AzureThrottlingSource) {
+            myCacheTimeout = timeoutInSeconds
+        }
+
+        override fun getCacheTimeout(): Long = myCacheTimeout
+
+        override fun enableRetryOnThrottle() {}
+
+        override fun notifyRateLimitReached(retryAfterTimeoutInSeconds: Long) {}
+
+        override fun notifyCompleted(performedRequests: Boolean) {}
+    }
+
+    private class BenchmarkAdapter : AzureThrottlerAdapter<Unit> {
+        private val myWindowStart = LocalDateTime.now(Clock.systemUTC()).minusMinutes(30)
+        private var myThrottlerTime = 0L
+
+        override val api = Unit
+
+        override val name = "benchmark"
+
+        override fun setThrottlerTime(milliseconds: Long) {
+            myThrottlerTime = milliseconds
+        }
+
+        override fun getThrottlerTime(): Long = myThrottlerTime
+
+        override fun getWindowWidthInMilliseconds(): Long = 60 * 60 * 1000L
+
+        override fun getWindowStartDateTime(): LocalDateTime = myWindowStart
+
+        override fun getRemainingReads(): Long = 8000L
+
+        override fun getDefaultReads(): Long = 12000L
+
+        override fun <T> execute(queryFactory: (Unit, AzureTaskContext) -> Single<T>): Single<AzureThrottlerAdapterResult<T>> =
+                throw UnsupportedOperationException()
+
+        override fun logDiagnosticInfo() {}
+
+        override fun notifyRemainingReads(value: Long?, requestCount: Long) {}
+
+        override fun getContext(): AzureTaskContext? = null
+    }
+}
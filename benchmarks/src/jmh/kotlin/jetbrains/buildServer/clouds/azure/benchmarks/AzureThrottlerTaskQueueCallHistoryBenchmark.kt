@@ -0,0 +1,44 @@
+package jetbrains.buildServer.clouds.azure.benchmarks
+
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerTaskQueueCallHistoryImpl
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.time.Clock
+import java.time.LocalDateTime
+import java.util.concurrent.TimeUnit
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class AzureThrottlerTaskQueueCallHistoryBenchmark {
+    @Param("100", "1000", "10000")
+    var historySize = 0
+
+    private lateinit var myHistory: AzureThrottlerTaskQueueCallHistoryImpl
+    private lateinit var myWindowStart: LocalDateTime
+
+    /**
+     * History is recreated for each iteration since it keeps all calls of the last hour.
+     */
+    @Setup(Level.Iteration)
+    fun setup() {
+        myHistory = AzureThrottlerTaskQueueCallHistoryImpl()
+        for (index in 0 until historySize) {
+            if (index % 2 == 0) myHistory.addRequestCall() else myHistory.addExecutionCall(index.toLong())
+        }
+        myWindowStart = LocalDateTime.now(Clock.systemUTC()).minusMinutes(5)
+    }
+
+    @Benchmark
+    fun getStatistics() = myHistory.getStatistics(myWindowStart)
+
+    @Benchmark
+    fun addExecutionCall() = myHistory.addExecutionCall(1L)
+}
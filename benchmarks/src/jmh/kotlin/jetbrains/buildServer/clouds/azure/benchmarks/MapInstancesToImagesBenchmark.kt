@@ -0,0 +1,38 @@
+package jetbrains.buildServer.clouds.azure.benchmarks
+
+import jetbrains.buildServer.clouds.azure.arm.AzureCloudImage
+import jetbrains.buildServer.clouds.azure.arm.connector.AzureApiConnectorImpl
+import jetbrains.buildServer.clouds.azure.arm.connector.tasks.FetchInstancesTaskInstanceDescriptor
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class MapInstancesToImagesBenchmark {
+    @Param("1", "10", "50")
+    var imagesCount = 0
+
+    @Param("100", "1000", "10000")
+    var instancesCount = 0
+
+    private lateinit var myImages: List<AzureCloudImage>
+    private lateinit var myInstances: List<FetchInstancesTaskInstanceDescriptor>
+
+    @Setup
+    fun setup() {
+        myImages = AzureBenchmarkFixtures.createImages(imagesCount)
+        myInstances = AzureBenchmarkFixtures.createInstanceDescriptors(instancesCount, myImages)
+    }
+
+    @Benchmark
+    fun mapInstancesToImages() =
+            AzureApiConnectorImpl.mapInstancesToImages(myInstances, myImages, AzureBenchmarkFixtures.PROFILE_ID)
+}
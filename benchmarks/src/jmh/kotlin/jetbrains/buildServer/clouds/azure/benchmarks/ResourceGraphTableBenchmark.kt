@@ -0,0 +1,54 @@
+package jetbrains.buildServer.clouds.azure.benchmarks
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import jetbrains.buildServer.clouds.azure.arm.resourceGraph.Table
+import jetbrains.buildServer.clouds.azure.arm.resourceGraph.TableInner
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.infra.Blackhole
+import java.util.concurrent.TimeUnit
+
+/**
+ * Decoding of Resource Graph responses in the format of fetch_instances query.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class ResourceGraphTableBenchmark {
+    @Param("100", "1000", "10000")
+    var rowsCount = 0
+
+    private val mapper = ObjectMapper()
+    private lateinit var myJson: String
+    private lateinit var myInner: TableInner
+
+    @Setup
+    fun setup() {
+        myJson = AzureBenchmarkFixtures.createResourceGraphJson(rowsCount)
+        myInner = mapper.readValue(myJson, TableInner::class.java)
+    }
+
+    @Benchmark
+    fun deserialize(): TableInner = mapper.readValue(myJson, TableInner::class.java)
+
+    @Benchmark
+    fun readRows(blackhole: Blackhole) {
+        val table = Table(myInner)
+        for (row in table.rows) {
+            blackhole.consume(row.getStringValue("resourceId", isRequired = true))
+            blackhole.consume(row.getStringValue("resourceName", isRequired = true))
+            blackhole.consume(row.getStringValue("provisioningState", isRequired = true))
+            blackhole.consume(row.getDateTimeValue("startDate"))
+            blackhole.consume(row.getStringValue("powerStateCode"))
+            blackhole.consume(row.getMapValue("resourceTags"))
+            blackhole.consume(row.getStringValue("publicIpAddress"))
+            blackhole.consume(row.getStringValue("nicId"))
+        }
+    }
+}
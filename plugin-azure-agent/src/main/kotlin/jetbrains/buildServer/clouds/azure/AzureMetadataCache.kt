@@ -0,0 +1,54 @@
+package jetbrains.buildServer.clouds.azure
+
+import java.security.MessageDigest
+
+/**
+ * Keeps instance metadata processed on the previous agent start.
+ */
+interface AzureMetadataCache {
+    /**
+     * Gets cached instance metadata.
+     *
+     * @return cache entry or null if it's missing or corrupted.
+     */
+    fun read(): AzureMetadataCacheEntry?
+
+    /**
+     * Stores instance metadata.
+     *
+     * @param metadata is a processed instance metadata.
+     */
+    fun write(metadata: AzureMetadata.Metadata)
+
+    /**
+     * Removes cached instance metadata.
+     */
+    fun clear()
+}
+
+/**
+ * Cached instance metadata keyed by VM ID and userData digest.
+ *
+ * Host name allows to skip the cache on a new VM created from the image of a VM which already ran the agent.
+ */
+data class AzureMetadataCacheEntry(
+        val vmId: String?,
+        val userDataDigest: String?,
+        val hostName: String?,
+        val metadata: AzureMetadata.Metadata?
+) {
+    fun isValidFor(metadata: AzureMetadata.Metadata) =
+            vmId == metadata.compute?.vmId && userDataDigest == getUserDataDigest(metadata)
+
+    companion object {
+        fun create(metadata: AzureMetadata.Metadata, hostName: String?) =
+                AzureMetadataCacheEntry(metadata.compute?.vmId, getUserDataDigest(metadata), hostName, metadata)
+
+        fun getUserDataDigest(metadata: AzureMetadata.Metadata): String? {
+            val userData = metadata.compute?.userData ?: return null
+            return MessageDigest.getInstance("SHA-256")
+                    .digest(userData.toByteArray(Charsets.UTF_8))
+                    .joinToString("") { "%02x".format(it) }
+        }
+    }
+}
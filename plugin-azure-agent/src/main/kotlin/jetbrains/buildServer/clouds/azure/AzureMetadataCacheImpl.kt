@@ -0,0 +1,83 @@
+package jetbrains.buildServer.clouds.azure
+
+import com.google.gson.Gson
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.agent.BuildAgentConfiguration
+import java.io.File
+import java.net.InetAddress
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+
+/**
+ * Stores instance metadata in the agent cache directory.
+ */
+class AzureMetadataCacheImpl(private val myCacheFile: File) : AzureMetadataCache {
+
+    constructor(configuration: BuildAgentConfiguration) : this(File(configuration.getCacheDirectory(CACHE_KEY), CACHE_FILE_NAME))
+
+    override fun read(): AzureMetadataCacheEntry? {
+        if (!myCacheFile.isFile) {
+            return null
+        }
+
+        val entry = try {
+            GSON.fromJson(myCacheFile.readText(Charsets.UTF_8), AzureMetadataCacheEntry::class.java)
+        } catch (e: Exception) {
+            LOG.warnAndDebugDetails("Could not read cached Azure instance metadata from $myCacheFile", e)
+            null
+        }
+
+        val metadata = entry?.metadata
+        if (metadata == null || entry.vmId.isNullOrBlank() || !entry.isValidFor(metadata)) {
+            LOG.info("Ignoring invalid cached Azure instance metadata in $myCacheFile")
+            clear()
+            return null
+        }
+
+        if (entry.hostName != hostName) {
+            LOG.info("Ignoring cached Azure instance metadata of host ${entry.hostName} in $myCacheFile")
+            clear()
+            return null
+        }
+
+        return entry
+    }
+
+    override fun write(metadata: AzureMetadata.Metadata) {
+        if (metadata.compute?.vmId.isNullOrBlank()) {
+            LOG.debug("Skip caching Azure instance metadata without VM ID")
+            return
+        }
+
+        try {
+            myCacheFile.parentFile.mkdirs()
+            val tempFile = File(myCacheFile.parentFile, "$CACHE_FILE_NAME.tmp")
+            tempFile.writeText(GSON.toJson(AzureMetadataCacheEntry.create(metadata, hostName)), Charsets.UTF_8)
+            Files.move(tempFile.toPath(), myCacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+            LOG.debug("Cached Azure instance metadata in $myCacheFile")
+        } catch (e: Exception) {
+            LOG.warnAndDebugDetails("Could not cache Azure instance metadata in $myCacheFile", e)
+        }
+    }
+
+    private val hostName: String?
+        get() = try {
+            InetAddress.getLocalHost().hostName
+        } catch (e: Exception) {
+            LOG.debug("Could not resolve local host name", e)
+            null
+        }
+
+    override fun clear() {
+        if (myCacheFile.exists() && !myCacheFile.delete()) {
+            LOG.warn("Could not delete cached Azure instance metadata $myCacheFile")
+        }
+    }
+
+    companion object {
+        private val LOG = Logger.getInstance(AzureMetadataCacheImpl::class.java.name)
+        private val GSON = Gson()
+        private const val CACHE_KEY = "azure"
+        private const val CACHE_FILE_NAME = "instance-metadata.json"
+    }
+}
@@ -3,14 +3,35 @@ package jetbrains.buildServer.clouds.azure
 import com.intellij.openapi.diagnostic.Logger
 import jetbrains.buildServer.agent.BuildAgentConfigurationEx
 import jetbrains.buildServer.clouds.CloudInstanceUserData
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
 
 class AzureMetadataReader(
         private val configuration: BuildAgentConfigurationEx,
-        private val spotTerminationChecker: SpotInstanceTerminationChecker
+        private val spotTerminationChecker: SpotInstanceTerminationChecker,
+        private val metadataCache: AzureMetadataCache,
+        private val scheduler: AzureScheduledExecutorService
 ) {
     private lateinit var myAzureUserData: AzureUserData
+    @Volatile
+    private var myCachedEntry: AzureMetadataCacheEntry? = null
+    @Volatile
+    private var myRevalidation: AzureCancellable? = null
 
     fun process() : MetadataReaderResult {
+        // Use metadata processed on the previous start to avoid waiting for IMDS on agent restarts
+        metadataCache.read()?.let { entry ->
+            LOG.info("Processing cached Azure instance metadata of VM ${entry.vmId}")
+            // public IP of a reused VM could be changed, so it is applied after verification
+            val result = updateConfiguration(entry.metadata!!, updateNetwork = false)
+            if (result != MetadataReaderResult.SKIP) {
+                runSpotChecker(entry.metadata)
+                myCachedEntry = entry
+                return result
+            }
+            metadataCache.clear()
+        }
+
         val metadata = try {
             AzureMetadata.readInstanceMetadata()
         } catch (e: Throwable) {
@@ -21,18 +42,86 @@ class AzureMetadataReader(
 
         val result = updateConfiguration(metadata)
         if (result != MetadataReaderResult.SKIP) {
+            metadataCache.write(metadata)
             runSpotChecker(metadata)
         }
         return result
     }
 
+    /**
+     * Checks cached userData against IMDS before it is applied, since userData of a reused VM is rewritten on every start.
+     * When IMDS does not respond in time, userData is applied by the background revalidation.
+     *
+     * @return true if userData could be applied.
+     */
+    private fun verifyCachedUserData(entry: AzureMetadataCacheEntry): Boolean {
+        val metadata = try {
+            AzureMetadata.readInstanceMetadata(METADATA_TIMEOUT_MS)
+        } catch (e: Throwable) {
+            LOG.info("Could not verify cached Azure userData, it will be applied after revalidation: ${e.message}")
+            LOG.debug(e)
+            revalidate(entry)
+            return false
+        }
+        return updateIfChanged(entry, metadata)
+    }
+
+    /**
+     * Reads instance metadata in background and applies userData once it is verified.
+     */
+    private fun revalidate(entry: AzureMetadataCacheEntry) {
+        val completed = AtomicBoolean(false)
+        val task = Runnable {
+            if (completed.get()) return@Runnable
+
+            val metadata = try {
+                AzureMetadata.readInstanceMetadata(METADATA_TIMEOUT_MS)
+            } catch (e: Throwable) {
+                LOG.info("Could not revalidate cached Azure instance metadata: ${e.message}")
+                LOG.debug(e)
+                return@Runnable
+            }
+            completed.set(true)
+            myRevalidation?.cancel()
+
+            if (updateIfChanged(entry, metadata)) {
+                applyUserData()
+            }
+        }
+        myRevalidation = scheduler.scheduleWithFixedDelay(task, REVALIDATE_DELAY_SEC, REVALIDATE_DELAY_SEC, TimeUnit.SECONDS)
+        if (completed.get()) {
+            myRevalidation?.cancel()
+        }
+    }
+
+    /**
+     * Updates configuration when VM ID or userData differ from cached ones, network data is always taken from IMDS.
+     *
+     * @return true if userData could be applied.
+     */
+    private fun updateIfChanged(entry: AzureMetadataCacheEntry, metadata: AzureMetadata.Metadata): Boolean {
+        if (entry.isValidFor(metadata)) {
+            LOG.debug("Cached Azure instance metadata is up to date")
+            updateNetwork(metadata)
+            return true
+        }
+
+        LOG.info("Azure instance metadata was changed since the previous start, updating configuration")
+        if (updateConfiguration(metadata) == MetadataReaderResult.NEED_POST_PROCESS) {
+            metadataCache.write(metadata)
+            return true
+        }
+        metadataCache.clear()
+        return false
+    }
+
     private fun runSpotChecker(metadata: AzureMetadata.Metadata) {
         metadata.compute?.name?.let {
             spotTerminationChecker.start(it)
         }
     }
 
-    internal fun updateConfiguration(metadata: AzureMetadata.Metadata): MetadataReaderResult {
+    internal fun updateConfiguration(metadata: AzureMetadata.Metadata, updateNetwork: Boolean = true): MetadataReaderResult {
         val userData = metadata.compute?.userData
         if (userData.isNullOrBlank()) {
             LOG.info("No Azure userData provided")
@@ -66,6 +155,15 @@ class AzureMetadataReader(
             }
         }
 
+        if (updateNetwork) {
+            updateNetwork(metadata)
+        }
+
+        myAzureUserData = azureUserData
+        return MetadataReaderResult.NEED_POST_PROCESS
+    }
+
+    private fun updateNetwork(metadata: AzureMetadata.Metadata) {
         metadata.network?.interfaces?.firstOrNull()?.ipv4?.ipAddress?.firstOrNull()?.publicIpAddress?.let {
             if (it.isNotBlank()) {
                 LOG.info("Setting external IP address from instance metadata: $it")
@@ -73,12 +171,18 @@ class AzureMetadataReader(
                 configuration.addSystemProperty("ec2.public-hostname", it)
             }
         }
-
-        myAzureUserData = azureUserData
-        return MetadataReaderResult.NEED_POST_PROCESS
     }
 
     fun postProcess() {
+        val entry = myCachedEntry
+        myCachedEntry = null
+        if (entry != null && !verifyCachedUserData(entry)) {
+            return
+        }
+        applyUserData()
+    }
+
+    private fun applyUserData() {
         val data = CloudInstanceUserData.deserialize(myAzureUserData.cloudInstanceUserData)
         if (data == null) {
             LOG.info("Unable to deserialize userData.cloudInstanceUserData value: '${myAzureUserData.cloudInstanceUserData}'")
@@ -93,6 +197,8 @@ class AzureMetadataReader(
 
     companion object {
         private const val STARTING_INSTANCE_ID = "teamcity.agent.startingInstanceId"
+        private const val REVALIDATE_DELAY_SEC = 10L
+        private const val METADATA_TIMEOUT_MS = 2000
         private val LOG = Logger.getInstance(AzureMetadataReader::class.java.name)
     }
 }
@@ -2,6 +2,7 @@ package jetbrains.buildServer.clouds.azure
 
 import org.testng.Assert
 import org.testng.annotations.Test
+import java.util.*
 
 class AzureCompressTest {
 
@@ -20,4 +21,72 @@ class AzureCompressTest {
         val result = AzureCompress.decode("H4sIAAAAAAAAAEXKQQrEIAwF0L3gUSr0AJ6lfJM4DagtJi7a089mYNbv2WMuPVG7Fqd7XlWbHMoZs8fggk7qz491mGOQpBN2ZqCUYkbEVo1rDHjXlH8a6JLL0sYbPjJ8j+ELuRtxb20AAAA=")
         Assert.assertEquals(result, map)
     }
+
+    @Test
+    fun decodeLegacyData() {
+        val result = AzureCompress.decode(AzureCompress.encodeLegacy(map + ("token" to "YWJj==")))
+        Assert.assertEquals(result, map + ("token" to "YWJj=="))
+    }
+
+    @Test
+    fun roundTripData() {
+        Assert.assertEquals(AzureCompress.decode(AzureCompress.encode(map)), map)
+        Assert.assertEquals(AzureCompress.decode(AzureCompress.encode(emptyMap())), emptyMap<String, String>())
+    }
+
+    @Test
+    fun roundTripRandomData() {
+        val random = Random(42)
+        repeat(1000) {
+            val data = randomMap(random, random.nextInt(120))
+            Assert.assertEquals(AzureCompress.decode(AzureCompress.encode(data)), data)
+        }
+    }
+
+    @Test
+    fun roundTripSpecialCharacters() {
+        val data = mapOf(
+            "" to "",
+            "key=with=equals" to "value=with=equals",
+            "multi\nline" to "value\r\nwith\nnewlines",
+            "unicode файл" to "🚀 中文",
+            "long" to "x".repeat(100_000)
+        )
+        Assert.assertEquals(AzureCompress.decode(AzureCompress.encode(data)), data)
+    }
+
+    @Test(expectedExceptions = [Exception::class])
+    fun rejectTruncatedData() {
+        val encoded = Base64.getDecoder().decode(AzureCompress.encode(mapOf("key" to "value")))
+        AzureCompress.decode(Base64.getEncoder().encodeToString(encoded.copyOf(encoded.size - 2)))
+    }
+
+    @Test
+    fun shouldDecode100KeysInBothFormats() {
+        val data = randomMap(Random(7), 100)
+
+        Assert.assertEquals(AzureCompress.decode(AzureCompress.encodeLegacy(data)), data)
+        Assert.assertEquals(AzureCompress.decode(AzureCompress.encode(data)), data)
+    }
+
+    private fun randomMap(random: Random, size: Int): Map<String, String> {
+        val result = HashMap<String, String>()
+        while (result.size < size) {
+            result[randomString(random, 1 + random.nextInt(40))] = randomString(random, random.nextInt(80))
+        }
+        return result
+    }
+
+    private fun randomString(random: Random, length: Int): String {
+        val builder = StringBuilder(length)
+        repeat(length) {
+            builder.append(when (random.nextInt(10)) {
+                0 -> '='
+                1 -> '\n'
+                2 -> (0x400 + random.nextInt(0x100)).toChar()
+                else -> ('a' + random.nextInt(26))
+            })
+        }
+        return builder.toString()
+    }
 }
@@ -0,0 +1,271 @@
+package jetbrains.buildServer.clouds.azure
+
+import com.sun.net.httpserver.HttpServer
+import jetbrains.buildServer.agent.BuildAgentConfigurationEx
+import jetbrains.buildServer.clouds.CloudInstanceUserData
+import jetbrains.buildServer.util.FileUtil
+import org.jmock.Expectations
+import org.jmock.Mockery
+import org.testng.Assert
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+import java.io.File
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+@Test
+class AzureMetadataCacheTest {
+    private lateinit var myServer: HttpServer
+    private lateinit var myCacheDirectory: File
+    private val myRequestsCount = AtomicInteger(0)
+    private val myReadersCount = AtomicInteger(0)
+    @Volatile
+    private var myMetadata = ""
+    @Volatile
+    private var myIsAvailable = true
+
+    @BeforeMethod
+    fun setUp() {
+        myRequestsCount.set(0)
+        myIsAvailable = true
+        myMetadata = createMetadata("Agent name")
+        myCacheDirectory = FileUtil.createTempDirectory("azure", "cache")
+
+        myServer = HttpServer.create(InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0)
+        myServer.createContext("/metadata/instance") { exchange ->
+            myRequestsCount.incrementAndGet()
+            if (!myIsAvailable) {
+                exchange.sendResponseHeaders(503, -1)
+                exchange.close()
+                return@createContext
+            }
+            val response = myMetadata.toByteArray(Charsets.UTF_8)
+            exchange.responseHeaders.add("Content-Type", "application/json")
+            exchange.sendResponseHeaders(200, response.size.toLong())
+            exchange.responseBody.use { it.write(response) }
+        }
+        myServer.start()
+        System.setProperty(AzureMetadata.METADATA_ENDPOINT_PROPERTY, "http://127.0.0.1:${myServer.address.port}")
+    }
+
+    @AfterMethod
+    fun tearDown() {
+        System.clearProperty(AzureMetadata.METADATA_ENDPOINT_PROPERTY)
+        myServer.stop(0)
+        FileUtil.delete(myCacheDirectory)
+    }
+
+    fun testUseCachedMetadataOnRestart() {
+        // Given
+        val m = Mockery()
+        val agentConfiguration = m.mock(BuildAgentConfigurationEx::class.java)
+        m.checking(object : Expectations() {
+            init {
+                ignoring(agentConfiguration)
+            }
+        })
+        val scheduler = ManualScheduler()
+        Assert.assertEquals(createReader(m, agentConfiguration, scheduler).process(), MetadataReaderResult.NEED_POST_PROCESS)
+        Assert.assertEquals(myRequestsCount.get(), 1)
+        val cachedMetadata = FileUtil.readText(getCacheFile())
+
+        // When
+        val reader = createReader(m, agentConfiguration, scheduler)
+        val result = reader.process()
+
+        // Then
+        Assert.assertEquals(result, MetadataReaderResult.NEED_POST_PROCESS)
+        Assert.assertEquals(myRequestsCount.get(), 1)
+
+        reader.postProcess()
+        Assert.assertEquals(myRequestsCount.get(), 2)
+        Assert.assertTrue(scheduler.tasks.isEmpty())
+        Assert.assertEquals(FileUtil.readText(getCacheFile()), cachedMetadata)
+    }
+
+    fun testUpdateConfigurationWhenUserDataChanged() {
+        // Given
+        val newMetadata = createMetadata("New agent name")
+        val newUserData = AzureMetadata.deserializeInstanceMetadata(newMetadata).compute!!.userData
+        val m = Mockery()
+        val agentConfiguration = m.mock(BuildAgentConfigurationEx::class.java)
+        m.checking(object : Expectations() {
+            init {
+                one(agentConfiguration).addSystemProperty("azure.instance.userData", newUserData)
+                ignoring(agentConfiguration)
+            }
+        })
+        val scheduler = ManualScheduler()
+        createReader(m, agentConfiguration, scheduler).process()
+
+        // When
+        myMetadata = newMetadata
+        val reader = createReader(m, agentConfiguration, scheduler)
+        val result = reader.process()
+        reader.postProcess()
+
+        // Then
+        Assert.assertEquals(result, MetadataReaderResult.NEED_POST_PROCESS)
+        Assert.assertEquals(myRequestsCount.get(), 2)
+        m.assertIsSatisfied()
+        val entry = AzureMetadataCacheImpl(getCacheFile()).read()!!
+        Assert.assertEquals(entry.metadata!!.compute!!.userData, newUserData)
+    }
+
+    fun testApplyStartingInstanceIdOfCurrentStart() {
+        // Given
+        myMetadata = createMetadata("Agent name", "instance-1")
+        val m = Mockery()
+        val agentConfiguration = m.mock(BuildAgentConfigurationEx::class.java)
+        m.checking(object : Expectations() {
+            init {
+                one(agentConfiguration).addConfigurationParameter(STARTING_INSTANCE_ID, "instance-2")
+                never(agentConfiguration).addConfigurationParameter(STARTING_INSTANCE_ID, "instance-1")
+                ignoring(agentConfiguration)
+            }
+        })
+        val scheduler = ManualScheduler()
+        createReader(m, agentConfiguration, scheduler).process()
+
+        // When
+        myMetadata = createMetadata("Agent name", "instance-2")
+        val reader = createReader(m, agentConfiguration, scheduler)
+        reader.process()
+        reader.postProcess()
+
+        // Then
+        m.assertIsSatisfied()
+        Assert.assertTrue(scheduler.tasks.isEmpty())
+    }
+
+    fun testApplyPublicIpAddressOfCurrentStart() {
+        // Given
+        val m = Mockery()
+        val previousConfiguration = m.mock(BuildAgentConfigurationEx::class.java, "previousConfiguration")
+        val agentConfiguration = m.mock(BuildAgentConfigurationEx::class.java)
+        m.checking(object : Expectations() {
+            init {
+                ignoring(previousConfiguration)
+                one(agentConfiguration).addAlternativeAgentAddress("1.2.3.4")
+                never(agentConfiguration).addAlternativeAgentAddress("X.X.X.X")
+                ignoring(agentConfiguration)
+            }
+        })
+        val scheduler = ManualScheduler()
+        createReader(m, previousConfiguration, scheduler).process()
+
+        // When
+        myMetadata = createMetadata("Agent name", publicIpAddress = "1.2.3.4")
+        val reader = createReader(m, agentConfiguration, scheduler)
+        reader.process()
+        reader.postProcess()
+
+        // Then
+        m.assertIsSatisfied()
+        Assert.assertEquals(myRequestsCount.get(), 2)
+    }
+
+    fun testApplyUserDataAfterRevalidationWhenMetadataIsNotAvailable() {
+        // Given
+        myMetadata = createMetadata("Agent name", "instance-1")
+        val m = Mockery()
+        val agentConfiguration = m.mock(BuildAgentConfigurationEx::class.java)
+        m.checking(object : Expectations() {
+            init {
+                one(agentConfiguration).addConfigurationParameter(STARTING_INSTANCE_ID, "instance-2")
+                never(agentConfiguration).addConfigurationParameter(STARTING_INSTANCE_ID, "instance-1")
+                ignoring(agentConfiguration)
+            }
+        })
+        val scheduler = ManualScheduler()
+        createReader(m, agentConfiguration, scheduler).process()
+        val reader = createReader(m, agentConfiguration, scheduler)
+        reader.process()
+
+        // When
+        myIsAvailable = false
+        reader.postProcess()
+        myIsAvailable = true
+        myMetadata = createMetadata("Agent name", "instance-2")
+        scheduler.runAll()
+
+        // Then
+        m.assertIsSatisfied()
+        Assert.assertEquals(scheduler.tasks.size, 1)
+        Assert.assertTrue(scheduler.isCancelled)
+    }
+
+    fun testIgnoreCorruptedCache() {
+        // Given
+        val m = Mockery()
+        val agentConfiguration = m.mock(BuildAgentConfigurationEx::class.java)
+        m.checking(object : Expectations() {
+            init {
+                ignoring(agentConfiguration)
+            }
+        })
+        FileUtil.writeFileAndReportErrors(getCacheFile(), "{\"vmId\":")
+        val scheduler = ManualScheduler()
+
+        // When
+        val result = createReader(m, agentConfiguration, scheduler).process()
+
+        // Then
+        Assert.assertEquals(result, MetadataReaderResult.NEED_POST_PROCESS)
+        Assert.assertEquals(myRequestsCount.get(), 1)
+        Assert.assertTrue(scheduler.tasks.isEmpty())
+        Assert.assertEquals(AzureMetadataCacheImpl(getCacheFile()).read()?.vmId, "5d33a910-a7a0-4443-9f01-6a807801b29b")
+    }
+
+    private fun createReader(m: Mockery, agentConfiguration: BuildAgentConfigurationEx, scheduler: AzureScheduledExecutorService): AzureMetadataReader {
+        val spotTerminationChecker = m.mock(SpotInstanceTerminationChecker::class.java, "spotTerminationChecker${myReadersCount.incrementAndGet()}")
+        m.checking(object : Expectations() {
+            init {
+                ignoring(spotTerminationChecker)
+            }
+        })
+        return AzureMetadataReader(agentConfiguration, spotTerminationChecker, AzureMetadataCacheImpl(getCacheFile()), scheduler)
+    }
+
+    private fun getCacheFile() = File(myCacheDirectory, "instance-metadata.json")
+
+    private fun createMetadata(agentName: String, startingInstanceId: String? = null, publicIpAddress: String = "X.X.X.X"): String {
+        val cloudInstanceUserData = CloudInstanceUserData(
+            agentName,
+            "Auth token",
+            "Server URL",
+            null,
+            "Profile ID",
+            "Profile description",
+            startingInstanceId?.let { mapOf(STARTING_INSTANCE_ID to it) } ?: emptyMap()
+        )
+        val userData = AzureUserData.serializeV1(cloudInstanceUserData.serialize(), "Sample")
+        return FileUtil
+            .readText(File("src/test/resources/metadata.json"))
+            .replace("@userData", userData)
+            .replace("X.X.X.X", publicIpAddress)
+    }
+
+    private class ManualScheduler : AzureScheduledExecutorService {
+        val tasks = mutableListOf<Runnable>()
+        var isCancelled = false
+
+        override fun scheduleWithFixedDelay(r: Runnable, initialDelay: Long, delay: Long, unit: TimeUnit): AzureCancellable {
+            tasks.add(r)
+            return object : AzureCancellable {
+                override fun cancel() {
+                    isCancelled = true
+                }
+            }
+        }
+
+        fun runAll() = tasks.forEach { it.run() }
+    }
+
+    companion object {
+        private const val STARTING_INSTANCE_ID = "teamcity.agent.startingInstanceId"
+    }
+}
@@ -18,6 +18,8 @@ class AzureMetadataReaderTest {
         m.setThreadingPolicy(Synchroniser())
         val agentConfiguration = m.mock(BuildAgentConfigurationEx::class.java)
         val spotTerminationChecker = m.mock(SpotInstanceTerminationChecker::class.java)
+        val metadataCache = m.mock(AzureMetadataCache::class.java)
+        val scheduler = m.mock(AzureScheduledExecutorService::class.java)
         val cloudInstanceUserData = CloudInstanceUserData(
             "Agent name",
             "Auth token",
@@ -51,7 +53,7 @@ class AzureMetadataReaderTest {
         })
 
         val metadata = AzureMetadata.deserializeInstanceMetadata(json)
-        AzureMetadataReader(agentConfiguration, spotTerminationChecker).updateConfiguration(metadata)
+        AzureMetadataReader(agentConfiguration, spotTerminationChecker, metadataCache, scheduler).updateConfiguration(metadata)
 
         m.assertIsSatisfied()
     }
@@ -61,6 +63,8 @@ class AzureMetadataReaderTest {
         m.setThreadingPolicy(Synchroniser())
         val agentConfiguration = m.mock(BuildAgentConfigurationEx::class.java)
         val spotTerminationChecker = m.mock(SpotInstanceTerminationChecker::class.java)
+        val metadataCache = m.mock(AzureMetadataCache::class.java)
+        val scheduler = m.mock(AzureScheduledExecutorService::class.java)
         val cloudInstanceUserData = CloudInstanceUserData(
             "Agent name",
             "Auth token",
@@ -98,7 +102,7 @@ class AzureMetadataReaderTest {
         })
 
         val metadata = AzureMetadata.deserializeInstanceMetadata(json)
-        AzureMetadataReader(agentConfiguration, spotTerminationChecker).updateConfiguration(metadata)
+        AzureMetadataReader(agentConfiguration, spotTerminationChecker, metadataCache, scheduler).updateConfiguration(metadata)
 
         m.assertIsSatisfied()
     }
@@ -0,0 +1,39 @@
+package jetbrains.buildServer.clouds.azure
+
+import org.testng.Assert
+import org.testng.annotations.Test
+import java.util.*
+
+@Test
+class AzureUserDataTest {
+
+    fun testDeserializeV1() {
+        val userData = AzureUserData.deserialize(AzureUserData.serializeV1("custom=data", "instance-1"))
+
+        Assert.assertEquals(userData.version, "1.0")
+        Assert.assertEquals(userData.pluginCode, AzureUserData.PLUGIN_CODE)
+        Assert.assertEquals(userData.instanceId, "instance-1")
+        Assert.assertEquals(userData.cloudInstanceUserData, "custom=data")
+    }
+
+    fun testDeserializeV2() {
+        val userData = AzureUserData.deserialize(AzureUserData.serializeV2("custom=data", "instance-1"))
+
+        Assert.assertEquals(userData.version, "2.0")
+        Assert.assertEquals(userData.pluginCode, AzureUserData.PLUGIN_CODE)
+        Assert.assertEquals(userData.instanceId, "instance-1")
+        Assert.assertEquals(userData.cloudInstanceUserData, "custom=data")
+    }
+
+    fun testRoundTripRandomData() {
+        val random = Random(13)
+        repeat(500) {
+            val customData = String(CharArray(random.nextInt(2000)) { (0x20 + random.nextInt(0x500)).toChar() })
+            val instanceId = "agent-" + random.nextInt(10000)
+
+            val userData = AzureUserData.deserialize(AzureUserData.serializeV2(customData, instanceId))
+            Assert.assertEquals(userData.cloudInstanceUserData, customData)
+            Assert.assertEquals(userData.instanceId, instanceId)
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package jetbrains.buildServer.clouds.azure
+
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.util.zip.DataFormatException
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+
+/**
+ * Length-prefixed binary container used to pass data from the server to cloud agents.
+ *
+ * Layout: magic (4 bytes) | kind (1 byte) | version (1 byte) | flags (1 byte) | body,
+ * where body is a sequence of length-prefixed UTF-8 strings, lengths are unsigned LEB128 varints.
+ */
+internal object AzureBinaryFormat {
+    private val MAGIC = byteArrayOf('T'.code.toByte(), 'C'.code.toByte(), 'A'.code.toByte(), 'Z'.code.toByte())
+    private const val HEADER_SIZE = 7
+
+    const val KIND_ENVIRONMENT: Byte = 1
+    const val KIND_USER_DATA: Byte = 2
+
+    const val FLAG_DEFLATE = 1
+
+    fun hasHeader(data: ByteArray, kind: Byte): Boolean {
+        if (data.size < HEADER_SIZE) return false
+        for (i in MAGIC.indices) {
+            if (data[i] != MAGIC[i]) return false
+        }
+        return data[MAGIC.size] == kind
+    }
+
+    class Writer(kind: Byte, version: Int, flags: Int) {
+        private val myStream = ByteArrayOutputStream(256)
+
+        init {
+            myStream.write(MAGIC)
+            myStream.write(kind.toInt())
+            myStream.write(version)
+            myStream.write(flags)
+        }
+
+        fun writeVarInt(value: Int): Writer {
+            require(value >= 0) { "Negative length $value" }
+            var rest = value
+            while (rest and 0x7F.inv() != 0) {
+                myStream.write((rest and 0x7F) or 0x80)
+                rest = rest ushr 7
+            }
+            myStream.write(rest)
+            return this
+        }
+
+        fun writeString(value: String): Writer {
+            val bytes = value.toByteArray(Charsets.UTF_8)
+            writeVarInt(bytes.size)
+            myStream.write(bytes, 0, bytes.size)
+            return this
+        }
+
+        fun writeBytes(value: ByteArray): Writer {
+            myStream.write(value, 0, value.size)
+            return this
+        }
+
+        fun toByteArray(): ByteArray = myStream.toByteArray()
+    }
+
+    fun deflate(data: ByteArray): ByteArray {
+        val deflater = Deflater(Deflater.BEST_COMPRESSION)
+        try {
+            deflater.setInput(data)
+            deflater.finish()
+            val stream = ByteArrayOutputStream(data.size / 2 + 16)
+            val buffer = ByteArray(1024)
+            while (!deflater.finished()) {
+                val count = deflater.deflate(buffer)
+                stream.write(buffer, 0, count)
+            }
+            return stream.toByteArray()
+        } finally {
+            deflater.end()
+        }
+    }
+
+    fun inflate(data: ByteArray): ByteArray {
+        val inflater = Inflater()
+        try {
+            inflater.setInput(data)
+            val stream = ByteArrayOutputStream(data.size * 3)
+            val buffer = ByteArray(1024)
+            while (!inflater.finished()) {
+                val count = try {
+                    inflater.inflate(buffer)
+                } catch (e: DataFormatException) {
+                    throw IOException("Malformed data: ${e.message}", e)
+                }
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw IOException("Unexpected end of compressed data")
+                }
+                stream.write(buffer, 0, count)
+            }
+            return stream.toByteArray()
+        } finally {
+            inflater.end()
+        }
+    }
+
+    fun version(data: ByteArray): Int = data[MAGIC.size + 1].toInt() and 0xFF
+
+    fun flags(data: ByteArray): Int = data[MAGIC.size + 2].toInt() and 0xFF
+
+    fun body(data: ByteArray): ByteArray = data.copyOfRange(HEADER_SIZE, data.size)
+
+    fun bodyReader(data: ByteArray): Reader = Reader(data, HEADER_SIZE)
+
+    class Reader(private val myData: ByteArray, offset: Int = 0) {
+        private var myPosition = offset
+
+        val hasRemaining: Boolean
+            get() = myPosition < myData.size
+
+        fun readVarInt(): Int {
+            var result = 0
+            var shift = 0
+            while (true) {
+                if (myPosition >= myData.size) throw IOException("Unexpected end of data at $myPosition")
+                if (shift > 28) throw IOException("Malformed length at $myPosition")
+                val b = myData[myPosition++].toInt() and 0xFF
+                result = result or ((b and 0x7F) shl shift)
+                if (b and 0x80 == 0) break
+                shift += 7
+            }
+            if (result < 0) throw IOException("Malformed length $result")
+            return result
+        }
+
+        fun readString(): String {
+            val length = readVarInt()
+            if (length > myData.size - myPosition) throw IOException("String length $length exceeds remaining data at $myPosition")
+            val result = String(myData, myPosition, length, Charsets.UTF_8)
+            myPosition += length
+            return result
+        }
+    }
+}
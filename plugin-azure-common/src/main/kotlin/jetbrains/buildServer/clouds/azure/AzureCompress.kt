@@ -2,13 +2,41 @@ package jetbrains.buildServer.clouds.azure
 
 import java.io.ByteArrayInputStream
 import java.io.ByteArrayOutputStream
+import java.io.IOException
 import java.util.zip.GZIPInputStream
 import java.util.zip.GZIPOutputStream
 import javax.xml.bind.DatatypeConverter
 
+/**
+ * Encodes agent configuration parameters passed through the environment.
+ *
+ * Current format is a versioned length-prefixed binary record (see [AzureBinaryFormat]) which is deflated
+ * when it is large enough. Legacy format is GZIP-ed `key=value` lines, it is still accepted by [decode].
+ */
 object AzureCompress {
+    private const val FORMAT_VERSION = 1
+    private const val DEFLATE_THRESHOLD = 256
 
     fun encode(env: Map<String, String>): String {
+        val writer = AzureBinaryFormat.Writer(AzureBinaryFormat.KIND_ENVIRONMENT, FORMAT_VERSION, 0)
+        writer.writeVarInt(env.size)
+        env.forEach { (key, value) ->
+            writer.writeString(key)
+            writer.writeString(value)
+        }
+
+        var data = writer.toByteArray()
+        if (data.size > DEFLATE_THRESHOLD) {
+            val deflated = AzureBinaryFormat.deflate(AzureBinaryFormat.body(data))
+            data = AzureBinaryFormat.Writer(AzureBinaryFormat.KIND_ENVIRONMENT, FORMAT_VERSION, AzureBinaryFormat.FLAG_DEFLATE)
+                .writeBytes(deflated)
+                .toByteArray()
+        }
+
+        return DatatypeConverter.printBase64Binary(data)
+    }
+
+    fun encodeLegacy(env: Map<String, String>): String {
         val byteStream = ByteArrayOutputStream()
         GZIPOutputStream(byteStream).use { stream ->
             stream.bufferedWriter().use { writer ->
@@ -22,12 +50,39 @@ object AzureCompress {
     }
 
     fun decode(text: String): Map<String, String> {
+        val data = DatatypeConverter.parseBase64Binary(text)
+        if (!AzureBinaryFormat.hasHeader(data, AzureBinaryFormat.KIND_ENVIRONMENT)) {
+            return decodeLegacy(data)
+        }
+
+        val version = AzureBinaryFormat.version(data)
+        if (version > FORMAT_VERSION) {
+            throw IOException("Unsupported environment data version $version")
+        }
+
+        val reader = if (AzureBinaryFormat.flags(data) and AzureBinaryFormat.FLAG_DEFLATE != 0) {
+            AzureBinaryFormat.Reader(AzureBinaryFormat.inflate(AzureBinaryFormat.body(data)))
+        } else {
+            AzureBinaryFormat.bodyReader(data)
+        }
+
+        val count = reader.readVarInt()
+        val map = HashMap<String, String>(minOf(count, data.size) * 4 / 3 + 1)
+        for (i in 0 until count) {
+            val key = reader.readString()
+            map[key] = reader.readString()
+        }
+        return map
+    }
+
+    private fun decodeLegacy(data: ByteArray): Map<String, String> {
         val map = hashMapOf<String, String>()
-        val byteStream = ByteArrayInputStream(DatatypeConverter.parseBase64Binary(text))
-        GZIPInputStream(byteStream).use { stream ->
+        GZIPInputStream(ByteArrayInputStream(data)).use { stream ->
             stream.bufferedReader().lines().forEach {
-                val (key, value) = it.split('=')
-                map[key] = value
+                val separator = it.indexOf('=')
+                if (separator >= 0) {
+                    map[it.substring(0, separator)] = it.substring(separator + 1)
+                }
             }
         }
         return map
@@ -15,9 +15,16 @@ import java.net.SocketTimeoutException
 
 object AzureMetadata {
 
-    fun readInstanceMetadata(): Metadata {
+    /**
+     * Reads instance metadata.
+     *
+     * @param socketTimeoutMs response wait timeout, not limited by default.
+     */
+    fun readInstanceMetadata(socketTimeoutMs: Int = CONNECTION_TIMEOUT_MS): Metadata {
+        val url = getMetadataUrl(INSTANCE_METADATA_PATH)
         val requestConfig = RequestConfig.custom()
                 .setConnectTimeout(PING_CONNECTION_TIMEOUT_MS)
+                .setSocketTimeout(socketTimeoutMs)
                 .build()
 
         HttpClients.custom()
@@ -26,29 +33,30 @@ object AzureMetadata {
                 .build().use {
                     for (i in 1..PING_MAX_TRIES) {
                         val response = try {
-                            it.execute(HttpGet(INSTANCE_METADATA_URL).apply {
+                            it.execute(HttpGet(url).apply {
                                 addHeader("Metadata", "true")
                             })
                         } catch (ignored: SocketTimeoutException) {
                             // Ignore logging timeouts which is the expected failure mode in non Azure environments.
                             continue
                         } catch (e: Exception) {
-                            throw IOException("Failed to connect to $INSTANCE_METADATA_URL: ${e.message}")
+                            throw IOException("Failed to connect to $url: ${e.message}")
                         }
 
                         val statusCode = response.statusLine.statusCode
                         if (statusCode == 200) {
                             return deserializeInstanceMetadata(EntityUtils.toString(response.entity))
                         } else {
-                            throw IOException("Failed to connect to $INSTANCE_METADATA_URL: HTTP $statusCode")
+                            throw IOException("Failed to connect to $url: HTTP $statusCode")
                         }
                     }
                 }
 
-        throw IOException("Unable to connect to $INSTANCE_METADATA_URL in $PING_MAX_TRIES attempts")
+        throw IOException("Unable to connect to $url in $PING_MAX_TRIES attempts")
     }
 
     fun readScheduledEventsMetadata(): ScheduledEventsMetadata? {
+        val url = getMetadataUrl(SCHEDULED_EVENTS_METADATA_PATH)
         val requestConfig = RequestConfig.custom()
                 .setConnectTimeout(CONNECTION_TIMEOUT_MS)
                 .build()
@@ -58,11 +66,11 @@ object AzureMetadata {
                 .setDefaultRequestConfig(requestConfig)
                 .build().use {
                     val response = try {
-                        it.execute(HttpGet(SCHEDULED_EVENTS_METADATA_URL).apply {
+                        it.execute(HttpGet(url).apply {
                             addHeader("Metadata", "true")
                         })
                     } catch (e: Exception) {
-                        throw IOException("Failed to connect to $SCHEDULED_EVENTS_METADATA_URL: ${e.message}")
+                        throw IOException("Failed to connect to $url: ${e.message}")
                     }
 
                     val statusCode = response.statusLine.statusCode
@@ -71,7 +79,7 @@ object AzureMetadata {
                         LOG.debug("Metadata service returned: $entity")
                         return deserializeScheduledEventsMetadata(entity)
                     } else {
-                        throw IOException("Failed to connect to $SCHEDULED_EVENTS_METADATA_URL: HTTP $statusCode")
+                        throw IOException("Failed to connect to $url: HTTP $statusCode")
                     }
                 }
     }
@@ -79,6 +87,7 @@ object AzureMetadata {
     fun approveEvent(documentIncarnation: String?, eventId: String?) {
         if (documentIncarnation == null || eventId == null) return
 
+        val url = getMetadataUrl(SCHEDULED_EVENTS_METADATA_PATH)
         val requestConfig = RequestConfig.custom()
                 .setConnectTimeout(CONNECTION_TIMEOUT_MS)
                 .build()
@@ -88,16 +97,24 @@ object AzureMetadata {
                 .setDefaultRequestConfig(requestConfig)
                 .build().use {
                     try {
-                        it.execute(HttpPost(SCHEDULED_EVENTS_METADATA_URL).apply {
+                        it.execute(HttpPost(url).apply {
                             val approval = ScheduledRequestApproval(documentIncarnation, listOf(StartRequest(eventId)))
                             entity = StringEntity(serializeApprovalRequest(approval), ContentType.APPLICATION_JSON)
                         })
                     } catch (e: Exception) {
-                        throw IOException("Failed to connect to $SCHEDULED_EVENTS_METADATA_URL: ${e.message}")
+                        throw IOException("Failed to connect to $url: ${e.message}")
                     }
             }
     }
 
+    /**
+     * Metadata endpoint could be overridden to use a local stub of the service.
+     */
+    private fun getMetadataUrl(path: String): String {
+        val endpoint = System.getProperty(METADATA_ENDPOINT_PROPERTY)?.trim()?.trimEnd('/')
+        return (if (endpoint.isNullOrEmpty()) DEFAULT_METADATA_ENDPOINT else endpoint) + path
+    }
+
     private fun serializeApprovalRequest(approval: ScheduledRequestApproval): String {
         return GSON.toJson(approval)
     }
@@ -199,9 +216,13 @@ object AzureMetadata {
             val eventId: String?
     )
 
-    private const val INSTANCE_METADATA_URL = "http://169.254.169.254/metadata/instance?api-version=2021-02-01"
+    const val METADATA_ENDPOINT_PROPERTY = "teamcity.azure.metadata.endpoint"
+
+    private const val DEFAULT_METADATA_ENDPOINT = "http://169.254.169.254"
+
+    private const val INSTANCE_METADATA_PATH = "/metadata/instance?api-version=2021-02-01"
 
-    private const val SCHEDULED_EVENTS_METADATA_URL = "http://169.254.169.254/metadata/scheduledevents?api-version=2019-08-01"
+    private const val SCHEDULED_EVENTS_METADATA_PATH = "/metadata/scheduledevents?api-version=2019-08-01"
 
     // Note: the explicit `timeout` and `tries` below is a workaround. The underlying
     // issue is that resolving an unknown host on some networks will take
@@ -3,6 +3,7 @@ package jetbrains.buildServer.clouds.azure
 import com.google.gson.GsonBuilder
 import com.google.gson.annotations.Since
 import org.apache.commons.codec.binary.Base64
+import java.io.IOException
 
 class AzureUserData
 {
@@ -18,18 +19,36 @@ class AzureUserData
     @Since(1.0)
     val pluginCode: String
 
-    private constructor(cloudInstanceUserData: String, instanceId: String) {
-        version = "1.0"
+    private constructor(cloudInstanceUserData: String, instanceId: String) :
+        this(VERSION_1, cloudInstanceUserData, instanceId, PLUGIN_CODE)
+
+    private constructor(version: String, cloudInstanceUserData: String, instanceId: String, pluginCode: String) {
+        this.version = version
         this.cloudInstanceUserData = cloudInstanceUserData
         this.instanceId = instanceId
-        pluginCode = PLUGIN_CODE
+        this.pluginCode = pluginCode
     }
 
     fun serialize(): String =
         Base64.encodeBase64String(gson.toJson(this).toByteArray(Charsets.UTF_8))
 
+    /**
+     * Serializes user data into the length-prefixed binary format.
+     */
+    fun serializeBinary(): String {
+        val data = AzureBinaryFormat.Writer(AzureBinaryFormat.KIND_USER_DATA, BINARY_FORMAT_VERSION, 0)
+            .writeString(pluginCode)
+            .writeString(instanceId)
+            .writeString(cloudInstanceUserData)
+            .toByteArray()
+        return Base64.encodeBase64String(data)
+    }
+
     companion object {
         const val PLUGIN_CODE = "arm"
+        private const val VERSION_1 = "1.0"
+        private const val VERSION_2 = "2.0"
+        private const val BINARY_FORMAT_VERSION = 1
         private val gson = GsonBuilder().setVersion(1.0).create()
         fun createV1(customData: String, instanceId: String): AzureUserData =
             AzureUserData(customData, instanceId)
@@ -37,7 +56,27 @@ class AzureUserData
         fun serializeV1(customData: String, instanceId: String): String =
             createV1(customData, instanceId).serialize()
 
-        fun deserialize(data: String): AzureUserData =
-            gson.fromJson(String(Base64.decodeBase64(data)), AzureUserData::class.java)
+        fun serializeV2(customData: String, instanceId: String): String =
+            AzureUserData(VERSION_2, customData, instanceId, PLUGIN_CODE).serializeBinary()
+
+        /**
+         * Deserializes user data written either in binary or in JSON format.
+         */
+        fun deserialize(data: String): AzureUserData {
+            val bytes = Base64.decodeBase64(data)
+            if (!AzureBinaryFormat.hasHeader(bytes, AzureBinaryFormat.KIND_USER_DATA)) {
+                return gson.fromJson(String(bytes, Charsets.UTF_8), AzureUserData::class.java)
+            }
+
+            val formatVersion = AzureBinaryFormat.version(bytes)
+            if (formatVersion > BINARY_FORMAT_VERSION) {
+                throw IOException("Unsupported user data version $formatVersion")
+            }
+            val reader = AzureBinaryFormat.bodyReader(bytes)
+            val pluginCode = reader.readString()
+            val instanceId = reader.readString()
+            val cloudInstanceUserData = reader.readString()
+            return AzureUserData(VERSION_2, cloudInstanceUserData, instanceId, pluginCode)
+        }
     }
 }
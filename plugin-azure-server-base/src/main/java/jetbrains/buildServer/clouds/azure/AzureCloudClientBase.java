@@ -1,6 +1,7 @@
 package jetbrains.buildServer.clouds.azure;
 
 import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.BuildAgent;
 import jetbrains.buildServer.clouds.CloudClientParameters;
 import jetbrains.buildServer.clouds.base.AbstractCloudClient;
 import jetbrains.buildServer.clouds.base.AbstractCloudImage;
@@ -18,6 +19,8 @@ import org.jetbrains.annotations.Nullable;
 import org.springframework.util.CollectionUtils;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Azure cloud client base.
@@ -26,13 +29,17 @@ public abstract class AzureCloudClientBase<G extends AbstractCloudInstance<T>, T
   extends AbstractCloudClient<G, T, D> {
 
   private static final Logger LOG = Logger.getInstance(AzureCloudClientBase.class.getName());
+  private static final int MAX_AGENT_PAYLOADS = 10000;
   private final AzureCloudImagesHolder myImagesHolder;
+  private final AzureInstanceIndex<G> myInstanceIndex;
+  private final ConcurrentMap<Integer, AgentPayload> myAgentPayloads = new ConcurrentHashMap<>();
 
   public AzureCloudClientBase(@NotNull final CloudClientParameters params,
                               @NotNull final CloudApiConnector<T, G> apiConnector,
                               @NotNull final AzureCloudImagesHolder imagesHolder) {
     super(params, apiConnector);
     myImagesHolder = imagesHolder;
+    myInstanceIndex = new AzureInstanceIndex<>(StringUtil.emptyIfNull(params.getParameter("profileId")));
   }
 
   @SuppressWarnings("unchecked")
@@ -47,32 +54,50 @@ public abstract class AzureCloudClientBase<G extends AbstractCloudInstance<T>, T
   public G findInstanceByAgent(@NotNull final AgentDescription agent) {
     String instanceName = agent.getAvailableParameters().get(AzureProperties.INSTANCE_NAME);
     if (instanceName == null) {
-      try {
-        final String compressedConfigurationParameters = agent.getAvailableParameters().get("env." + AzureProperties.INSTANCE_ENV_VAR);
-        if (StringUtil.isEmpty(compressedConfigurationParameters)) {
-          return null;
-        }
-        final Map<String, String> configurationParameters = AzureCompress.INSTANCE.decode(compressedConfigurationParameters);
-        if (CollectionUtils.isEmpty(configurationParameters)) {
-          return null;
-        }
-        instanceName = configurationParameters.get(AzureProperties.INSTANCE_NAME);
-      } catch (Exception e) {
-        LOG.warnAndDebugDetails("Got exception while trying to parse agent configuration parameters from [env.TEAMCITY_AZURE]", e);
+      final String compressedConfigurationParameters = agent.getAvailableParameters().get("env." + AzureProperties.INSTANCE_ENV_VAR);
+      if (StringUtil.isEmpty(compressedConfigurationParameters)) {
+        return null;
       }
+      instanceName = getInstanceName(agent, compressedConfigurationParameters);
       if (instanceName == null) {
         return null;
       }
     }
 
-    for (T image : myImageMap.values()) {
-      final G instanceById = image.findInstanceById(instanceName);
-      if (instanceById != null) {
-        return instanceById;
+    return myInstanceIndex.findByName(instanceName);
+  }
+
+  /**
+   * Decodes instance name from [env.TEAMCITY_AZURE] agent parameter, decoded value is memoized per agent.
+   */
+  @Nullable
+  private String getInstanceName(@NotNull final AgentDescription agent, @NotNull final String compressedConfigurationParameters) {
+    final Integer agentId = agent instanceof BuildAgent ? ((BuildAgent)agent).getId() : null;
+    if (agentId != null) {
+      final AgentPayload payload = myAgentPayloads.get(agentId);
+      if (payload != null && payload.myCompressedParameters.equals(compressedConfigurationParameters)) {
+        return payload.myInstanceName;
       }
     }
 
-    return null;
+    String instanceName = null;
+    try {
+      final Map<String, String> configurationParameters = AzureCompress.INSTANCE.decode(compressedConfigurationParameters);
+      if (!CollectionUtils.isEmpty(configurationParameters)) {
+        instanceName = configurationParameters.get(AzureProperties.INSTANCE_NAME);
+      }
+    } catch (Exception e) {
+      LOG.warnAndDebugDetails("Got exception while trying to parse agent configuration parameters from [env.TEAMCITY_AZURE]", e);
+      return null;
+    }
+
+    if (agentId != null) {
+      if (myAgentPayloads.size() >= MAX_AGENT_PAYLOADS) {
+        myAgentPayloads.clear();
+      }
+      myAgentPayloads.put(agentId, new AgentPayload(compressedConfigurationParameters, instanceName));
+    }
+    return instanceName;
   }
 
   @Nullable
@@ -88,6 +113,7 @@ public abstract class AzureCloudClientBase<G extends AbstractCloudInstance<T>, T
     final String profileId = StringUtil.emptyIfNull(myParameters.getParameter("profileId"));
     final String sourceId = imageDetails.getSourceId();
     final T cloudImage = createImage(imageDetails);
+    cloudImage.addInstancesListener(myInstanceIndex);
 
     // Try to find existing images
     final T image = (T) myImagesHolder.findImage(profileId, sourceId);
@@ -112,4 +138,15 @@ public abstract class AzureCloudClientBase<G extends AbstractCloudInstance<T>, T
   }
 
   protected abstract T createImage(@NotNull D imageDetails);
+
+  private static final class AgentPayload {
+    private final String myCompressedParameters;
+    @Nullable
+    private final String myInstanceName;
+
+    private AgentPayload(@NotNull final String compressedParameters, @Nullable final String instanceName) {
+      myCompressedParameters = compressedParameters;
+      myInstanceName = instanceName;
+    }
+  }
 }
@@ -0,0 +1,83 @@
+package jetbrains.buildServer.clouds.azure;
+
+import jetbrains.buildServer.clouds.base.AbstractCloudImage;
+import jetbrains.buildServer.clouds.base.AbstractCloudInstance;
+import jetbrains.buildServer.clouds.base.CloudInstancesListener;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Index of cloud instances of a profile by (profile id, image id, instance name).
+ * Kept up to date by instance add/remove notifications of cloud images.
+ */
+public class AzureInstanceIndex<G extends AbstractCloudInstance> implements CloudInstancesListener<G> {
+  private final String myProfileId;
+  private final ConcurrentMap<InstanceKey, G> myInstances = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, InstanceKey> myKeysByName = new ConcurrentHashMap<>();
+
+  public AzureInstanceIndex(@NotNull final String profileId) {
+    myProfileId = profileId;
+  }
+
+  public void instanceAdded(@NotNull final AbstractCloudImage image, @NotNull final G instance) {
+    final InstanceKey key = new InstanceKey(myProfileId, image.getId(), instance.getInstanceId());
+    myInstances.put(key, instance);
+    myKeysByName.put(key.myInstanceName, key);
+  }
+
+  public void instanceRemoved(@NotNull final AbstractCloudImage image, @NotNull final G instance) {
+    final InstanceKey key = new InstanceKey(myProfileId, image.getId(), instance.getInstanceId());
+    if (myInstances.remove(key, instance)) {
+      myKeysByName.remove(key.myInstanceName, key);
+    }
+  }
+
+  @Nullable
+  public G find(@NotNull final String imageId, @NotNull final String instanceName) {
+    return myInstances.get(new InstanceKey(myProfileId, imageId, instanceName));
+  }
+
+  @Nullable
+  public G findByName(@NotNull final String instanceName) {
+    final InstanceKey key = myKeysByName.get(instanceName);
+    return key != null ? myInstances.get(key) : null;
+  }
+
+  public int size() {
+    return myInstances.size();
+  }
+
+  private static final class InstanceKey {
+    private final String myProfileId;
+    private final String myImageId;
+    private final String myInstanceName;
+    private final int myHashCode;
+
+    private InstanceKey(@NotNull final String profileId, @NotNull final String imageId, @NotNull final String instanceName) {
+      myProfileId = profileId;
+      myImageId = imageId;
+      myInstanceName = instanceName;
+      myHashCode = Objects.hash(profileId, imageId, instanceName);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) return true;
+      if (!(o instanceof InstanceKey)) return false;
+      final InstanceKey that = (InstanceKey)o;
+      return myHashCode == that.myHashCode
+             && myInstanceName.equals(that.myInstanceName)
+             && myImageId.equals(that.myImageId)
+             && myProfileId.equals(that.myProfileId);
+    }
+
+    @Override
+    public int hashCode() {
+      return myHashCode;
+    }
+  }
+}
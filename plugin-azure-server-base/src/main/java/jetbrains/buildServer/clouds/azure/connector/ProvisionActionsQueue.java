@@ -3,107 +3,325 @@ package jetbrains.buildServer.clouds.azure.connector;
 import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.clouds.base.connector.CloudAsyncTaskExecutor;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+/**
+ * Executes provisioning actions in keyed lanes: actions for the same service are executed one by one
+ * in the order of queueing, actions for different services are executed independently.
+ * The next action of a lane is started as soon as the previous one is finished.
+ *
+ * Finished actions are expected to be reported via {@link #actionFinished(String)}, the action id checker
+ * is used as a fallback with growing interval only while the action or a conflicting operation is running.
+ * Lanes without pending and running actions are removed.
+ */
 public class ProvisionActionsQueue {
   private static final Logger LOG = Logger.getInstance(ProvisionActionsQueue.class.getName());
-  private static final Pattern CONFLICT_ERROR_PATTERN = Pattern.compile("Windows Azure is currently performing an operation with x-ms-requestid ([0-9a-f]{32}) on this deployment that requires exclusive access.");
-  private static final Pattern PORT_ERROR_PATTERN = Pattern.compile("Port (\\d+) is already in use by one of the endpoints in this deployment. Ensure that the port numbers are unique across endpoints within a deployment.");
+  private static final String CONFLICT_ERROR_PREFIX = "Windows Azure is currently performing an operation with x-ms-requestid ";
+  private static final String CONFLICT_ERROR_SUFFIX = " on this deployment that requires exclusive access.";
+  private static final int REQUEST_ID_LENGTH = 32;
+  private static final String PORT_ERROR_PREFIX = "Port ";
+  private static final String PORT_ERROR_MESSAGE = " is already in use by one of the endpoints in this deployment.";
+  private static final long CHECK_INTERVAL_MS = 1000;
+  private static final long MAX_CHECK_INTERVAL_MS = 30000;
+  private static final long RETRY_DELAY_MS = 5000;
 
-  private final Map<String, AtomicReference<String>> requestsQueue = new HashMap<>();
-  private final ConditionalRunner myRunner = new ConditionalRunner();
+  private final CloudAsyncTaskExecutor myExecutor;
+  private final ConcurrentMap<String, Lane> myLanes = new ConcurrentHashMap<>();
+  // index of in-flight action ids to lanes which are waiting for them, several lanes could wait for the same foreign operation
+  private final ConcurrentMap<String, Set<Lane>> myRunningActions = new ConcurrentHashMap<>();
 
   public ProvisionActionsQueue(final CloudAsyncTaskExecutor asyncTaskExecutor) {
-    asyncTaskExecutor.scheduleWithFixedDelay("Update instances", myRunner, 0, 5, TimeUnit.SECONDS);
+    myExecutor = asyncTaskExecutor;
   }
 
   public boolean isLocked(@NotNull final String serviceName) {
-    return requestsQueue.get(serviceName) == null || requestsQueue.get(serviceName).get() == null;
+    final Lane lane = myLanes.get(serviceName);
+    return lane == null || lane.getRunningActionId() == null;
   }
 
-  public synchronized void queueAction(@NotNull final String serviceName, @NotNull final InstanceAction action) {
-    if (!requestsQueue.containsKey(serviceName)) {
-      requestsQueue.put(serviceName, new AtomicReference<String>(null));
+  public void queueAction(@NotNull final String serviceName, @NotNull final InstanceAction action) {
+    final boolean[] shouldDispatch = new boolean[1];
+    // action is added inside of compute, so the lane could not be removed concurrently
+    final Lane lane = myLanes.compute(serviceName, (key, existing) -> {
+      final Lane result = existing != null ? existing : new Lane(key);
+      shouldDispatch[0] = result.enqueue(action);
+      return result;
+    });
+    LOG.info(String.format("Added action '%s' for '%s'", action.getName(), serviceName));
+    if (shouldDispatch[0]) {
+      dispatch(lane, 0);
     }
-    myRunner.addConditional(new ConditionalRunner.Conditional() {
-      @NotNull
-      public String getName() {
-        return "Start handler of '" + action.getName() + "'";
-      }
+  }
 
-      public boolean canExecute() {
-        return requestsQueue.get(serviceName).get() == null;
-      }
+  int getLanesCount() {
+    return myLanes.size();
+  }
 
-      public boolean execute() throws Exception {
-        try {
-          final String actionId = action.action();
-          myRunner.addConditional(createFromActionId(action, actionId, serviceName));
-          requestsQueue.get(serviceName).set(actionId);
-          return true;
-        } catch (Exception ex) {
-          LOG.warn("An error occurred while attempting to execute " + getName() + ": " + ex.toString(), ex);
-          if (ex.getMessage() == null) {
-            action.onError(ex);
-            throw ex;
-          }
-          final Matcher matcher = CONFLICT_ERROR_PATTERN.matcher(ex.getMessage());
-          if (matcher.matches()) {
-            requestsQueue.get(serviceName).set(matcher.group(1));
-            return false;
-          } else {
-            Matcher portMatcher = PORT_ERROR_PATTERN.matcher(ex.getMessage());
-            if (portMatcher.matches()) {
-              return false;
-            }
-          }
-          action.onError(ex);
-          throw ex;
-        }
+  /**
+   * Notifies the queue that the action with given id has finished. The next action of the lane is started immediately.
+   */
+  public void actionFinished(@NotNull final String actionId) {
+    final Set<Lane> lanes = myRunningActions.remove(actionId);
+    if (lanes == null) {
+      return;
+    }
+
+    for (Lane lane : lanes) {
+      finishLane(lane, actionId);
+    }
+  }
+
+  private void finishLane(@NotNull final Lane lane, @NotNull final String actionId) {
+    final InstanceAction finishedAction = lane.finish(actionId);
+    if (finishedAction != null) {
+      try {
+        finishedAction.onFinish();
+      } catch (Exception e) {
+        LOG.warn("An error occurred while finishing " + finishedAction.getName() + ": " + e.toString(), e);
       }
-    });
+    }
+
+    dispatchNext(lane);
+  }
+
+  private void dispatchNext(@NotNull final Lane lane) {
+    if (lane.claimNext()) {
+      dispatch(lane, 0);
+    } else {
+      myLanes.computeIfPresent(lane.myKey, (key, existing) -> existing == lane && lane.isIdle() ? null : existing);
+    }
   }
 
   public Runnable getRequestCheckerCleanable(@NotNull final ActionIdChecker actionIdChecker) {
     return new Runnable() {
       public void run() {
-        try {
-          for (AtomicReference<String> reference : requestsQueue.values()) {
-            if (reference.get() == null)
-              continue;
-            if (actionIdChecker.isActionFinished(reference.get())) {
-              reference.set(null);
+        for (String actionId : myRunningActions.keySet()) {
+          try {
+            if (actionIdChecker.isActionFinished(actionId)) {
+              actionFinished(actionId);
             }
+          } catch (Exception ex) {
+            LOG.debug("Failed to check action " + actionId + ": " + ex.toString());
           }
-        } catch (Exception ex) {
         }
       }
     };
   }
 
-  private ConditionalRunner.Conditional createFromActionId(@NotNull final InstanceAction action, @NotNull final String actionId, @NotNull final String key) {
-    return new ConditionalRunner.Conditional() {
-      @NotNull
-      public String getName() {
-        return "Finish handler of '" + action.getName() + "'";
+  /**
+   * Registers the lane as waiting for the action. Both the index and the lane are updated under the lane lock,
+   * so {@link #actionFinished(String)} which takes the lane from the index would see the lane waiting for the action.
+   */
+  private void waitFor(@NotNull final Lane lane,
+                       @NotNull final String actionId,
+                       @Nullable final InstanceAction action,
+                       @NotNull final ActionIdChecker checker,
+                       final boolean poll) {
+    synchronized (lane) {
+      myRunningActions.compute(actionId, (id, lanes) -> {
+        final Set<Lane> result = lanes != null ? lanes : new HashSet<>();
+        result.add(lane);
+        return result;
+      });
+      if (poll) {
+        lane.pollAndWaitFor(actionId, action, checker);
+      } else {
+        lane.waitFor(actionId, action, checker);
       }
+    }
+  }
 
-      public boolean canExecute() throws Exception {
-        return action.getActionIdChecker().isActionFinished(actionId);
+  private void scheduleActionCheck(@NotNull final Lane lane, @NotNull final String actionId, final long delayMs) {
+    myExecutor.schedule("Check provision action for '" + lane.myKey + "'", () -> {
+      final ActionIdChecker checker = lane.getRunningChecker(actionId);
+      if (checker == null) {
+        return;
+      }
+      if (!checkActionFinished(actionId, checker)) {
+        scheduleActionCheck(lane, actionId, Math.min(delayMs * 2, MAX_CHECK_INTERVAL_MS));
       }
+    }, delayMs, TimeUnit.MILLISECONDS);
+  }
 
-      public boolean execute() throws Exception {
-        requestsQueue.get(key).set(null);
-        action.onFinish();
+  private boolean checkActionFinished(@NotNull final String actionId, @NotNull final ActionIdChecker checker) {
+    try {
+      if (checker.isActionFinished(actionId)) {
+        actionFinished(actionId);
         return true;
       }
-    };
+    } catch (Exception e) {
+      LOG.warn("An error occurred while checking state of action " + actionId + ": " + e.toString(), e);
+      actionFinished(actionId);
+      return true;
+    }
+    return false;
+  }
+
+  private void dispatch(@NotNull final Lane lane, final long delayMs) {
+    final Runnable task = () -> execute(lane);
+    if (delayMs > 0) {
+      myExecutor.schedule("Provision action for '" + lane.myKey + "'", task, delayMs, TimeUnit.MILLISECONDS);
+    } else {
+      myExecutor.submit("Provision action for '" + lane.myKey + "'", task);
+    }
+  }
+
+  private void execute(@NotNull final Lane lane) {
+    final InstanceAction action = lane.peek();
+    if (action == null) {
+      dispatchNext(lane);
+      return;
+    }
+
+    final String actionId;
+    try {
+      actionId = action.action();
+    } catch (Exception ex) {
+      LOG.warn("An error occurred while attempting to execute '" + action.getName() + "': " + ex.toString(), ex);
+      final String message = ex.getMessage();
+      final String conflictingRequestId = message != null ? parseConflictingRequestId(message) : null;
+      if (conflictingRequestId != null) {
+        // wait for the foreign operation to complete and then retry the same action
+        waitFor(lane, conflictingRequestId, null, action.getActionIdChecker(), false);
+        scheduleActionCheck(lane, conflictingRequestId, CHECK_INTERVAL_MS);
+        return;
+      }
+      if (message != null && isPortConflict(message)) {
+        dispatch(lane, RETRY_DELAY_MS);
+        return;
+      }
+
+      lane.poll();
+      try {
+        action.onError(ex);
+      } finally {
+        dispatchNext(lane);
+      }
+      return;
+    }
+
+    LOG.info(String.format("Executed '%s'. Action id: %s", action.getName(), actionId));
+    waitFor(lane, actionId, action, action.getActionIdChecker(), true);
 
+    // synchronous actions could be finished already
+    if (!checkActionFinished(actionId, action.getActionIdChecker())) {
+      scheduleActionCheck(lane, actionId, CHECK_INTERVAL_MS);
+    }
+  }
+
+  @Nullable
+  static String parseConflictingRequestId(@NotNull final String message) {
+    if (message.length() != CONFLICT_ERROR_PREFIX.length() + REQUEST_ID_LENGTH + CONFLICT_ERROR_SUFFIX.length()
+        || !message.startsWith(CONFLICT_ERROR_PREFIX)
+        || !message.endsWith(CONFLICT_ERROR_SUFFIX)) {
+      return null;
+    }
+
+    final String requestId = message.substring(CONFLICT_ERROR_PREFIX.length(), CONFLICT_ERROR_PREFIX.length() + REQUEST_ID_LENGTH);
+    for (int i = 0; i < requestId.length(); i++) {
+      final char c = requestId.charAt(i);
+      if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+        return null;
+      }
+    }
+    return requestId;
+  }
+
+  static boolean isPortConflict(@NotNull final String message) {
+    return message.startsWith(PORT_ERROR_PREFIX) && message.contains(PORT_ERROR_MESSAGE);
+  }
+
+  private static final class Lane {
+    private final String myKey;
+    private final Deque<InstanceAction> myPending = new ArrayDeque<>();
+    private String myRunningActionId;
+    private InstanceAction myRunningAction;
+    private ActionIdChecker myRunningChecker;
+    private boolean myDispatching;
+
+    private Lane(@NotNull final String key) {
+      myKey = key;
+    }
+
+    /**
+     * @return true if the caller should dispatch the lane.
+     */
+    synchronized boolean enqueue(@NotNull final InstanceAction action) {
+      myPending.addLast(action);
+      return claimNextUnsafe();
+    }
+
+    /**
+     * @return true if the caller should dispatch the lane.
+     */
+    synchronized boolean claimNext() {
+      return claimNextUnsafe();
+    }
+
+    private boolean claimNextUnsafe() {
+      if (myDispatching || myRunningActionId != null || myPending.isEmpty()) {
+        return false;
+      }
+      myDispatching = true;
+      return true;
+    }
+
+    @Nullable
+    synchronized InstanceAction peek() {
+      final InstanceAction action = myPending.peekFirst();
+      if (action == null) {
+        myDispatching = false;
+      }
+      return action;
+    }
+
+    synchronized void poll() {
+      myPending.pollFirst();
+      myDispatching = false;
+    }
+
+    synchronized void pollAndWaitFor(@NotNull final String actionId, @NotNull final InstanceAction action, @NotNull final ActionIdChecker checker) {
+      myPending.pollFirst();
+      waitFor(actionId, action, checker);
+    }
+
+    synchronized void waitFor(@NotNull final String actionId, @Nullable final InstanceAction action, @NotNull final ActionIdChecker checker) {
+      myRunningActionId = actionId;
+      myRunningAction = action;
+      myRunningChecker = checker;
+      myDispatching = false;
+    }
+
+    @Nullable
+    synchronized InstanceAction finish(@NotNull final String actionId) {
+      if (!actionId.equals(myRunningActionId)) {
+        return null;
+      }
+      final InstanceAction action = myRunningAction;
+      myRunningActionId = null;
+      myRunningAction = null;
+      myRunningChecker = null;
+      return action;
+    }
+
+    synchronized boolean isIdle() {
+      return !myDispatching && myRunningActionId == null && myPending.isEmpty();
+    }
+
+    @Nullable
+    synchronized String getRunningActionId() {
+      return myRunningActionId;
+    }
+
+    @Nullable
+    synchronized ActionIdChecker getRunningChecker(@NotNull final String actionId) {
+      return actionId.equals(myRunningActionId) ? myRunningChecker : null;
+    }
   }
 
   public interface InstanceAction {
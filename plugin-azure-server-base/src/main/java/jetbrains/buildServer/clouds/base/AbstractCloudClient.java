@@ -9,6 +9,7 @@ import jetbrains.buildServer.clouds.CloudException;
 import jetbrains.buildServer.clouds.CloudImage;
 import jetbrains.buildServer.clouds.CloudInstance;
 import jetbrains.buildServer.clouds.CloudInstanceUserData;
+import jetbrains.buildServer.clouds.InstanceStatus;
 import jetbrains.buildServer.clouds.QuotaException;
 import jetbrains.buildServer.clouds.base.beans.CloudImageDetails;
 import jetbrains.buildServer.clouds.base.connector.CloudApiConnector;
@@ -17,8 +18,10 @@ import jetbrains.buildServer.clouds.base.errors.CloudErrorMap;
 import jetbrains.buildServer.clouds.base.errors.DefaultErrorMessageUpdater;
 import jetbrains.buildServer.clouds.base.errors.TypedCloudErrorInfo;
 import jetbrains.buildServer.clouds.base.errors.UpdatableCloudErrorProvider;
+import jetbrains.buildServer.clouds.base.tasks.AdaptiveUpdateScheduler;
 import jetbrains.buildServer.clouds.base.tasks.UpdateInstancesTask;
 import jetbrains.buildServer.serverSide.AgentDescription;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -30,6 +33,17 @@ public abstract class AbstractCloudClient<G extends AbstractCloudInstance<T>, T
         implements CloudClientEx, UpdatableCloudErrorProvider {
 
     private static final Logger LOG = Logger.getInstance(AbstractCloudClient.class.getName());
+    private static final String ADAPTIVE_POLLING_ENABLED = "teamcity.azure.cloud.adaptivePolling.enabled";
+    private static final String TRANSITIONAL_POLLING_INTERVAL_MS = "teamcity.azure.cloud.pollingIntervalMs.transitional";
+    private static final String MAX_POLLING_INTERVAL_MS = "teamcity.azure.cloud.pollingIntervalMs.max";
+    private static final long DEFAULT_TRANSITIONAL_POLLING_INTERVAL_MS = 10 * 1000L;
+    private static final long DEFAULT_MAX_POLLING_INTERVAL_MS = 5 * 60 * 1000L;
+    private static final EnumSet<InstanceStatus> TRANSITIONAL_STATUSES = EnumSet.of(
+      InstanceStatus.SCHEDULED_TO_START,
+      InstanceStatus.STARTING,
+      InstanceStatus.RESTARTING,
+      InstanceStatus.SCHEDULED_TO_STOP,
+      InstanceStatus.STOPPING);
     protected final Map<String, T> myImageMap;
     protected final UpdatableCloudErrorProvider myErrorProvider;
     protected final CloudAsyncTaskExecutor myAsyncTaskExecutor;
@@ -37,6 +51,7 @@ public abstract class AbstractCloudClient<G extends AbstractCloudInstance<T>, T
     protected final CloudApiConnector myApiConnector;
     protected final CloudClientParameters myParameters;
     private volatile boolean myIsInitialized = false;
+    private volatile AdaptiveUpdateScheduler myUpdateScheduler;
 
     public AbstractCloudClient(@NotNull final CloudClientParameters params, @NotNull final CloudApiConnector apiConnector) {
         myParameters = params;
@@ -52,6 +67,10 @@ public abstract class AbstractCloudClient<G extends AbstractCloudInstance<T>, T
 
 
     public void dispose() {
+        final AdaptiveUpdateScheduler updateScheduler = myUpdateScheduler;
+        if (updateScheduler != null) {
+            updateScheduler.dispose();
+        }
         myAsyncTaskExecutor.dispose();
     }
 
@@ -89,11 +108,13 @@ public abstract class AbstractCloudClient<G extends AbstractCloudInstance<T>, T
             myImageMap.put(image.getName(), image);
         }
         final UpdateInstancesTask<G, T, ?> updateInstancesTask = createUpdateInstancesTask();
+        final AdaptiveUpdateScheduler updateScheduler = createUpdateScheduler(updateInstancesTask, delayMs);
+        myUpdateScheduler = updateScheduler;
 
         myAsyncTaskExecutor.submit("Populate images data", () -> {
             try {
                 updateInstancesTask.run();
-                myAsyncTaskExecutor.scheduleWithFixedDelay("Update instances", updateInstancesTask, initialDelayMs, delayMs, TimeUnit.MILLISECONDS);
+                updateScheduler.start(initialDelayMs);
             } finally {
                 myIsInitialized = true;
                 LOG.info("Cloud profile '" + myParameters.getProfileDescription() + "' initialized");
@@ -101,6 +122,48 @@ public abstract class AbstractCloudClient<G extends AbstractCloudInstance<T>, T
         });
     }
 
+    /**
+     * Requests an update of instances as soon as possible, e.g. when cloud reports about changes of instances.
+     */
+    protected void requestInstancesUpdate() {
+        final AdaptiveUpdateScheduler updateScheduler = myUpdateScheduler;
+        if (updateScheduler != null) {
+            updateScheduler.requestRefresh();
+        }
+    }
+
+    @NotNull
+    private AdaptiveUpdateScheduler createUpdateScheduler(@NotNull final Runnable updateInstancesTask, final long delayMs) {
+        final boolean adaptive = TeamCityProperties.getBooleanOrTrue(ADAPTIVE_POLLING_ENABLED);
+        final long transitionalDelayMs = adaptive ? TeamCityProperties.getLong(TRANSITIONAL_POLLING_INTERVAL_MS, DEFAULT_TRANSITIONAL_POLLING_INTERVAL_MS) : delayMs;
+        final long maxDelayMs = adaptive ? TeamCityProperties.getLong(MAX_POLLING_INTERVAL_MS, DEFAULT_MAX_POLLING_INTERVAL_MS) : delayMs;
+        return new AdaptiveUpdateScheduler(
+          updateInstancesTask,
+          (task, taskDelayMs) -> myAsyncTaskExecutor.schedule("Update instances", task, taskDelayMs, TimeUnit.MILLISECONDS),
+          this::hasTransitionalInstances,
+          delayMs,
+          transitionalDelayMs,
+          maxDelayMs);
+    }
+
+    private boolean hasTransitionalInstances() {
+        for (T image : myImageMap.values()) {
+            for (G instance : image.getInstances()) {
+                if (isInTransition(instance)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether instance state is expected to change soon, so instances are polled more often.
+     */
+    protected boolean isInTransition(@NotNull final G instance) {
+        return TRANSITIONAL_STATUSES.contains(instance.getStatus()) || Boolean.TRUE.equals(instance.getProvisioningInProgress());
+    }
+
     protected abstract T checkAndCreateImage(@NotNull final D imageDetails);
 
     @NotNull
@@ -15,10 +15,12 @@ import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public abstract class AbstractCloudImage<T extends AbstractCloudInstance, G extends CloudImageDetails> implements CloudImage, UpdatableCloudErrorProvider {
   protected final UpdatableCloudErrorProvider myErrorProvider = new CloudErrorMap(new DefaultErrorMessageUpdater());
   private final Map<String, T> myInstances = new ConcurrentHashMap<>();
+  private final List<CloudInstancesListener<T>> myInstancesListeners = new CopyOnWriteArrayList<>();
   private final String myName;
   private final String myId;
 
@@ -58,20 +60,57 @@ public abstract class AbstractCloudImage<T extends AbstractCloudInstance, G exte
 
   @Nullable
   public T removeInstance(@NotNull final String instanceId) {
-    return myInstances.remove(instanceId);
+    final T instance = myInstances.remove(instanceId);
+    if (instance != null) {
+      fireInstanceRemoved(instance);
+    }
+    return instance;
   }
 
   public void addInstance(@NotNull final T instance) {
     instance.setImage(this);
-    myInstances.put(instance.getInstanceId(), instance);
+    final T previous = myInstances.put(instance.getInstanceId(), instance);
+    if (previous != null && previous != instance) {
+      fireInstanceRemoved(previous);
+    }
+    fireInstanceAdded(instance);
   }
 
   public boolean addInstanceIfAbsent(@NotNull final T instance) {
     instance.setImage(this);
     T result = myInstances.putIfAbsent(instance.getInstanceId(), instance);
+    if (result == null) {
+      fireInstanceAdded(instance);
+    }
     return result == null;
   }
 
+  /**
+   * Registers listener and notifies it about already known instances.
+   */
+  public void addInstancesListener(@NotNull final CloudInstancesListener<T> listener) {
+    myInstancesListeners.add(listener);
+    for (T instance : myInstances.values()) {
+      listener.instanceAdded(this, instance);
+    }
+  }
+
+  public void removeInstancesListener(@NotNull final CloudInstancesListener<T> listener) {
+    myInstancesListeners.remove(listener);
+  }
+
+  private void fireInstanceAdded(@NotNull final T instance) {
+    for (CloudInstancesListener<T> listener : myInstancesListeners) {
+      listener.instanceAdded(this, instance);
+    }
+  }
+
+  private void fireInstanceRemoved(@NotNull final T instance) {
+    for (CloudInstancesListener<T> listener : myInstancesListeners) {
+      listener.instanceRemoved(this, instance);
+    }
+  }
+
     public abstract CanStartNewInstanceResult canStartNewInstance();
 
   public abstract void terminateInstance(@NotNull final T instance);
@@ -89,7 +128,9 @@ public abstract class AbstractCloudImage<T extends AbstractCloudInstance, G exte
       if (myInstances.get(instanceName) == null) {
         final AbstractInstance realInstance = realInstances.get(instanceName);
         final T newInstance = createInstanceFromReal(realInstance);
-        myInstances.put(instanceName, newInstance);
+        if (myInstances.putIfAbsent(instanceName, newInstance) == null) {
+          fireInstanceAdded(newInstance);
+        }
       }
     }
   }
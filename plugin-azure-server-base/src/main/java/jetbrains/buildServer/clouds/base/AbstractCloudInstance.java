@@ -93,7 +93,7 @@ public abstract class AbstractCloudInstance<T extends AbstractCloudImage> implem
   public Boolean getProvisioningInProgress() { return myState.get().getProvisioningInProgress(); }
 
   public void setStatus(@NotNull final InstanceStatus status) {
-    myState.updateAndGet(state -> {
+    final InstanceState previous = myState.getAndUpdate(state -> {
       if (state.getStatus() == status) {
         return state;
       }
@@ -106,6 +106,10 @@ public abstract class AbstractCloudInstance<T extends AbstractCloudImage> implem
       }
       return result;
     });
+
+    if (previous.getStatus() != status) {
+      onStatusChanged(previous.getStatus(), status);
+    }
   }
 
   public Boolean compareAndSetStatus(@NotNull final InstanceStatus expected, @NotNull final InstanceStatus newStatus) {
@@ -117,7 +121,18 @@ public abstract class AbstractCloudInstance<T extends AbstractCloudImage> implem
       newState = newState.withStartDate(new Date());
     }
 
-    return myState.compareAndSet(state, newState);
+    if (!myState.compareAndSet(state, newState)) return false;
+
+    if (expected != newStatus) {
+      onStatusChanged(expected, newStatus);
+    }
+    return true;
+  }
+
+  /**
+   * Called after instance status has been changed by {@link #setStatus} or {@link #compareAndSetStatus}.
+   */
+  protected void onStatusChanged(@NotNull final InstanceStatus oldStatus, @NotNull final InstanceStatus newStatus) {
   }
 
   @NotNull
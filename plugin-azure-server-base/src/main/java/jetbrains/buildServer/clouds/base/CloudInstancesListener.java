@@ -0,0 +1,13 @@
+package jetbrains.buildServer.clouds.base;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Receives notifications about instances added to or removed from a cloud image.
+ */
+public interface CloudInstancesListener<T extends AbstractCloudInstance> {
+
+  void instanceAdded(@NotNull AbstractCloudImage image, @NotNull T instance);
+
+  void instanceRemoved(@NotNull AbstractCloudImage image, @NotNull T instance);
+}
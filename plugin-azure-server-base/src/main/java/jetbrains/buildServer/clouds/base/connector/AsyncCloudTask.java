@@ -9,7 +9,9 @@ public interface AsyncCloudTask {
 
   /**
    * Consecutive execution of this method will makes no effect. Only first call of this method starts the executing.
-   * All next calls just return the result's future
+   * All next calls just return the result's future.
+   * Returning {@link java.util.concurrent.CompletableFuture} allows {@link CloudAsyncTaskExecutor} to react on completion
+   * without occupying an executor thread.
    * @return result's future
    */
   Future<CloudTaskResult> executeOrGetResultAsync();
@@ -1,13 +1,17 @@
 package jetbrains.buildServer.clouds.base.connector;
 
 import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.util.NamedThreadFactory;
 import jetbrains.buildServer.util.executors.ExecutorsFactory;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -17,19 +21,25 @@ public class CloudAsyncTaskExecutor {
 
   private static final Logger LOG = Logger.getInstance(CloudAsyncTaskExecutor.class.getName());
   private static final long LONG_TASK_TIME = 60*1000l;
+  private static final long LONG_TASK_CHECK_INTERVAL = 10*1000l;
+  private static final String POOL_SIZE_PROPERTY = "teamcity.azure.cloud.asyncTasks.poolSize";
+  private static final int DEFAULT_POOL_SIZE = 2;
 
   private final ScheduledExecutorService myExecutor;
-  private final ConcurrentMap<AsyncCloudTask, TaskCallbackHandler> myExecutingTasks;
-  private final Map<AsyncCloudTask, Long> myLongTasks = new HashMap<AsyncCloudTask, Long>();
+  private final ConcurrentMap<AsyncCloudTask, TaskCallbackHandler> myExecutingTasks = new ConcurrentHashMap<AsyncCloudTask, TaskCallbackHandler>();
+  private final ConcurrentMap<AsyncCloudTask, Long> myLongTasks = new ConcurrentHashMap<AsyncCloudTask, Long>();
 
   public CloudAsyncTaskExecutor(String prefix) {
-    myExecutingTasks = new ConcurrentHashMap<AsyncCloudTask, TaskCallbackHandler>();
-    myExecutor = ExecutorsFactory.newFixedScheduledDaemonExecutor(prefix, 2);
-    scheduleWithFixedDelay("Check for tasks", new Runnable() {
+    this(prefix, TeamCityProperties.getInteger(POOL_SIZE_PROPERTY, DEFAULT_POOL_SIZE));
+  }
+
+  public CloudAsyncTaskExecutor(String prefix, int poolSize) {
+    myExecutor = ExecutorsFactory.newFixedScheduledDaemonExecutor(prefix, Math.max(1, poolSize));
+    scheduleWithFixedDelay("Check for long tasks", new Runnable() {
       public void run() {
-        checkTasks();
+        checkLongTasks();
       }
-    }, 0, 300, TimeUnit.MILLISECONDS);
+    }, LONG_TASK_CHECK_INTERVAL, LONG_TASK_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
   }
 
   public void executeAsync(final AsyncCloudTask operation) {
@@ -37,8 +47,16 @@ public class CloudAsyncTaskExecutor {
   }
 
   public void executeAsync(final AsyncCloudTask operation, final TaskCallbackHandler callbackHandler) {
-    operation.executeOrGetResultAsync();
     myExecutingTasks.put(operation, callbackHandler);
+    final CompletableFuture<CloudTaskResult> future;
+    try {
+      future = toCompletableFuture(operation.executeOrGetResultAsync());
+    } catch (Throwable th) {
+      completeTask(operation, null, th);
+      return;
+    }
+
+    future.whenCompleteAsync((result, error) -> completeTask(operation, result, error), myExecutor);
   }
 
   public ScheduledFuture<?> scheduleWithFixedDelay(@NotNull final String taskName, @NotNull final Runnable task, final long initialDelay, final long delay, final TimeUnit unit){
@@ -49,6 +67,14 @@ public class CloudAsyncTaskExecutor {
     }, initialDelay, delay, unit);
   }
 
+  public ScheduledFuture<?> schedule(@NotNull final String taskName, @NotNull final Runnable task, final long delay, final TimeUnit unit){
+    return myExecutor.schedule(new Runnable() {
+      public void run() {
+        NamedThreadFactory.executeWithNewThreadName(taskName, task);
+      }
+    }, delay, unit);
+  }
+
   public Future<?> submit(final String taskName, final Runnable r){
     return myExecutor.submit(new Runnable() {
       public void run() {
@@ -62,45 +88,94 @@ public class CloudAsyncTaskExecutor {
     });
   }
 
-  private void checkTasks() {
-    for (AsyncCloudTask task : myExecutingTasks.keySet()) {
+  public int getExecutingTasksCount() {
+    return myExecutingTasks.size();
+  }
+
+  /**
+   * Adapts the task future to a completion stage. Futures which are not completion stages are awaited
+   * on the executor threads, so tasks should return {@link CompletableFuture} to avoid occupying a pool thread.
+   */
+  @NotNull
+  private CompletableFuture<CloudTaskResult> toCompletableFuture(@NotNull final Future<CloudTaskResult> future) {
+    if (future instanceof CompletableFuture) {
+      return (CompletableFuture<CloudTaskResult>)future;
+    }
+    if (future.isDone()) {
+      final CompletableFuture<CloudTaskResult> result = new CompletableFuture<CloudTaskResult>();
       try {
-        processSingleTask(task);
+        result.complete(future.get());
       } catch (Throwable th) {
-        LOG.warnAndDebugDetails("An error occurred during checking " + task, th);
+        result.completeExceptionally(th);
       }
+      return result;
     }
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CompletionException(e);
+      } catch (ExecutionException e) {
+        throw new CompletionException(e.getCause());
+      }
+    }, myExecutor);
   }
 
-  private void processSingleTask(AsyncCloudTask task) {
-    final Future<CloudTaskResult> future = task.executeOrGetResultAsync();
-    if (future.isDone()) {
-      final TaskCallbackHandler handler = myExecutingTasks.get(task);
-      try {
-        final CloudTaskResult result = future.get();
+  private void completeTask(@NotNull final AsyncCloudTask task, final CloudTaskResult result, final Throwable error) {
+    // removal guarantees that callbacks are invoked exactly once per submitted task
+    final TaskCallbackHandler handler = myExecutingTasks.remove(task);
+    if (handler == null) {
+      return;
+    }
+
+    try {
+      if (error != null || result == null) {
+        final Throwable cause = unwrap(error);
+        LOG.warn(String.format("An error occurred while executing : '%s': %s", task.toString(), String.valueOf(cause)));
+        handler.onError(cause);
+      } else {
         handler.onComplete();
         if (result.isHasErrors()) {
           handler.onError(result.getThrowable());
         } else {
           handler.onSuccess();
         }
-      } catch (Exception e) {
-        LOG.warn(String.format("An error occurred while executing : '%s': %s", task.toString(), e.toString()));
-        handler.onError(e);
       }
-      myExecutingTasks.remove(task);
+    } catch (Throwable th) {
+      LOG.warnAndDebugDetails("An error occurred during processing result of " + task, th);
+    } finally {
       if (myLongTasks.remove(task) != null) {
         final long operationTime = System.currentTimeMillis() - task.getStartTime();
         LOG.info(String.format("Long operation finished: '%s' took %d seconds to execute", task.toString(), operationTime / 1000));
       }
-    } else {
-      final long operationTime = System.currentTimeMillis() - task.getStartTime();
-      if (operationTime > LONG_TASK_TIME) {
+    }
+  }
+
+  private static Throwable unwrap(final Throwable error) {
+    Throwable result = error;
+    while ((result instanceof CompletionException || result instanceof ExecutionException)
+           && result.getCause() != null) {
+      result = result.getCause();
+    }
+    return result;
+  }
+
+  private void checkLongTasks() {
+    final long now = System.currentTimeMillis();
+    for (AsyncCloudTask task : myExecutingTasks.keySet()) {
+      try {
+        final long operationTime = now - task.getStartTime();
+        if (operationTime <= LONG_TASK_TIME) {
+          continue;
+        }
         final Long lastTimeReported = myLongTasks.get(task);
-        if (lastTimeReported == null || (System.currentTimeMillis() - lastTimeReported) > LONG_TASK_TIME) {
+        if (lastTimeReported == null || (now - lastTimeReported) > LONG_TASK_TIME) {
           LOG.info(String.format("Detected long running task:('%s', running for %d seconds)", task.toString(), operationTime / 1000));
-          myLongTasks.put(task, System.currentTimeMillis());
+          myLongTasks.put(task, now);
         }
+      } catch (Throwable th) {
+        LOG.warnAndDebugDetails("An error occurred during checking " + task, th);
       }
     }
   }
@@ -111,6 +186,7 @@ public class CloudAsyncTaskExecutor {
       myExecutor.awaitTermination(30, TimeUnit.SECONDS);
     } catch (InterruptedException e) {}
     myExecutingTasks.clear();
+    myLongTasks.clear();
   }
 
 }
@@ -0,0 +1,152 @@
+package jetbrains.buildServer.clouds.base.tasks;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs the update task with a delay which depends on the state of the instances.
+ *
+ * While any instance is in a transitional state the task is executed with the short delay. When all
+ * instances are stable the delay starts from the regular one and is doubled after every run up to the
+ * ceiling. A refresh request executes the task as soon as possible and resets the backoff.
+ */
+public class AdaptiveUpdateScheduler {
+  private static final Logger LOG = Logger.getInstance(AdaptiveUpdateScheduler.class.getName());
+
+  public interface TaskScheduler {
+    @NotNull
+    Future<?> schedule(@NotNull Runnable task, long delayMs);
+  }
+
+  private final Runnable myTask;
+  private final TaskScheduler myScheduler;
+  private final BooleanSupplier myHasTransitionalInstances;
+  private final long myDelayMs;
+  private final long myTransitionalDelayMs;
+  private final long myMaxDelayMs;
+
+  // guarded by this
+  private long myStableDelayMs;
+  private Future<?> myScheduledTask;
+  private long myGeneration;
+  private boolean myImmediateRunScheduled;
+  private boolean myRunning;
+  private boolean myRefreshRequested;
+  private boolean myDisposed;
+
+  public AdaptiveUpdateScheduler(@NotNull final Runnable task,
+                                 @NotNull final TaskScheduler scheduler,
+                                 @NotNull final BooleanSupplier hasTransitionalInstances,
+                                 final long delayMs,
+                                 final long transitionalDelayMs,
+                                 final long maxDelayMs) {
+    myTask = task;
+    myScheduler = scheduler;
+    myHasTransitionalInstances = hasTransitionalInstances;
+    myDelayMs = Math.max(1, delayMs);
+    myTransitionalDelayMs = Math.max(1, Math.min(transitionalDelayMs, myDelayMs));
+    myMaxDelayMs = Math.max(maxDelayMs, myDelayMs);
+    myStableDelayMs = myDelayMs;
+  }
+
+  public synchronized void start(final long initialDelayMs) {
+    if (myDisposed || myScheduledTask != null) {
+      return;
+    }
+    schedule(initialDelayMs);
+  }
+
+  /**
+   * Executes the task as soon as possible. Requests received while the task is pending or running are coalesced.
+   */
+  public synchronized void requestRefresh() {
+    if (myDisposed) {
+      return;
+    }
+    myStableDelayMs = myDelayMs;
+    if (myRunning) {
+      myRefreshRequested = true;
+      return;
+    }
+    if (myImmediateRunScheduled) {
+      return;
+    }
+    if (myScheduledTask != null) {
+      myScheduledTask.cancel(false);
+    }
+    schedule(0);
+  }
+
+  public synchronized long getStableDelayMs() {
+    return myStableDelayMs;
+  }
+
+  public synchronized void dispose() {
+    myDisposed = true;
+    if (myScheduledTask != null) {
+      myScheduledTask.cancel(false);
+      myScheduledTask = null;
+    }
+  }
+
+  private void run(final long generation) {
+    synchronized (this) {
+      // cancelled run could be already started
+      if (myDisposed || myRunning || generation != myGeneration) {
+        return;
+      }
+      myRunning = true;
+      myScheduledTask = null;
+      myImmediateRunScheduled = false;
+    }
+
+    try {
+      myTask.run();
+    } catch (Throwable th) {
+      LOG.warnAndDebugDetails("Failed to update instances", th);
+    }
+
+    final boolean transitional = hasTransitionalInstances();
+    synchronized (this) {
+      myRunning = false;
+      if (myDisposed) {
+        return;
+      }
+      if (myRefreshRequested) {
+        myRefreshRequested = false;
+        schedule(0);
+      } else {
+        schedule(getNextDelay(transitional));
+      }
+    }
+  }
+
+  private boolean hasTransitionalInstances() {
+    try {
+      return myHasTransitionalInstances.getAsBoolean();
+    } catch (Throwable th) {
+      LOG.debug("Failed to check instance states: " + th.toString());
+      return false;
+    }
+  }
+
+  private long getNextDelay(final boolean transitional) {
+    if (transitional) {
+      myStableDelayMs = myDelayMs;
+      return myTransitionalDelayMs;
+    }
+    final long delay = myStableDelayMs;
+    myStableDelayMs = Math.min(myMaxDelayMs, delay * 2);
+    return delay;
+  }
+
+  private void schedule(final long delayMs) {
+    final long generation = ++myGeneration;
+    myImmediateRunScheduled = delayMs <= 0;
+    myScheduledTask = myScheduler.schedule(() -> run(generation), Math.max(0, delayMs));
+    LOG.debug("Next instances update is scheduled in " + delayMs + " ms");
+  }
+}
@@ -0,0 +1,74 @@
+package jetbrains.buildServer.clouds.azure;
+
+import jetbrains.buildServer.clouds.base.FakeCloudImage;
+import jetbrains.buildServer.clouds.base.FakeCloudInstance;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+@Test
+public class AzureInstanceIndexTest {
+
+  private static final int IMAGES_COUNT = 50;
+  private static final int INSTANCES_PER_IMAGE = 1000;
+
+  public void shouldTrackAddedAndRemovedInstances() {
+    final AzureInstanceIndex<FakeCloudInstance> index = new AzureInstanceIndex<>("profile");
+    final FakeCloudImage image = new FakeCloudImage("image");
+    final FakeCloudInstance existing = new FakeCloudInstance(image, "existing1");
+    image.addInstance(existing);
+
+    image.addInstancesListener(index);
+    Assert.assertSame(index.findByName("existing1"), existing);
+
+    final FakeCloudInstance added = new FakeCloudInstance(image, "image1");
+    Assert.assertTrue(image.addInstanceIfAbsent(added));
+    Assert.assertSame(index.findByName("image1"), added);
+    Assert.assertSame(index.find("image", "image1"), added);
+    Assert.assertNull(index.find("other", "image1"));
+
+    final FakeCloudInstance replacement = new FakeCloudInstance(image, "image1");
+    image.addInstance(replacement);
+    Assert.assertSame(index.findByName("image1"), replacement);
+
+    image.removeInstance("image1");
+    Assert.assertNull(index.findByName("image1"));
+    Assert.assertEquals(index.size(), 1);
+  }
+
+  public void shouldMoveInstancesBetweenImages() {
+    final AzureInstanceIndex<FakeCloudInstance> index = new AzureInstanceIndex<>("profile");
+    final FakeCloudImage oldImage = new FakeCloudImage("image");
+    final FakeCloudInstance instance = new FakeCloudInstance(oldImage, "image1");
+    oldImage.addInstance(instance);
+
+    final FakeCloudImage newImage = new FakeCloudImage("image");
+    newImage.addInstancesListener(index);
+    newImage.addInstance(instance);
+
+    Assert.assertSame(index.findByName("image1"), instance);
+    Assert.assertSame(instance.getImage(), newImage);
+  }
+
+  public void shouldFindInstancesOfManyImages() {
+    final AzureInstanceIndex<FakeCloudInstance> index = new AzureInstanceIndex<>("profile");
+    final List<String> names = new ArrayList<>();
+    for (int i = 0; i < IMAGES_COUNT; i++) {
+      final FakeCloudImage image = new FakeCloudImage("image" + i + "-");
+      image.addInstancesListener(index);
+      for (int j = 0; j < INSTANCES_PER_IMAGE; j++) {
+        final String name = image.getId() + j;
+        image.addInstance(new FakeCloudInstance(image, name));
+        names.add(name);
+      }
+    }
+
+    Assert.assertEquals(index.size(), IMAGES_COUNT * INSTANCES_PER_IMAGE);
+    for (String name : names) {
+      final FakeCloudInstance instance = index.findByName(name);
+      Assert.assertNotNull(instance, name);
+      Assert.assertSame(index.find(instance.getImageId(), name), instance);
+    }
+  }
+}
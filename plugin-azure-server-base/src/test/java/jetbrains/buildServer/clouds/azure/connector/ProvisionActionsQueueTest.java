@@ -0,0 +1,310 @@
+package jetbrains.buildServer.clouds.azure.connector;
+
+import jetbrains.buildServer.clouds.base.connector.CloudAsyncTaskExecutor;
+import org.jetbrains.annotations.NotNull;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Test
+public class ProvisionActionsQueueTest {
+
+  private static final int LANES_COUNT = 20;
+  private static final int ACTIONS_PER_LANE = 250;
+
+  private CloudAsyncTaskExecutor myExecutor;
+  private ExecutorService myCompletionPool;
+  private ProvisionActionsQueue myQueue;
+
+  @BeforeMethod
+  public void setUp() {
+    myExecutor = new CloudAsyncTaskExecutor("Test provision actions", 4);
+    myCompletionPool = Executors.newFixedThreadPool(4);
+    myQueue = new ProvisionActionsQueue(myExecutor);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myCompletionPool.shutdownNow();
+    myExecutor.dispose();
+  }
+
+  public void shouldKeepOrderPerLaneAndRunInterleavedActionsQuickly() throws InterruptedException {
+    final Map<String, List<Integer>> executionOrder = new ConcurrentHashMap<>();
+    final Map<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+    final AtomicInteger exclusionViolations = new AtomicInteger();
+    final CountDownLatch finished = new CountDownLatch(LANES_COUNT * ACTIONS_PER_LANE);
+
+    final long start = System.nanoTime();
+    for (int i = 0; i < ACTIONS_PER_LANE; i++) {
+      for (int lane = 0; lane < LANES_COUNT; lane++) {
+        final String service = "service-" + lane;
+        executionOrder.computeIfAbsent(service, k -> Collections.synchronizedList(new ArrayList<>()));
+        inFlight.computeIfAbsent(service, k -> new AtomicInteger());
+        // odd actions are finished asynchronously through notification, even ones are synchronous
+        final boolean async = i % 2 == 1;
+        myQueue.queueAction(service, new TestAction(service, i, async) {
+          @NotNull
+          public String action() {
+            if (inFlight.get(service).incrementAndGet() > 1) {
+              exclusionViolations.incrementAndGet();
+            }
+            executionOrder.get(service).add(myIndex);
+            if (myAsync) {
+              myCompletionPool.submit(() -> {
+                inFlight.get(service).decrementAndGet();
+                myCompleted = true;
+                myQueue.actionFinished(getActionId());
+              });
+            } else {
+              inFlight.get(service).decrementAndGet();
+            }
+            return getActionId();
+          }
+
+          public void onFinish() {
+            finished.countDown();
+          }
+        });
+      }
+    }
+
+    Assert.assertTrue(finished.await(30, TimeUnit.SECONDS), "Not all actions were finished: " + finished.getCount() + " left");
+    final long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    Assert.assertEquals(exclusionViolations.get(), 0);
+    for (Map.Entry<String, List<Integer>> entry : executionOrder.entrySet()) {
+      final List<Integer> order = entry.getValue();
+      Assert.assertEquals(order.size(), ACTIONS_PER_LANE, entry.getKey());
+      for (int i = 0; i < order.size(); i++) {
+        Assert.assertEquals(order.get(i).intValue(), i, entry.getKey());
+      }
+    }
+    // previous implementation re-checked the queue every 5 seconds
+    Assert.assertTrue(elapsedMs < 10000, "Actions took " + elapsedMs + " ms");
+  }
+
+  public void shouldRetryActionAfterConflictingOperationFinished() throws InterruptedException {
+    final String foreignRequestId = "0123456789abcdef0123456789abcdef";
+    final AtomicInteger attempts = new AtomicInteger();
+    final CountDownLatch finished = new CountDownLatch(1);
+
+    myQueue.queueAction("service", new TestAction("service", 0, false) {
+      @NotNull
+      public String action() throws Exception {
+        if (attempts.incrementAndGet() == 1) {
+          throw new Exception("Windows Azure is currently performing an operation with x-ms-requestid " + foreignRequestId +
+                              " on this deployment that requires exclusive access.");
+        }
+        return getActionId();
+      }
+
+      public void onFinish() {
+        finished.countDown();
+      }
+    });
+
+    waitFor(() -> attempts.get() == 1 && !myQueue.isLocked("service"));
+
+    myQueue.getRequestCheckerCleanable(actionId -> actionId.equals(foreignRequestId)).run();
+
+    Assert.assertTrue(finished.await(5, TimeUnit.SECONDS));
+    Assert.assertEquals(attempts.get(), 2);
+  }
+
+  public void shouldRecheckConflictingOperationWithoutRequestChecker() throws InterruptedException {
+    final String foreignRequestId = "0123456789abcdef0123456789abcdef";
+    final AtomicInteger attempts = new AtomicInteger();
+    final CountDownLatch finished = new CountDownLatch(1);
+    final AtomicInteger foreignChecks = new AtomicInteger();
+
+    myQueue.queueAction("service", new TestAction("service", 0, false) {
+      @NotNull
+      public String action() throws Exception {
+        if (attempts.incrementAndGet() == 1) {
+          throw new Exception("Windows Azure is currently performing an operation with x-ms-requestid " + foreignRequestId +
+                              " on this deployment that requires exclusive access.");
+        }
+        return getActionId();
+      }
+
+      @NotNull
+      public ActionIdChecker getActionIdChecker() {
+        // foreign operation is reported as finished on the second check
+        return actionId -> !actionId.equals(foreignRequestId) || foreignChecks.incrementAndGet() > 1;
+      }
+
+      public void onFinish() {
+        finished.countDown();
+      }
+    });
+
+    Assert.assertTrue(finished.await(10, TimeUnit.SECONDS));
+    Assert.assertEquals(attempts.get(), 2);
+    Assert.assertEquals(foreignChecks.get(), 2);
+  }
+
+  public void shouldRemoveIdleLanes() throws InterruptedException {
+    final CountDownLatch finished = new CountDownLatch(LANES_COUNT);
+    final CountDownLatch errors = new CountDownLatch(1);
+
+    for (int lane = 0; lane < LANES_COUNT; lane++) {
+      myQueue.queueAction("service-" + lane, new TestAction("service-" + lane, 0, false) {
+        public void onFinish() {
+          finished.countDown();
+        }
+      });
+    }
+    myQueue.queueAction("failing", new TestAction("failing", 0, false) {
+      @NotNull
+      public String action() throws Exception {
+        throw new Exception("Failure");
+      }
+
+      public void onError(final Throwable th) {
+        errors.countDown();
+      }
+    });
+
+    Assert.assertTrue(finished.await(5, TimeUnit.SECONDS));
+    Assert.assertTrue(errors.await(5, TimeUnit.SECONDS));
+    waitFor(() -> myQueue.getLanesCount() == 0);
+
+    // removed lane is created again for new actions
+    final CountDownLatch finishedAgain = new CountDownLatch(1);
+    myQueue.queueAction("service-0", new TestAction("service-0", 1, false) {
+      public void onFinish() {
+        finishedAgain.countDown();
+      }
+    });
+    Assert.assertTrue(finishedAgain.await(5, TimeUnit.SECONDS));
+  }
+
+  public void shouldResumeAllLanesWaitingForSameOperation() throws InterruptedException {
+    final String foreignRequestId = "0123456789abcdef0123456789abcdef";
+    final AtomicInteger attempts = new AtomicInteger();
+    final CountDownLatch finished = new CountDownLatch(2);
+
+    for (String service : Arrays.asList("service-1", "service-2")) {
+      final AtomicInteger serviceAttempts = new AtomicInteger();
+      myQueue.queueAction(service, new TestAction(service, 0, false) {
+        @NotNull
+        public String action() throws Exception {
+          attempts.incrementAndGet();
+          if (serviceAttempts.incrementAndGet() == 1) {
+            throw new Exception("Windows Azure is currently performing an operation with x-ms-requestid " + foreignRequestId +
+                                " on this deployment that requires exclusive access.");
+          }
+          return getActionId();
+        }
+
+        public void onFinish() {
+          finished.countDown();
+        }
+      });
+    }
+
+    waitFor(() -> attempts.get() == 2 && !myQueue.isLocked("service-1") && !myQueue.isLocked("service-2"));
+
+    myQueue.actionFinished(foreignRequestId);
+
+    Assert.assertTrue(finished.await(5, TimeUnit.SECONDS));
+    Assert.assertEquals(attempts.get(), 4);
+  }
+
+  public void shouldProceedWithNextActionOnError() throws InterruptedException {
+    final CountDownLatch errors = new CountDownLatch(1);
+    final CountDownLatch finished = new CountDownLatch(1);
+
+    myQueue.queueAction("service", new TestAction("service", 0, false) {
+      @NotNull
+      public String action() throws Exception {
+        throw new Exception("Failure");
+      }
+
+      public void onError(final Throwable th) {
+        errors.countDown();
+      }
+    });
+    myQueue.queueAction("service", new TestAction("service", 1, false) {
+      public void onFinish() {
+        finished.countDown();
+      }
+    });
+
+    Assert.assertTrue(errors.await(5, TimeUnit.SECONDS));
+    Assert.assertTrue(finished.await(5, TimeUnit.SECONDS));
+  }
+
+  public void shouldParseErrorMessages() {
+    Assert.assertEquals(ProvisionActionsQueue.parseConflictingRequestId(
+      "Windows Azure is currently performing an operation with x-ms-requestid 0123456789abcdef0123456789abcdef on this deployment that requires exclusive access."),
+                        "0123456789abcdef0123456789abcdef");
+    Assert.assertNull(ProvisionActionsQueue.parseConflictingRequestId(
+      "Windows Azure is currently performing an operation with x-ms-requestid 0123456789ABCDEF0123456789abcdef on this deployment that requires exclusive access."));
+    Assert.assertNull(ProvisionActionsQueue.parseConflictingRequestId("Some other error"));
+    Assert.assertTrue(ProvisionActionsQueue.isPortConflict(
+      "Port 22 is already in use by one of the endpoints in this deployment. Ensure that the port numbers are unique across endpoints within a deployment."));
+    Assert.assertFalse(ProvisionActionsQueue.isPortConflict("Port 22 is fine"));
+  }
+
+  private static void waitFor(@NotNull final Condition condition) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (!condition.check()) {
+      Assert.assertTrue(System.currentTimeMillis() < deadline, "Condition was not met");
+      Thread.sleep(10);
+    }
+  }
+
+  private interface Condition {
+    boolean check();
+  }
+
+  private static class TestAction implements ProvisionActionsQueue.InstanceAction {
+    protected final String myService;
+    protected final int myIndex;
+    protected final boolean myAsync;
+    protected volatile boolean myCompleted;
+
+    TestAction(final String service, final int index, final boolean async) {
+      myService = service;
+      myIndex = index;
+      myAsync = async;
+    }
+
+    String getActionId() {
+      return myService + "/" + myIndex;
+    }
+
+    @NotNull
+    public String getName() {
+      return "Action " + getActionId();
+    }
+
+    @NotNull
+    public String action() throws Exception {
+      return getActionId();
+    }
+
+    @NotNull
+    public ActionIdChecker getActionIdChecker() {
+      // asynchronous actions are also reported through ProvisionActionsQueue.actionFinished
+      return actionId -> !myAsync || myCompleted;
+    }
+
+    public void onFinish() {
+    }
+
+    public void onError(final Throwable th) {
+    }
+  }
+}
@@ -0,0 +1,50 @@
+package jetbrains.buildServer.clouds.base;
+
+import jetbrains.buildServer.clouds.CanStartNewInstanceResult;
+import jetbrains.buildServer.clouds.CloudInstanceUserData;
+import jetbrains.buildServer.clouds.base.connector.AbstractInstance;
+import jetbrains.buildServer.clouds.models.FakeCloudImageDetails;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+public class FakeCloudImage extends AbstractCloudImage<FakeCloudInstance, FakeCloudImageDetails> {
+
+  public FakeCloudImage(final String id) {
+    super(id, id);
+  }
+
+  @Override
+  public CanStartNewInstanceResult canStartNewInstance() {
+    return CanStartNewInstanceResult.yes();
+  }
+
+  @Override
+  public void terminateInstance(@NotNull final FakeCloudInstance instance) {
+  }
+
+  @Override
+  public void restartInstance(@NotNull final FakeCloudInstance instance) {
+  }
+
+  @Override
+  public FakeCloudInstance startNewInstance(@NotNull final CloudInstanceUserData tag) {
+    final FakeCloudInstance instance = new FakeCloudInstance(this, getId() + (getInstances().size() + 1));
+    addInstance(instance);
+    return instance;
+  }
+
+  @Override
+  public FakeCloudImageDetails getImageDetails() {
+    return new FakeCloudImageDetails(getId());
+  }
+
+  @Override
+  protected FakeCloudInstance createInstanceFromReal(final AbstractInstance realInstance) {
+    return new FakeCloudInstance(this, realInstance.getName());
+  }
+
+  @Nullable
+  public Integer getAgentPoolId() {
+    return null;
+  }
+}
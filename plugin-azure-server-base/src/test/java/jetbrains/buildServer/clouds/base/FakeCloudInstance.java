@@ -0,0 +1,21 @@
+package jetbrains.buildServer.clouds.base;
+
+import jetbrains.buildServer.serverSide.AgentDescription;
+import org.jetbrains.annotations.NotNull;
+
+public class FakeCloudInstance extends AbstractCloudInstance<FakeCloudImage> {
+
+  public FakeCloudInstance(@NotNull final FakeCloudImage image, @NotNull final String name) {
+    super(image, name, name);
+  }
+
+  @Override
+  public boolean canBeCollected() {
+    return true;
+  }
+
+  @Override
+  public boolean containsAgent(@NotNull final AgentDescription agent) {
+    return false;
+  }
+}
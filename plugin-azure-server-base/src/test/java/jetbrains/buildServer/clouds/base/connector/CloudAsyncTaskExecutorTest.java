@@ -0,0 +1,175 @@
+package jetbrains.buildServer.clouds.base.connector;
+
+import org.jetbrains.annotations.NotNull;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Test
+public class CloudAsyncTaskExecutorTest {
+
+  private static final int TASKS_COUNT = 10000;
+
+  private CloudAsyncTaskExecutor myExecutor;
+  private ExecutorService myTaskPool;
+
+  @BeforeMethod
+  public void setUp() {
+    myExecutor = new CloudAsyncTaskExecutor("Test async tasks", 4);
+    myTaskPool = Executors.newFixedThreadPool(8);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myTaskPool.shutdownNow();
+    myExecutor.dispose();
+  }
+
+  public void shouldInvokeCallbacksExactlyOnceForShortTasks() throws InterruptedException {
+    final AtomicInteger[] completeCalls = new AtomicInteger[TASKS_COUNT];
+    final AtomicInteger[] successCalls = new AtomicInteger[TASKS_COUNT];
+    final AtomicInteger[] errorCalls = new AtomicInteger[TASKS_COUNT];
+    final CountDownLatch latch = new CountDownLatch(TASKS_COUNT);
+
+    for (int i = 0; i < TASKS_COUNT; i++) {
+      final int index = i;
+      completeCalls[i] = new AtomicInteger();
+      successCalls[i] = new AtomicInteger();
+      errorCalls[i] = new AtomicInteger();
+
+      final boolean failed = i % 10 == 0;
+      final AsyncCloudTask task = i % 2 == 0 ? new CompletableTask("task-" + i, failed) : new PlainFutureTask("task-" + i, failed);
+      myExecutor.executeAsync(task, new TaskCallbackHandler() {
+        @Override
+        public void onSuccess() {
+          successCalls[index].incrementAndGet();
+          latch.countDown();
+        }
+
+        @Override
+        public void onError(final Throwable error) {
+          errorCalls[index].incrementAndGet();
+          latch.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+          completeCalls[index].incrementAndGet();
+        }
+      });
+    }
+
+    Assert.assertTrue(latch.await(30, TimeUnit.SECONDS), "Not all callbacks were invoked: " + latch.getCount() + " left");
+    // give a chance to any duplicate callback to show up
+    Thread.sleep(200);
+
+    for (int i = 0; i < TASKS_COUNT; i++) {
+      Assert.assertEquals(successCalls[i].get() + errorCalls[i].get(), 1, "Task " + i);
+      if (i % 10 == 0) {
+        Assert.assertEquals(errorCalls[i].get(), 1, "Task " + i);
+      } else {
+        Assert.assertEquals(completeCalls[i].get(), 1, "Task " + i);
+        Assert.assertEquals(successCalls[i].get(), 1, "Task " + i);
+      }
+    }
+    Assert.assertEquals(myExecutor.getExecutingTasksCount(), 0);
+  }
+
+  public void shouldNotifyWithoutPollingDelay() throws InterruptedException {
+    final CompletableFuture<CloudTaskResult> future = new CompletableFuture<CloudTaskResult>();
+    final CountDownLatch latch = new CountDownLatch(1);
+    myExecutor.executeAsync(new AsyncCloudTask() {
+      public Future<CloudTaskResult> executeOrGetResultAsync() {
+        return future;
+      }
+
+      @NotNull
+      public String getName() {
+        return "manual";
+      }
+
+      public long getStartTime() {
+        return System.currentTimeMillis();
+      }
+    }, new TaskCallbackHandler() {
+      @Override
+      public void onSuccess() {
+        latch.countDown();
+      }
+    });
+
+    final long start = System.nanoTime();
+    future.complete(new CloudTaskResult());
+    Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+    Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 250);
+  }
+
+  private abstract class TestTask implements AsyncCloudTask {
+    private final String myName;
+    private final long myStartTime = System.currentTimeMillis();
+    protected final boolean myFailed;
+    private Future<CloudTaskResult> myFuture;
+
+    TestTask(final String name, final boolean failed) {
+      myName = name;
+      myFailed = failed;
+    }
+
+    public synchronized Future<CloudTaskResult> executeOrGetResultAsync() {
+      if (myFuture == null) {
+        myFuture = start();
+      }
+      return myFuture;
+    }
+
+    protected abstract Future<CloudTaskResult> start();
+
+    protected CloudTaskResult compute() {
+      if (myFailed) {
+        throw new RuntimeException("Failed " + myName);
+      }
+      return new CloudTaskResult();
+    }
+
+    @NotNull
+    public String getName() {
+      return myName;
+    }
+
+    public long getStartTime() {
+      return myStartTime;
+    }
+  }
+
+  private class CompletableTask extends TestTask {
+    CompletableTask(final String name, final boolean failed) {
+      super(name, failed);
+    }
+
+    @Override
+    protected Future<CloudTaskResult> start() {
+      return CompletableFuture.supplyAsync(this::compute, myTaskPool);
+    }
+  }
+
+  private class PlainFutureTask extends TestTask {
+    PlainFutureTask(final String name, final boolean failed) {
+      super(name, failed);
+    }
+
+    @Override
+    protected Future<CloudTaskResult> start() {
+      return myTaskPool.submit(this::compute);
+    }
+  }
+}
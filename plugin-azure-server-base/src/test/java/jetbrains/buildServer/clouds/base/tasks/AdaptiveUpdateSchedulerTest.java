@@ -0,0 +1,165 @@
+package jetbrains.buildServer.clouds.base.tasks;
+
+import org.jetbrains.annotations.NotNull;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+@Test
+public class AdaptiveUpdateSchedulerTest {
+
+  private static final long DELAY = 60 * 1000L;
+  private static final long TRANSITIONAL_DELAY = 10 * 1000L;
+  private static final long MAX_DELAY = 5 * 60 * 1000L;
+
+  private VirtualTimeScheduler myTimeScheduler;
+  private List<Long> myRuns;
+  private boolean myTransitional;
+  private Runnable myOnRun;
+  private AdaptiveUpdateScheduler myScheduler;
+
+  @BeforeMethod
+  public void setUp() {
+    myTimeScheduler = new VirtualTimeScheduler();
+    myRuns = new ArrayList<>();
+    myTransitional = false;
+    myOnRun = null;
+    myScheduler = new AdaptiveUpdateScheduler(() -> {
+      myRuns.add(myTimeScheduler.myTime);
+      if (myOnRun != null) {
+        myOnRun.run();
+      }
+    }, myTimeScheduler, () -> myTransitional, DELAY, TRANSITIONAL_DELAY, MAX_DELAY);
+  }
+
+  public void shouldBackOffToCeilingWhenInstancesAreStable() {
+    myScheduler.start(DELAY);
+    myTimeScheduler.advanceTo(30 * 60 * 1000L);
+
+    Assert.assertEquals(myRuns.subList(0, 6), Arrays.asList(
+      DELAY,
+      2 * DELAY,
+      4 * DELAY,
+      8 * DELAY,
+      8 * DELAY + MAX_DELAY,
+      8 * DELAY + 2 * MAX_DELAY));
+  }
+
+  public void shouldPollFasterWhileInstancesAreInTransition() {
+    myScheduler.start(DELAY);
+    myTimeScheduler.advanceTo(8 * DELAY);
+    Assert.assertEquals(myRuns.size(), 4);
+
+    myTransitional = true;
+    myTimeScheduler.advanceTo(8 * DELAY + MAX_DELAY);
+    Assert.assertEquals(myRuns.size(), 5);
+
+    // next updates are executed with short delay until instances are stable
+    myTimeScheduler.advanceTo(8 * DELAY + MAX_DELAY + 3 * TRANSITIONAL_DELAY);
+    Assert.assertEquals(myRuns.size(), 8);
+
+    myTransitional = false;
+    final long stableTime = 8 * DELAY + MAX_DELAY + 4 * TRANSITIONAL_DELAY;
+    myTimeScheduler.advanceTo(stableTime + 3 * DELAY);
+    Assert.assertEquals(myRuns.subList(8, 11), Arrays.asList(stableTime, stableTime + DELAY, stableTime + 3 * DELAY));
+  }
+
+  public void shouldRunImmediatelyWhenRefreshIsRequested() {
+    myScheduler.start(DELAY);
+    myTimeScheduler.advanceTo(8 * DELAY + 1000);
+    Assert.assertEquals(myRuns.size(), 4);
+    Assert.assertEquals(myScheduler.getStableDelayMs(), MAX_DELAY);
+
+    myScheduler.requestRefresh();
+    myScheduler.requestRefresh();
+    myTimeScheduler.advanceTo(8 * DELAY + 1000);
+
+    Assert.assertEquals(myRuns.size(), 5);
+    Assert.assertEquals(myRuns.get(4).longValue(), 8 * DELAY + 1000);
+    // pending update with long delay is cancelled and backoff starts from the regular delay
+    myTimeScheduler.advanceTo(8 * DELAY + 1000 + MAX_DELAY);
+    Assert.assertEquals(myRuns.subList(5, 7), Arrays.asList(9 * DELAY + 1000, 11 * DELAY + 1000));
+  }
+
+  public void shouldRunAgainWhenRefreshIsRequestedDuringUpdate() {
+    myOnRun = () -> {
+      if (myRuns.size() == 1) {
+        myScheduler.requestRefresh();
+      }
+    };
+    myScheduler.start(DELAY);
+    myTimeScheduler.advanceTo(DELAY);
+
+    Assert.assertEquals(myRuns, Arrays.asList(DELAY, DELAY));
+  }
+
+  public void shouldStopAfterDispose() {
+    myScheduler.start(DELAY);
+    myTimeScheduler.advanceTo(DELAY);
+    myScheduler.dispose();
+    myScheduler.requestRefresh();
+    myTimeScheduler.advanceTo(30 * 60 * 1000L);
+
+    Assert.assertEquals(myRuns, Collections.singletonList(DELAY));
+  }
+
+  public void shouldKeepSchedulingWhenUpdateFails() {
+    myOnRun = () -> {
+      throw new IllegalStateException("Failure");
+    };
+    myScheduler.start(DELAY);
+    myTimeScheduler.advanceTo(4 * DELAY);
+
+    Assert.assertEquals(myRuns, Arrays.asList(DELAY, 2 * DELAY, 4 * DELAY));
+  }
+
+  private static class VirtualTimeScheduler implements AdaptiveUpdateScheduler.TaskScheduler {
+    private final PriorityQueue<ScheduledTask> myTasks = new PriorityQueue<>();
+    private long myTime;
+    private long mySequence;
+
+    @NotNull
+    @Override
+    public Future<?> schedule(@NotNull final Runnable task, final long delayMs) {
+      final ScheduledTask scheduledTask = new ScheduledTask(myTime + delayMs, mySequence++, task);
+      myTasks.add(scheduledTask);
+      return scheduledTask.myFuture;
+    }
+
+    void advanceTo(final long time) {
+      while (!myTasks.isEmpty() && myTasks.peek().myTime <= time) {
+        final ScheduledTask task = myTasks.poll();
+        if (task.myFuture.isCancelled()) {
+          continue;
+        }
+        myTime = task.myTime;
+        task.myTask.run();
+        task.myFuture.complete(null);
+      }
+      myTime = time;
+    }
+  }
+
+  private static class ScheduledTask implements Comparable<ScheduledTask> {
+    private final long myTime;
+    private final long mySequence;
+    private final Runnable myTask;
+    private final CompletableFuture<Void> myFuture = new CompletableFuture<>();
+
+    ScheduledTask(final long time, final long sequence, @NotNull final Runnable task) {
+      myTime = time;
+      mySequence = sequence;
+      myTask = task;
+    }
+
+    @Override
+    public int compareTo(@NotNull final ScheduledTask other) {
+      final int result = Long.compare(myTime, other.myTime);
+      return result != 0 ? result : Long.compare(mySequence, other.mySequence);
+    }
+  }
+}
@@ -24,6 +24,7 @@ class AzureCloudClient(
 )
     : AzureCloudClientBase<AzureCloudInstance, AzureCloudImage, AzureCloudImageDetails>(params, apiConnector, imagesHolder) {
     private val myScope: CoroutineScope
+    private val myInstanceChangesSubscription: AutoCloseable
     private val myInstanceListener = object : AzureInstanceEventListener {
         override fun instanceTerminated(instance: AzureCloudInstance) = unregisterAgent(instance)
         override fun instanceFailedToCreate(instance: AzureCloudInstance, throwable: Throwable) = unregisterAgent(instance)
@@ -31,6 +32,19 @@ class AzureCloudClient(
 
     init {
         myScope = CoroutineScope(SupervisorJob() + schedulersProvider.getDispatcher())
+        myInstanceChangesSubscription = (apiConnector as AzureApiConnector).subscribeToInstanceChanges { requestInstancesUpdate() }
+        apiConnector.setProfileImagesProvider { if (isInitialized) images else null }
+    }
+
+    override fun dispose() {
+        myInstanceChangesSubscription.close()
+        (myApiConnector as AzureApiConnector).dispose()
+        super.dispose()
+    }
+
+    override fun isInTransition(instance: AzureCloudInstance): Boolean {
+        // group could outlive its stopped containers for a long time, so waiting for it should not speed up polling
+        return !instance.waitsForContainerGroup && super.isInTransition(instance)
     }
 
     override fun createImage(imageDetails: AzureCloudImageDetails): AzureCloudImage {
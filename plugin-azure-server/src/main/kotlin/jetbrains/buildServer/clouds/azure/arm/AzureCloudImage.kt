@@ -8,6 +8,7 @@ import jetbrains.buildServer.clouds.InstanceStatus
 import jetbrains.buildServer.clouds.QuotaException
 import jetbrains.buildServer.clouds.azure.AzureUtils
 import jetbrains.buildServer.clouds.azure.arm.connector.AzureApiConnector
+import jetbrains.buildServer.clouds.azure.arm.connector.AzureInstance
 import jetbrains.buildServer.clouds.azure.arm.types.AzureContainerHandler
 import jetbrains.buildServer.clouds.azure.arm.types.AzureHandler
 import jetbrains.buildServer.clouds.azure.arm.types.AzureImageHandler
@@ -19,10 +20,16 @@ import jetbrains.buildServer.clouds.base.connector.AbstractInstance
 import jetbrains.buildServer.clouds.base.errors.TypedCloudErrorInfo
 import jetbrains.buildServer.serverSide.TeamCityProperties
 import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
-import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.supervisorScope
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicReference
 
 /**
@@ -54,10 +61,36 @@ class AzureCloudImage(
             InstanceStatus.ERROR
     )
 
-    private var azureCpuQuotaExceeded: Set<String>? = null
+    @Volatile
+    private var azureCpuQuotaExceeded: Long? = null
 
     private val overlimitInstanceToDelete = AtomicReference<AzureCloudInstance?>(null)
 
+    // resource group of a new group instance has the same name, so it could not be reused while the group is being deleted
+    private val myInstanceNames = AzureInstanceNameAllocator(myImageDetails.sourceId) { name ->
+        myImageDetails.target == AzureCloudDeployTarget.NewGroup && myApiConnector.isResourceGroupDeletionPending(name)
+    }
+    private val myInstanceStatuses = AzureInstanceStatusIndex(myActiveStatuses)
+
+    @Volatile
+    private var myComputeQuota: AzureComputeQuota? = null
+    private val myComputeQuotaUpdating = AtomicBoolean(false)
+
+    private val myContainerGroupLock = Any()
+    private var myPendingContainerGroup: MutableList<Pair<AzureCloudInstance, CloudInstanceUserData>>? = null
+    private val myDeletingContainerGroups = ConcurrentHashMap.newKeySet<String>()
+
+    private val myImageHashLock = Mutex()
+    @Volatile
+    private var myImageHash: ImageHash? = null
+    @Volatile
+    private var myReconcileStats = ReconcileStats(0, 0)
+
+    init {
+        addInstancesListener(myInstanceNames)
+        addInstancesListener(myInstanceStatuses)
+    }
+
     override fun getImageDetails(): AzureCloudImageDetails = myImageDetails
 
     override fun createInstanceFromReal(realInstance: AbstractInstance): AzureCloudInstance {
@@ -68,38 +101,100 @@ class AzureCloudImage(
 
     override fun detectNewInstances(realInstances: MutableMap<String, out AbstractInstance>?) {
         super.detectNewInstances(realInstances)
+        updateComputeQuota()
         if (realInstances == null) {
             return
         }
 
-        // Update properties
+        // Update properties of instances changed since the previous update
+        var changedCount = 0
+        var unchangedCount = 0
         instances.forEach { instance ->
             realInstances[instance.instanceId]?.let {
-                instance.properties = it.properties
+                val version = (it as? AzureInstance)?.changeVersion
+                if (version != null && version == instance.realInstanceVersion) {
+                    unchangedCount++
+                } else {
+                    instance.properties = it.properties
+                    instance.realInstanceVersion = version
+                    changedCount++
+                }
             }
         }
+        myReconcileStats = ReconcileStats(changedCount, unchangedCount)
+        LOG.debug("Updated instances of image ${imageDetails.sourceId}: $changedCount changed, $unchangedCount unchanged")
     }
 
+    internal val reconcileStats: ReconcileStats
+        get() = myReconcileStats
+
     override fun canStartNewInstance(): CanStartNewInstanceResult {
-        if (activeInstances.size >= myImageDetails.maxInstances) {
+        if (myInstanceStatuses.activeCount >= myImageDetails.maxInstances) {
             return CanStartNewInstanceResult.no("Quota exceeded: ActiveInstances count reached MaxInstances value of ${myImageDetails.maxInstances}")
         }
         // Check Azure CPU quota state
-        azureCpuQuotaExceeded?.let { instances ->
-            if (instances == getInstanceIds()) {
+        azureCpuQuotaExceeded?.let { activeVersion ->
+            if (activeVersion == myInstanceStatuses.activeVersion) {
                 return CanStartNewInstanceResult.no("Azure CPU quota exceeded")
             } else {
                 azureCpuQuotaExceeded = null
                 LOG.info("Azure CPU quota limit has been reset due to change in the number of active instances for image ${imageDetails.sourceId}.")
             }
         }
+        // Check remaining vCPU quota taking into account instances started after quota was read
+        myComputeQuota?.let { quota ->
+            val reservedCpus = getReservedCpus(quota)
+            if (quota.available - reservedCpus < quota.vCpus) {
+                return CanStartNewInstanceResult.no("Azure vCPU quota '${quota.quotaName}' exceeded: ${quota.vmSize} requires ${quota.vCpus} vCPUs, " +
+                        "${quota.available} available, $reservedCpus reserved by starting instances")
+            }
+        }
         if (imageDetails.deployTarget == AzureCloudDeployTarget.Instance && stoppedInstances.isEmpty()) {
             return CanStartNewInstanceResult.no("Stopped Instances pool is empty, but we trying to run yet another instance. Check inactive agents for errors")
         }
         return CanStartNewInstanceResult.yes()
     }
 
-    override fun startNewInstance(userData: CloudInstanceUserData) = runBlocking {
+    private fun getReservedCpus(quota: AzureComputeQuota): Long {
+        if (myInstanceStatuses.count(InstanceStatus.SCHEDULED_TO_START) + myInstanceStatuses.count(InstanceStatus.STARTING) == 0) {
+            return 0L
+        }
+        val reservedInstances = instances.count {
+            (it.status == InstanceStatus.SCHEDULED_TO_START || it.status == InstanceStatus.STARTING) &&
+                    (it.startedTime?.time ?: 0L) >= quota.timestamp
+        }
+        return reservedInstances.toLong() * quota.vCpus
+    }
+
+    private fun updateComputeQuota() {
+        val vmSize = myImageDetails.vmSize
+        val region = myImageDetails.region
+        if (vmSize.isNullOrEmpty() || region.isNullOrEmpty() ||
+            myImageDetails.deployTarget == AzureCloudDeployTarget.Instance ||
+            myImageDetails.type !in QUOTA_AWARE_IMAGE_TYPES ||
+            !TeamCityProperties.getBooleanOrTrue(AzureConstants.PROP_COMPUTE_QUOTA_CHECK)) {
+            myComputeQuota = null
+            return
+        }
+
+        if (!myComputeQuotaUpdating.compareAndSet(false, true)) return
+        myScope.launch {
+            try {
+                myComputeQuota = myApiConnector.getComputeQuota(region, vmSize, myImageDetails.spotVm == true)
+            } catch (e: Throwable) {
+                LOG.debug("Failed to update compute quota for image ${imageDetails.sourceId}: ${e.message}")
+                myComputeQuota = null
+            } finally {
+                myComputeQuotaUpdating.set(false)
+            }
+        }
+    }
+
+    /**
+     * Reserves an instance slot from in-memory state and returns immediately,
+     * remote validation and provisioning are performed in background.
+     */
+    override fun startNewInstance(userData: CloudInstanceUserData): AzureCloudInstance {
         if (!canStartNewInstance().isPositive) {
             throw QuotaException("Unable to start more instances. Limit has reached")
         }
@@ -109,7 +204,7 @@ class AzureCloudImage(
         } else {
             tryToStartStoppedInstance(userData) ?: createInstance(userData)
         }
-        instance.apply {
+        return instance.apply {
             setStartDate(Date())
         }
     }
@@ -122,49 +217,169 @@ class AzureCloudImage(
      */
     private fun createInstance(userData: CloudInstanceUserData): AzureCloudInstance {
         val instance = createAzureCloudInstance()
-        val data = AzureUtils.setVmNameForTag(userData, instance.name)
 
-        myScope.launch {
-            val hash = handler!!.getImageHash(imageDetails)
-
-            instance.properties[AzureConstants.TAG_PROFILE] = userData.profileId
-            instance.properties[AzureConstants.TAG_SOURCE] = imageDetails.sourceId
-            instance.properties[AzureConstants.TAG_DATA_HASH] = getDataHash(data)
-            instance.properties[AzureConstants.TAG_IMAGE_HASH] = hash
-            parseCustomTags(myImageDetails.customTags).forEach {
-                instance.properties[it.first] = it.second
+        if (myImageDetails.agentsPerContainerGroup > 1) {
+            addToContainerGroup(instance, userData)
+        } else {
+            myScope.launch {
+                provisionInstance(instance, userData)
             }
+        }
+        return instance
+    }
 
-            try {
-                instance.provisioningInProgress = true
-                instance.status = InstanceStatus.STARTING
-                LOG.info("Creating new virtual machine ${instance.describe()}")
-                myApiConnector.createInstance(instance, data)
-            } catch (e: Throwable) {
-                LOG.warnAndDebugDetails(e.message, e)
-                handleDeploymentError(e)
+    /**
+     * Collects instances started within a short period into a single container group deployment.
+     * Group is deployed when it is full or when the linger period is over.
+     */
+    private fun addToContainerGroup(instance: AzureCloudInstance, userData: CloudInstanceUserData) {
+        var newGroup: MutableList<Pair<AzureCloudInstance, CloudInstanceUserData>>? = null
+        val fullGroup = synchronized(myContainerGroupLock) {
+            val group = myPendingContainerGroup ?: mutableListOf<Pair<AzureCloudInstance, CloudInstanceUserData>>().also {
+                myPendingContainerGroup = it
+                newGroup = it
+            }
+            group.add(instance to userData)
+            if (group.size >= myImageDetails.agentsPerContainerGroup) {
+                myPendingContainerGroup = null
+                group.toList()
+            } else null
+        }
 
-                instance.status = InstanceStatus.ERROR
-                instance.updateErrors(TypedCloudErrorInfo.fromException(e))
+        if (fullGroup != null) {
+            myScope.launch {
+                provisionContainerGroup(fullGroup)
+            }
+        } else newGroup?.let { group ->
+            myScope.launch {
+                delay(TeamCityProperties.getLong(AzureConstants.PROP_CONTAINER_GROUP_LINGER_MS, DEFAULT_CONTAINER_GROUP_LINGER_MS))
+                takePendingContainerGroup(group)?.let { provisionContainerGroup(it) }
+            }
+        }
+    }
 
-                if (TeamCityProperties.getBooleanOrTrue(AzureConstants.PROP_DEPLOYMENT_DELETE_FAILED)) {
-                    LOG.info("Removing allocated resources for virtual machine ${instance.describe()}")
-                    try {
-                        myApiConnector.deleteInstance(instance)
-                        LOG.info("Allocated resources for virtual machine ${instance.describe()} have been removed")
-                    } catch (e: Throwable) {
-                        val message = "Failed to delete allocated resources for virtual machine ${instance.describe()}: ${e.message}"
-                        LOG.warnAndDebugDetails(message, e)
-                    }
-                } else {
-                    LOG.info("Allocated resources for virtual machine ${instance.describe()} would not be deleted. Cleanup them manually.")
+    private fun takePendingContainerGroup(group: List<Pair<AzureCloudInstance, CloudInstanceUserData>>) = synchronized(myContainerGroupLock) {
+        if (myPendingContainerGroup === group) {
+            myPendingContainerGroup = null
+            group.toList()
+        } else null
+    }
+
+    private suspend fun provisionContainerGroup(members: List<Pair<AzureCloudInstance, CloudInstanceUserData>>) {
+        if (members.size == 1) {
+            val (instance, userData) = members.single()
+            provisionInstance(instance, userData)
+            return
+        }
+
+        val instances = members.map { it.first }
+        val groupName = instances.first().name + CONTAINER_GROUP_SUFFIX
+        val hash = try {
+            getImageHash()
+        } catch (e: Throwable) {
+            LOG.warnAndDebugDetails("Failed to get image hash for container group $groupName: ${e.message}", e)
+            instances.forEach {
+                it.status = InstanceStatus.ERROR
+                it.updateErrors(TypedCloudErrorInfo.fromException(e))
+                myInstanceListener.instanceFailedToCreate(it, e)
+            }
+            return
+        }
+
+        val membersData = members.map { (instance, userData) ->
+            val data = AzureUtils.setVmNameForTag(userData, instance.name)
+            setInstanceProperties(instance, userData, data, hash)
+            instance.properties[AzureConstants.TAG_CONTAINER_GROUP] = groupName
+            instance to data
+        }
+
+        try {
+            instances.forEach {
+                it.provisioningInProgress = true
+                it.status = InstanceStatus.STARTING
+            }
+            LOG.info("Creating new container group $groupName for instances ${instances.joinToString { it.describe() }}")
+            myApiConnector.createContainerGroup(groupName, membersData)
+        } catch (e: Throwable) {
+            LOG.warnAndDebugDetails(e.message, e)
+            handleDeploymentError(e)
+
+            instances.forEach {
+                it.status = InstanceStatus.ERROR
+                it.updateErrors(TypedCloudErrorInfo.fromException(e))
+            }
+
+            if (TeamCityProperties.getBooleanOrTrue(AzureConstants.PROP_DEPLOYMENT_DELETE_FAILED)) {
+                LOG.info("Removing allocated resources for container group $groupName")
+                try {
+                    withReservedNames(instances) { myApiConnector.deleteInstance(instances.first()) }
+                    LOG.info("Allocated resources for container group $groupName have been removed")
+                } catch (e: Throwable) {
+                    val message = "Failed to delete allocated resources for container group $groupName: ${e.message}"
+                    LOG.warnAndDebugDetails(message, e)
                 }
-                myInstanceListener.instanceFailedToCreate(instance, e)
-            } finally {
-                instance.provisioningInProgress = false
+            } else {
+                LOG.info("Allocated resources for container group $groupName would not be deleted. Cleanup them manually.")
             }
+            instances.forEach { myInstanceListener.instanceFailedToCreate(it, e) }
+        } finally {
+            instances.forEach { it.provisioningInProgress = false }
+        }
+    }
+
+    private suspend fun provisionInstance(instance: AzureCloudInstance, userData: CloudInstanceUserData) {
+        val data = AzureUtils.setVmNameForTag(userData, instance.name)
+        val hash = try {
+            getImageHash()
+        } catch (e: Throwable) {
+            LOG.warnAndDebugDetails("Failed to get image hash for virtual machine ${instance.describe()}: ${e.message}", e)
+            instance.status = InstanceStatus.ERROR
+            instance.updateErrors(TypedCloudErrorInfo.fromException(e))
+            myInstanceListener.instanceFailedToCreate(instance, e)
+            return
+        }
+
+        setInstanceProperties(instance, userData, data, hash)
+
+        try {
+            instance.provisioningInProgress = true
+            instance.status = InstanceStatus.STARTING
+            LOG.info("Creating new virtual machine ${instance.describe()}")
+            myApiConnector.createInstance(instance, data)
+        } catch (e: Throwable) {
+            LOG.warnAndDebugDetails(e.message, e)
+            handleDeploymentError(e)
+
+            instance.status = InstanceStatus.ERROR
+            instance.updateErrors(TypedCloudErrorInfo.fromException(e))
+
+            if (TeamCityProperties.getBooleanOrTrue(AzureConstants.PROP_DEPLOYMENT_DELETE_FAILED)) {
+                LOG.info("Removing allocated resources for virtual machine ${instance.describe()}")
+                try {
+                    withReservedNames(listOf(instance)) { myApiConnector.deleteInstance(instance) }
+                    LOG.info("Allocated resources for virtual machine ${instance.describe()} have been removed")
+                } catch (e: Throwable) {
+                    val message = "Failed to delete allocated resources for virtual machine ${instance.describe()}: ${e.message}"
+                    LOG.warnAndDebugDetails(message, e)
+                }
+            } else {
+                LOG.info("Allocated resources for virtual machine ${instance.describe()} would not be deleted. Cleanup them manually.")
+            }
+            myInstanceListener.instanceFailedToCreate(instance, e)
+        } finally {
+            instance.provisioningInProgress = false
+        }
+    }
+
+    private fun setInstanceProperties(instance: AzureCloudInstance, userData: CloudInstanceUserData, data: CloudInstanceUserData, hash: String?) {
+        instance.realInstanceVersion = null
+        instance.properties[AzureConstants.TAG_PROFILE] = userData.profileId
+        instance.properties[AzureConstants.TAG_SOURCE] = imageDetails.sourceId
+        instance.properties[AzureConstants.TAG_DATA_HASH] = getDataHash(data)
+        instance.properties[AzureConstants.TAG_IMAGE_HASH] = hash
+        parseCustomTags(myImageDetails.customTags).forEach {
+            instance.properties[it.first] = it.second
         }
-        return instance
     }
 
     private fun createAzureCloudInstance(): AzureCloudInstance {
@@ -173,7 +388,7 @@ class AzureCloudImage(
             instance.status = InstanceStatus.SCHEDULED_TO_START
 
             if (addInstanceIfAbsent(instance)) {
-                while(activeInstances.size > myImageDetails.maxInstances) {
+                while(myInstanceStatuses.activeCount > myImageDetails.maxInstances) {
                     instances.filter { it.status == InstanceStatus.SCHEDULED_TO_START }.maxByOrNull { it.name }
                         ?: throw QuotaException("Unable to start more instances. Limit has reached")
 
@@ -189,93 +404,161 @@ class AzureCloudImage(
     }
 
     /**
-     * Tries to find and start stopped instance.
+     * Tries to reserve stopped instance and start it in background.
+     * Instance is selected by in-memory state, image source is validated before start.
      *
      * @return instance if it found.
      */
-    private suspend fun tryToStartStoppedInstance(userData: CloudInstanceUserData): AzureCloudInstance? {
-        val image = this
-        return coroutineScope {
-            if (myImageDetails.behaviour.isDeleteAfterStop && myImageDetails.spotVm != true) return@coroutineScope null
-
-            var stoppedInstancesCopy = ArrayList(stoppedInstances)
-            var instanceToStart : AzureCloudInstance? = null
-            while(stoppedInstancesCopy.isNotEmpty()) {
-                instanceToStart = stoppedInstancesCopy
-                    .firstOrNull {
-                        if (isSameImageInstance(it)) {
-                            val data = AzureUtils.setVmNameForTag(userData, it.name)
-                            return@firstOrNull it.properties[AzureConstants.TAG_DATA_HASH] == getDataHash(data)
-                        }
-                        return@firstOrNull false
-                    }
+    private fun tryToStartStoppedInstance(userData: CloudInstanceUserData): AzureCloudInstance? {
+        if (myImageDetails.behaviour.isDeleteAfterStop && myImageDetails.spotVm != true) return null
+
+        // image hash is taken into account only when it is known without remote calls
+        val knownImageHash = getActualImageHash()
+        var stoppedInstancesCopy = ArrayList(stoppedInstances)
+        var instanceToStart : AzureCloudInstance? = null
+        while(stoppedInstancesCopy.isNotEmpty()) {
+            instanceToStart = stoppedInstancesCopy
+                .firstOrNull {
+                    (knownImageHash == null || isSameImageInstance(it, knownImageHash.value)) && isSameDataInstance(it, userData)
+                }
 
-                if (instanceToStart == null) return@coroutineScope null
+            if (instanceToStart == null) return null
 
-                if (instanceToStart.compareAndSetStatus(InstanceStatus.STOPPED, InstanceStatus.SCHEDULED_TO_START)) {
-                    LOG.info("Found stopped instance ${instanceToStart.describe()}. Starting it.")
-                    break
-                } else {
-                    LOG.debug("Found stopped instance ${instanceToStart.describe()}. Could not start it. Instance has just been changed.")
-                    instanceToStart = null
-                }
-                stoppedInstancesCopy = ArrayList(stoppedInstances)
+            if (instanceToStart.compareAndSetStatus(InstanceStatus.STOPPED, InstanceStatus.SCHEDULED_TO_START)) {
+                LOG.info("Found stopped instance ${instanceToStart.describe()}. Starting it.")
+                break
+            } else {
+                LOG.debug("Found stopped instance ${instanceToStart.describe()}. Could not start it. Instance has just been changed.")
+                instanceToStart = null
             }
+            stoppedInstancesCopy = ArrayList(stoppedInstances)
+        }
 
-            val invalidStoppedInstances = stoppedInstances
-                .map {
-                    var result: Pair<AzureCloudInstance, String>? = null
-                    if (!isSameImageInstance(it)) {
-                        result = it to "Remove virtual machine ${it.describe()} due to changes in image source"
-                    } else {
-                        val data = AzureUtils.setVmNameForTag(userData, it.name)
-                        if (it.properties[AzureConstants.TAG_DATA_HASH] != getDataHash(data)) {
-                            result = it to "Remove virtual machine ${it.describe()} due to changes in cloud profile"
-                        }
-                    }
-                    result
-                }
-                .filterNotNull()
-                .toList()
+        if (instanceToStart == null) return null
+
+        myScope.launch {
+            startReservedInstance(instanceToStart, userData)
+        }
+        return instanceToStart
+    }
 
+    private suspend fun startReservedInstance(instanceToStart: AzureCloudInstance, userData: CloudInstanceUserData) {
+        val imageHash = try {
+            getImageHash()
+        } catch (e: Throwable) {
+            LOG.warnAndDebugDetails("Failed to get image hash for virtual machine ${instanceToStart.describe()}: ${e.message}", e)
+            instanceToStart.status = InstanceStatus.ERROR
+            instanceToStart.updateErrors(TypedCloudErrorInfo.fromException(e))
+            return
+        }
 
-            myScope.launch {
-                invalidStoppedInstances.forEach { (instance, reason) ->
-                    val instanceToRemove = removeInstance(instance.instanceId)
-                    if (instanceToRemove != null) {
-                        try {
-                            LOG.info("Removing virtual machine ${instance.describe()}. Reason: ${reason}")
-                            instance.provisioningInProgress = true
-                            myApiConnector.deleteInstance(instance)
-                        } catch (e: Throwable) {
-                            LOG.warnAndDebugDetails(e.message, e)
-                            instance.status = InstanceStatus.ERROR
-                            instance.updateErrors(TypedCloudErrorInfo.fromException(e))
-                            addInstance(instanceToRemove)
-                        } finally {
-                            instance.provisioningInProgress = false
-                        }
-                    }
+        val invalidStoppedInstances = stoppedInstances
+            .map {
+                var result: Pair<AzureCloudInstance, String>? = null
+                if (!isSameImageInstance(it, imageHash)) {
+                    result = it to "Remove virtual machine ${it.describe()} due to changes in image source"
+                } else if (!isSameDataInstance(it, userData)) {
+                    result = it to "Remove virtual machine ${it.describe()} due to changes in cloud profile"
                 }
+                result
+            }
+            .filterNotNull()
+            .toList()
+
+        // the requested instance goes first, outdated ones are removed afterwards
+        startOrRecreateInstance(instanceToStart, imageHash, userData)
+        removeStoppedInstances(invalidStoppedInstances)
+    }
 
-                instanceToStart?.let {
-                    try {
-                        instanceToStart.provisioningInProgress = true
-                        instanceToStart.status = InstanceStatus.STARTING
-                        LOG.info("Starting stopped virtual machine ${instanceToStart.describe()}")
-                        myApiConnector.startInstance(instanceToStart, userData)
-                    } catch (e: Throwable) {
-                        LOG.warnAndDebugDetails(e.message, e)
-                        handleDeploymentError(e)
-
-                        instanceToStart.status = InstanceStatus.ERROR
-                        instanceToStart.updateErrors(TypedCloudErrorInfo.fromException(e))
-                    } finally {
-                        instanceToStart.provisioningInProgress = false
+    private suspend fun startOrRecreateInstance(instanceToStart: AzureCloudInstance, imageHash: String?, userData: CloudInstanceUserData) {
+        if (!isSameImageInstance(instanceToStart, imageHash)) {
+            // image source has been changed since the instance was reserved
+            try {
+                LOG.info("Removing virtual machine ${instanceToStart.describe()} to recreate it due to changes in image source")
+                instanceToStart.provisioningInProgress = true
+                myApiConnector.deleteInstance(instanceToStart)
+            } catch (e: Throwable) {
+                LOG.warnAndDebugDetails(e.message, e)
+                instanceToStart.status = InstanceStatus.ERROR
+                instanceToStart.updateErrors(TypedCloudErrorInfo.fromException(e))
+                return
+            } finally {
+                instanceToStart.provisioningInProgress = false
+            }
+            provisionInstance(instanceToStart, userData)
+            return
+        }
+
+        try {
+            instanceToStart.provisioningInProgress = true
+            instanceToStart.status = InstanceStatus.STARTING
+            LOG.info("Starting stopped virtual machine ${instanceToStart.describe()}")
+            myApiConnector.startInstance(instanceToStart, userData)
+        } catch (e: Throwable) {
+            LOG.warnAndDebugDetails(e.message, e)
+            handleDeploymentError(e)
+
+            instanceToStart.status = InstanceStatus.ERROR
+            instanceToStart.updateErrors(TypedCloudErrorInfo.fromException(e))
+        } finally {
+            instanceToStart.provisioningInProgress = false
+        }
+    }
+
+    /**
+     * Removes outdated stopped virtual machines in a separate job with bounded parallelism.
+     */
+    private fun removeStoppedInstances(instances: List<Pair<AzureCloudInstance, String>>) {
+        if (instances.isEmpty()) return
+
+        val parallelism = TeamCityProperties.getInteger(AzureConstants.PROP_REMOVE_INSTANCES_PARALLELISM, 4).coerceAtLeast(1)
+        val permits = Semaphore(parallelism)
+        myScope.launch {
+            supervisorScope {
+                instances.forEach { (instance, reason) ->
+                    launch {
+                        permits.withPermit { removeStoppedInstance(instance, reason) }
                     }
                 }
             }
-            instanceToStart
+        }
+    }
+
+    private suspend fun removeStoppedInstance(instance: AzureCloudInstance, reason: String) {
+        // instance could be reserved for start in the meantime
+        if (!instance.compareAndSetStatus(InstanceStatus.STOPPED, InstanceStatus.STOPPING)) {
+            LOG.debug("Virtual machine ${instance.describe()} would not be removed. Instance has just been changed.")
+            return
+        }
+
+        withReservedNames(listOf(instance)) {
+            val instanceToRemove = removeInstance(instance.instanceId) ?: return@withReservedNames
+            try {
+                LOG.info("Removing virtual machine ${instance.describe()}. Reason: ${reason}")
+                instance.provisioningInProgress = true
+                myApiConnector.deleteInstance(instance)
+                instance.status = InstanceStatus.STOPPED
+            } catch (e: Throwable) {
+                LOG.warnAndDebugDetails(e.message, e)
+                instance.status = InstanceStatus.ERROR
+                instance.updateErrors(TypedCloudErrorInfo.fromException(e))
+                addInstance(instanceToRemove)
+            } finally {
+                instance.provisioningInProgress = false
+            }
+        }
+    }
+
+    /**
+     * Names of instances should not be reused until their resources are deleted,
+     * even if instances are removed from the image in the meantime.
+     */
+    private suspend fun <T> withReservedNames(instances: Collection<AzureCloudInstance>, action: suspend () -> T): T {
+        instances.forEach { myInstanceNames.reserve(it.instanceId) }
+        try {
+            return action()
+        } finally {
+            instances.forEach { myInstanceNames.release(it.instanceId, this) }
         }
     }
 
@@ -311,24 +594,63 @@ class AzureCloudImage(
         return instance
     }
 
-    private suspend fun isSameImageInstance(instance: AzureCloudInstance) = coroutineScope {
+    private fun isSameImageInstance(instance: AzureCloudInstance, imageHash: String?): Boolean {
+        if (imageDetails.deployTarget == AzureCloudDeployTarget.Instance) {
+            return true
+        }
+        val instanceHash = instance.properties[AzureConstants.TAG_IMAGE_HASH]
+        if (imageHash == null || instanceHash == null) {
+            return false
+        }
+        if (imageHash == instanceHash) {
+            return true
+        }
+        // instances created before image hashes became content based are tagged by legacy hash
+        return TeamCityProperties.getBooleanOrTrue(AzureConstants.PROP_IMAGE_HASH_ACCEPT_LEGACY) &&
+                instanceHash == handler?.getLegacyImageHash(imageDetails)
+    }
+
+    /**
+     * Returns cached image hash.
+     * Hash is recomputed when image source changes or when it is older than configured TTL.
+     */
+    private suspend fun getImageHash(): String? {
         if (imageDetails.deployTarget == AzureCloudDeployTarget.Instance) {
-            return@coroutineScope true
+            return null
         }
-        handler?.let {
-            val hash = it.getImageHash(imageDetails)
-            return@coroutineScope hash == instance.properties[AzureConstants.TAG_IMAGE_HASH]
+
+        getActualImageHash()?.let { return it.value }
+        return myImageHashLock.withLock {
+            getActualImageHash()?.let { return@withLock it.value }
+
+            val value = handler?.getImageHash(imageDetails)
+            myImageHash = ImageHash(getImageSourceKey(), value, System.currentTimeMillis())
+            LOG.debug("Computed image hash for ${imageDetails.sourceId}: $value")
+            value
         }
-        false
     }
 
-    private fun getDataHash(userData: CloudInstanceUserData): String {
-        val dataHash = StringBuilder(userData.agentName)
-                .append(userData.profileId)
-                .append(userData.serverAddress)
-                .toString()
-                .hashCode()
-        return Integer.toHexString(dataHash)
+    private fun getActualImageHash(): ImageHash? {
+        val hash = myImageHash ?: return null
+        if (hash.sourceKey != getImageSourceKey()) {
+            return null
+        }
+        val ttl = TeamCityProperties.getLong(AzureConstants.PROP_IMAGE_HASH_TTL_MS, DEFAULT_IMAGE_HASH_TTL_MS)
+        if (System.currentTimeMillis() - hash.timestamp > ttl) {
+            return null
+        }
+        return hash
+    }
+
+    private fun getImageSourceKey() = listOf(imageDetails.type, imageDetails.imageUrl, imageDetails.imageId, imageDetails.region, imageDetails.template)
+
+    internal data class ReconcileStats(val changed: Int, val unchanged: Int)
+
+    private class ImageHash(val sourceKey: List<Any?>, val value: String?, val timestamp: Long)
+
+    private fun isSameDataInstance(instance: AzureCloudInstance, userData: CloudInstanceUserData): Boolean {
+        val data = AzureUtils.setVmNameForTag(userData, instance.name)
+        return instance.properties[AzureConstants.TAG_DATA_HASH] == getDataHash(data)
     }
 
     override fun restartInstance(instance: AzureCloudInstance) {
@@ -358,6 +680,11 @@ class AzureCloudImage(
             return
         }
 
+        instance.properties[AzureConstants.TAG_CONTAINER_GROUP]?.let { groupName ->
+            terminateContainerGroupInstance(instance, groupName)
+            return
+        }
+
         val image = this
         instance.status = InstanceStatus.SCHEDULED_TO_STOP
 
@@ -365,14 +692,14 @@ class AzureCloudImage(
             try {
                 instance.provisioningInProgress = true
                 instance.status = InstanceStatus.STOPPING
-                val sameVhdImage = isSameImageInstance(instance)
+                val sameVhdImage = isSameImageInstance(instance, getImageHash())
                 if (myImageDetails.behaviour.isDeleteAfterStop) {
                     LOG.info("Removing virtual machine ${instance.describe()} due to cloud image settings")
-                    myApiConnector.deleteInstance(instance)
+                    withReservedNames(listOf(instance)) { myApiConnector.deleteInstance(instance) }
                     instance.status = InstanceStatus.STOPPED
                 } else if (!sameVhdImage) {
                     LOG.info("Removing virtual machine ${instance.describe()} due to cloud image retention policy")
-                    myApiConnector.deleteInstance(instance)
+                    withReservedNames(listOf(instance)) { myApiConnector.deleteInstance(instance) }
                     instance.status = InstanceStatus.STOPPED
                 } else {
                     LOG.info("Stopping virtual machine ${instance.describe()}")
@@ -393,6 +720,54 @@ class AzureCloudImage(
         }
     }
 
+    /**
+     * Container could not be removed from its group, so the group is deleted when all its agents are terminated.
+     * Till then the instance keeps stopping status, but it is not considered as transitional for instances polling.
+     */
+    private fun terminateContainerGroupInstance(instance: AzureCloudInstance, groupName: String) {
+        instance.status = InstanceStatus.SCHEDULED_TO_STOP
+
+        val members = instances.filter { it.properties[AzureConstants.TAG_CONTAINER_GROUP] == groupName }
+        val activeMembers = members.filter { it.status !in CONTAINER_GROUP_TERMINATED_STATUSES }
+        if (activeMembers.isNotEmpty()) {
+            instance.provisioningInProgress = true
+            instance.waitsForContainerGroup = true
+            LOG.info("Container ${instance.describe()} would be removed with container group $groupName after termination of ${activeMembers.size} more agents")
+            return
+        }
+
+        if (!myDeletingContainerGroups.add(groupName)) return
+
+        myScope.launch {
+            try {
+                members.forEach {
+                    it.waitsForContainerGroup = false
+                    it.provisioningInProgress = true
+                    it.status = InstanceStatus.STOPPING
+                }
+                LOG.info("Removing container group $groupName since all its agents are terminated")
+                withReservedNames(members) { myApiConnector.deleteInstance(instance) }
+                members.forEach {
+                    it.hasVmInstance = false
+                    it.status = InstanceStatus.STOPPED
+                }
+
+                LOG.info("Container group $groupName has been successfully removed")
+
+                members.forEach { myInstanceListener.instanceTerminated(it) }
+            } catch (e: Throwable) {
+                LOG.warnAndDebugDetails(e.message, e)
+                members.forEach {
+                    it.status = InstanceStatus.ERROR
+                    it.updateErrors(TypedCloudErrorInfo.fromException(e))
+                }
+            } finally {
+                members.forEach { it.provisioningInProgress = false }
+                myDeletingContainerGroups.remove(groupName)
+            }
+        }
+    }
+
     override fun getAgentPoolId(): Int? = myImageDetails.agentPoolId
 
     val handler: AzureHandler?
@@ -402,23 +777,9 @@ class AzureCloudImage(
             myImageHandlers[imageDetails.type]
         }
 
-    private fun getInstanceName(): String {
-        val keys = instances.map { it.instanceId.lowercase(Locale.getDefault()) }
-        val sourceName = myImageDetails.sourceId.lowercase(Locale.getDefault())
-        var i = 1
-
-        while (keys.contains(sourceName + i)) i++
+    private fun getInstanceName(): String = myInstanceNames.allocate()
 
-        return sourceName + i
-    }
-
-    /**
-     * Returns active instances.
-     *
-     * @return instances.
-     */
-    private val activeInstances: List<AzureCloudInstance>
-        get() = instances.filter { instance -> myActiveStatuses.contains(instance.status) }
+    internal fun instanceStatusChanged(instance: AzureCloudInstance) = myInstanceStatuses.statusChanged(instance)
 
     /**
      * Returns stopped instances.
@@ -426,7 +787,7 @@ class AzureCloudImage(
      * @return instances.
      */
     private val stoppedInstances: List<AzureCloudInstance>
-        get() = instances.filter { instance ->
+        get() = myInstanceStatuses.getStoppedInstances().filter { instance ->
             instance.status == InstanceStatus.STOPPED &&
             !instance.properties.containsKey(AzureConstants.TAG_INVESTIGATION) &&
             !instance.provisioningInProgress &&
@@ -435,17 +796,34 @@ class AzureCloudImage(
 
     private fun handleDeploymentError(e: Throwable) {
         if (AZURE_CPU_QUOTA_EXCEEDED.containsMatchIn(e.message!!)) {
-            azureCpuQuotaExceeded = getInstanceIds()
+            azureCpuQuotaExceeded = myInstanceStatuses.activeVersion
             LOG.info("Exceeded Azure CPU quota limit for image ${imageDetails.sourceId}. Would not start new cloud instances until active instances termination.")
         }
     }
 
-    private fun getInstanceIds() = activeInstances.asSequence().map { it.instanceId }.toSortedSet()
-
     companion object {
         private val LOG = Logger.getInstance(AzureCloudImage::class.java.name)
+        private const val DEFAULT_IMAGE_HASH_TTL_MS = 5 * 60 * 1000L
+        private const val DEFAULT_CONTAINER_GROUP_LINGER_MS = 2000L
+        private const val CONTAINER_GROUP_SUFFIX = "-group"
+        private val CONTAINER_GROUP_TERMINATED_STATUSES = setOf(
+                InstanceStatus.SCHEDULED_TO_STOP,
+                InstanceStatus.STOPPING,
+                InstanceStatus.STOPPED,
+                InstanceStatus.ERROR
+        )
+        private val QUOTA_AWARE_IMAGE_TYPES = setOf(AzureCloudImageType.Vhd, AzureCloudImageType.Image, AzureCloudImageType.GalleryImage)
         private val AZURE_CPU_QUOTA_EXCEEDED = Regex("Operation results in exceeding quota limits of Core\\. Maximum allowed: \\d+, Current in use: \\d+, Additional requested: \\d+\\.")
 
+        internal fun getDataHash(userData: CloudInstanceUserData): String {
+            val dataHash = StringBuilder(userData.agentName)
+                    .append(userData.profileId)
+                    .append(userData.serverAddress)
+                    .toString()
+                    .hashCode()
+            return Integer.toHexString(dataHash)
+        }
+
         fun parseCustomTags(rawString: String?): List<Pair<String, String>> {
             return if (!rawString.isNullOrEmpty()) {
                 rawString.lines().map { it.trim() }.filter { it.isNotEmpty() }.mapNotNull {
@@ -76,7 +76,9 @@ class AzureCloudImageDetails(
         @SerializedName(AzureConstants.USER_ASSIGNED_IDENTITY)
         val userAssignedIdentity: String? = null,
         @SerializedName(AzureConstants.ENABLE_SYSTEM_ASSIGNED_IDENTITY)
-        val enableSystemAssignedIdentity: Boolean?
+        val enableSystemAssignedIdentity: Boolean?,
+        @SerializedName(AzureConstants.CONTAINER_GROUP_SIZE)
+        val containerGroupSize: Int? = null
 
 ) : CloudImagePasswordDetails {
 
@@ -106,6 +108,14 @@ class AzureCloudImageDetails(
     val type
         get(): AzureCloudImageType = imageType ?: AzureCloudImageType.Vhd
 
+    /**
+     * Number of agent containers which could be packed into a single container group.
+     */
+    val agentsPerContainerGroup
+        get(): Int = if (type == AzureCloudImageType.Container && target != AzureCloudDeployTarget.Instance) {
+            (containerGroupSize ?: 1).coerceIn(1, AzureConstants.MAX_CONTAINER_GROUP_SIZE)
+        } else 1
+
     var region: String?
         get() = regionId
         set(value) {
@@ -2,6 +2,7 @@ package jetbrains.buildServer.clouds.azure.arm
 
 import jetbrains.buildServer.clouds.InstanceStatus
 import jetbrains.buildServer.clouds.azure.AzureProperties
+import jetbrains.buildServer.clouds.azure.arm.connector.AzureInstance
 import jetbrains.buildServer.clouds.base.AbstractCloudInstance
 import jetbrains.buildServer.clouds.base.connector.AbstractInstance
 import jetbrains.buildServer.serverSide.AgentDescription
@@ -13,8 +14,20 @@ class AzureCloudInstance internal constructor(image: AzureCloudImage, name: Stri
 
     var properties: MutableMap<String, String> = HashMap()
 
+    /**
+     * Change version of the real instance which properties were applied last time.
+     */
+    internal var realInstanceVersion: AzureInstance.ChangeVersion? = null
+
+    /**
+     * Container is terminated and waits for removal of its container group with the last agent of the group.
+     */
+    @Volatile
+    internal var waitsForContainerGroup = false
+
     internal constructor(image: AzureCloudImage, instance: AbstractInstance) : this(image, instance.name) {
         properties.putAll(instance.properties)
+        realInstanceVersion = (instance as? AzureInstance)?.changeVersion
         setInstanceState(
             InstanceState()
                 .withStatus(instance.instanceStatus)
@@ -27,6 +40,10 @@ class AzureCloudInstance internal constructor(image: AzureCloudImage, name: Stri
         get() = myHasVmInstance.get()
         set(value) = myHasVmInstance.set(value)
 
+    override fun onStatusChanged(oldStatus: InstanceStatus, newStatus: InstanceStatus) {
+        image.instanceStatusChanged(this)
+    }
+
     override fun canBeCollected(): Boolean {
         if (provisioningInProgress) return false
         if (status == InstanceStatus.SCHEDULED_TO_START) return false
@@ -0,0 +1,43 @@
+package jetbrains.buildServer.clouds.azure.arm
+
+import jetbrains.buildServer.clouds.azure.arm.connector.tasks.FetchComputeUsagesTaskUsageDescriptor
+import jetbrains.buildServer.clouds.azure.arm.connector.tasks.FetchVirtualMachineSkusTaskSkuDescriptor
+
+/**
+ * Remaining vCPU quota for a virtual machine size in a region.
+ *
+ * @property quotaName name of the most restrictive quota: regional, VM family or low priority cores.
+ * @property available vCPUs available in that quota at [timestamp].
+ */
+data class AzureComputeQuota(
+    val vmSize: String,
+    val vCpus: Int,
+    val quotaName: String,
+    val available: Long,
+    val timestamp: Long
+) {
+    companion object {
+        const val REGIONAL_CORES = "cores"
+        const val LOW_PRIORITY_CORES = "lowPriorityCores"
+
+        /**
+         * @return quota for given size or null when size or corresponding usages are unknown.
+         */
+        fun create(vmSize: String,
+                   spotVm: Boolean,
+                   skus: List<FetchVirtualMachineSkusTaskSkuDescriptor>,
+                   usages: List<FetchComputeUsagesTaskUsageDescriptor>): AzureComputeQuota? {
+            val sku = skus.firstOrNull { vmSize.equals(it.name, ignoreCase = true) } ?: return null
+            if (sku.vCpus <= 0) return null
+
+            val quotaNames = if (spotVm) listOf(LOW_PRIORITY_CORES) else listOfNotNull(REGIONAL_CORES, sku.family)
+            val usage = usages
+                .filter { usage -> quotaNames.any { it.equals(usage.name, ignoreCase = true) } }
+                .minByOrNull { it.limit - it.currentValue }
+                ?: return null
+
+            // usages could be served from the throttler cache, so the quota is dated by the time they were fetched
+            return AzureComputeQuota(sku.name, sku.vCpus, usage.name, usage.limit - usage.currentValue, usage.timestamp)
+        }
+    }
+}
@@ -94,6 +94,9 @@ class AzureConstants {
     val memory: String
         get() = MEMORY
 
+    val containerGroupSize: String
+        get() = CONTAINER_GROUP_SIZE
+
     val storageAccount: String
         get() = STORAGE_ACCOUNT
 
@@ -171,6 +174,8 @@ class AzureConstants {
         const val TEMPLATE = "template"
         const val NUMBER_CORES = "numberCores"
         const val MEMORY = "memory"
+        const val CONTAINER_GROUP_SIZE = "containerGroupSize"
+        const val MAX_CONTAINER_GROUP_SIZE = 60
         const val STORAGE_ACCOUNT = "storageAccount"
         const val REGISTRY_USERNAME = "registryUsername"
         const val REGISTRY_PASSWORD = Constants.SECURE_PROPERTY_PREFIX + "registryPassword"
@@ -192,11 +197,28 @@ class AzureConstants {
         const val TAG_IMAGE_HASH = "teamcity-image-hash"
         const val TAG_INVESTIGATION = "teamcity-investigation"
         const val TAG_FEATURES = "teamcity-features"
+        const val TAG_INSTANCE = "teamcity-instance"
+        const val TAG_CONTAINER_GROUP = "teamcity-container-group"
 
         const val TEAMCITY_URL = "teamcityUrl"
 
         val CONTAINER_VOLUMES = listOf("logs", "plugins", "system", "tools")
 
         const val PROP_DEPLOYMENT_DELETE_FAILED = "teamcity.arm.deployment.removeFailed"
+        const val PROP_AGENT_DATA_BINARY_FORMAT = "teamcity.arm.agentData.binaryFormat"
+        const val PROP_SETTINGS_CONNECTOR_IDLE_TIMEOUT_MS = "teamcity.arm.settings.connectorIdleTimeoutMs"
+        const val PROP_SETTINGS_CACHE_TTL_MS = "teamcity.arm.settings.cacheTtlMs"
+        const val PROP_IMAGE_HASH_TTL_MS = "teamcity.arm.imageHash.ttlMs"
+        const val PROP_IMAGE_HASH_ACCEPT_LEGACY = "teamcity.arm.imageHash.acceptLegacy"
+        const val PROP_COMPUTE_QUOTA_CHECK = "teamcity.arm.computeQuota.check"
+        const val PROP_REMOVE_INSTANCES_PARALLELISM = "teamcity.arm.removeInstances.parallelism"
+        const val PROP_METADATA_TIMEOUT_MS = "teamcity.arm.health.metadataTimeoutMs"
+        const val PROP_RESOURCE_GROUP_DELETE_ASYNC = "teamcity.arm.resourceGroup.deleteAsync"
+        const val PROP_RESOURCE_GROUP_DELETE_SWEEP_INTERVAL_MS = "teamcity.arm.resourceGroup.deleteSweepIntervalMs"
+        const val PROP_RESOURCE_GROUP_DELETE_GRACE_PERIOD_MS = "teamcity.arm.resourceGroup.deleteGracePeriodMs"
+        const val PROP_ORPHANED_RESOURCES_MODE = "teamcity.arm.orphanedResources.mode"
+        const val PROP_ORPHANED_RESOURCES_INTERVAL_MS = "teamcity.arm.orphanedResources.intervalMs"
+        const val PROP_ORPHANED_RESOURCES_GRACE_PERIOD_MS = "teamcity.arm.orphanedResources.gracePeriodMs"
+        const val PROP_CONTAINER_GROUP_LINGER_MS = "teamcity.arm.containerGroup.lingerMs"
     }
 }
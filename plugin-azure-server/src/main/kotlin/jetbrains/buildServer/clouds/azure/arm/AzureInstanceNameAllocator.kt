@@ -0,0 +1,98 @@
+package jetbrains.buildServer.clouds.azure.arm
+
+import jetbrains.buildServer.clouds.base.AbstractCloudImage
+import jetbrains.buildServer.clouds.base.CloudInstancesListener
+import java.util.*
+
+/**
+ * Hands out instance names in form of `<prefix><index>` with the lowest free index.
+ *
+ * Used indexes are tracked in a bitmap which is updated on instance add/remove,
+ * names could be additionally reserved while virtual machine deletion is in progress.
+ * Names rejected by [myIsNameBusy] are skipped, e.g. while deletion of their resource group is in progress.
+ */
+internal class AzureInstanceNameAllocator(
+        prefix: String,
+        private val myIsNameBusy: (String) -> Boolean = { false }
+) : CloudInstancesListener<AzureCloudInstance> {
+    private val myPrefix = prefix.lowercase(Locale.getDefault())
+    private val myUsed = BitSet()
+    private val myReserved = BitSet()
+
+    @Synchronized
+    fun allocate(): String {
+        var index = myUsed.nextClearBit(1)
+        while (myIsNameBusy(myPrefix + index)) {
+            index = myUsed.nextClearBit(index + 1)
+        }
+        myUsed.set(index)
+        return myPrefix + index
+    }
+
+    /**
+     * Keeps the name used until [release] is called even if instance is removed from image.
+     */
+    @Synchronized
+    fun reserve(name: String) {
+        val index = getIndex(name)
+        if (index > 0) {
+            myUsed.set(index)
+            myReserved.set(index)
+        }
+    }
+
+    @Synchronized
+    fun release(name: String, image: AbstractCloudImage<*, *>) {
+        val index = getIndex(name)
+        if (index > 0) {
+            myReserved.clear(index)
+            if (image.findInstanceById(name) == null) {
+                myUsed.clear(index)
+            }
+        }
+    }
+
+    @Synchronized
+    fun isUsed(name: String): Boolean {
+        val index = getIndex(name)
+        return index > 0 && myUsed.get(index)
+    }
+
+    @Synchronized
+    override fun instanceAdded(image: AbstractCloudImage<*, *>, instance: AzureCloudInstance) {
+        val index = getIndex(instance.instanceId)
+        if (index > 0) {
+            myUsed.set(index)
+        }
+    }
+
+    @Synchronized
+    override fun instanceRemoved(image: AbstractCloudImage<*, *>, instance: AzureCloudInstance) {
+        val index = getIndex(instance.instanceId)
+        if (index > 0 && !myReserved.get(index) && image.findInstanceById(instance.instanceId) == null) {
+            myUsed.clear(index)
+        }
+    }
+
+    /**
+     * @return name index or -1 if name does not match `<prefix><index>` pattern.
+     */
+    private fun getIndex(name: String): Int {
+        val length = name.length - myPrefix.length
+        if (length <= 0 || length > MAX_INDEX_LENGTH || !name.regionMatches(0, myPrefix, 0, myPrefix.length, true)) {
+            return -1
+        }
+
+        var index = 0
+        for (i in myPrefix.length until name.length) {
+            val c = name[i]
+            if (c < '0' || c > '9') return -1
+            index = index * 10 + (c - '0')
+        }
+        return if (name[myPrefix.length] == '0') -1 else index
+    }
+
+    private companion object {
+        const val MAX_INDEX_LENGTH = 6
+    }
+}
@@ -0,0 +1,93 @@
+package jetbrains.buildServer.clouds.azure.arm
+
+import jetbrains.buildServer.clouds.InstanceStatus
+import jetbrains.buildServer.clouds.base.AbstractCloudImage
+import jetbrains.buildServer.clouds.base.CloudInstancesListener
+import java.util.*
+
+/**
+ * Keeps per-status instance counters and a set of stopped instances for an image.
+ *
+ * Updated on instance add/remove and on instance status change, so status lookups
+ * do not require to filter the whole instances collection.
+ */
+internal class AzureInstanceStatusIndex(private val myActiveStatuses: Set<InstanceStatus>) : CloudInstancesListener<AzureCloudInstance> {
+    private val myStatuses = IdentityHashMap<AzureCloudInstance, InstanceStatus>()
+    private val myCounters = EnumMap<InstanceStatus, Int>(InstanceStatus::class.java)
+    private val myStopped = Collections.newSetFromMap(IdentityHashMap<AzureCloudInstance, Boolean>())
+    private var myActiveCount = 0
+
+    /**
+     * Incremented each time the set of active instances changes.
+     */
+    @Volatile
+    var activeVersion = 0L
+        private set
+
+    val activeCount: Int
+        @Synchronized get() = myActiveCount
+
+    @Synchronized
+    fun count(status: InstanceStatus): Int = myCounters[status] ?: 0
+
+    @Synchronized
+    fun getStoppedInstances(): List<AzureCloudInstance> = ArrayList(myStopped)
+
+    /**
+     * Re-reads instance status, the last call always observes the latest status
+     * regardless of the order in which concurrent notifications arrive.
+     */
+    @Synchronized
+    fun statusChanged(instance: AzureCloudInstance) {
+        val recorded = myStatuses[instance] ?: return
+        val current = instance.status
+        if (recorded != current) {
+            untrack(instance, recorded)
+            track(instance, current)
+            if (myActiveStatuses.contains(recorded) != myActiveStatuses.contains(current)) {
+                activeVersion++
+            }
+        }
+    }
+
+    @Synchronized
+    override fun instanceAdded(image: AbstractCloudImage<*, *>, instance: AzureCloudInstance) {
+        if (myStatuses.containsKey(instance)) return
+        val status = instance.status
+        track(instance, status)
+        if (myActiveStatuses.contains(status)) {
+            activeVersion++
+        }
+    }
+
+    @Synchronized
+    override fun instanceRemoved(image: AbstractCloudImage<*, *>, instance: AzureCloudInstance) {
+        val recorded = myStatuses[instance] ?: return
+        untrack(instance, recorded)
+        if (myActiveStatuses.contains(recorded)) {
+            activeVersion++
+        }
+    }
+
+    private fun track(instance: AzureCloudInstance, status: InstanceStatus) {
+        myStatuses[instance] = status
+        myCounters[status] = (myCounters[status] ?: 0) + 1
+        if (status == InstanceStatus.STOPPED) {
+            myStopped.add(instance)
+        }
+        if (myActiveStatuses.contains(status)) {
+            myActiveCount++
+        }
+    }
+
+    private fun untrack(instance: AzureCloudInstance, status: InstanceStatus) {
+        myStatuses.remove(instance)
+        myCounters[status] = (myCounters[status] ?: 1) - 1
+        if (status == InstanceStatus.STOPPED) {
+            myStopped.remove(instance)
+        }
+        if (myActiveStatuses.contains(status)) {
+            myActiveCount--
+        }
+    }
+}
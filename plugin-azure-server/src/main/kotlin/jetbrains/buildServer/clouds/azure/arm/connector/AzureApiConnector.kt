@@ -3,6 +3,7 @@ package jetbrains.buildServer.clouds.azure.arm.connector
 import jetbrains.buildServer.clouds.CloudInstanceUserData
 import jetbrains.buildServer.clouds.azure.arm.AzureCloudImage
 import jetbrains.buildServer.clouds.azure.arm.AzureCloudInstance
+import jetbrains.buildServer.clouds.azure.arm.AzureComputeQuota
 import jetbrains.buildServer.clouds.base.connector.CloudApiConnector
 
 /**
@@ -11,6 +12,11 @@ import jetbrains.buildServer.clouds.base.connector.CloudApiConnector
 interface AzureApiConnector : CloudApiConnector<AzureCloudImage, AzureCloudInstance> {
     suspend fun createInstance(instance: AzureCloudInstance, userData: CloudInstanceUserData)
 
+    /**
+     * Creates a container group which runs agent containers of the instances, the group is deleted with any of them.
+     */
+    suspend fun createContainerGroup(groupName: String, instances: List<Pair<AzureCloudInstance, CloudInstanceUserData>>)
+
     suspend fun deleteInstance(instance: AzureCloudInstance)
 
     suspend fun restartInstance(instance: AzureCloudInstance)
@@ -31,6 +37,11 @@ interface AzureApiConnector : CloudApiConnector<AzureCloudImage, AzureCloudInsta
 
     suspend fun getImageName(imageId: String): String
 
+    /**
+     * @return id of the version which gallery image "latest" reference resolves to or null for other images.
+     */
+    suspend fun getLatestImageVersion(imageId: String): String?
+
     suspend fun getImages(region: String): Map<String, List<String>>
 
     suspend fun getVmSizes(region: String): List<String>
@@ -45,9 +56,33 @@ interface AzureApiConnector : CloudApiConnector<AzureCloudImage, AzureCloudInsta
 
     suspend fun getServices(region: String): Map<String, Set<String>>
 
+    suspend fun getComputeQuota(region: String, vmSize: String, spotVm: Boolean): AzureComputeQuota?
+
     suspend fun deleteVmBlobs(instance: AzureCloudInstance)
 
     fun start()
+
+    /**
+     * Stops background activities of the connector.
+     */
+    fun dispose()
+
+    /**
+     * Sets provider of all profile images, which is used to find resources of removed images.
+     * Provider returns null while the list of images is not complete.
+     */
+    fun setProfileImagesProvider(provider: () -> Collection<AzureCloudImage>?)
+
+    /**
+     * Checks whether deletion of the resource group was accepted by Azure but has not finished yet.
+     */
+    fun isResourceGroupDeletionPending(groupName: String): Boolean
+
+    /**
+     * Subscribes to changes of instances made by the plugin, e.g. finished deployments.
+     * @return subscription which should be closed when listener is not needed anymore.
+     */
+    fun subscribeToInstanceChanges(listener: () -> Unit): AutoCloseable
 }
 
 data class AzureApiVMInstance(
@@ -4,6 +4,7 @@ import com.fasterxml.jackson.databind.ObjectMapper
 import com.fasterxml.jackson.databind.SerializationFeature
 import com.intellij.openapi.diagnostic.Logger
 import com.microsoft.azure.management.compute.OperatingSystemStateTypes
+import com.microsoft.azure.management.resources.fluentcore.arm.ResourceUtils
 import com.microsoft.azure.storage.CloudStorageAccount
 import com.microsoft.azure.storage.StorageCredentialsAccountAndKey
 import com.microsoft.azure.storage.blob.CloudBlob
@@ -18,6 +19,7 @@ import jetbrains.buildServer.clouds.azure.arm.AzureCloudImage
 import jetbrains.buildServer.clouds.azure.arm.AzureCloudImageDetails
 import jetbrains.buildServer.clouds.azure.arm.AzureCloudImageType
 import jetbrains.buildServer.clouds.azure.arm.AzureCloudInstance
+import jetbrains.buildServer.clouds.azure.arm.AzureComputeQuota
 import jetbrains.buildServer.clouds.azure.arm.AzureConstants
 import jetbrains.buildServer.clouds.azure.arm.connector.tasks.AzureThrottlerActionTasks
 import jetbrains.buildServer.clouds.azure.arm.connector.tasks.AzureThrottlerReadTasks
@@ -36,6 +38,7 @@ import jetbrains.buildServer.clouds.azure.arm.throttler.AzureRequestThrottler
 import jetbrains.buildServer.clouds.azure.arm.throttler.AzureRequestThrottlerCache
 import jetbrains.buildServer.clouds.azure.arm.throttler.TEAMCITY_CLOUDS_AZURE_TASKS_THROTTLER_TIMEOUT_SEC
 import jetbrains.buildServer.clouds.azure.arm.throttler.ThrottlerExecutionTaskException
+import jetbrains.buildServer.clouds.azure.arm.types.AzureContainerHandler
 import jetbrains.buildServer.clouds.azure.arm.utils.ArmTemplateBuilder
 import jetbrains.buildServer.clouds.azure.arm.utils.AzureUtils
 import jetbrains.buildServer.clouds.azure.arm.utils.awaitOne
@@ -47,10 +50,12 @@ import jetbrains.buildServer.clouds.base.errors.CheckedCloudException
 import jetbrains.buildServer.clouds.base.errors.TypedCloudErrorInfo
 import jetbrains.buildServer.parameters.ReferencesResolverUtil
 import jetbrains.buildServer.serverSide.TeamCityProperties
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
 import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.runBlocking
-import kotlinx.coroutines.sync.Mutex
-import kotlinx.coroutines.sync.withLock
 import org.apache.commons.codec.binary.Base64
 import java.net.URI
 import java.net.URISyntaxException
@@ -71,7 +76,42 @@ class AzureApiConnectorImpl(
     : AzureApiConnectorBase<AzureCloudImage, AzureCloudInstance>(), AzureApiConnector {
 
     private var myAzureRequestsThrottler: AzureRequestThrottler
-    private val deploymentLocks = ConcurrentHashMap<String, Mutex>()
+    private val myDeploymentLocks = AzureDeploymentLocks()
+    private val myScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val myDeletionTracker = AzureResourceGroupDeletionTracker(
+        { groupNames ->
+            myAzureRequestsThrottler.executeReadTask(AzureThrottlerReadTasks.FetchResourceGroupStates, groupNames)
+                .awaitOne()
+        },
+        myScope
+    )
+    private val myOrphanedResourceCollector = AzureOrphanedResourceCollector(
+        myProfileId,
+        {
+            myAzureRequestsThrottler.executeReadTask(AzureThrottlerReadTasks.FetchTaggedResources, myServerIdFunc())
+                .awaitOne()
+                .filter {
+                    val groupName = ResourceUtils.groupFromResourceId(it.id)
+                    groupName == null || !myDeletionTracker.isPending(groupName)
+                }
+        },
+        { resourceId ->
+            myAzureRequestsThrottler.executeUpdateTask(AzureThrottlerActionTasks.DeleteResource, resourceId)
+                .awaitOne()
+        },
+        myScope
+    )
+    @Volatile
+    private var myProfileImagesProvider: () -> Collection<AzureCloudImage>? = { null }
+
+    val deploymentLocksInUse: Int
+        get() = myDeploymentLocks.size
+
+    val deploymentLockWaitTimeMs: Long
+        get() = myDeploymentLocks.totalWaitTimeMs
+
+    val deploymentLockMaxWaitTimeMs: Long
+        get() = myDeploymentLocks.maxWaitTimeMs
 
     init {
         myAzureRequestsThrottler = myAzureRequestThrottlerCache.getOrCreateThrottler(params)
@@ -81,6 +121,20 @@ class AzureApiConnectorImpl(
         myAzureRequestsThrottler.start()
     }
 
+    override fun dispose() {
+        myScope.cancel()
+    }
+
+    override fun setProfileImagesProvider(provider: () -> Collection<AzureCloudImage>?) {
+        myProfileImagesProvider = provider
+    }
+
+    override fun isResourceGroupDeletionPending(groupName: String) = myDeletionTracker.isPending(groupName)
+
+    override fun subscribeToInstanceChanges(listener: () -> Unit): AutoCloseable {
+        return myAzureRequestsThrottler.subscribeToInstanceChanges(listener)
+    }
+
     override fun test() = runBlocking {
         try {
             myAzureRequestsThrottler.executeReadTaskWithTimeout(AzureThrottlerReadTasks.FetchSubscriptions, Unit)
@@ -104,7 +158,11 @@ class AzureApiConnectorImpl(
                 TimeUnit.SECONDS)
                 .awaitOne()
 
-            val instanceDescriptorMap = mapInstancesToImages(instanceDescriptorList, images)
+            val instanceDescriptorMap = mapInstancesToImages(filterDeletingInstances(instanceDescriptorList), images, myProfileId)
+            // images passed here could be a part of the profile images, so resources are matched against all of them
+            myProfileImagesProvider()?.let { profileImages ->
+                myOrphanedResourceCollector.instancesFetched(profileImages.map { it.imageDetails.sourceId }, instanceDescriptorList.map { it.name })
+            }
 
             LOG.debug("Received list of instances")
             for (image in images) {
@@ -129,39 +187,14 @@ class AzureApiConnectorImpl(
         imageMap
     }
 
-    private fun mapInstancesToImages(instances: List<FetchInstancesTaskInstanceDescriptor>, images: Collection<AzureCloudImage>): Map<String, List<FetchInstancesTaskInstanceDescriptor>> {
-        return instances
-                .map { it to images.find { image -> !isNotInstanceOfImage(it, image) }}
-                .filter { (_, image) -> image != null }
-                .groupBy( { (_, image) -> image!!.id }, { (instance, _) -> instance } )
-    }
-
-    private fun isNotInstanceOfImage(instance: FetchInstancesTaskInstanceDescriptor, image: AzureCloudImage): Boolean {
-        val details = image.imageDetails
-        val isVm = details.isVmInstance()
-        val name = instance.name
-        val tags = instance.tags
-        val id = instance.id
-
-        if (isVm && details.target == AzureCloudDeployTarget.Instance) {
-            return !id.equals(details.instanceId, true)
-        }
-
-        if (!name.startsWith(details.sourceId, true)) {
-            return true
-        }
-
-        val sourceName = tags[AzureConstants.TAG_SOURCE]
-        if (!sourceName.equals(details.sourceId, true)) {
-            return true
-        }
+    private fun filterDeletingInstances(instances: List<FetchInstancesTaskInstanceDescriptor>): List<FetchInstancesTaskInstanceDescriptor> {
+        if (myDeletionTracker.inFlightCount == 0) return instances
 
-        val resourceProfileId = tags[AzureConstants.TAG_PROFILE]
-        if (!resourceProfileId.equals(myProfileId, true)) {
-            return true
+        // resources of accepted resource group deletions should not be reported as instances
+        return instances.filter {
+            val groupName = ResourceUtils.groupFromResourceId(it.id)
+            groupName == null || !myDeletionTracker.isPending(groupName)
         }
-
-        return false
     }
 
     private fun createInstanceFromDescriptor(instanceDescriptor: FetchInstancesTaskInstanceDescriptor): AzureInstance {
@@ -280,6 +313,21 @@ class AzureApiConnectorImpl(
         image.name
     }
 
+    override suspend fun getLatestImageVersion(imageId: String): String? = coroutineScope {
+        val images = try {
+            myAzureRequestsThrottler.executeReadTaskWithTimeout(AzureThrottlerReadTasks.FetchCustomImages, Unit)
+                .awaitOne()
+        } catch (e: ThrottlerExecutionTaskException) {
+            throw e
+        } catch (e: Throwable) {
+            val message = "Failed to get images: ${e.message}"
+            LOG.debug(message, e)
+            throw CloudException(message, e)
+        }
+
+        getLatestImageVersion(images, imageId)
+    }
+
     /**
      * Gets a list of images.
      * @return list of images.
@@ -328,6 +376,25 @@ class AzureApiConnectorImpl(
         }
     }
 
+    /**
+     * Gets remaining vCPU quota for virtual machine size.
+     * @return quota or null if it could not be determined.
+     */
+    override suspend fun getComputeQuota(region: String, vmSize: String, spotVm: Boolean) = coroutineScope {
+        try {
+            val skus = myAzureRequestsThrottler.executeReadTask(AzureThrottlerReadTasks.FetchVirtualMachineSkus, region)
+                .awaitOne()
+            val usages = myAzureRequestsThrottler.executeReadTask(AzureThrottlerReadTasks.FetchComputeUsages, region)
+                .awaitOne()
+            LOG.debug("Received compute usages in region $region")
+            AzureComputeQuota.create(vmSize, spotVm, skus, usages)
+        } catch (e: Throwable) {
+            val message = "Failed to get compute usages in region $region: ${e.message}"
+            LOG.debug(message, e)
+            throw CloudException(message, e)
+        }
+    }
+
     /**
      * Gets a list of storage accounts.
      * @return list of sizes.
@@ -426,20 +493,9 @@ class AzureApiConnectorImpl(
         val builder = handler!!.prepareBuilder(instance)
 
         val details = instance.image.imageDetails
-        val groupId = when (details.target) {
-            AzureCloudDeployTarget.NewGroup -> {
-                createResourceGroup(details.sourceId, details.region!!)
-                details.sourceId
-            }
-            AzureCloudDeployTarget.SpecificGroup -> details.groupId!!
-            else -> throw CloudException("Creating container $name is prohibited")
-        }
+        val groupId = getContainerResourceGroup(details, name)
 
-        if ("Linux" == details.osType && details.storageAccount != null) {
-            addContainerCustomData(instance, userData, builder)
-        } else {
-            addContainerEnvironment(instance, userData, builder)
-        }
+        addContainerAgentData(instance, userData, builder)
 
         builder.setParameterValue(AzureConstants.TEAMCITY_URL, userData.serverAddress)
                 .setTags(CONTAINER_RESOURCE_NAME, instance.properties)
@@ -451,6 +507,59 @@ class AzureApiConnectorImpl(
         createDeployment(groupId, name, template, parameters, emptyMap(), CONTAINER_INSTANCE_RESOURCE_TYPE)
     }
 
+    override suspend fun createContainerGroup(groupName: String, instances: List<Pair<AzureCloudInstance, CloudInstanceUserData>>) {
+        coroutineScope {
+            val (firstInstance, firstUserData) = instances.first()
+            val serverId = myServerIdFunc()
+            instances.forEach { (instance, _) ->
+                instance.properties[AzureConstants.TAG_SERVER] = serverId
+            }
+
+            val handler = firstInstance.image.handler as? AzureContainerHandler
+                    ?: throw CloudException("Container group $groupName could not be created for image ${firstInstance.image.id}")
+            val builder = handler.prepareGroupBuilder(groupName, instances.map { it.first })
+
+            val details = firstInstance.image.imageDetails
+            val groupId = getContainerResourceGroup(details, groupName)
+
+            instances.forEach { (instance, userData) ->
+                addContainerAgentData(instance, userData, builder)
+            }
+
+            builder.setParameterValue(AzureConstants.TEAMCITY_URL, firstUserData.serverAddress)
+                    .setTags(CONTAINER_RESOURCE_NAME, firstInstance.properties)
+                    .logDetails()
+
+            val template = builder.toString()
+            val parameters = builder.serializeParameters()
+
+            createDeployment(groupId, groupName, template, parameters, emptyMap(), CONTAINER_INSTANCE_RESOURCE_TYPE)
+
+            // containers states are reported by the next instances fetch
+            instances.forEach { (instance, _) ->
+                instance.hasVmInstance = true
+            }
+        }
+    }
+
+    private suspend fun getContainerResourceGroup(details: AzureCloudImageDetails, name: String) = when (details.target) {
+        AzureCloudDeployTarget.NewGroup -> {
+            createResourceGroup(details.sourceId, details.region!!)
+            details.sourceId
+        }
+        AzureCloudDeployTarget.SpecificGroup -> details.groupId!!
+        else -> throw CloudException("Creating container $name is prohibited")
+    }
+
+    private suspend fun addContainerAgentData(instance: AzureCloudInstance, userData: CloudInstanceUserData, builder: ArmTemplateBuilder) {
+        val details = instance.image.imageDetails
+        if ("Linux" == details.osType && details.storageAccount != null) {
+            addContainerCustomData(instance, userData, builder)
+        } else {
+            addContainerEnvironment(instance, userData, builder)
+        }
+    }
+
     private suspend fun addContainerCustomData(instance: AzureCloudInstance, userData: CloudInstanceUserData, builder: ArmTemplateBuilder) = coroutineScope {
         val name = instance.name
         val imageDetails = instance.image.imageDetails
@@ -475,7 +584,7 @@ class AzureApiConnectorImpl(
             fileClient.getShareReference("$name-$it").createIfNotExists()
         }
 
-        builder.addContainerVolumes(CONTAINER_RESOURCE_NAME, name)
+        builder.addContainerVolumes(CONTAINER_RESOURCE_NAME, name, name)
                 .setParameterValue("storageAccountName", credentials.accountName)
                 .setParameterValue("storageAccountKey", credentials.exportBase64EncodedKey())
     }
@@ -483,8 +592,13 @@ class AzureApiConnectorImpl(
     private fun addContainerEnvironment(instance: AzureCloudInstance, userData: CloudInstanceUserData, builder: ArmTemplateBuilder) {
         val environment = userData.customAgentConfigurationParameters.toMutableMap()
         environment[AzureProperties.INSTANCE_NAME] = instance.name
-        val data = AzureCompress.encode(environment)
-        builder.addContainerEnvironment(CONTAINER_RESOURCE_NAME, mapOf(AzureProperties.INSTANCE_ENV_VAR to data))
+        // binary format could be decoded only by agents with updated plugin
+        val data = if (TeamCityProperties.getBoolean(AzureConstants.PROP_AGENT_DATA_BINARY_FORMAT)) {
+            AzureCompress.encode(environment)
+        } else {
+            AzureCompress.encodeLegacy(environment)
+        }
+        builder.addContainerEnvironment(CONTAINER_RESOURCE_NAME, mapOf(AzureProperties.INSTANCE_ENV_VAR to data), instance.name)
     }
 
     private fun encodeCustomData(userData: CloudInstanceUserData, name: String): String {
@@ -500,7 +614,11 @@ class AzureApiConnectorImpl(
     private fun encodeAzureUserData(userData: CloudInstanceUserData, name: String): String {
         return try {
             val customData = userData.serialize()
-            AzureUserData.serializeV1(customData, name)
+            if (TeamCityProperties.getBoolean(AzureConstants.PROP_AGENT_DATA_BINARY_FORMAT)) {
+                AzureUserData.serializeV2(customData, name)
+            } else {
+                AzureUserData.serializeV1(customData, name)
+            }
         } catch (e: Exception) {
             val message = "Failed to encode azure user data for instance $name: ${e.message}"
             LOG.debug(message, e)
@@ -528,12 +646,14 @@ class AzureApiConnectorImpl(
     }
 
     private suspend fun createDeployment(groupId: String, deploymentId: String, template: String, params: String, tagsMap: Map<String, String>, targetResourceType: String) = coroutineScope {
-        deploymentLocks.getOrPut("$groupId/$deploymentId") { Mutex() }.withLock {
+        myDeploymentLocks.withLock(groupId, deploymentId) {
             try {
-                val result = myAzureRequestsThrottler.executeUpdateTask(
+                val submitted = myAzureRequestsThrottler.executeUpdateTask(
                     AzureThrottlerActionTasks.CreateDeployment,
                     CreateDeploymentTaskParameter(groupId, deploymentId, template, params, tagsMap, targetResourceType))
                     .awaitOne()
+                // submitted deployment is awaited outside of the throttler
+                val result = submitted.completion?.awaitOne() ?: submitted
 
                 LOG.debug("Created deployment $deploymentId in resource group $groupId. Resource id: ${result.instance?.id}")
                 result.instance
@@ -608,6 +728,13 @@ class AzureApiConnectorImpl(
     private suspend fun deleteDeployTarget(instance: AzureCloudInstance) = coroutineScope {
         val details = instance.image.imageDetails
         val name = instance.name
+
+        // container group with several agents is deployed separately from its instances
+        instance.properties[AzureConstants.TAG_CONTAINER_GROUP]?.let { groupName ->
+            val groupId = if (details.target == AzureCloudDeployTarget.SpecificGroup) details.groupId!! else details.sourceId
+            deleteDeployment(groupId, groupName)
+            return@coroutineScope
+        }
         val groupId = getResourceGroup(details, details.sourceId)
         val isVm = instance.image.imageDetails.isVmInstance()
 
@@ -652,6 +779,15 @@ class AzureApiConnectorImpl(
 
     private suspend fun deleteResourceGroup(groupId: String) = coroutineScope {
         try {
+            if (TeamCityProperties.getBoolean(AzureConstants.PROP_RESOURCE_GROUP_DELETE_ASYNC)) {
+                // completion is tracked by a periodic query, so throttler slot is released once request is accepted
+                myAzureRequestsThrottler.executeUpdateTask(AzureThrottlerActionTasks.BeginDeleteResourceGroup, groupId)
+                    .awaitOne()
+                myDeletionTracker.deletionAccepted(groupId)
+                LOG.debug("Resource group $groupId deletion has been accepted. Deletions in flight: ${myDeletionTracker.inFlightCount}")
+                return@coroutineScope
+            }
+
             myAzureRequestsThrottler.executeUpdateTask(AzureThrottlerActionTasks.DeleteResourceGroup, groupId)
                 .awaitOne()
             LOG.debug("Resource group $groupId has been successfully deleted")
@@ -668,7 +804,7 @@ class AzureApiConnectorImpl(
     }
 
     private suspend fun deleteDeployment(groupId: String, deploymentId: String) = coroutineScope {
-        deploymentLocks.getOrPut("$groupId/$deploymentId") { Mutex() }.withLock {
+        myDeploymentLocks.withLock(groupId, deploymentId) {
             try {
                 myAzureRequestsThrottler.executeUpdateTask(AzureThrottlerActionTasks.DeleteDeployment, DeleteDeploymentTaskParameter(groupId, deploymentId))
                     .awaitOne()
@@ -772,7 +908,7 @@ class AzureApiConnectorImpl(
     private suspend fun stopVm(instance: AzureCloudInstance) = coroutineScope {
         val name = instance.name
         val groupId = getResourceGroup(instance.image.imageDetails, name)
-        deploymentLocks.getOrPut("$groupId/${instance.name}") { Mutex() }.withLock {
+        myDeploymentLocks.withLock(groupId, instance.name) {
             try {
                 myAzureRequestsThrottler.executeUpdateTask(
                         AzureThrottlerActionTasks.StopVirtualMachine,
@@ -1089,6 +1225,70 @@ class AzureApiConnectorImpl(
 
     companion object {
         private val LOG = Logger.getInstance(AzureApiConnectorImpl::class.java.name)
+
+        internal fun getLatestImageVersion(images: List<CustomImageTaskImageDescriptor>, imageId: String): String? {
+            val galleryImage = images
+                .firstOrNull { it.id.equals(imageId, ignoreCase = true) }
+                ?.galleryImageDescriptor
+                ?.takeIf { it.versionId == null }
+                ?: return null
+
+            // gallery image versions are named as Major.Minor.Patch
+            return images.asSequence()
+                .mapNotNull { it.galleryImageDescriptor }
+                .filter { it.versionId != null && it.imageId.equals(galleryImage.imageId, ignoreCase = true) }
+                .maxWithOrNull { first, second -> compareVersions(first.versionName, second.versionName) }
+                ?.versionId
+        }
+
+        /**
+         * @return instances grouped by id of the image they belong to, instances of unknown images are skipped.
+         */
+        fun mapInstancesToImages(instances: List<FetchInstancesTaskInstanceDescriptor>, images: Collection<AzureCloudImage>, profileId: String?): Map<String, List<FetchInstancesTaskInstanceDescriptor>> {
+            return instances
+                    .map { it to images.find { image -> !isNotInstanceOfImage(it, image, profileId) }}
+                    .filter { (_, image) -> image != null }
+                    .groupBy( { (_, image) -> image!!.id }, { (instance, _) -> instance } )
+        }
+
+        private fun isNotInstanceOfImage(instance: FetchInstancesTaskInstanceDescriptor, image: AzureCloudImage, profileId: String?): Boolean {
+            val details = image.imageDetails
+            val isVm = details.isVmInstance()
+            val name = instance.name
+            val tags = instance.tags
+            val id = instance.id
+
+            if (isVm && details.target == AzureCloudDeployTarget.Instance) {
+                return !id.equals(details.instanceId, true)
+            }
+
+            if (!name.startsWith(details.sourceId, true)) {
+                return true
+            }
+
+            val sourceName = tags[AzureConstants.TAG_SOURCE]
+            if (!sourceName.equals(details.sourceId, true)) {
+                return true
+            }
+
+            val resourceProfileId = tags[AzureConstants.TAG_PROFILE]
+            if (!resourceProfileId.equals(profileId, true)) {
+                return true
+            }
+
+            return false
+        }
+
+        private fun compareVersions(first: String, second: String): Int {
+            val firstParts = first.split('.').map { it.toLongOrNull() ?: -1L }
+            val secondParts = second.split('.').map { it.toLongOrNull() ?: -1L }
+            for (index in 0 until maxOf(firstParts.size, secondParts.size)) {
+                val result = firstParts.getOrElse(index) { 0L }.compareTo(secondParts.getOrElse(index) { 0L })
+                if (result != 0) return result
+            }
+            return 0
+        }
+
         private val RESOURCE_GROUP_PATTERN = Regex("resourceGroups/([^/]+)/providers/")
         private const val CONTAINER_RESOURCE_NAME = "[parameters('containerName')]"
         private val SERVICE_TYPES = mapOf(
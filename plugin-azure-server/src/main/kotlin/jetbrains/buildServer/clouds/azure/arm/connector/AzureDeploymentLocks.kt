@@ -0,0 +1,84 @@
+package jetbrains.buildServer.clouds.azure.arm.connector
+
+import com.intellij.openapi.diagnostic.Logger
+import kotlinx.coroutines.sync.Mutex
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Serializes operations on the same deployment.
+ *
+ * Mutexes are reference-counted and removed as soon as there are no holders or waiters,
+ * so the table contains only deployments with operations in progress.
+ */
+internal class AzureDeploymentLocks(private val myTimeSource: () -> Long = System::nanoTime) {
+    private val myEntries = ConcurrentHashMap<String, LockEntry>()
+    private val myAcquiredCount = AtomicLong()
+    private val myTotalWaitNanos = AtomicLong()
+    private val myMaxWaitNanos = AtomicLong()
+    private val myLastLogDiagnosticTime = AtomicLong(myTimeSource())
+
+    val size: Int
+        get() = myEntries.size
+
+    val acquiredCount: Long
+        get() = myAcquiredCount.get()
+
+    val totalWaitTimeMs: Long
+        get() = TimeUnit.NANOSECONDS.toMillis(myTotalWaitNanos.get())
+
+    val maxWaitTimeMs: Long
+        get() = TimeUnit.NANOSECONDS.toMillis(myMaxWaitNanos.get())
+
+    suspend fun <T> withLock(groupId: String, deploymentId: String, action: suspend () -> T): T {
+        val key = "$groupId/$deploymentId"
+        // reference counter is changed only inside of compute which is atomic for the key
+        val entry = myEntries.compute(key) { _, value -> (value ?: LockEntry()).apply { references++ } }!!
+        try {
+            val startTime = myTimeSource()
+            entry.mutex.lock()
+            try {
+                recordWaitTime(key, myTimeSource() - startTime)
+                return action()
+            } finally {
+                entry.mutex.unlock()
+            }
+        } finally {
+            myEntries.computeIfPresent(key) { _, value -> if (--value.references == 0) null else value }
+        }
+    }
+
+    private fun recordWaitTime(key: String, waitNanos: Long) {
+        myAcquiredCount.incrementAndGet()
+        myTotalWaitNanos.addAndGet(waitNanos)
+        myMaxWaitNanos.accumulateAndGet(waitNanos, Math::max)
+        if (waitNanos >= SLOW_WAIT_NANOS) {
+            LOG.debug("Waited ${TimeUnit.NANOSECONDS.toMillis(waitNanos)} ms for deployment $key lock. Locks in use: ${myEntries.size}")
+        }
+        logDiagnosticInfo()
+    }
+
+    private fun logDiagnosticInfo() {
+        if (!LOG.isDebugEnabled) {
+            return
+        }
+        val now = myTimeSource()
+        val lastLogTime = myLastLogDiagnosticTime.get()
+        if (now - lastLogTime < DIAGNOSTIC_INTERVAL_NANOS || !myLastLogDiagnosticTime.compareAndSet(lastLogTime, now)) return
+
+        LOG.debug("Deployment locks statistics: Locks in use: $size, Acquired: $acquiredCount, " +
+                "Total wait time: $totalWaitTimeMs ms, Max wait time: $maxWaitTimeMs ms")
+    }
+
+    private class LockEntry {
+        val mutex = Mutex()
+        var references = 0
+    }
+
+    companion object {
+        private val LOG = Logger.getInstance(AzureDeploymentLocks::class.java.name)
+        private val SLOW_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1)
+        private val DIAGNOSTIC_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1)
+    }
+}
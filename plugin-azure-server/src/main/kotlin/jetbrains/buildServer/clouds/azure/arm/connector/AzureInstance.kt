@@ -66,10 +66,24 @@ class AzureInstance internal constructor(private val myName: String) : AbstractI
 
     override fun getProperties() = myProperties
 
+    /**
+     * Version of the instance state reported by Azure: tags, power state, provisioning state and IP address.
+     * Equal versions mean that the instance has not been changed between updates.
+     */
+    val changeVersion: ChangeVersion
+        get() = ChangeVersion(myProperties, myPowerState, myProvisioningState, myIpAddress)
+
     internal fun setProperties(properties: Map<String, String>) {
         myProperties = properties
     }
 
+    data class ChangeVersion(
+            val properties: Map<String, String>,
+            val powerState: String?,
+            val provisioningState: String?,
+            val ipAddress: String?
+    )
+
     companion object {
         private var PROVISIONING_STATES: MutableMap<String, InstanceStatus> = TreeMap(String.CASE_INSENSITIVE_ORDER)
         private var POWER_STATES: MutableMap<String, InstanceStatus> = TreeMap(String.CASE_INSENSITIVE_ORDER)
@@ -0,0 +1,169 @@
+package jetbrains.buildServer.clouds.azure.arm.connector
+
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.clouds.azure.arm.AzureConstants
+import jetbrains.buildServer.clouds.azure.arm.connector.tasks.FetchTaggedResourcesTaskResourceDescriptor
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.launch
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Finds resources tagged by the cloud profile which do not belong to its images or instances anymore,
+ * e.g. network interfaces left after failed deployments.
+ *
+ * All tagged resources of the subscription are fetched by a single query. A resource is removed only
+ * if it stays orphaned for the whole grace period.
+ *
+ * Deployments are not collected: they are not tagged and are missing in the Resource Graph resources table.
+ */
+internal class AzureOrphanedResourceCollector(
+        private val myProfileId: String?,
+        private val myFetchResources: suspend () -> List<FetchTaggedResourcesTaskResourceDescriptor>,
+        private val myDeleteResource: suspend (String) -> Unit,
+        private val myScope: CoroutineScope,
+        private val myTimeSource: () -> Long = System::currentTimeMillis
+) {
+    private val myCandidates = ConcurrentHashMap<String, Long>()
+    private val myCollecting = AtomicBoolean(false)
+    private val myLastCollectionTime = AtomicLong(Long.MIN_VALUE)
+    private val myDeletedCount = AtomicLong()
+    private val myFailedCount = AtomicLong()
+
+    val orphanedCount: Int
+        get() = myCandidates.size
+
+    val deletedCount: Long
+        get() = myDeletedCount.get()
+
+    val failedCount: Long
+        get() = myFailedCount.get()
+
+    /**
+     * Starts collection if it is enabled and the interval has elapsed since the previous one.
+     * @param sourceIds are source ids of the profile images.
+     * @param instanceNames are names of existing instances.
+     */
+    fun instancesFetched(sourceIds: Collection<String>, instanceNames: Collection<String>) {
+        val mode = getMode()
+        if (mode == Mode.Off || myProfileId.isNullOrEmpty()) return
+
+        val now = myTimeSource()
+        val interval = TeamCityProperties.getLong(AzureConstants.PROP_ORPHANED_RESOURCES_INTERVAL_MS, DEFAULT_INTERVAL_MS)
+        val lastCollectionTime = myLastCollectionTime.get()
+        if (lastCollectionTime != Long.MIN_VALUE && now - lastCollectionTime < interval) return
+        if (!myCollecting.compareAndSet(false, true)) return
+
+        myLastCollectionTime.set(now)
+        val sourceIdSet = sourceIds.map { it.lowercase(Locale.ENGLISH) }.toSet()
+        val instanceNameSet = instanceNames.map { it.lowercase(Locale.ENGLISH) }.toSet()
+        myScope.launch {
+            try {
+                collect(mode, sourceIdSet, instanceNameSet)
+            } catch (e: Throwable) {
+                LOG.warnAndDebugDetails("Failed to collect orphaned resources of profile $myProfileId", e)
+            } finally {
+                myCollecting.set(false)
+            }
+        }
+    }
+
+    /**
+     * @return resources which were orphaned longer than the grace period.
+     */
+    internal suspend fun collect(mode: Mode, sourceIds: Set<String>, instanceNames: Set<String>): List<FetchTaggedResourcesTaskResourceDescriptor> {
+        val orphans = findOrphans(myFetchResources(), myProfileId, sourceIds, instanceNames)
+
+        val now = myTimeSource()
+        val orphanIds = orphans.keys.map { it.id.lowercase(Locale.ENGLISH) }.toSet()
+        // resource is judged again from scratch as soon as it is not orphaned
+        myCandidates.keys.retainAll(orphanIds)
+        orphanIds.forEach { myCandidates.putIfAbsent(it, now) }
+
+        val gracePeriod = TeamCityProperties.getLong(AzureConstants.PROP_ORPHANED_RESOURCES_GRACE_PERIOD_MS, DEFAULT_GRACE_PERIOD_MS)
+        val expired = orphans.keys
+                .filter { now - (myCandidates[it.id.lowercase(Locale.ENGLISH)] ?: now) >= gracePeriod }
+                .sortedBy { getDeletionOrder(it.type) }
+
+        when (mode) {
+            Mode.Off -> {}
+            Mode.Report -> for ((resource, reason) in orphans) {
+                val orphanedTime = now - (myCandidates[resource.id.lowercase(Locale.ENGLISH)] ?: now)
+                LOG.info("Resource ${resource.id} of profile $myProfileId is orphaned for $orphanedTime ms: $reason")
+            }
+            Mode.DryRun -> for (resource in expired) {
+                LOG.info("Resource ${resource.id} of profile $myProfileId would be deleted: ${orphans[resource]}")
+            }
+            Mode.Delete -> for (resource in expired) {
+                try {
+                    LOG.info("Deleting resource ${resource.id} of profile $myProfileId: ${orphans[resource]}")
+                    myDeleteResource(resource.id)
+                    myCandidates.remove(resource.id.lowercase(Locale.ENGLISH))
+                    myDeletedCount.incrementAndGet()
+                } catch (e: Throwable) {
+                    myFailedCount.incrementAndGet()
+                    LOG.warnAndDebugDetails("Failed to delete orphaned resource ${resource.id}", e)
+                }
+            }
+        }
+
+        LOG.debug("Orphaned resources of profile $myProfileId: ${orphans.size}, expired: ${expired.size}, deleted: ${myDeletedCount.get()}, failed: ${myFailedCount.get()}")
+        return expired
+    }
+
+    enum class Mode {
+        Off,
+        Report,
+        DryRun,
+        Delete
+    }
+
+    companion object {
+        private val LOG = Logger.getInstance(AzureOrphanedResourceCollector::class.java.name)
+        private const val DEFAULT_INTERVAL_MS = 10 * 60 * 1000L
+        private const val DEFAULT_GRACE_PERIOD_MS = 30 * 60 * 1000L
+
+        private val DELETION_ORDER = listOf(
+                "microsoft.compute/virtualmachines",
+                "microsoft.containerinstance/containergroups",
+                "microsoft.network/networkinterfaces",
+                "microsoft.network/publicipaddresses"
+        )
+
+        internal fun getMode(): Mode {
+            val value = TeamCityProperties.getProperty(AzureConstants.PROP_ORPHANED_RESOURCES_MODE, Mode.Off.name)
+            return Mode.values().firstOrNull { it.name.equals(value, ignoreCase = true) } ?: Mode.Off
+        }
+
+        /**
+         * @return orphaned resources of the profile with the reason.
+         */
+        internal fun findOrphans(resources: List<FetchTaggedResourcesTaskResourceDescriptor>,
+                                 profileId: String?,
+                                 sourceIds: Set<String>,
+                                 instanceNames: Set<String>): Map<FetchTaggedResourcesTaskResourceDescriptor, String> {
+            val orphans = linkedMapOf<FetchTaggedResourcesTaskResourceDescriptor, String>()
+            for (resource in resources) {
+                // resources of other profiles and resources under investigation are not touched
+                if (resource.underInvestigation || profileId.isNullOrEmpty() || !profileId.equals(resource.profileId, ignoreCase = true)) continue
+
+                val sourceId = resource.sourceId
+                val instanceName = resource.instanceName
+                if (sourceId == null || !sourceIds.contains(sourceId.lowercase(Locale.ENGLISH))) {
+                    orphans[resource] = "image $sourceId does not exist in profile"
+                } else if (instanceName != null && !instanceNames.contains(instanceName.lowercase(Locale.ENGLISH))) {
+                    orphans[resource] = "instance $instanceName does not exist"
+                }
+            }
+            return orphans
+        }
+
+        private fun getDeletionOrder(type: String): Int {
+            val index = DELETION_ORDER.indexOf(type.lowercase(Locale.ENGLISH))
+            return if (index < 0) DELETION_ORDER.size else index
+        }
+    }
+}
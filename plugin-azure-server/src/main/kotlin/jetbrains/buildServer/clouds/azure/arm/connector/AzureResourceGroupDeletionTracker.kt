@@ -0,0 +1,107 @@
+package jetbrains.buildServer.clouds.azure.arm.connector
+
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.clouds.azure.arm.AzureConstants
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Tracks resource group deletions which were accepted by ARM but not finished yet.
+ *
+ * All pending deletions are checked by a single periodic query which returns
+ * provisioning states of still existing resource groups.
+ */
+internal class AzureResourceGroupDeletionTracker(
+        private val myFetchStates: suspend (Set<String>) -> Map<String, String>,
+        private val myScope: CoroutineScope,
+        private val myTimeSource: () -> Long = System::currentTimeMillis
+) {
+    private val myPending = ConcurrentHashMap<String, Long>()
+    private val mySweeping = AtomicBoolean(false)
+    private val myAcceptedCount = AtomicLong()
+    private val myCompletedCount = AtomicLong()
+    private val myFailedCount = AtomicLong()
+
+    val inFlightCount: Int
+        get() = myPending.size
+
+    val acceptedCount: Long
+        get() = myAcceptedCount.get()
+
+    val completedCount: Long
+        get() = myCompletedCount.get()
+
+    val failedCount: Long
+        get() = myFailedCount.get()
+
+    fun isPending(groupName: String) = myPending.containsKey(groupName.lowercase(Locale.ENGLISH))
+
+    fun deletionAccepted(groupName: String) {
+        myPending[groupName.lowercase(Locale.ENGLISH)] = myTimeSource()
+        myAcceptedCount.incrementAndGet()
+        startSweep()
+    }
+
+    private fun startSweep() {
+        if (!mySweeping.compareAndSet(false, true)) return
+
+        myScope.launch {
+            try {
+                while (myPending.isNotEmpty()) {
+                    delay(TeamCityProperties.getLong(AzureConstants.PROP_RESOURCE_GROUP_DELETE_SWEEP_INTERVAL_MS, DEFAULT_SWEEP_INTERVAL_MS))
+                    sweep()
+                }
+            } finally {
+                mySweeping.set(false)
+            }
+            // deletion could be accepted right after the loop has finished
+            if (myPending.isNotEmpty()) {
+                startSweep()
+            }
+        }
+    }
+
+    internal suspend fun sweep() {
+        val pending = HashMap(myPending)
+        if (pending.isEmpty()) return
+
+        val states = try {
+            myFetchStates(pending.keys)
+        } catch (e: Throwable) {
+            LOG.warnAndDebugDetails("Failed to check state of ${pending.size} deleting resource groups", e)
+            return
+        }
+
+        val now = myTimeSource()
+        val gracePeriod = TeamCityProperties.getLong(AzureConstants.PROP_RESOURCE_GROUP_DELETE_GRACE_PERIOD_MS, DEFAULT_GRACE_PERIOD_MS)
+        for ((groupName, acceptedTime) in pending) {
+            val state = states[groupName]
+            // resource graph is updated with a delay, recent deletions are not judged
+            if (state.equals(DELETING_STATE, ignoreCase = true) || now - acceptedTime < gracePeriod) continue
+
+            if (!myPending.remove(groupName, acceptedTime)) continue
+            if (state == null) {
+                myCompletedCount.incrementAndGet()
+                LOG.debug("Resource group $groupName has been deleted")
+            } else {
+                myFailedCount.incrementAndGet()
+                LOG.warn("Failed to delete resource group $groupName, its provisioning state is $state")
+            }
+        }
+
+        LOG.debug("Resource group deletions in flight: ${myPending.size}, completed: ${myCompletedCount.get()}, failed: ${myFailedCount.get()}")
+    }
+
+    companion object {
+        private val LOG = Logger.getInstance(AzureResourceGroupDeletionTracker::class.java.name)
+        private const val DELETING_STATE = "Deleting"
+        private const val DEFAULT_SWEEP_INTERVAL_MS = 30 * 1000L
+        private const val DEFAULT_GRACE_PERIOD_MS = 2 * 60 * 1000L
+    }
+}
@@ -0,0 +1,118 @@
+package jetbrains.buildServer.clouds.azure.arm.connector.tasks
+
+import com.intellij.openapi.diagnostic.Logger
+import com.microsoft.azure.CloudException
+import com.microsoft.azure.management.resources.ProvisioningState
+import com.microsoft.azure.management.resources.implementation.DeploymentExtendedInner
+import jetbrains.buildServer.clouds.azure.arm.throttler.TEAMCITY_CLOUDS_AZURE_TASKS_CREATEDEPLOYMENT_WATCHER_INTERVAL_MS
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import rx.Observable
+import rx.Scheduler
+import rx.Single
+import rx.schedulers.Schedulers
+import rx.subjects.AsyncSubject
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Waits for completion of submitted deployments.
+ *
+ * Instead of polling operation status of each deployment, all in-flight deployments
+ * of a resource group are checked by a single list request per interval.
+ */
+class AzureDeploymentWatcher(
+    private val myFetchDeployments: (AzureApi, String) -> Observable<DeploymentExtendedInner>,
+    private val myScheduler: Scheduler = Schedulers.io(),
+    private val myIntervalMs: () -> Long = { TeamCityProperties.getLong(TEAMCITY_CLOUDS_AZURE_TASKS_CREATEDEPLOYMENT_WATCHER_INTERVAL_MS, DEFAULT_INTERVAL_MS) }
+) {
+    private val myGroups = ConcurrentHashMap<String, GroupDeployments>()
+    private val myPolling = AtomicBoolean(false)
+
+    val inFlightCount: Int
+        get() = myGroups.values.sumOf { it.deployments.size }
+
+    /**
+     * @return deployment in a final state, fails if deployment was not succeeded or has gone.
+     */
+    fun watch(api: AzureApi, groupName: String, deploymentName: String): Single<DeploymentExtendedInner> {
+        val subject = AsyncSubject.create<DeploymentExtendedInner>()
+        myGroups.compute(groupName.lowercase(Locale.ENGLISH)) { _, group ->
+            (group ?: GroupDeployments(api, groupName)).apply {
+                this.api = api
+                deployments[deploymentName.lowercase(Locale.ENGLISH)] = subject
+            }
+        }
+        schedulePoll()
+        return subject.toSingle()
+    }
+
+    private fun schedulePoll() {
+        if (!myPolling.compareAndSet(false, true)) return
+
+        val worker = myScheduler.createWorker()
+        worker.schedule({
+            poll()
+                .doAfterTerminate {
+                    worker.unsubscribe()
+                    myPolling.set(false)
+                    // deployment could be submitted right after the last check
+                    if (myGroups.isNotEmpty()) {
+                        schedulePoll()
+                    }
+                }
+                .subscribe({}, { LOG.warnAndDebugDetails("Failed to check deployments state", it) })
+        }, myIntervalMs(), TimeUnit.MILLISECONDS)
+    }
+
+    private fun poll(): Observable<Unit> = Observable
+        .from(myGroups.entries.toList())
+        .flatMap { (key, group) ->
+            val watchedNames = group.deployments.keys.toSet()
+            myFetchDeployments(group.api, group.groupName)
+                .toList()
+                .map { update(key, watchedNames, it) }
+                .onErrorReturn { LOG.warnAndDebugDetails("Failed to fetch deployments of resource group ${group.groupName}", it) }
+        }
+
+    private fun update(key: String, watchedNames: Set<String>, listedDeployments: List<DeploymentExtendedInner>) {
+        val group = myGroups[key] ?: return
+        val listedNames = HashSet<String>()
+        for (deployment in listedDeployments) {
+            val name = deployment.name().lowercase(Locale.ENGLISH)
+            listedNames.add(name)
+
+            val state = deployment.properties()?.provisioningState() ?: continue
+            if (state != ProvisioningState.SUCCEEDED && state != ProvisioningState.FAILED && state != ProvisioningState.CANCELED) continue
+
+            val subject = group.deployments.remove(name) ?: continue
+            if (state == ProvisioningState.SUCCEEDED) {
+                subject.onNext(deployment)
+                subject.onCompleted()
+            } else {
+                // keeps the message of the failure reported by long running operation polling
+                subject.onError(CloudException("Async operation failed with provisioning state: $state", null))
+            }
+        }
+
+        // deployments submitted after the request was sent could be missing in the list
+        for (name in watchedNames.filter { !listedNames.contains(it) }) {
+            group.deployments.remove(name)?.onError(DeploymentNotFoundException(group.groupName, name))
+        }
+
+        myGroups.computeIfPresent(key) { _, value -> if (value.deployments.isEmpty()) null else value }
+    }
+
+    private class GroupDeployments(@Volatile var api: AzureApi, val groupName: String) {
+        val deployments = ConcurrentHashMap<String, AsyncSubject<DeploymentExtendedInner>>()
+    }
+
+    class DeploymentNotFoundException(groupName: String, deploymentName: String)
+        : Exception("Deployment $deploymentName was not found in resource group $groupName")
+
+    companion object {
+        private val LOG = Logger.getInstance(AzureDeploymentWatcher::class.java.name)
+        private const val DEFAULT_INTERVAL_MS = 10 * 1000L
+    }
+}
@@ -5,19 +5,23 @@ class AzureThrottlerActionTasks {
         CreateDeployment,
         CreateResourceGroup,
         DeleteResourceGroup,
+        BeginDeleteResourceGroup,
         StopVirtualMachine,
         StartVirtualMachine,
         RestartVirtualMachine,
-        DeleteDeployment
+        DeleteDeployment,
+        DeleteResource
     }
 
     companion object {
         val CreateDeployment = AzureTaskDescriptorImpl(Values.CreateDeployment, { notifications -> CreateDeploymentTaskImpl(notifications) })
         val CreateResourceGroup = AzureTaskDescriptorImpl(Values.CreateResourceGroup, { CreateResourceGroupTaskImpl() })
         val DeleteResourceGroup = AzureTaskDescriptorImpl(Values.DeleteResourceGroup, { DeleteResourceGroupTaskImpl() })
+        val BeginDeleteResourceGroup = AzureTaskDescriptorImpl(Values.BeginDeleteResourceGroup, { BeginDeleteResourceGroupTaskImpl() })
         val StopVirtualMachine = AzureTaskDescriptorImpl(Values.StopVirtualMachine, { notifications -> StopVirtualMachineTaskImpl(notifications) })
         val StartVirtualMachine = AzureTaskDescriptorImpl(Values.StartVirtualMachine, { notifications -> StartVirtualMachineTaskImpl(notifications) })
         val RestartVirtualMachine = AzureTaskDescriptorImpl(Values.RestartVirtualMachine, { notifications -> RestartVirtualMachineTaskImpl(notifications) })
         val DeleteDeployment = AzureTaskDescriptorImpl(Values.DeleteDeployment, { notifications -> DeleteDeploymentTaskImpl(notifications) })
+        val DeleteResource = AzureTaskDescriptorImpl(Values.DeleteResource, { DeleteResourceTaskImpl() })
     }
 }
@@ -13,6 +13,10 @@ class AzureThrottlerReadTasks {
         FetchNetworks,
         FetchServices,
         FetchStorageAccountKeys,
+        FetchComputeUsages,
+        FetchVirtualMachineSkus,
+        FetchResourceGroupStates,
+        FetchTaggedResources,
     }
 
     companion object {
@@ -27,5 +31,9 @@ class AzureThrottlerReadTasks {
         val FetchNetworks = AzureTaskDescriptorImpl(Values.FetchNetworks, { FetchNetworksTaskImpl() })
         val FetchServices = AzureTaskDescriptorImpl(Values.FetchServices, { FetchServicesTaskImpl() })
         val FetchStorageAccountKeys = AzureTaskDescriptorImpl(Values.FetchStorageAccountKeys, { FetchStorageAccountKeysTaskImpl() })
+        val FetchComputeUsages = AzureTaskDescriptorImpl(Values.FetchComputeUsages, { FetchComputeUsagesTaskImpl() })
+        val FetchVirtualMachineSkus = AzureTaskDescriptorImpl(Values.FetchVirtualMachineSkus, { FetchVirtualMachineSkusTaskImpl() })
+        val FetchResourceGroupStates = AzureTaskDescriptorImpl(Values.FetchResourceGroupStates, { FetchResourceGroupStatesTaskImpl() })
+        val FetchTaggedResources = AzureTaskDescriptorImpl(Values.FetchTaggedResources, { FetchTaggedResourcesTaskImpl() })
     }
 }
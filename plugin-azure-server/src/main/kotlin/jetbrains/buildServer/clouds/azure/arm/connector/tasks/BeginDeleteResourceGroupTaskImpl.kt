@@ -0,0 +1,19 @@
+package jetbrains.buildServer.clouds.azure.arm.connector.tasks
+
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureTaskContext
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerTaskBaseImpl
+import rx.Single
+
+/**
+ * Requests resource group deletion and completes as soon as the request is accepted.
+ */
+class BeginDeleteResourceGroupTaskImpl : AzureThrottlerTaskBaseImpl<AzureApi, String, Unit>() {
+    override fun create(api: AzureApi, taskContext: AzureTaskContext, parameter: String): Single<Unit> {
+        return api
+                .resourceGroups()
+                .beginDeleteByNameAsync(parameter)
+                .toObservable<Unit>()
+                .defaultIfEmpty(Unit)
+                .toSingle()
+    }
+}
@@ -13,6 +13,7 @@ import com.microsoft.azure.management.resources.implementation.DeploymentInner
 import jetbrains.buildServer.clouds.azure.arm.throttler.AzureTaskContext
 import jetbrains.buildServer.clouds.azure.arm.throttler.AzureTaskNotifications
 import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerTaskBaseImpl
+import jetbrains.buildServer.clouds.azure.arm.throttler.TEAMCITY_CLOUDS_AZURE_TASKS_CREATEDEPLOYMENT_SHARED_WATCHER_ENABLE
 import jetbrains.buildServer.clouds.azure.arm.throttler.TEAMCITY_CLOUDS_AZURE_TASKS_CTREATEDEPLOYMENT_USE_MILTITHREAD_POLLING
 import jetbrains.buildServer.serverSide.TeamCityProperties
 import okhttp3.ResponseBody
@@ -34,14 +35,37 @@ data class CreateDeploymentTaskParameter(
         val tags: Map<String, String>,
         val targetResourceType: String)
 
+/**
+ * @param completion is set when the task completes on deployment submission, emits the descriptor of finished deployment.
+ */
 data class CreateDeploymentTaskDescriptor(
-        val instance: FetchInstancesTaskInstanceDescriptor?
+        val instance: FetchInstancesTaskInstanceDescriptor?,
+        val completion: Single<CreateDeploymentTaskDescriptor>? = null
 )
 
 class CreateDeploymentTaskImpl(private val myNotifications: AzureTaskNotifications) : AzureThrottlerTaskBaseImpl<AzureApi, CreateDeploymentTaskParameter, CreateDeploymentTaskDescriptor>() {
     private val objectMapper = ObjectMapper()
+    private val myDeploymentWatcher = AzureDeploymentWatcher({ api, groupName ->
+        api
+            .deploymentsClient()
+            .deployments()
+            .listByResourceGroupAsync(groupName)
+            .flatMapIterable { it.items() }
+    })
 
     override fun create(api: AzureApi, taskContext: AzureTaskContext, parameter: CreateDeploymentTaskParameter): Single<CreateDeploymentTaskDescriptor> {
+        // task is completed as soon as the deployment is accepted, so the action slot is not held while it is provisioned
+        if (TeamCityProperties.getBoolean(TEAMCITY_CLOUDS_AZURE_TASKS_CREATEDEPLOYMENT_SHARED_WATCHER_ENABLE)) {
+            LOG.debug("Submitting deployment. Name: ${parameter.deploymentName}, corellationId: [${taskContext.corellationId}]")
+
+            return submitDeployment(api, parameter)
+                .map {
+                    LOG.debug("Deployment has been accepted. Name: ${parameter.deploymentName}, corellationId: [${taskContext.corellationId}]")
+                    CreateDeploymentTaskDescriptor(null, watchDeployment(api, taskContext, parameter))
+                }
+                .toSingle()
+        }
+
         if (TeamCityProperties.getBooleanOrTrue(TEAMCITY_CLOUDS_AZURE_TASKS_CTREATEDEPLOYMENT_USE_MILTITHREAD_POLLING)) {
             val managerClient = api.deploymentsClient()
 
@@ -61,44 +85,8 @@ class CreateDeploymentTaskImpl(private val myNotifications: AzureTaskNotificatio
                 )) {
                     taskContext.getDeferralSequence()
                 }
-                .concatMap {
-                    val event = AzureTaskDeploymentStatusChangedEventArgs(
-                            api,
-                            it.id(),
-                            it.name(),
-                            it.properties().provisioningState(),
-                            it.properties().providers(),
-                            it.properties().dependencies(),
-                            taskContext,
-                    )
-                    myNotifications
-                            .raise(event)
-                            .map { CreateDeploymentTaskDescriptor(event.instance) }
-                }
-                .onErrorResumeNext { throwable ->
-                    if (throwable is CloudException &&
-                        DEPLOYMENT_NOT_FOUND_CODE.equals(throwable.body()?.code(), ignoreCase = true) &&
-                        VIRTUAL_MACHINES_RESOURCE_TYPE.equals(parameter.targetResourceType, ignoreCase = true)
-                    ) {
-                        LOG.debug("Deployment has gone. Name: ${parameter.deploymentName}, corellationId: [${taskContext.corellationId}]")
-                        val event = AzureTaskVirtualMachineCreated(
-                            api,
-                            taskContext,
-                            ResourceUtils.constructResourceId(
-                                api.subscriptionId(),
-                                parameter.groupName,
-                                VIRTUAL_MACHINES_PROVIDER_NAMESPACE,
-                                VIRTUAL_MACHINES_RESOURCE_TYPE_SHORT,
-                                parameter.deploymentName,
-                                ""),
-                        )
-                        myNotifications
-                            .raise(event)
-                            .map { CreateDeploymentTaskDescriptor(event.instance) }
-                    } else {
-                        Observable.error(throwable)
-                    }
-                }
+                .concatMap { raiseDeploymentStatusChanged(api, taskContext, it) }
+                .onErrorResumeNext { handleDeploymentError(api, taskContext, parameter, it) }
                 .toSingle()
 
         } else {
@@ -131,6 +119,84 @@ class CreateDeploymentTaskImpl(private val myNotifications: AzureTaskNotificatio
         }
     }
 
+    /**
+     * Sends deployment request without waiting for its completion.
+     */
+    private fun submitDeployment(api: AzureApi, parameter: CreateDeploymentTaskParameter): Observable<DeploymentExtendedInner> {
+        val managerClient = api.deploymentsClient()
+        val service = managerClient.azureClient.retrofit().create(DeploymentService::class.java)
+        return service.createOrUpdate(
+            parameter.groupName,
+            parameter.deploymentName,
+            api.subscriptionId(),
+            getDeploymentInner(parameter),
+            managerClient.apiVersion(),
+            managerClient.acceptLanguage(),
+            managerClient.userAgent()
+        ).map { response ->
+            managerClient
+                .restClient()
+                .responseBuilderFactory()
+                .newInstance<DeploymentExtendedInner, CloudException>(managerClient.serializerAdapter())
+                .register(200, DeploymentExtendedInner::class.java)
+                .register(201, DeploymentExtendedInner::class.java)
+                .registerError(CloudException::class.java)
+                .build(response)
+                .body()
+        }
+    }
+
+    /**
+     * Registers submitted deployment in the watcher, result is cached to be awaited outside of the throttler.
+     */
+    private fun watchDeployment(api: AzureApi, taskContext: AzureTaskContext, parameter: CreateDeploymentTaskParameter): Single<CreateDeploymentTaskDescriptor> =
+        myDeploymentWatcher
+            .watch(api, parameter.groupName, parameter.deploymentName)
+            .toObservable()
+            .concatMap { raiseDeploymentStatusChanged(api, taskContext, it) }
+            .onErrorResumeNext { handleDeploymentError(api, taskContext, parameter, it) }
+            .cache()
+            .toSingle()
+
+    private fun raiseDeploymentStatusChanged(api: AzureApi, taskContext: AzureTaskContext, deployment: DeploymentExtendedInner): Observable<CreateDeploymentTaskDescriptor> {
+        val event = AzureTaskDeploymentStatusChangedEventArgs(
+                api,
+                deployment.id(),
+                deployment.name(),
+                deployment.properties().provisioningState(),
+                deployment.properties().providers(),
+                deployment.properties().dependencies(),
+                taskContext,
+        )
+        return myNotifications
+                .raise(event)
+                .map { CreateDeploymentTaskDescriptor(event.instance) }
+    }
+
+    private fun handleDeploymentError(api: AzureApi, taskContext: AzureTaskContext, parameter: CreateDeploymentTaskParameter, throwable: Throwable): Observable<CreateDeploymentTaskDescriptor> {
+        val isDeploymentNotFound = throwable is AzureDeploymentWatcher.DeploymentNotFoundException ||
+            throwable is CloudException && DEPLOYMENT_NOT_FOUND_CODE.equals(throwable.body()?.code(), ignoreCase = true)
+
+        if (isDeploymentNotFound && VIRTUAL_MACHINES_RESOURCE_TYPE.equals(parameter.targetResourceType, ignoreCase = true)) {
+            LOG.debug("Deployment has gone. Name: ${parameter.deploymentName}, corellationId: [${taskContext.corellationId}]")
+            val event = AzureTaskVirtualMachineCreated(
+                api,
+                taskContext,
+                ResourceUtils.constructResourceId(
+                    api.subscriptionId(),
+                    parameter.groupName,
+                    VIRTUAL_MACHINES_PROVIDER_NAMESPACE,
+                    VIRTUAL_MACHINES_RESOURCE_TYPE_SHORT,
+                    parameter.deploymentName,
+                    ""),
+            )
+            return myNotifications
+                .raise(event)
+                .map { CreateDeploymentTaskDescriptor(event.instance) }
+        }
+        return Observable.error(throwable)
+    }
+
     private fun getDeploymentInner(parameter: CreateDeploymentTaskParameter): DeploymentInner {
         val deploymentProperties = DeploymentProperties()
         deploymentProperties
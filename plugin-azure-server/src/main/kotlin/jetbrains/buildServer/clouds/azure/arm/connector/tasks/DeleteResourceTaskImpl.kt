@@ -0,0 +1,20 @@
+package jetbrains.buildServer.clouds.azure.arm.connector.tasks
+
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureTaskContext
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerTaskBaseImpl
+import rx.Single
+
+/**
+ * Deletes a single resource by its id.
+ */
+class DeleteResourceTaskImpl : AzureThrottlerTaskBaseImpl<AzureApi, String, Unit>() {
+    override fun create(api: AzureApi, taskContext: AzureTaskContext, parameter: String): Single<Unit> {
+        return taskContext
+                .getDeferralSequence()
+                .flatMap {
+                    api.genericResources().deleteByIdAsync(parameter).toObservable<Unit>()
+                }
+                .defaultIfEmpty(Unit)
+                .toSingle()
+    }
+}
@@ -0,0 +1,32 @@
+package jetbrains.buildServer.clouds.azure.arm.connector.tasks
+
+import com.microsoft.azure.management.compute.implementation.UsageInner
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureTaskContext
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerCacheableTaskBaseImpl
+import rx.Single
+
+/**
+ * @property timestamp time when the usage was received from Azure, cached usages keep it.
+ */
+data class FetchComputeUsagesTaskUsageDescriptor(val name: String, val currentValue: Long, val limit: Long, val timestamp: Long)
+
+class FetchComputeUsagesTaskImpl : AzureThrottlerCacheableTaskBaseImpl<String, List<FetchComputeUsagesTaskUsageDescriptor>>() {
+    override fun createQuery(api: AzureApi, taskContext: AzureTaskContext, parameter: String): Single<List<FetchComputeUsagesTaskUsageDescriptor>> {
+        return api
+                .virtualMachines()
+                .manager()
+                .inner()
+                .usages()
+                .listAsync(parameter)
+                .flatMapIterable { it.items() }
+                .map { createDescriptor(it) }
+                .toList()
+                .last()
+                .toSingle()
+    }
+
+    companion object {
+        fun createDescriptor(usage: UsageInner, timestamp: Long = System.currentTimeMillis()) =
+                FetchComputeUsagesTaskUsageDescriptor(usage.name().value(), usage.currentValue().toLong(), usage.limit(), timestamp)
+    }
+}
@@ -174,7 +174,7 @@ class FetchInstancesTaskImpl(
                     !it.isOnError
                 }
                 .dematerialize<ContainerGroup>()
-                .map { getLiveInstanceFromSnapshot(it) ?: fetchContainer(it) }
+                .flatMapIterable { getLiveInstanceFromSnapshot(it)?.let(::listOf) ?: fetchContainers(it) }
 
         return machineInstances
             .mergeWith(containerInstances)
@@ -226,22 +226,19 @@ class FetchInstancesTaskImpl(
 
     private fun updateContainer(api: AzureApi, containerId: String, isDeleting: Boolean) : Observable<Unit> {
         if (isDeleting) {
-            myNotifiedInstances.remove(containerId.lowercase())
-            myInstancesCache.invalidate(containerId.lowercase())
+            invalidateContainerGroup(containerId)
             return Observable.just(Unit)
         }
         return api.containerGroups()
                 .getByIdAsync(containerId)
-                .map { containerGroup: ContainerGroup? -> containerGroup?.let { fetchContainer(it) } }
-                .flatMap { instance: InstanceDescriptor? ->
+                .map { containerGroup: ContainerGroup? -> containerGroup?.let { fetchContainers(it) } ?: emptyList() }
+                .flatMap { instances: List<InstanceDescriptor> ->
                     fetchIPAddresses(api).map { ipList ->
                         myIpAddresses.set(ipList.toTypedArray())
-                        if (instance != null) {
+                        invalidateContainerGroup(containerId)
+                        for (instance in instances) {
                             myNotifiedInstances.add(instance.id.lowercase())
                             myInstancesCache.put(instance.id.lowercase(), instance)
-                        } else {
-                            myNotifiedInstances.remove(containerId.lowercase())
-                            myInstancesCache.invalidate(containerId.lowercase())
                         }
                     }
                 }
@@ -249,13 +246,30 @@ class FetchInstancesTaskImpl(
                 .defaultIfEmpty(Unit)
     }
 
-    private fun fetchContainer(containerGroup: ContainerGroup): InstanceDescriptor {
-        val state = containerGroup.containers()[containerGroup.name()]?.instanceView()?.currentState()
+    private fun invalidateContainerGroup(containerId: String) {
+        val groupKey = containerId.lowercase()
+        val keys = myInstancesCache.asMap().keys.filter { it == groupKey || it.startsWith(groupKey + CONTAINERS_PATH) }
+        myNotifiedInstances.removeAll(keys + groupKey)
+        myInstancesCache.invalidateAll(keys)
+    }
+
+    /**
+     * Container group with several agents is reported as an instance per container.
+     */
+    private fun fetchContainers(containerGroup: ContainerGroup): List<InstanceDescriptor> {
+        if (!containerGroup.tags().containsKey(AzureConstants.TAG_CONTAINER_GROUP)) {
+            return listOf(fetchContainer(containerGroup, containerGroup.name()))
+        }
+        return containerGroup.containers().keys.map { fetchContainer(containerGroup, it) }
+    }
+
+    private fun fetchContainer(containerGroup: ContainerGroup, containerName: String): InstanceDescriptor {
+        val state = containerGroup.containers()[containerName]?.instanceView()?.currentState()
         val startDate = state?.startTime()?.toDate()
         val powerState = state?.state()
         val instance = InstanceDescriptor(
-                containerGroup.id(),
-                containerGroup.name(),
+                if (containerName == containerGroup.name()) containerGroup.id() else containerGroup.id() + CONTAINERS_PATH + containerName,
+                containerName,
                 containerGroup.tags(),
                 null,
                 startDate,
@@ -555,6 +569,7 @@ class FetchInstancesTaskImpl(
         private const val VIRTUAL_MACHINES_RESOURCE_TYPE = "Microsoft.Compute/virtualMachines"
         private const val CONTAINER_INSTANCE_NAMESPACE = "Microsoft.ContainerInstance"
         private const val CONTAINER_GROUPS_RESOURCE_TYPE = "containerGroups"
+        private const val CONTAINERS_PATH = "/containers/"
 
         private val FETCH_INSTANCES_SCRIPT = AzureUtils.getResourceAsString("/queries/fetch_instances.kusto")
     }
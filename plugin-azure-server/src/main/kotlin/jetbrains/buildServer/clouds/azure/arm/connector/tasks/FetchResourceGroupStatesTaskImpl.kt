@@ -0,0 +1,40 @@
+package jetbrains.buildServer.clouds.azure.arm.connector.tasks
+
+import jetbrains.buildServer.clouds.azure.arm.resourceGraph.QueryRequest
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureTaskContext
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerCacheableTaskBaseImpl
+import jetbrains.buildServer.clouds.azure.arm.utils.AzureUtils
+import rx.Single
+import java.util.*
+
+/**
+ * Returns provisioning states of existing resource groups by lowercase group name.
+ */
+class FetchResourceGroupStatesTaskImpl : AzureThrottlerCacheableTaskBaseImpl<Set<String>, Map<String, String>>() {
+    override fun createQuery(api: AzureApi, taskContext: AzureTaskContext, parameter: Set<String>): Single<Map<String, String>> {
+        if (parameter.isEmpty()) {
+            return Single.just(emptyMap())
+        }
+
+        return api
+            .resourceGraph()
+            .resources()
+            .poolResourcesAsync(QueryRequest(createScript(parameter)))
+            .flatMapIterable { table ->
+                table.rows.map {
+                    val name = it.getStringValue("name", isRequired = true)!!
+                    name.lowercase(Locale.ENGLISH) to (it.getStringValue("provisioningState") ?: "")
+                }
+            }
+            .toList()
+            .map { it.toMap() }
+            .toSingle()
+    }
+
+    companion object {
+        private val FETCH_RESOURCE_GROUP_STATES_SCRIPT = AzureUtils.getResourceAsString("/queries/fetch_resourceGroupStates.kusto")
+
+        internal fun createScript(groupNames: Set<String>) = FETCH_RESOURCE_GROUP_STATES_SCRIPT
+            .replace("@@ResourceGroups", groupNames.joinToString(", ") { "\"" + it.replace("\"", "") + "\"" })
+    }
+}
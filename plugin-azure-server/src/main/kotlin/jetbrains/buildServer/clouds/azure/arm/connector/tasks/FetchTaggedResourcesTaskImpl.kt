@@ -0,0 +1,54 @@
+package jetbrains.buildServer.clouds.azure.arm.connector.tasks
+
+import jetbrains.buildServer.clouds.azure.arm.resourceGraph.QueryRequest
+import jetbrains.buildServer.clouds.azure.arm.resourceGraph.Table
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureTaskContext
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerCacheableTaskBaseImpl
+import jetbrains.buildServer.clouds.azure.arm.utils.AzureUtils
+import jetbrains.buildServer.util.StringUtil
+import rx.Single
+
+data class FetchTaggedResourcesTaskResourceDescriptor(
+    val id: String,
+    val name: String,
+    val type: String,
+    val profileId: String?,
+    val sourceId: String?,
+    val instanceName: String?,
+    val underInvestigation: Boolean
+)
+
+/**
+ * Returns all resources of the subscription which are tagged by the TeamCity server.
+ */
+class FetchTaggedResourcesTaskImpl : AzureThrottlerCacheableTaskBaseImpl<String, List<FetchTaggedResourcesTaskResourceDescriptor>>() {
+    override fun createQuery(api: AzureApi, taskContext: AzureTaskContext, parameter: String): Single<List<FetchTaggedResourcesTaskResourceDescriptor>> {
+        if (StringUtil.isEmptyOrSpaces(api.subscriptionId())) {
+            return Single.just(emptyList())
+        }
+
+        return api
+            .resourceGraph()
+            .resources()
+            .poolResourcesAsync(QueryRequest(FETCH_TAGGED_RESOURCES_SCRIPT.replace("@@TeamCityServer", parameter)))
+            .flatMapIterable { readResources(it) }
+            .toList()
+            .toSingle()
+    }
+
+    companion object {
+        private val FETCH_TAGGED_RESOURCES_SCRIPT = AzureUtils.getResourceAsString("/queries/fetch_taggedResources.kusto")
+
+        internal fun readResources(table: Table) = table.rows.map {
+            FetchTaggedResourcesTaskResourceDescriptor(
+                it.getStringValue("id", isRequired = true)!!,
+                it.getStringValue("name", isRequired = true)!!,
+                it.getStringValue("type", isRequired = true)!!,
+                it.getStringValue("profileId"),
+                it.getStringValue("sourceId"),
+                it.getStringValue("instanceName"),
+                it.getStringValue("investigation") != null
+            )
+        }
+    }
+}
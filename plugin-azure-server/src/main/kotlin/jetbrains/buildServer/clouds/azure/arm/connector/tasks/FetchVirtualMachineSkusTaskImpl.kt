@@ -0,0 +1,42 @@
+package jetbrains.buildServer.clouds.azure.arm.connector.tasks
+
+import com.microsoft.azure.management.compute.implementation.ResourceSkuInner
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureTaskContext
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerCacheableTaskBaseImpl
+import rx.Single
+
+data class FetchVirtualMachineSkusTaskSkuDescriptor(val name: String, val family: String?, val vCpus: Int)
+
+class FetchVirtualMachineSkusTaskImpl : AzureThrottlerCacheableTaskBaseImpl<String, List<FetchVirtualMachineSkusTaskSkuDescriptor>>() {
+    override fun createQuery(api: AzureApi, taskContext: AzureTaskContext, parameter: String): Single<List<FetchVirtualMachineSkusTaskSkuDescriptor>> {
+        return api
+                .virtualMachines()
+                .manager()
+                .inner()
+                .resourceSkus()
+                .listAsync()
+                .flatMapIterable { it.items() }
+                .filter { isVirtualMachineSku(it, parameter) }
+                .map { createDescriptor(it) }
+                .toList()
+                .last()
+                .toSingle()
+    }
+
+    companion object {
+        private const val VIRTUAL_MACHINES_RESOURCE_TYPE = "virtualMachines"
+        private const val VCPUS_CAPABILITY = "vCPUs"
+
+        fun isVirtualMachineSku(sku: ResourceSkuInner, region: String): Boolean {
+            return VIRTUAL_MACHINES_RESOURCE_TYPE.equals(sku.resourceType(), ignoreCase = true) &&
+                    sku.locations().orEmpty().any { region.equals(it, ignoreCase = true) }
+        }
+
+        fun createDescriptor(sku: ResourceSkuInner): FetchVirtualMachineSkusTaskSkuDescriptor {
+            val vCpus = sku.capabilities().orEmpty()
+                    .firstOrNull { VCPUS_CAPABILITY.equals(it.name(), ignoreCase = true) }
+                    ?.value()?.toIntOrNull() ?: 0
+            return FetchVirtualMachineSkusTaskSkuDescriptor(sku.name(), sku.family(), vCpus)
+        }
+    }
+}
@@ -2,32 +2,69 @@ package jetbrains.buildServer.clouds.azure.arm.health
 
 import jetbrains.buildServer.clouds.azure.AzureMetadata
 import jetbrains.buildServer.clouds.azure.arm.AzureConstants
+import jetbrains.buildServer.serverSide.ProjectsModelListener
+import jetbrains.buildServer.serverSide.ProjectsModelListenerAdapter
 import jetbrains.buildServer.serverSide.SProject
+import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor
+import jetbrains.buildServer.serverSide.TeamCityProperties
 import jetbrains.buildServer.serverSide.executors.ExecutorServices
 import jetbrains.buildServer.serverSide.healthStatus.HealthStatusScope
 import jetbrains.buildServer.serverSide.healthStatus.ProjectSuggestedItem
+import jetbrains.buildServer.users.SUser
+import jetbrains.buildServer.util.EventDispatcher
 import jetbrains.buildServer.web.openapi.PagePlaces
 import jetbrains.buildServer.web.openapi.PluginDescriptor
 import jetbrains.buildServer.web.openapi.healthStatus.suggestions.ProjectSuggestion
+import java.util.concurrent.atomic.AtomicLong
 
 class AzureCloudProfileReport(pagePlaces: PagePlaces,
                               executorServices: ExecutorServices,
+                              projectsDispatcher: EventDispatcher<ProjectsModelListener>,
                               private val pluginDescriptor: PluginDescriptor)
     : ProjectSuggestion("addAzureCloudProfile", "Detect and report Azure cloud profile issues", pagePlaces) {
 
+    @Volatile
     private var azureMetadataAvailable = false
 
+    // project tree scan result, reset on any project or project feature change
+    private val myProjectsVersion = AtomicLong()
+    @Volatile
+    private var myScanResult: ScanResult? = null
+
     init {
         // initializing report data in background, as it can take some time and we do not want to slow down server startup
         executorServices.lowPriorityExecutorService.submit {
             try {
-                AzureMetadata.readInstanceMetadata().compute?.name?.let {
+                val timeout = TeamCityProperties.getInteger(AzureConstants.PROP_METADATA_TIMEOUT_MS, DEFAULT_METADATA_TIMEOUT_MS)
+                AzureMetadata.readInstanceMetadata(timeout).compute?.name?.let {
                     azureMetadataAvailable = true
                 }
             } catch (ignored: Throwable) {
                 return@submit
             }
         }
+
+        projectsDispatcher.addListener(object : ProjectsModelListenerAdapter() {
+            override fun projectCreated(projectId: String, user: SUser?) = invalidate()
+
+            override fun projectRemoved(project: SProject) = invalidate()
+
+            override fun projectPersisted(projectId: String) = invalidate()
+
+            override fun projectRestored(projectId: String) = invalidate()
+
+            override fun projectArchived(projectId: String) = invalidate()
+
+            override fun projectDearchived(projectId: String) = invalidate()
+
+            override fun projectMoved(project: SProject, originalParentProject: SProject) = invalidate()
+
+            override fun projectFeatureAdded(project: SProject, projectFeature: SProjectFeatureDescriptor) = invalidate()
+
+            override fun projectFeatureRemoved(project: SProject, projectFeature: SProjectFeatureDescriptor) = invalidate()
+
+            override fun projectFeatureChanged(project: SProject, before: SProjectFeatureDescriptor, after: SProjectFeatureDescriptor) = invalidate()
+        })
     }
 
     override fun getSuggestions(project: SProject): List<ProjectSuggestedItem> {
@@ -35,7 +72,7 @@ class AzureCloudProfileReport(pagePlaces: PagePlaces,
             return emptyList()
         }
 
-        if (!containsCloudProfile(project, AzureConstants.CLOUD_CODE)) {
+        if (!hasCloudProfile(project)) {
             return listOf(ProjectSuggestedItem(type, project, mapOf(
                     "projectId" to project.projectId,
                     "type" to AzureConstants.CLOUD_CODE
@@ -53,6 +90,27 @@ class AzureCloudProfileReport(pagePlaces: PagePlaces,
         return true
     }
 
+    private fun invalidate() {
+        myProjectsVersion.incrementAndGet()
+        myScanResult = null
+    }
+
+    private fun hasCloudProfile(rootProject: SProject): Boolean {
+        val version = myProjectsVersion.get()
+        myScanResult?.let {
+            if (it.projectId == rootProject.projectId && it.version == version) {
+                return it.value
+            }
+        }
+
+        val value = containsCloudProfile(rootProject, AzureConstants.CLOUD_CODE)
+        // result is not stored if project tree was changed during the scan
+        if (myProjectsVersion.get() == version) {
+            myScanResult = ScanResult(rootProject.projectId, version, value)
+        }
+        return value
+    }
+
     private fun containsCloudProfile(project: SProject, cloudCode: String): Boolean {
         return project.getAvailableFeaturesOfType("CloudProfile").any {
             cloudCode == it.parameters["cloud-code"]
@@ -62,4 +120,10 @@ class AzureCloudProfileReport(pagePlaces: PagePlaces,
             containsCloudProfile(it, cloudCode)
         }
     }
+
+    private data class ScanResult(val projectId: String, val version: Long, val value: Boolean)
+
+    private companion object {
+        const val DEFAULT_METADATA_TIMEOUT_MS = 1000
+    }
 }
@@ -2,6 +2,7 @@ package jetbrains.buildServer.clouds.azure.arm.resourceGraph
 
 import com.microsoft.azure.AzureClient
 import com.microsoft.azure.AzureServiceClient
+import com.microsoft.azure.credentials.AzureTokenCredentials
 import com.microsoft.rest.RestClient
 import com.microsoft.rest.credentials.ServiceClientCredentials
 
@@ -17,7 +18,7 @@ class ResourceGraphClientImpl : AzureServiceClient {
     public val subscriptionId: String?
         get() { return mySubscriptionId }
 
-    constructor(credentials: ServiceClientCredentials) : this("https://management.azure.com", credentials)
+    constructor(credentials: ServiceClientCredentials) : this(getBaseUrl(credentials), credentials)
 
     constructor(baseUrl: String, credentials: ServiceClientCredentials) : super(baseUrl, credentials) {
         initialize();
@@ -41,4 +42,14 @@ class ResourceGraphClientImpl : AzureServiceClient {
     fun withSubscription(subscriptionId: String?) {
         mySubscriptionId = subscriptionId
     }
+
+    companion object {
+        private const val DEFAULT_BASE_URL = "https://management.azure.com"
+
+        /**
+         * Resource Graph is served by resource manager endpoint of the cloud environment.
+         */
+        private fun getBaseUrl(credentials: ServiceClientCredentials): String =
+            (credentials as? AzureTokenCredentials)?.environment()?.resourceManagerEndpoint() ?: DEFAULT_BASE_URL
+    }
 }
@@ -3,7 +3,7 @@ package jetbrains.buildServer.clouds.azure.arm.throttler
 import com.intellij.openapi.diagnostic.Logger
 import jetbrains.buildServer.serverSide.TeamCityProperties
 import rx.Observable
-import rx.schedulers.Schedulers
+import rx.Scheduler
 import java.time.Duration
 import java.time.LocalDateTime
 import java.util.concurrent.TimeUnit
@@ -11,31 +11,38 @@ import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicLong
 import kotlin.math.min
 
-class AzureDeferralSequenceTimeManagerImpl : AzureDefettalSequenceTimeManager {
+class AzureDeferralSequenceTimeManagerImpl(
+    private val timerScheduler: Scheduler
+) : AzureDefettalSequenceTimeManager {
+    private val myClock = AzureSchedulerClock(timerScheduler)
     private val myBucketSize = AtomicLong(getMaxBucketSize())
-    private val myBucketRefillSubscription = Observable.timer(getRefillInterval(), TimeUnit.MILLISECONDS, Schedulers.io())
+    private val myBucketRefillSubscription = Observable.timer(getRefillInterval(), TimeUnit.MILLISECONDS, timerScheduler)
         .repeat()
         .subscribe {
             refill()
         }
 
+    constructor(schedulersProvider: AzureThrottlerSchedulersProvider) : this(schedulersProvider.getTimerScheduler())
+
     override fun getDeferralSequence(corellationId: String): Observable<Unit> {
         val removed = tryDecreaseBucketSize()
         if (removed) return Observable.just(Unit)
 
-        val startTime = LocalDateTime.now()
+        val startTime = LocalDateTime.now(myClock)
         LOG.debug("Start waiting for the next time slot. CorellationId: ${corellationId}")
-        return Observable.timer(getRefillInterval(), TimeUnit.MILLISECONDS, Schedulers.io())
+        return Observable.timer(getRefillInterval(), TimeUnit.MILLISECONDS, timerScheduler)
             .repeat()
             .takeWhile { !tryDecreaseBucketSize() }
             .map { Unit }
             .ignoreElements()
             .concatWith(Observable.just(Unit))
             .doOnNext {
-                LOG.debug("Total wait duration: ${Duration.between(startTime, LocalDateTime.now())}, CorellationId: ${corellationId}")
+                LOG.debug("Total wait duration: ${Duration.between(startTime, LocalDateTime.now(myClock))}, CorellationId: ${corellationId}")
             }
     }
 
+    fun getBucketSize(): Long = myBucketSize.get()
+
     fun refill() {
         val previousSize = myBucketSize.get()
         val size = myBucketSize.updateAndGet {
@@ -16,6 +16,12 @@ interface AzureRequestThrottler {
     fun <P, T> executeUpdateTask(taskDescriptor: AzureTaskDescriptor<AzureApi, AzureThrottlerActionTasks.Values, P, T>, parameters: P) : Single<T>;
 
     fun start()
+
+    /**
+     * Subscribes to changes of instances made by action tasks.
+     * @return subscription which should be closed when listener is not needed anymore.
+     */
+    fun subscribeToInstanceChanges(listener: () -> Unit): AutoCloseable
 }
 
 interface AzureRequestThrottlerCache {
@@ -1,13 +1,19 @@
 package jetbrains.buildServer.clouds.azure.arm.throttler
 
+import com.intellij.openapi.diagnostic.Logger
 import com.microsoft.azure.AzureEnvironment
 import com.microsoft.azure.credentials.ApplicationTokenCredentials
 import com.microsoft.azure.credentials.AzureTokenCredentials
 import com.microsoft.azure.credentials.MSICredentials
 import jetbrains.buildServer.clouds.azure.arm.AzureConstants
 import jetbrains.buildServer.clouds.azure.arm.connector.tasks.AzureApi
+import jetbrains.buildServer.clouds.azure.arm.connector.tasks.AzureTaskDeploymentStatusChangedEventArgs
+import jetbrains.buildServer.clouds.azure.arm.connector.tasks.AzureTaskVirtualMachineCreated
+import jetbrains.buildServer.clouds.azure.arm.connector.tasks.AzureTaskVirtualMachineRemoved
+import jetbrains.buildServer.clouds.azure.arm.connector.tasks.AzureTaskVirtualMachineStatusChangedEventArgs
 import jetbrains.buildServer.clouds.azure.arm.connector.tasks.AzureThrottlerActionTasks
 import jetbrains.buildServer.clouds.azure.arm.connector.tasks.AzureThrottlerReadTasks
+import rx.Observable
 import rx.Single
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ConcurrentMap
@@ -39,14 +45,15 @@ class AzureRequestThrottlerCacheImpl(
     }
 
     override fun getOrCreateByEnv(env: AzureEnvironment, subscriptionId: String?) : AzureRequestThrottler {
-        return envMap.getOrPut(EnvKey(env, subscriptionId)) {
-            AzureRequestThrottlerImpl(subscriptionId, MSICredentials(env), myAzureThrottlerFactory, myReadTimeManager, myActionTimeManager)
+        // computeIfAbsent creates exactly one throttler for the key, so its bulkhead is not left unused
+        return envMap.computeIfAbsent(EnvKey(env, subscriptionId)) {
+            AzureRequestThrottlerImpl(subscriptionId, MSICredentials(env), myAzureThrottlerFactory, myReadTimeManager, myActionTimeManager, mySchedulersProvider.createBulkhead(subscriptionId ?: "default"))
         }
     }
 
     override fun getOrCreateByCredentials(clientId: String?, tenantId: String?, clientSecret: String?, env: AzureEnvironment, subscriptionId: String?) : AzureRequestThrottler {
-        return appMap.getOrPut(AppKey(clientId, tenantId, clientSecret, subscriptionId)) {
-            AzureRequestThrottlerImpl(subscriptionId, ApplicationTokenCredentials(clientId, tenantId, clientSecret, env), myAzureThrottlerFactory, myReadTimeManager, myActionTimeManager)
+        return appMap.computeIfAbsent(AppKey(clientId, tenantId, clientSecret, subscriptionId)) {
+            AzureRequestThrottlerImpl(subscriptionId, ApplicationTokenCredentials(clientId, tenantId, clientSecret, env), myAzureThrottlerFactory, myReadTimeManager, myActionTimeManager, mySchedulersProvider.createBulkhead(subscriptionId ?: "default"))
         }
     }
 
@@ -70,14 +77,15 @@ class AzureRequestThrottlerCacheImpl(
         private val myAzureThrottlerFactory: AzureThrottlerFactory,
         private val myReadTimeManager: AzureTimeManager,
         private val myActionTimeManager: AzureTimeManager,
+        private val myBulkhead: AzureThrottlerBulkhead,
     ) : AzureRequestThrottler {
         private var myReadsThrottler: AzureThrottler<AzureApi, AzureThrottlerReadTasks.Values>
         private var myUpdatesThrottler: AzureThrottler<AzureApi, AzureThrottlerActionTasks.Values>
         private var myTaskNotifications = AzureTaskNotificationsImpl()
 
         init {
-            myReadsThrottler = myAzureThrottlerFactory.createReadRequestsThrottler(credentials, subscriptionId, myTaskNotifications, myReadTimeManager)
-            myUpdatesThrottler = myAzureThrottlerFactory.createActionRequestsThrottler(credentials, subscriptionId, myTaskNotifications, myReadTimeManager)
+            myReadsThrottler = myAzureThrottlerFactory.createReadRequestsThrottler(credentials, subscriptionId, myTaskNotifications, myReadTimeManager, myBulkhead)
+            myUpdatesThrottler = myAzureThrottlerFactory.createActionRequestsThrottler(credentials, subscriptionId, myTaskNotifications, myReadTimeManager, myBulkhead)
         }
 
         override fun <P, T> executeReadTask(taskDescriptor: AzureTaskDescriptor<AzureApi, AzureThrottlerReadTasks.Values, P, T>, parameters: P): Single<T> {
@@ -100,5 +108,32 @@ class AzureRequestThrottlerCacheImpl(
             myReadsThrottler.start()
             myUpdatesThrottler.start()
         }
+
+        override fun subscribeToInstanceChanges(listener: () -> Unit): AutoCloseable {
+            val handler = object : AzureTaskEventHandler<AzureTaskEventArgs> {
+                override fun handle(args: AzureTaskEventArgs): Observable<Unit> {
+                    try {
+                        listener()
+                    } catch (e: Throwable) {
+                        LOG.warnAndDebugDetails("Failed to notify about instance changes", e)
+                    }
+                    return Observable.just(Unit)
+                }
+            }
+            INSTANCE_CHANGE_EVENTS.forEach { myTaskNotifications.registerHandler(it, handler) }
+            return AutoCloseable {
+                INSTANCE_CHANGE_EVENTS.forEach { myTaskNotifications.unregisterHandler(it, handler) }
+            }
+        }
+    }
+
+    companion object {
+        private val LOG = Logger.getInstance(AzureRequestThrottlerCacheImpl::class.java.name)
+        private val INSTANCE_CHANGE_EVENTS = listOf(
+                AzureTaskVirtualMachineStatusChangedEventArgs::class,
+                AzureTaskDeploymentStatusChangedEventArgs::class,
+                AzureTaskVirtualMachineRemoved::class,
+                AzureTaskVirtualMachineCreated::class
+        )
     }
 }
@@ -0,0 +1,23 @@
+package jetbrains.buildServer.clouds.azure.arm.throttler
+
+import rx.Scheduler
+import java.time.Clock
+import java.time.Instant
+import java.time.ZoneId
+import java.time.ZoneOffset
+
+/**
+ * Clock which reads the time of the Rx scheduler, so that throttler dates and timers share one time source.
+ */
+class AzureSchedulerClock(
+    private val scheduler: Scheduler,
+    private val zone: ZoneId = ZoneOffset.UTC
+) : Clock() {
+    override fun getZone(): ZoneId = zone
+
+    override fun withZone(zone: ZoneId): Clock = AzureSchedulerClock(scheduler, zone)
+
+    override fun millis(): Long = scheduler.now()
+
+    override fun instant(): Instant = Instant.ofEpochMilli(scheduler.now())
+}
@@ -7,6 +7,8 @@ import kotlin.reflect.KClass
 interface AzureTaskNotifications {
     fun <TArgs : AzureTaskEventArgs> registerHandler(eventClass: KClass<out TArgs>, handler: AzureTaskEventHandler<TArgs>)
 
+    fun <TArgs : AzureTaskEventArgs> unregisterHandler(eventClass: KClass<out TArgs>, handler: AzureTaskEventHandler<TArgs>)
+
     fun raise(event: AzureTaskEventArgs) : Observable<Unit>
 }
 
@@ -14,6 +14,10 @@ class AzureTaskNotificationsImpl : AzureTaskNotifications {
         handlers.add(handler as AzureTaskEventHandler<AzureTaskEventArgs>)
     }
 
+    override fun <TArgs : AzureTaskEventArgs> unregisterHandler(eventClass: KClass<out TArgs>, handler: AzureTaskEventHandler<TArgs>) {
+        myHandlers[eventClass]?.remove(handler)
+    }
+
     override fun raise(event: AzureTaskEventArgs) : Observable<Unit> {
         val handlersList = myHandlers[event::class]
         return if (handlersList.isNullOrEmpty())
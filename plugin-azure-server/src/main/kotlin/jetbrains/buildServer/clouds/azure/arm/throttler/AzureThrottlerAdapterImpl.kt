@@ -169,6 +169,7 @@ class AzureThrottlerAdapterImpl (
                         .getDeferralSequence(corellationId)
                 }
             }
+                .observeOn(delayScheduler)
                 .map { apply() }
         }
     }
@@ -6,17 +6,27 @@ import jetbrains.buildServer.clouds.azure.arm.connector.tasks.AzureThrottlerActi
 import jetbrains.buildServer.clouds.azure.arm.connector.tasks.AzureThrottlerReadTasks
 import kotlinx.coroutines.CoroutineDispatcher
 import rx.Scheduler
+import rx.schedulers.Schedulers
 import java.io.Closeable
 
 interface AzureThrottlerFactory {
-    fun createReadRequestsThrottler(credentials: AzureTokenCredentials, subscriptionId: String?, taskNotifications: AzureTaskNotifications, timeManager: AzureTimeManager): AzureThrottler<AzureApi, AzureThrottlerReadTasks.Values>
-    fun createActionRequestsThrottler(credentials: AzureTokenCredentials, subscriptionId: String?, taskNotifications: AzureTaskNotifications, timeManager: AzureTimeManager): AzureThrottler<AzureApi, AzureThrottlerActionTasks.Values>
+    fun createReadRequestsThrottler(credentials: AzureTokenCredentials, subscriptionId: String?, taskNotifications: AzureTaskNotifications, timeManager: AzureTimeManager, bulkhead: AzureThrottlerBulkhead): AzureThrottler<AzureApi, AzureThrottlerReadTasks.Values>
+    fun createActionRequestsThrottler(credentials: AzureTokenCredentials, subscriptionId: String?, taskNotifications: AzureTaskNotifications, timeManager: AzureTimeManager, bulkhead: AzureThrottlerBulkhead): AzureThrottler<AzureApi, AzureThrottlerActionTasks.Values>
 }
 
 interface AzureThrottlerSchedulersProvider : Closeable {
+    fun getDispatcher(): CoroutineDispatcher
+    fun getTimerScheduler(): Scheduler
+    fun createBulkhead(name: String): AzureThrottlerBulkhead
+}
+
+/**
+ * Schedulers which are used by the throttlers of a single subscription only.
+ */
+interface AzureThrottlerBulkhead : Closeable {
+    fun getScheduler(): Scheduler
     fun getReadRequestsSchedulers(): AzureThrottlerSchedulers
     fun getActionRequestsSchedulers(): AzureThrottlerSchedulers
-    fun getDispatcher(): CoroutineDispatcher
 }
 
-data class AzureThrottlerSchedulers(val requestScheduler: Scheduler, val timeoutScheduler: Scheduler)
+data class AzureThrottlerSchedulers(val requestScheduler: Scheduler, val timeoutScheduler: Scheduler, val timerScheduler: Scheduler = Schedulers.io())
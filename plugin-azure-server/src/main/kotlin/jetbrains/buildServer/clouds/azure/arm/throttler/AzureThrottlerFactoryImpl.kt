@@ -7,9 +7,7 @@ import jetbrains.buildServer.clouds.azure.arm.connector.tasks.AzureThrottlerRead
 import jetbrains.buildServer.serverSide.TeamCityProperties
 import java.util.concurrent.atomic.AtomicLong
 
-class AzureThrottlerFactoryImpl(
-    private val mySchedulersProvider: AzureThrottlerSchedulersProvider
-) : AzureThrottlerFactory {
+class AzureThrottlerFactoryImpl : AzureThrottlerFactory {
     private val throttlerId = AtomicLong(0)
 
     override fun createReadRequestsThrottler(
@@ -17,6 +15,7 @@ class AzureThrottlerFactoryImpl(
         subscriptionId: String?,
         taskNotifications: AzureTaskNotifications,
         timeManager: AzureTimeManager,
+        bulkhead: AzureThrottlerBulkhead,
     ): AzureThrottler<AzureApi, AzureThrottlerReadTasks.Values> {
         val azureAdapter = AzureThrottlerAdapterImpl(
                 AzureThrottlerConfigurableImpl(),
@@ -24,7 +23,7 @@ class AzureThrottlerFactoryImpl(
                 credentials,
                 subscriptionId,
                 timeManager,
-                mySchedulersProvider.getReadRequestsSchedulers().requestScheduler,
+                bulkhead.getScheduler(),
                 "${throttlerId.incrementAndGet()}-ReadAdapter")
 
         val randomTaskReservation = { TeamCityProperties.getInteger(TEAMCITY_CLOUDS_AZURE_READ_THROTTLER_RANDOM_TASK_RESERVATION, 20) }
@@ -49,7 +48,7 @@ class AzureThrottlerFactoryImpl(
         val throttler = AzureThrottlerImpl(
                 azureAdapter,
                 readsStrategy,
-                mySchedulersProvider.getReadRequestsSchedulers(),
+                bulkhead.getReadRequestsSchedulers(),
                 AzureThrottlerScheduledExecutorFactortyImpl(),
                 taskNotifications
         )
@@ -91,6 +90,18 @@ class AzureThrottlerFactoryImpl(
                 .registerTask(AzureThrottlerReadTasks.FetchStorageAccountKeys,
                         AzureThrottlerTaskTimeExecutionType.Random,
                         randomTaskCacheTimeout)
+                .registerTask(AzureThrottlerReadTasks.FetchComputeUsages,
+                        AzureThrottlerTaskTimeExecutionType.Random,
+                        randomTaskCacheTimeout)
+                .registerTask(AzureThrottlerReadTasks.FetchVirtualMachineSkus,
+                        AzureThrottlerTaskTimeExecutionType.Random,
+                        periodicalTaskCacheTimeout)
+                .registerTask(AzureThrottlerReadTasks.FetchResourceGroupStates,
+                        AzureThrottlerTaskTimeExecutionType.Periodical,
+                        randomTaskCacheTimeout)
+                .registerTask(AzureThrottlerReadTasks.FetchTaggedResources,
+                        AzureThrottlerTaskTimeExecutionType.Periodical,
+                        randomTaskCacheTimeout)
     }
 
     override fun createActionRequestsThrottler(
@@ -98,6 +109,7 @@ class AzureThrottlerFactoryImpl(
         subscriptionId: String?,
         taskNotifications: AzureTaskNotifications,
         timeManager: AzureTimeManager,
+        bulkhead: AzureThrottlerBulkhead,
     ): AzureThrottler<AzureApi, AzureThrottlerActionTasks.Values> {
         val azureActionAdapter = AzureThrottlerAdapterImpl(
                 AzureThrottlerConfigurableImpl(),
@@ -105,7 +117,7 @@ class AzureThrottlerFactoryImpl(
                 credentials,
                 subscriptionId,
                 timeManager,
-                mySchedulersProvider.getActionRequestsSchedulers().requestScheduler,
+                bulkhead.getScheduler(),
                 "${throttlerId.incrementAndGet()}-ActionAdapter")
 
         val randomTaskReservation = { TeamCityProperties.getInteger(TEAMCITY_CLOUDS_AZURE_ACTION_THROTTLER_RANDOM_TASK_RESERVATION, 50) }
@@ -132,7 +144,7 @@ class AzureThrottlerFactoryImpl(
         val throttler = AzureThrottlerImpl(
                 azureActionAdapter,
                 actionsStrategy,
-                mySchedulersProvider.getActionRequestsSchedulers(),
+                bulkhead.getActionRequestsSchedulers(),
                 AzureThrottlerScheduledExecutorFactortyImpl(),
                 taskNotifications
         )
@@ -147,6 +159,9 @@ class AzureThrottlerFactoryImpl(
                 .registerTask(AzureThrottlerActionTasks.DeleteResourceGroup,
                         AzureThrottlerTaskTimeExecutionType.Random,
                         randomTaskCacheTimeout)
+                .registerTask(AzureThrottlerActionTasks.BeginDeleteResourceGroup,
+                        AzureThrottlerTaskTimeExecutionType.Random,
+                        randomTaskCacheTimeout)
                 .registerTask(AzureThrottlerActionTasks.StopVirtualMachine,
                         AzureThrottlerTaskTimeExecutionType.Random,
                         randomTaskCacheTimeout)
@@ -159,5 +174,9 @@ class AzureThrottlerFactoryImpl(
                 .registerTask(AzureThrottlerActionTasks.DeleteDeployment,
                         AzureThrottlerTaskTimeExecutionType.Random,
                         randomTaskCacheTimeout)
+                // cleanup of orphaned resources uses only capacity which is not reserved for random tasks
+                .registerTask(AzureThrottlerActionTasks.DeleteResource,
+                        AzureThrottlerTaskTimeExecutionType.Periodical,
+                        randomTaskCacheTimeout)
     }
 }
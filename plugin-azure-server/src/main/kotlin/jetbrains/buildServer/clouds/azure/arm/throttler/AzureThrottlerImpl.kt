@@ -4,7 +4,6 @@ import com.intellij.openapi.diagnostic.Logger
 import jetbrains.buildServer.serverSide.TeamCityProperties
 import rx.Single
 import rx.internal.util.SubscriptionList
-import java.time.Clock
 import java.time.LocalDateTime
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.TimeUnit
@@ -28,6 +27,7 @@ class AzureThrottlerImpl<A, I>(
     private val myStartStopLock = ReentrantReadWriteLock()
     private var myScheduledExecutor: AzureThrottlerScheduledExecutor? = null
     private val myLastLogDiagnosticTime = AtomicReference(LocalDateTime.MIN)
+    private val myClock = AzureSchedulerClock(schedulers.timerScheduler)
 
     init {
         throttlerStrategy.setContainer(this)
@@ -66,13 +66,14 @@ class AzureThrottlerImpl<A, I>(
         if (myTaskQueues.contains(taskId)) throw Exception("Task with Id $taskId has already been registered")
         myTaskQueues[taskId] = AzureThrottlerTaskQueueImpl(
             taskId,
-            AzureThrottlerRequestQueueImpl(task),
+            AzureThrottlerRequestQueueImpl(task, myClock),
             task,
             adapter,
             taskTimeExecutionType,
             defaultTimeoutInSeconds,
             this,
-            schedulers.requestScheduler
+            schedulers.requestScheduler,
+            myClock
         )
         return this
     }
@@ -146,7 +147,7 @@ class AzureThrottlerImpl<A, I>(
             return
         }
         val nextCheckTime = myLastLogDiagnosticTime.get().plusSeconds(getPrintDiagnosticInterval())
-        val now = LocalDateTime.now(Clock.systemUTC())
+        val now = LocalDateTime.now(myClock)
 
         if (nextCheckTime >= now) return
         myLastLogDiagnosticTime.set(now)
@@ -9,7 +9,8 @@ import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.concurrent.atomic.AtomicLong
 
 class AzureThrottlerRequestQueueImpl<I, P, T>(
-        private val parameterEqualityComparer: AzureThrottlerTaskParameterEqualityComparer<P>
+        private val parameterEqualityComparer: AzureThrottlerTaskParameterEqualityComparer<P>,
+        private val clock: Clock = Clock.systemUTC()
 ) : AzureThrottlerRequestQueue<I, P, T> {
     private val myRequestQueue = ConcurrentLinkedQueue<QueueItem<T, P>>()
     private val myRequestQueueId = AtomicLong(0)
@@ -32,7 +33,7 @@ class AzureThrottlerRequestQueueImpl<I, P, T>(
         if (forceItem != null) {
             return extractBatch(forceItem)
         }
-        val expiredItem = myRequestQueue.firstOrNull { it.timeToExecute <= LocalDateTime.now(Clock.systemUTC()) }
+        val expiredItem = myRequestQueue.firstOrNull { it.timeToExecute <= LocalDateTime.now(clock) }
         if (expiredItem != null) {
             return extractBatch(expiredItem)
         }
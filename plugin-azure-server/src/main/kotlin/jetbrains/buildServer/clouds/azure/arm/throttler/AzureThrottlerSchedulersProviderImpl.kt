@@ -1,6 +1,5 @@
 package jetbrains.buildServer.clouds.azure.arm.throttler
 
-import com.microsoft.azure.management.resources.fluentcore.utils.SdkContext
 import jetbrains.buildServer.serverSide.BuildServerAdapter
 import jetbrains.buildServer.serverSide.BuildServerListener
 import jetbrains.buildServer.serverSide.TeamCityProperties
@@ -12,22 +11,25 @@ import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.ExecutorCoroutineDispatcher
 import kotlinx.coroutines.asCoroutineDispatcher
 import rx.Scheduler
-import rx.plugins.RxJavaHooks
-import rx.plugins.RxJavaPlugins
-import rx.plugins.RxJavaSchedulersHook
 import rx.schedulers.Schedulers
 import java.io.Closeable
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ExecutorService
-import java.util.concurrent.ScheduledExecutorService
 
+/**
+ * Provides schedulers of the throttlers.
+ *
+ * Requests of every subscription are executed in its own bounded pool which is passed explicitly
+ * to the throttler, so the global RxJava and Azure SDK schedulers are left intact.
+ */
 class AzureThrottlerSchedulersProviderImpl(serverDispatcher: EventDispatcher<BuildServerListener>) : AzureThrottlerSchedulersProvider {
     private var myProvider = if (useOldSchedulers) OldSchedulersImpl() else SchedulersImpl(serverDispatcher)
 
-    override fun getReadRequestsSchedulers(): AzureThrottlerSchedulers = myProvider.getReadRequestsSchedulers()
+    override fun getDispatcher(): CoroutineDispatcher = myProvider.getDispatcher()
 
-    override fun getActionRequestsSchedulers(): AzureThrottlerSchedulers = myProvider.getActionRequestsSchedulers()
+    override fun getTimerScheduler(): Scheduler = myProvider.getTimerScheduler()
 
-    override fun getDispatcher(): CoroutineDispatcher = myProvider.getDispatcher()
+    override fun createBulkhead(name: String): AzureThrottlerBulkhead = myProvider.createBulkhead(name)
 
     override fun close() = myProvider.close()
 
@@ -35,39 +37,34 @@ class AzureThrottlerSchedulersProviderImpl(serverDispatcher: EventDispatcher<Bui
         get() = TeamCityProperties.getBoolean(TEAMCITY_CLOUDS_AZURE_THROTTLER_USE_OLD_SCHEDULERS)
 
     private class OldSchedulersImpl : AzureThrottlerSchedulersProvider {
-        override fun getReadRequestsSchedulers(): AzureThrottlerSchedulers =
-            AzureThrottlerSchedulers(Schedulers.immediate(), Schedulers.computation())
+        override fun getDispatcher(): CoroutineDispatcher = Dispatchers.IO
 
-        override fun getActionRequestsSchedulers(): AzureThrottlerSchedulers =
-            AzureThrottlerSchedulers(Schedulers.io(), Schedulers.computation())
+        override fun getTimerScheduler(): Scheduler = Schedulers.io()
 
-        override fun getDispatcher(): CoroutineDispatcher = Dispatchers.IO
+        override fun createBulkhead(name: String): AzureThrottlerBulkhead = object : AzureThrottlerBulkhead {
+            override fun getScheduler(): Scheduler = Schedulers.io()
+
+            override fun getReadRequestsSchedulers(): AzureThrottlerSchedulers =
+                AzureThrottlerSchedulers(Schedulers.immediate(), Schedulers.computation(), getTimerScheduler())
+
+            override fun getActionRequestsSchedulers(): AzureThrottlerSchedulers =
+                AzureThrottlerSchedulers(Schedulers.io(), Schedulers.computation(), getTimerScheduler())
+
+            override fun close() = Unit
+        }
 
         override fun close() = Unit
     }
 
-    private class SchedulersImpl(serverDispatcher: EventDispatcher<BuildServerListener>) : AzureThrottlerSchedulersProvider {
-        private var myComputationScheduler: Scheduler
-        private var myIOScheduler: Scheduler
-        private var myNewThreadUtilScheduler: Scheduler
-        private var myDispatcher: ExecutorCoroutineDispatcher
-        private var myNewThreadSchedulerService: CloseableExecutorService<ExecutorService>
-        private var myComputationSchedulerService: CloseableExecutorService<ExecutorService>
-        private var myIOSchedulerService: CloseableExecutorService<ExecutorService>
-        private val myDispatcherExecutorService: CloseableExecutorService<ExecutorService>
-        private var myScheduledExecutorService: CloseableExecutorService<ScheduledExecutorService>
+    private class SchedulersImpl(private val serverDispatcher: EventDispatcher<BuildServerListener>) : AzureThrottlerSchedulersProvider {
+        private val myTimerSchedulerService: CloseableExecutorService
+        private val myTimerScheduler: Scheduler
+        private val myDispatcherExecutorService: CloseableExecutorService
+        private val myDispatcher: ExecutorCoroutineDispatcher
+        private val myBulkheads = ConcurrentHashMap.newKeySet<BulkheadImpl>()
 
         init {
-            myComputationSchedulerService = CloseableExecutorService(
-                    serverDispatcher,
-                    ServiceFactory(
-                        "Azure Rx computation pool",
-                        TeamCityProperties.getInteger(TEAMCITY_CLOUDS_AZURE_THROTTLER_COMPUTATION_POOL_MIN_SIZE, 0),
-                        TeamCityProperties.getInteger(TEAMCITY_CLOUDS_AZURE_THROTTLER_COMPUTATION_POOL_MAX_SIZE, 5),
-                        TeamCityProperties.getInteger(TEAMCITY_CLOUDS_AZURE_THROTTLER_COMPUTATION_POOL_QUEUE_MAX_SIZE, 50)
-                    )
-            )
-            myIOSchedulerService = CloseableExecutorService(
+            myTimerSchedulerService = CloseableExecutorService(
                     serverDispatcher,
                     ServiceFactory(
                         "Azure Rx io pool",
@@ -76,21 +73,6 @@ class AzureThrottlerSchedulersProviderImpl(serverDispatcher: EventDispatcher<Bui
                         TeamCityProperties.getInteger(TEAMCITY_CLOUDS_AZURE_THROTTLER_IO_POOL_QUEUE_MAX_SIZE, 500)
                     )
             )
-            myNewThreadSchedulerService = CloseableExecutorService(
-                    serverDispatcher,
-                    ServiceFactory(
-                        "Azure Rx new thread pool",
-                        TeamCityProperties.getInteger(TEAMCITY_CLOUDS_AZURE_THROTTLER_NEW_THREAD_POOL_MIN_SIZE, 0),
-                        TeamCityProperties.getInteger(TEAMCITY_CLOUDS_AZURE_THROTTLER_NEW_THREAD_POOL_MAX_SIZE, 2),
-                        TeamCityProperties.getInteger(TEAMCITY_CLOUDS_AZURE_THROTTLER_NEW_THREAD_POOL_QUEUE_MAX_SIZE, 50)
-                    )
-            )
-            myScheduledExecutorService = CloseableExecutorService(
-                    serverDispatcher,
-                    ScheduledServiceFactory(
-                            "Azure Rx schedulers pool",
-                            TeamCityProperties.getInteger(TEAMCITY_CLOUDS_AZURE_THROTTLER_SCHEDULER_POOL_MAX_SIZE, 3))
-            )
             myDispatcherExecutorService = CloseableExecutorService(
                     serverDispatcher,
                     ServiceFactory(
@@ -101,83 +83,77 @@ class AzureThrottlerSchedulersProviderImpl(serverDispatcher: EventDispatcher<Bui
                     )
             )
 
-            myIOScheduler = Schedulers.from(myIOSchedulerService.executor)
-            myComputationScheduler = Schedulers.from(myComputationSchedulerService.executor)
-            myNewThreadUtilScheduler = Schedulers.from(myNewThreadSchedulerService.executor)
-
-            @Suppress("DEPRECATION")
-            RxJavaPlugins.getInstance().registerSchedulersHook(RxJavaSchedulersHookEx(myComputationScheduler, myIOScheduler, myNewThreadUtilScheduler))
-            RxJavaHooks.setOnComputationScheduler { myComputationScheduler }
-            RxJavaHooks.setOnIOScheduler { myIOScheduler }
-            RxJavaHooks.setOnNewThreadScheduler { myNewThreadUtilScheduler }
-            RxJavaHooks.setOnGenericScheduledExecutorService { myScheduledExecutorService.executor }
-
-            SdkContext.setRxScheduler(myIOScheduler)
-
+            myTimerScheduler = Schedulers.from(myTimerSchedulerService.executor)
             myDispatcher = myDispatcherExecutorService.executor.asCoroutineDispatcher()
+
+            // single listener for all bulkheads, they are created for every subscription in use
+            serverDispatcher.addListener(object : BuildServerAdapter() {
+                override fun serverShutdown() {
+                    closeBulkheads()
+                }
+            })
         }
 
-        override fun getReadRequestsSchedulers(): AzureThrottlerSchedulers =
-            AzureThrottlerSchedulers(Schedulers.immediate(), myComputationScheduler)
+        override fun getDispatcher(): CoroutineDispatcher = myDispatcher
 
-        override fun getActionRequestsSchedulers(): AzureThrottlerSchedulers =
-            AzureThrottlerSchedulers(myIOScheduler, myComputationScheduler)
+        override fun getTimerScheduler(): Scheduler = myTimerScheduler
 
-        override fun getDispatcher(): CoroutineDispatcher = myDispatcher
+        override fun createBulkhead(name: String): AzureThrottlerBulkhead =
+            BulkheadImpl(name, myTimerScheduler) { myBulkheads.remove(it) }.also { myBulkheads.add(it) }
 
         override fun close() {
-            myComputationSchedulerService.close()
-            myIOSchedulerService.close()
-            myNewThreadSchedulerService.close()
-            myScheduledExecutorService.close()
+            closeBulkheads()
+            myTimerSchedulerService.close()
             myDispatcher.close()
             myDispatcherExecutorService.close()
         }
 
-        private class CloseableScheduledExecutorService(serverDispatcher: EventDispatcher<BuildServerListener>, poolName: String, poolSize: Int) : Closeable {
-            private var myCloseable: Closeable
-            public val executor: ScheduledExecutorService
+        private fun closeBulkheads() {
+            myBulkheads.toList().forEach { it.close() }
+        }
 
-            init {
-                executor = ExecutorsFactory.newFixedScheduledDaemonExecutor(poolName, poolSize)
-                myCloseable = Closeable { ThreadUtil.shutdownGracefully(executor, poolName) }
+        private class BulkheadImpl(name: String, private val timerScheduler: Scheduler, private val onClose: (BulkheadImpl) -> Unit) : AzureThrottlerBulkhead {
+            private val myExecutorService = CloseableExecutorService(
+                    null,
+                    ServiceFactory(
+                            "Azure Rx requests pool ($name)",
+                            TeamCityProperties.getInteger(TEAMCITY_CLOUDS_AZURE_THROTTLER_PROFILE_POOL_MIN_SIZE, 0),
+                            TeamCityProperties.getInteger(TEAMCITY_CLOUDS_AZURE_THROTTLER_PROFILE_POOL_MAX_SIZE, 5),
+                            TeamCityProperties.getInteger(TEAMCITY_CLOUDS_AZURE_THROTTLER_PROFILE_POOL_QUEUE_MAX_SIZE, 200)
+                    )
+            )
+            private val myScheduler = Schedulers.from(myExecutorService.executor)
 
-                serverDispatcher.addListener(object : BuildServerAdapter() {
-                    override fun serverShutdown() {
-                        myCloseable.close()
-                    }
-                })
-            }
+            override fun getScheduler(): Scheduler = myScheduler
 
-            override fun close() = myCloseable.close()
-        }
+            // timeouts are scheduled on the shared timer pool, so they fire even when the requests pool is exhausted
+            override fun getReadRequestsSchedulers(): AzureThrottlerSchedulers =
+                AzureThrottlerSchedulers(Schedulers.immediate(), timerScheduler, timerScheduler)
 
-        private interface ExecutorServiceFectory<T : ExecutorService> {
-            val name: String
-            fun create() : T
-        }
+            override fun getActionRequestsSchedulers(): AzureThrottlerSchedulers =
+                AzureThrottlerSchedulers(myScheduler, timerScheduler, timerScheduler)
 
-        private class ScheduledServiceFactory(override val name: String, val poolSize: Int): ExecutorServiceFectory<ScheduledExecutorService> {
-            override fun create(): ScheduledExecutorService {
-                return ExecutorsFactory.newFixedScheduledDaemonExecutor(name, poolSize)
+            override fun close() {
+                onClose(this)
+                myExecutorService.close()
             }
         }
 
-        private class ServiceFactory(override val name: String, val minPoolSize: Int, val maxPoolSize: Int, val maxQueueSize: Int): ExecutorServiceFectory<ExecutorService> {
-            override fun create(): ExecutorService {
+        private class ServiceFactory(val name: String, val minPoolSize: Int, val maxPoolSize: Int, val maxQueueSize: Int) {
+            fun create(): ExecutorService {
                 return ExecutorsFactory.newFixedDaemonExecutor(name, minPoolSize, maxPoolSize, maxQueueSize)
             }
         }
 
-        private class CloseableExecutorService<T : ExecutorService>(serverDispatcher: EventDispatcher<BuildServerListener>, factory: ExecutorServiceFectory<T>) : Closeable {
+        private class CloseableExecutorService(serverDispatcher: EventDispatcher<BuildServerListener>?, factory: ServiceFactory) : Closeable {
             private var myCloseable: Closeable
-            public val executor: T
+            public val executor: ExecutorService
 
             init {
                 executor = factory.create()
                 myCloseable = Closeable { ThreadUtil.shutdownGracefully(executor, factory.name) }
 
-                serverDispatcher.addListener(object : BuildServerAdapter() {
+                serverDispatcher?.addListener(object : BuildServerAdapter() {
                     override fun serverShutdown() {
                         myCloseable.close()
                     }
@@ -186,23 +162,5 @@ class AzureThrottlerSchedulersProviderImpl(serverDispatcher: EventDispatcher<Bui
 
             override fun close() = myCloseable.close()
         }
-
-        private class RxJavaSchedulersHookEx(
-                private val computationScheduler: Scheduler,
-                private val ioScheduler: Scheduler,
-                private val newThreadScheduler: Scheduler
-        ) : RxJavaSchedulersHook() {
-            override fun getComputationScheduler(): Scheduler {
-                return computationScheduler
-            }
-
-            override fun getIOScheduler(): Scheduler {
-                return ioScheduler
-            }
-
-            override fun getNewThreadScheduler(): Scheduler {
-                return newThreadScheduler
-            }
-        }
     }
 }
@@ -4,16 +4,18 @@ import java.time.Clock
 import java.time.LocalDateTime
 import java.util.concurrent.ConcurrentLinkedQueue
 
-class AzureThrottlerTaskQueueCallHistoryImpl : AzureThrottlerTaskQueueCallHistory {
+class AzureThrottlerTaskQueueCallHistoryImpl(
+        private val clock: Clock = Clock.systemUTC()
+) : AzureThrottlerTaskQueueCallHistory {
     private val historyTable = ConcurrentLinkedQueue<HistoryItem>()
 
     override fun addRequestCall() {
-        historyTable.add(HistoryItem(LocalDateTime.now(Clock.systemUTC()), true, null))
+        historyTable.add(HistoryItem(LocalDateTime.now(clock), true, null))
         cleanup()
     }
 
     override fun addExecutionCall(readsCount: Long?) {
-        historyTable.add(HistoryItem(LocalDateTime.now(Clock.systemUTC()), false, readsCount))
+        historyTable.add(HistoryItem(LocalDateTime.now(clock), false, readsCount))
         cleanup()
     }
 
@@ -32,7 +34,7 @@ class AzureThrottlerTaskQueueCallHistoryImpl : AzureThrottlerTaskQueueCallHistor
     }
 
     private fun cleanup() {
-        val currentDate = LocalDateTime.now(Clock.systemUTC()).minusHours(1)
+        val currentDate = LocalDateTime.now(clock).minusHours(1)
         historyTable.removeAll(historyTable.filter { it.dateTime < currentDate })
     }
 
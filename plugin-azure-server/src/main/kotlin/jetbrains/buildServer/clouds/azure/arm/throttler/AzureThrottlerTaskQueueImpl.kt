@@ -24,11 +24,12 @@ class AzureThrottlerTaskQueueImpl<A, I, P, T>(
         taskExecutionTimeType: AzureThrottlerTaskTimeExecutionType,
         private val defaultCacheTimeoutInSeconds: Long,
         private val taskCompletionResultNotifier: AzureThrottlerTaskCompletionResultNotifier,
-        private val requestScheduler: Scheduler
+        private val requestScheduler: Scheduler,
+        private val clock: Clock = Clock.systemUTC()
 ) : AzureThrottlerTaskQueue<I, P, T> {
     private val myLastUpdatedDateTime = AtomicReference<LocalDateTime>(LocalDateTime.MIN)
     private val myCacheTimeoutInSeconds = AtomicLong(defaultCacheTimeoutInSeconds)
-    private val myCallHistory = AzureThrottlerTaskQueueCallHistoryImpl()
+    private val myCallHistory = AzureThrottlerTaskQueueCallHistoryImpl(clock)
     private var myTaskTimeExecutionType = AtomicReference(taskExecutionTimeType)
     private val myEnableRetryOnThrottle = AtomicBoolean(false)
     private val mySubscriptions = SubscriptionList()
@@ -51,7 +52,7 @@ class AzureThrottlerTaskQueueImpl<A, I, P, T>(
 
     override fun executeNext(): Boolean {
         val retryAfterTime = myRetryAfterTime.get()
-        if (retryAfterTime != null && retryAfterTime.isAfter(LocalDateTime.now(Clock.systemUTC())))
+        if (retryAfterTime != null && retryAfterTime.isAfter(LocalDateTime.now(clock)))
             return false
 
         var batch = requestQueue.extractNextBatch()
@@ -65,7 +66,7 @@ class AzureThrottlerTaskQueueImpl<A, I, P, T>(
     override fun requestTask(flow: AzureThrottlerFlow, parameters: P): Single<AzureThrottlerAdapterResult<T>> {
         myCallHistory.addRequestCall()
 
-        var timeToStart = LocalDateTime.now(Clock.systemUTC())
+        var timeToStart = LocalDateTime.now(clock)
         if (task is AzureThrottlerCacheableTask<A, P, T>) {
             LOG.debug("[$name] Trying to get data from cache for task $taskId, mode $flow.")
             val cacheValue = task.getFromCache(parameters)
@@ -87,7 +88,9 @@ class AzureThrottlerTaskQueueImpl<A, I, P, T>(
                             parameters,
                             subject,
                             true,
-                            true
+                            true,
+                            0,
+                            timeToStart
                     )
                 }
                 LOG.debug("[$name] Returning value from cache for task $taskId, mode $flow.")
@@ -103,7 +106,9 @@ class AzureThrottlerTaskQueueImpl<A, I, P, T>(
                 parameters,
                 subject,
                 false,
-                true)
+                true,
+                0,
+                timeToStart)
         return subject.toSingle()
     }
 
@@ -134,7 +139,7 @@ class AzureThrottlerTaskQueueImpl<A, I, P, T>(
     }
 
     override fun notifyRateLimitReached(retryAfterTimeoutInSeconds: Long) {
-        myRetryAfterTime.set(LocalDateTime.now(Clock.systemUTC()).plusSeconds(retryAfterTimeoutInSeconds));
+        myRetryAfterTime.set(LocalDateTime.now(clock).plusSeconds(retryAfterTimeoutInSeconds));
     }
 
     override fun notifyCompleted(performedRequests: Boolean) {
@@ -174,7 +179,7 @@ class AzureThrottlerTaskQueueImpl<A, I, P, T>(
                 .execute { api, taskContext -> task.create(api, taskContext, requestBatch.parameter) }
                 .subscribeOn(requestScheduler)
                 .doOnSuccess {
-                    myLastUpdatedDateTime.set(LocalDateTime.now(Clock.systemUTC()))
+                    myLastUpdatedDateTime.set(LocalDateTime.now(clock))
                     myCallHistory.addExecutionCall(it.requestsCount)
                     taskCompletionResultNotifier.notifyCompleted((it.requestsCount ?: 0) > 0)
 
@@ -192,7 +197,7 @@ class AzureThrottlerTaskQueueImpl<A, I, P, T>(
                         myCallHistory.addExecutionCall(error.requestSequenceLength)
                         taskCompletionResultNotifier.notifyRateLimitReached(error.retryAfterTimeoutInSeconds)
 
-                        val taskLiveTime = LocalDateTime.now(Clock.systemUTC()).toEpochSecond(ZoneOffset.UTC) - requestBatch.getMinCreatedDate().toEpochSecond(ZoneOffset.UTC)
+                        val taskLiveTime = LocalDateTime.now(clock).toEpochSecond(ZoneOffset.UTC) - requestBatch.getMinCreatedDate().toEpochSecond(ZoneOffset.UTC)
                         if (taskLiveTime >= getMaxTaskLiveTimeInSeconds()) {
                             val throttlerError = ThrottlerMaxTaskLiveException("Task $taskId has not been executed for $taskLiveTime sec", error)
                             LOG.warnAndDebugDetails("[$name] Task $taskId has not been executed for $taskLiveTime sec", throttlerError)
@@ -211,7 +216,7 @@ class AzureThrottlerTaskQueueImpl<A, I, P, T>(
                                 }
                             }
 
-                            val timeToStart = LocalDateTime.now(Clock.systemUTC()).plusSeconds(error.retryAfterTimeoutInSeconds)
+                            val timeToStart = LocalDateTime.now(clock).plusSeconds(error.retryAfterTimeoutInSeconds)
                             LOG.warn("[$name] Retry task $taskId due to Rate limit exception. Attempt no: ${requestBatch.getMaxAttempNo() + 1}. Time to start: $timeToStart")
                             requestQueue.addRequest(
                                     timeToStart,
@@ -259,7 +264,7 @@ class AzureThrottlerTaskQueueImpl<A, I, P, T>(
         return 0
     }
 
-    private fun isTimeToUpdate() = myLastUpdatedDateTime.get().plusSeconds(myCacheTimeoutInSeconds.get()) <= LocalDateTime.now(Clock.systemUTC())
+    private fun isTimeToUpdate() = myLastUpdatedDateTime.get().plusSeconds(myCacheTimeoutInSeconds.get()) <= LocalDateTime.now(clock)
 
     companion object {
         private val LOG = Logger.getInstance(AzureThrottlerTaskQueueImpl::class.java.name)
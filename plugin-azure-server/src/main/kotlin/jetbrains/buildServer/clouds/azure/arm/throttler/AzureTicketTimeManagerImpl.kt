@@ -1,21 +1,27 @@
 package jetbrains.buildServer.clouds.azure.arm.throttler
 
+import java.time.Clock
 import java.time.Duration
 import java.time.LocalDateTime
-import java.time.ZoneOffset
 import java.time.temporal.ChronoUnit
 import java.util.concurrent.atomic.AtomicReference
 
-class AzureTicketTimeManagerImpl : AzureTicketTimeManager {
+class AzureTicketTimeManagerImpl(
+    private val clock: Clock
+) : AzureTicketTimeManager {
     private val myOperationDelay = Duration.of(400, ChronoUnit.MILLIS)
     private val myNextOperationOffset = AtomicReference<LocalDateTime>(LocalDateTime.MIN)
+
+    constructor(schedulersProvider: AzureThrottlerSchedulersProvider) : this(AzureSchedulerClock(schedulersProvider.getTimerScheduler()))
+
     override fun getTicket(corellationId: String): AzureOperationTicket =
-        AzureOperationTicket(corellationId, LocalDateTime.now(ZoneOffset.UTC), LocalDateTime.now(ZoneOffset.UTC), reserveNextOperationOffset())
+        AzureOperationTicket(corellationId, LocalDateTime.now(clock), LocalDateTime.now(clock), reserveNextOperationOffset())
+
     private fun reserveNextOperationOffset(): LocalDateTime {
         var nextSlot: LocalDateTime
         var resultSlot: LocalDateTime
         do {
-            val currentDateTime = LocalDateTime.now(ZoneOffset.UTC)
+            val currentDateTime = LocalDateTime.now(clock)
             val slot = myNextOperationOffset.get()
             resultSlot = if (currentDateTime > slot) currentDateTime else slot
             nextSlot = resultSlot.plus(myOperationDelay)
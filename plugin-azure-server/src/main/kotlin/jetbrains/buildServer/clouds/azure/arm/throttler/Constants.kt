@@ -42,27 +42,23 @@ const val TEAMCITY_CLOUDS_AZURE_TASKS_DELETEDEPLOYMENT_USE_MILTITHREAD_POLLING =
 const val TEAMCITY_CLOUDS_AZURE_TASKS_DELETEDEPLOYMENT_USE_PROVIDER_CACHE = "teamcity.clouds.azure.tasks.deletedeployment.useProviderCache"
 const val TEAMCITY_CLOUDS_AZURE_TASKS_DELETEDEPLOYMENT_DELETE_VM_FIRST_ON_ANY_FAIL = "teamcity.clouds.azure.tasks.deletedeployment.deleteVmFirstOnAnyFail"
 const val TEAMCITY_CLOUDS_AZURE_TASKS_CTREATEDEPLOYMENT_USE_MILTITHREAD_POLLING = "teamcity.clouds.azure.tasks.createdeployment.useMultitreadPolling"
+const val TEAMCITY_CLOUDS_AZURE_TASKS_CREATEDEPLOYMENT_SHARED_WATCHER_ENABLE = "teamcity.clouds.azure.tasks.createdeployment.sharedWatcher.enable"
+const val TEAMCITY_CLOUDS_AZURE_TASKS_CREATEDEPLOYMENT_WATCHER_INTERVAL_MS = "teamcity.clouds.azure.tasks.createdeployment.watcher.interval.ms"
 
 const val TEAMCITY_CLOUDS_AZURE_THROTTLER_USE_OLD_SCHEDULERS = "teamcity.clouds.azure.throttler.use.old.schedulers"
 
-const val TEAMCITY_CLOUDS_AZURE_THROTTLER_COMPUTATION_POOL_MAX_SIZE = "teamcity.clouds.azure.throttler.computation.pool.max.size"
-const val TEAMCITY_CLOUDS_AZURE_THROTTLER_COMPUTATION_POOL_MIN_SIZE = "teamcity.clouds.azure.throttler.computation.pool.min.size"
-const val TEAMCITY_CLOUDS_AZURE_THROTTLER_COMPUTATION_POOL_QUEUE_MAX_SIZE = "teamcity.clouds.azure.throttler.computation.pool.queue.max.size"
-
 const val TEAMCITY_CLOUDS_AZURE_THROTTLER_IO_POOL_MAX_SIZE = "teamcity.clouds.azure.throttler.io.pool.max.size"
 const val TEAMCITY_CLOUDS_AZURE_THROTTLER_IO_POOL_MIN_SIZE = "teamcity.clouds.azure.throttler.io.pool.min.size"
 const val TEAMCITY_CLOUDS_AZURE_THROTTLER_IO_POOL_QUEUE_MAX_SIZE = "teamcity.clouds.azure.throttler.io.pool.queue.max.size"
 
-const val TEAMCITY_CLOUDS_AZURE_THROTTLER_NEW_THREAD_POOL_MAX_SIZE = "teamcity.clouds.azure.throttler.new.thread.pool.max.size"
-const val TEAMCITY_CLOUDS_AZURE_THROTTLER_NEW_THREAD_POOL_MIN_SIZE = "teamcity.clouds.azure.throttler.new.thread.pool.min.size"
-const val TEAMCITY_CLOUDS_AZURE_THROTTLER_NEW_THREAD_POOL_QUEUE_MAX_SIZE = "teamcity.clouds.azure.throttler.new.thread.pool.queue.max.size"
+const val TEAMCITY_CLOUDS_AZURE_THROTTLER_PROFILE_POOL_MAX_SIZE = "teamcity.clouds.azure.throttler.profile.pool.max.size"
+const val TEAMCITY_CLOUDS_AZURE_THROTTLER_PROFILE_POOL_MIN_SIZE = "teamcity.clouds.azure.throttler.profile.pool.min.size"
+const val TEAMCITY_CLOUDS_AZURE_THROTTLER_PROFILE_POOL_QUEUE_MAX_SIZE = "teamcity.clouds.azure.throttler.profile.pool.queue.max.size"
 
 const val TEAMCITY_CLOUDS_AZURE_THROTTLER_DISPATCHER_POOL_MAX_SIZE = "teamcity.clouds.azure.throttler.dispatcher.pool.max.size"
 const val TEAMCITY_CLOUDS_AZURE_THROTTLER_DISPATCHER_POOL_MIN_SIZE = "teamcity.clouds.azure.throttler.dispatcher.pool.min.size"
 const val TEAMCITY_CLOUDS_AZURE_THROTTLER_DISPATCHER_POOL_QUEUE_MAX_SIZE = "teamcity.clouds.azure.throttler.dispatcher.pool.queue.max.size"
 
-const val TEAMCITY_CLOUDS_AZURE_THROTTLER_SCHEDULER_POOL_MAX_SIZE = "teamcity.clouds.azure.throttler.scheduler.pool.max.size"
-
 const val TEAMCITY_CLOUDS_AZURE_THROTTLER_GLOBAL_SYNC_DISABLE = "teamcity.clouds.azure.throttler.global.sync.disable"
 const val TEAMCITY_CLOUDS_AZURE_THROTTLER_TIMEMANAGER_NEW_THROTTLING_MODEL_DISABLE = "teamcity.clouds.azure.throttler.new.model.disable"
 const val TEAMCITY_CLOUDS_AZURE_THROTTLER_TIMEMANAGER_BUCKET_SIZE = "teamcity.clouds.azure.throttler.timeManager.bucket.size"
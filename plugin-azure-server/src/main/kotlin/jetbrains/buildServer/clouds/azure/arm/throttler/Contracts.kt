@@ -8,7 +8,6 @@ import rx.subjects.Subject
 import java.time.Clock
 import java.time.Duration
 import java.time.LocalDateTime
-import java.time.ZoneOffset
 import java.time.temporal.ChronoUnit
 import java.util.concurrent.TimeUnit
 
@@ -196,7 +195,7 @@ data class AzureOperationTicket(
     val startTime: LocalDateTime,
 ) {
     fun getOffset() : Duration =
-        Duration.ofMillis(Math.max(ChronoUnit.MILLIS.between(LocalDateTime.now(ZoneOffset.UTC), startTime), 0))
+        Duration.ofMillis(Math.max(ChronoUnit.MILLIS.between(timestamp, startTime), 0))
 }
 
 interface AzureTimeManagerFactory {
@@ -23,22 +23,29 @@ class AzureContainerHandler(private val connector: AzureApiConnector) : AzureHan
         details.checkCustomEnvironmentVariables(exceptions)
         details.checkCustomTags(exceptions)
         details.checkServiceExistence("Microsoft.ContainerInstance", connector, exceptions)
+        details.checkContainerGroupSize(exceptions)
 
         exceptions
     }
 
-    override suspend fun prepareBuilder(instance: AzureCloudInstance) = coroutineScope {
-        val details = instance.image.imageDetails
+    override suspend fun prepareBuilder(instance: AzureCloudInstance) = prepareGroupBuilder(instance.name, listOf(instance))
+
+    /**
+     * Prepares deployment of a container group which runs an agent container per instance.
+     */
+    suspend fun prepareGroupBuilder(groupName: String, instances: List<AzureCloudInstance>) = coroutineScope {
+        val details = instances.first().image.imageDetails
         val template = AzureUtils.getResourceAsString("/templates/container-template.json")
         val builder = ArmTemplateBuilder(template)
+        val environmentVariables = parseEnvironmentVariables(details.customEnvironmentVariables)
 
-        builder.setParameterValue("containerName", instance.name)
+        builder.setParameterValue("containerName", groupName)
                 .setParameterValue(AzureConstants.IMAGE_ID, details.imageId!!.trim())
                 .setParameterValue(AzureConstants.OS_TYPE, details.osType!!)
                 .setParameterValue(AzureConstants.NUMBER_CORES, details.numberCores!!)
                 .setParameterValue(AzureConstants.MEMORY, details.memory!!)
-                .addContainer(instance.name, parseEnvironmentVariables(details.customEnvironmentVariables))
                 .apply {
+                    instances.forEach { addContainer(it.name, environmentVariables) }
                     if (!details.registryUsername.isNullOrEmpty() && !details.password.isNullOrEmpty()) {
                         val server = getImageServer(details.imageId)
                         addContainerCredentials(server, details.registryUsername.trim(), details.password!!.trim())
@@ -52,9 +59,21 @@ class AzureContainerHandler(private val connector: AzureApiConnector) : AzureHan
     }
 
     override suspend fun getImageHash(details: AzureCloudImageDetails) = coroutineScope {
-        Integer.toHexString(details.imageId!!.hashCode())!!
+        AzureUtils.getContentHash(mapOf(
+                "type" to details.type.name,
+                "imageId" to details.imageId!!.trim(),
+                "osType" to details.osType,
+                "numberCores" to details.numberCores,
+                "memory" to details.memory,
+                "customEnvironmentVariables" to details.customEnvironmentVariables,
+                "registryUsername" to details.registryUsername,
+                "networkId" to details.networkId,
+                "subnetId" to details.subnetId
+        ))
     }
 
+    override fun getLegacyImageHash(details: AzureCloudImageDetails) = Integer.toHexString(details.imageId!!.hashCode())!!
+
     private fun getImageServer(imageId: String): String {
         return hostMatcher.find(imageId)?.let {
             val (server) = it.destructured
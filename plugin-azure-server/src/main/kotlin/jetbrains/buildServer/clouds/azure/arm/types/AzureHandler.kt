@@ -9,4 +9,9 @@ interface AzureHandler {
     suspend fun checkImage(image: AzureCloudImage): List<Throwable>
     suspend fun prepareBuilder(instance: AzureCloudInstance): ArmTemplateBuilder
     suspend fun getImageHash(details: AzureCloudImageDetails): String
+
+    /**
+     * Returns hash which was used by previous plugin versions, instances tagged by it are still treated as up-to-date.
+     */
+    fun getLegacyImageHash(details: AzureCloudImageDetails): String? = null
 }
@@ -13,8 +13,11 @@ import jetbrains.buildServer.clouds.azure.arm.utils.AzureUtils
 import jetbrains.buildServer.clouds.base.errors.CheckedCloudException
 import jetbrains.buildServer.serverSide.TeamCityProperties
 import kotlinx.coroutines.coroutineScope
+import java.util.concurrent.ConcurrentHashMap
 
 class AzureImageHandler(private val connector: AzureApiConnector) : AzureHandler {
+    private val myLatestImageVersions = ConcurrentHashMap<String, String>()
+
     @Suppress("UselessCallOnNotNull")
     override suspend fun checkImage(image: AzureCloudImage) = coroutineScope {
         val exceptions = ArrayList<Throwable>()
@@ -81,10 +84,50 @@ class AzureImageHandler(private val connector: AzureApiConnector) : AzureHandler
     }
 
     override suspend fun getImageHash(details: AzureCloudImageDetails) = coroutineScope {
-        Integer.toHexString(details.imageId!!.hashCode())!!
+        val imageId = details.imageId!!
+        AzureUtils.getContentHash(mapOf(
+                "type" to details.type.name,
+                "imageId" to imageId.lowercase(),
+                // gallery "latest" reference is resolved to detect publishing of new image versions
+                "imageVersion" to getLatestImageVersion(imageId)?.lowercase(),
+                "osType" to details.osType,
+                "vmSize" to details.vmSize,
+                "storageAccountType" to details.storageAccountType,
+                "networkId" to details.networkId,
+                "subnetId" to details.subnetId,
+                "vmPublicIp" to details.vmPublicIp,
+                "username" to details.username,
+                "spotVm" to details.spotVm,
+                "enableSpotPrice" to details.enableSpotPrice,
+                "spotPrice" to details.spotPrice,
+                "enableAcceleratedNetworking" to details.enableAcceleratedNetworking,
+                "userAssignedIdentity" to details.userAssignedIdentity,
+                "enableSystemAssignedIdentity" to details.enableSystemAssignedIdentity
+        ))
+    }
+
+    private suspend fun getLatestImageVersion(imageId: String): String? {
+        if (!isUnversionedGalleryImage(imageId)) return null
+
+        return try {
+            connector.getLatestImageVersion(imageId)?.also { myLatestImageVersions[imageId] = it }
+        } catch (e: Throwable) {
+            // previously resolved version keeps the image hash when images could not be fetched,
+            // without it the hash could not be computed since it would not match hash of existing instances
+            val version = myLatestImageVersions[imageId] ?: throw e
+            LOG.debug("Failed to get latest version of image $imageId, using previously resolved version $version", e)
+            version
+        }
     }
 
+    override fun getLegacyImageHash(details: AzureCloudImageDetails) = Integer.toHexString(details.imageId!!.hashCode())!!
+
     companion object {
         private val LOG = Logger.getInstance(AzureImageHandler::class.java.name)
+
+        private fun isUnversionedGalleryImage(imageId: String): Boolean {
+            val id = imageId.lowercase()
+            return id.contains("/galleries/") && !id.contains("/versions/")
+        }
     }
 }
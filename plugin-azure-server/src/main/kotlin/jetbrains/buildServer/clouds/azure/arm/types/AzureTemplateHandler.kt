@@ -39,9 +39,15 @@ class AzureTemplateHandler(private val connector: AzureApiConnector) : AzureHand
     }
 
     override suspend fun getImageHash(details: AzureCloudImageDetails) = coroutineScope {
-        Integer.toHexString(details.template!!.hashCode())!!
+        AzureUtils.getContentHash(mapOf(
+                "type" to details.type.name,
+                "template" to details.template!!,
+                "disableTemplateModification" to details.disableTemplateModification
+        ))
     }
 
+    override fun getLegacyImageHash(details: AzureCloudImageDetails) = Integer.toHexString(details.template!!.hashCode())!!
+
     companion object {
         internal val LOG = Logger.getInstance(AzureTemplateHandler::class.java.name)
     }
@@ -4,6 +4,7 @@ import com.fasterxml.jackson.databind.node.ArrayNode
 import com.fasterxml.jackson.databind.node.ObjectNode
 import jetbrains.buildServer.clouds.azure.arm.AzureCloudDeployTarget
 import jetbrains.buildServer.clouds.azure.arm.AzureCloudImageDetails
+import jetbrains.buildServer.clouds.azure.arm.AzureConstants
 import jetbrains.buildServer.clouds.azure.arm.connector.AzureApiConnector
 import jetbrains.buildServer.clouds.azure.arm.throttler.ThrottlerExecutionTaskException
 import jetbrains.buildServer.clouds.azure.arm.utils.AzureUtils
@@ -56,6 +57,14 @@ fun AzureCloudImageDetails.checkCustomTags(errors: MutableList<Throwable>) {
     }
 }
 
+fun AzureCloudImageDetails.checkContainerGroupSize(errors: MutableList<Throwable>) {
+    containerGroupSize?.let {
+        if (it < 1 || it > AzureConstants.MAX_CONTAINER_GROUP_SIZE) {
+            errors.add(CheckedCloudException("Number of agents per container group should be between 1 and ${AzureConstants.MAX_CONTAINER_GROUP_SIZE}"))
+        }
+    }
+}
+
 fun AzureCloudImageDetails.checkTemplate(exceptions: ArrayList<Throwable>) {
     if (template == null || template.isNullOrEmpty()) {
         exceptions.add(CheckedCloudException("Template is empty"))
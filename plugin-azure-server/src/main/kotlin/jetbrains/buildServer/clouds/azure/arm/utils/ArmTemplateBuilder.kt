@@ -2,9 +2,11 @@ package jetbrains.buildServer.clouds.azure.arm.utils
 
 import com.fasterxml.jackson.core.JsonParser
 import com.fasterxml.jackson.core.JsonProcessingException
+import com.fasterxml.jackson.databind.JsonNode
 import com.fasterxml.jackson.databind.ObjectMapper
 import com.fasterxml.jackson.databind.node.ArrayNode
 import com.fasterxml.jackson.databind.node.ObjectNode
+import com.fasterxml.jackson.databind.node.POJONode
 import com.intellij.openapi.diagnostic.Logger
 import jetbrains.buildServer.clouds.azure.arm.AzureConstants
 import jetbrains.buildServer.clouds.azure.arm.connector.models.JsonValue
@@ -54,6 +56,18 @@ class ArmTemplateBuilder(template: String, private val disableTemplateModificati
 
     fun setVMTags(tags: Map<String, String>): ArmTemplateBuilder {
         if (!disableTemplateModification) {
+            // network resources are tagged as well to be able to find them if virtual machine has gone
+            val networkTags = tags + (AzureConstants.TAG_INSTANCE to "[parameters('vmName')]")
+            val resources = root["resources"] as ArrayNode
+            for (index in 0 until resources.size()) {
+                // resources added as POJO should be converted to be modified
+                val resource = resources[index] as? POJONode ?: continue
+                resources.set(index, mapper.valueToTree<JsonNode>(resource.pojo))
+            }
+            resources.filterIsInstance<ObjectNode>()
+                    .filter { NETWORK_RESOURCE_NAMES.contains(it["name"]?.asText()) }
+                    .map { it["name"].asText() }
+                    .forEach { setTags(it, networkTags) }
             return setTags("[parameters('vmName')]", tags)
         }
         tags.entries.forEach { (name, value) -> setParameterValue(name, value) }
@@ -282,11 +296,11 @@ class ArmTemplateBuilder(template: String, private val disableTemplateModificati
     }
 
     @Suppress("unused", "MayBeConstant")
-    fun addContainerVolumes(resourceName: String, name: String): ArmTemplateBuilder {
+    fun addContainerVolumes(resourceName: String, name: String, containerName: String? = null): ArmTemplateBuilder {
         val properties = getPropertiesOfResource(resourceName)
         val containers = containersFromProperties(properties)
 
-        (containers.firstOrNull() as? ObjectNode)?.let {
+        findContainer(containers, containerName)?.let {
             val props = (it["properties"] as? ObjectNode) ?: it.putObject("properties")
             val volumeMounts = (props["volumeMounts"] as? ArrayNode) ?: props.putArray("volumeMounts")
             volumeMounts.addPOJO(object {
@@ -340,12 +354,19 @@ class ArmTemplateBuilder(template: String, private val disableTemplateModificati
     private fun containersFromProperties(properties: ObjectNode) =
             (properties["containers"] as? ArrayNode) ?: properties.putArray("containers")
 
+    private fun findContainer(containers: ArrayNode, containerName: String?) =
+            if (containerName == null) {
+                containers.firstOrNull() as? ObjectNode
+            } else {
+                containers.filterIsInstance<ObjectNode>().firstOrNull { it["name"]?.asText() == containerName }
+            }
+
     @Suppress("unused")
-    fun addContainerEnvironment(resourceName: String, environment: Map<String, String>): ArmTemplateBuilder {
+    fun addContainerEnvironment(resourceName: String, environment: Map<String, String>, containerName: String? = null): ArmTemplateBuilder {
         val properties = getPropertiesOfResource(resourceName)
-        val containers = (properties["containers"] as? ArrayNode) ?: properties.putArray("containers")
+        val containers = containersFromProperties(properties)
 
-        (containers.firstOrNull() as? ObjectNode)?.let {
+        findContainer(containers, containerName)?.let {
             val props = (it["properties"] as? ObjectNode) ?: it.putObject("properties")
             val envVars = (props["environmentVariables"] as? ArrayNode) ?: props.putArray("environmentVariables")
             environment.forEach {
@@ -448,5 +469,6 @@ class ArmTemplateBuilder(template: String, private val disableTemplateModificati
     companion object {
         private val LOG = Logger.getInstance(ArmTemplateBuilder::class.java.name)
         private val PRICE_DIVIDER = 100000F
+        private val NETWORK_RESOURCE_NAMES = setOf("[variables('nicName')]", "[variables('pipName')]")
     }
 }
@@ -12,6 +12,7 @@ import jetbrains.buildServer.clouds.azure.arm.AzureCloudImageType
 import jetbrains.buildServer.util.ExceptionUtil
 import jetbrains.buildServer.util.StringUtil
 import org.apache.commons.codec.binary.Base64
+import org.apache.commons.codec.digest.DigestUtils
 import org.springframework.util.StringUtils
 import java.io.IOException
 
@@ -48,6 +49,13 @@ object AzureUtils {
         }
     }
 
+    /**
+     * Computes SHA-256 hash over canonical form of values which does not depend on their order.
+     */
+    fun getContentHash(values: Map<String, Any?>): String {
+        return DigestUtils.sha256Hex(mapper.writeValueAsString(values.toSortedMap()))
+    }
+
     fun customEnvironmentVariableSyntaxIsValid(envVar: String): Boolean {
         return envVar.matches(ENVIRONMENT_VARIABLE_REGEX)
     }
@@ -0,0 +1,184 @@
+package jetbrains.buildServer.clouds.azure.arm.web
+
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.clouds.azure.arm.AzureConstants
+import jetbrains.buildServer.clouds.azure.arm.connector.AzureApiConnector
+import jetbrains.buildServer.clouds.azure.arm.connector.AzureApiConnectorFactory
+import jetbrains.buildServer.clouds.azure.arm.connector.AzureApiVMInstance
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import org.apache.commons.codec.digest.DigestUtils
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Keeps API connectors used by the profile settings page.
+ *
+ * Connectors are keyed by credentials hash and subscription and are periodically disposed when idle.
+ * Read results of a connector are shared between concurrent handlers and cached for a short time.
+ */
+internal class SettingsConnectorCache(
+        private val myApiConnectorFactory: AzureApiConnectorFactory,
+        private val myTimeSource: () -> Long = System::currentTimeMillis,
+        private val myEvictionIntervalMs: Long = EVICTION_INTERVAL_MS
+) {
+    private val myConnectors = ConcurrentHashMap<String, CachingApiConnector>()
+    private val myScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+    init {
+        myScope.launch {
+            while (isActive) {
+                delay(myEvictionIntervalMs)
+                evictIdle(myTimeSource())
+            }
+        }
+    }
+
+    fun getConnector(properties: Map<String, String>): AzureApiConnector {
+        val now = myTimeSource()
+        evictIdle(now)
+
+        val key = getKey(properties)
+        // access time is refreshed atomically with the lookup, so eviction could not dispose returned connector
+        return myConnectors.compute(key) { _, existing ->
+            val connector = existing ?: createConnector(properties)
+            connector.lastAccessTime = now
+            connector
+        }!!
+    }
+
+    /**
+     * Disposes all connectors, the cache could not be used after that.
+     */
+    fun dispose() {
+        myScope.cancel()
+        for ((key, connector) in myConnectors) {
+            if (myConnectors.remove(key, connector)) {
+                connector.dispose()
+            }
+        }
+    }
+
+    private fun createConnector(properties: Map<String, String>): CachingApiConnector {
+        LOG.debug("Creating settings connector for subscription ${properties[AzureConstants.SUBSCRIPTION_ID]}")
+        val connector = myApiConnectorFactory.create(properties, null)
+        connector.start()
+        return CachingApiConnector(connector, myScope, myTimeSource)
+    }
+
+    private fun evictIdle(now: Long) {
+        val idleTimeout = TeamCityProperties.getLong(AzureConstants.PROP_SETTINGS_CONNECTOR_IDLE_TIMEOUT_MS, DEFAULT_IDLE_TIMEOUT_MS)
+        for (key in myConnectors.keys) {
+            var evicted: CachingApiConnector? = null
+            myConnectors.computeIfPresent(key) { _, connector ->
+                if (connector.isIdle(now, idleTimeout)) {
+                    evicted = connector
+                    null
+                } else {
+                    connector
+                }
+            }
+            evicted?.let {
+                LOG.debug("Disposing idle settings connector $key")
+                it.dispose()
+            }
+        }
+    }
+
+    private class ResultEntry(val result: Deferred<Any?>, val creationTime: Long) {
+        fun isExpired(now: Long, ttl: Long) = result.isCompleted && now - creationTime > ttl
+    }
+
+    /**
+     * Connector which shares in-flight read requests and caches their results.
+     */
+    private class CachingApiConnector(
+            private val myConnector: AzureApiConnector,
+            private val myScope: CoroutineScope,
+            private val myTimeSource: () -> Long
+    ) : AzureApiConnector by myConnector {
+        private val myResults = ConcurrentHashMap<String, ResultEntry>()
+        private val myActiveCalls = AtomicInteger()
+
+        @Volatile
+        var lastAccessTime: Long = myTimeSource()
+
+        fun isIdle(now: Long, idleTimeout: Long) = myActiveCalls.get() == 0 && now - lastAccessTime > idleTimeout
+
+        override suspend fun getSubscriptions() = cached("subscriptions") { myConnector.getSubscriptions() }
+
+        override suspend fun getRegions() = cached("regions") { myConnector.getRegions() }
+
+        override suspend fun getResourceGroups() = cached("resourceGroups") { myConnector.getResourceGroups() }
+
+        override suspend fun getInstances(): List<AzureApiVMInstance> = cached("instances") { myConnector.getInstances() }
+
+        override suspend fun getImages(region: String) = cached("images:$region") { myConnector.getImages(region) }
+
+        override suspend fun getVmSizes(region: String) = cached("vmSizes:$region") { myConnector.getVmSizes(region) }
+
+        override suspend fun getStorageAccounts(region: String) = cached("storageAccounts:$region") { myConnector.getStorageAccounts(region) }
+
+        override suspend fun getNetworks(region: String) = cached("networks:$region") { myConnector.getNetworks(region) }
+
+        override suspend fun getVhdOsType(imageUrl: String, region: String) = cached("osType:$region:$imageUrl") { myConnector.getVhdOsType(imageUrl, region) }
+
+        override fun dispose() {
+            myResults.clear()
+            myConnector.dispose()
+        }
+
+        @Suppress("UNCHECKED_CAST")
+        private suspend fun <T> cached(key: String, loader: suspend () -> T): T {
+            val now = myTimeSource()
+            val ttl = TeamCityProperties.getLong(AzureConstants.PROP_SETTINGS_CACHE_TTL_MS, DEFAULT_CACHE_TTL_MS)
+            val entry = myResults.compute(key) { _, existing ->
+                if (existing != null && !existing.isExpired(now, ttl)) {
+                    existing
+                } else {
+                    ResultEntry(myScope.async(start = CoroutineStart.LAZY) { loader() }, now)
+                }
+            }!!
+
+            if (entry.result.start()) {
+                // failed requests should not be cached
+                entry.result.invokeOnCompletion { if (it != null) myResults.remove(key, entry) }
+            }
+
+            lastAccessTime = now
+            myActiveCalls.incrementAndGet()
+            try {
+                return entry.result.await() as T
+            } finally {
+                myActiveCalls.decrementAndGet()
+            }
+        }
+    }
+
+    companion object {
+        private val LOG = Logger.getInstance(SettingsConnectorCache::class.java.name)
+        private const val DEFAULT_IDLE_TIMEOUT_MS = 5 * 60 * 1000L
+        private const val DEFAULT_CACHE_TTL_MS = 60 * 1000L
+        private const val EVICTION_INTERVAL_MS = 60 * 1000L
+
+        private fun getKey(properties: Map<String, String>): String {
+            val credentials = listOf(
+                    AzureConstants.ENVIRONMENT,
+                    AzureConstants.CREDENTIALS_TYPE,
+                    AzureConstants.TENANT_ID,
+                    AzureConstants.CLIENT_ID,
+                    AzureConstants.CLIENT_SECRET
+            ).joinToString("\n") { properties[it] ?: "" }
+            return DigestUtils.sha256Hex(credentials) + ":" + (properties[AzureConstants.SUBSCRIPTION_ID] ?: "")
+        }
+    }
+}
@@ -8,6 +8,7 @@ import jetbrains.buildServer.controllers.ActionErrors
 import jetbrains.buildServer.controllers.BaseController
 import jetbrains.buildServer.controllers.BasePropertiesBean
 import jetbrains.buildServer.controllers.XmlResponseUtil
+import jetbrains.buildServer.serverSide.BuildServerAdapter
 import jetbrains.buildServer.serverSide.IOGuard
 import jetbrains.buildServer.serverSide.SBuildServer
 import jetbrains.buildServer.serverSide.agentPools.AgentPoolManager
@@ -32,12 +33,13 @@ class SettingsController(server: SBuildServer,
                          private val myPluginDescriptor: PluginDescriptor,
                          manager: WebControllerManager,
                          agentPoolManager: AgentPoolManager,
-                         private val myApiConnectorFactory: AzureApiConnectorFactory
+                         myApiConnectorFactory: AzureApiConnectorFactory
                         ) : BaseController(server) {
 
     private val myHandlers = TreeMap<String, ResourceHandler>(String.CASE_INSENSITIVE_ORDER)
     private val myJspPath: String = myPluginDescriptor.getPluginResourcesPath("settings.jsp")
     private val myHtmlPath: String = myPluginDescriptor.getPluginResourcesPath("settings.html")
+    private val myConnectorCache = SettingsConnectorCache(myApiConnectorFactory)
 
     init {
         manager.registerController(myHtmlPath, this)
@@ -51,6 +53,12 @@ class SettingsController(server: SBuildServer,
         myHandlers["regions"] = RegionsHandler()
         myHandlers["agentPools"] = AgentPoolHandler(agentPoolManager)
         myHandlers["storageAccounts"] = StorageAccountsHandler()
+
+        server.addListener(object : BuildServerAdapter() {
+            override fun serverShutdown() {
+                myConnectorCache.dispose()
+            }
+        })
     }
 
     @Throws(Exception::class)
@@ -112,8 +120,7 @@ class SettingsController(server: SBuildServer,
         val propsBean = BasePropertiesBean(null)
         PluginPropertiesUtil.bindPropertiesFromRequest(request, propsBean, true)
 
-        val apiConnector = myApiConnectorFactory.create(propsBean.properties, null)
-        apiConnector.start()
+        val apiConnector = myConnectorCache.getConnector(propsBean.properties)
 
         return ResourceHandlerContext(apiConnector, propsBean)
     }
@@ -330,6 +330,7 @@ function ArmImagesViewModel($, ko, dialog, config) {
         }
       }
     }),
+    containerGroupSize: ko.observable(1).extend({min: 1, max: 60}),
     registryUsername: ko.observable(),
     registryPassword: ko.observable(),
     storageAccount: ko.observable(),
@@ -730,6 +731,7 @@ function ArmImagesViewModel($, ko, dialog, config) {
       maxInstances: 1,
       numberCores: 2,
       memory: 2,
+      containerGroupSize: 1,
       customEnvironmentVariables: "",
       customTags: "",
       spotVm: false,
@@ -792,6 +794,7 @@ function ArmImagesViewModel($, ko, dialog, config) {
     model.vmSize(vmSize);
     model.numberCores(image.numberCores);
     model.memory(image.memory);
+    model.containerGroupSize(image.containerGroupSize || 1);
     model.registryUsername(image.registryUsername);
     model.maxInstances(image.maxInstances);
     model.vmNamePrefix(image.vmNamePrefix);
@@ -857,6 +860,7 @@ function ArmImagesViewModel($, ko, dialog, config) {
       vmSize: model.vmSize(),
       numberCores: model.numberCores(),
       memory: model.memory(),
+      containerGroupSize: model.containerGroupSize(),
       registryUsername: model.registryUsername(),
       vmUsername: model.vmUsername(),
       reuseVm: model.reuseVm(),
@@ -336,6 +336,18 @@
                     </div>
                 </td>
             </tr>
+            <tr data-bind="if: image().imageType() == 'Container'">
+                <th class="noBorder"><label for="${cons.containerGroupSize}">Agents per container group:</label></th>
+                <td>
+                    <div>
+                        <input type="text" name="${cons.containerGroupSize}" class="longField ignoreModified"
+                               data-bind="textInput: image().containerGroupSize"/>
+                        <span class="error option-error" data-bind="validationMessage: image().containerGroupSize"></span>
+                    </div>
+                    <span class="smallNote">Agents started together are packed into a single container group.
+                        Number of cores and memory are allocated per agent.</span>
+                </td>
+            </tr>
             <tr data-bind="if: image().imageType() == 'Image' || image().imageType() == 'GalleryImage'">
                 <th><label for="${cons.spotVm}">Spot instance:</label></th>
                 <td>
@@ -1,5 +1,6 @@
 package jetbrains.buildServer.clouds.utils
 
+import com.fasterxml.jackson.databind.ObjectMapper
 import jetbrains.buildServer.clouds.azure.arm.AzureConstants
 import jetbrains.buildServer.clouds.azure.arm.utils.ArmTemplateBuilder
 import org.testng.Assert
@@ -31,6 +32,22 @@ class ArmTemplateBuilderTest {
             """{"resources":[{"name":"[parameters('vmName')]","tags":{"teamcity-profile":"profile"}},{"vm":"vm"}]}""")
     }
 
+    fun testSetTemplateVMTagsForNetworkResources() {
+        val builder = ArmTemplateBuilder("""{"variables": {}, "resources": [
+            {"name": "[variables('nicName')]", "properties": {"ipConfigurations": [{"properties": { }}]}},
+            {"name": "[parameters('vmName')]"}
+        ]}""").setPublicIp().setVMTags(mapOf(AzureConstants.TAG_PROFILE to "profile"))
+
+        val resources = ObjectMapper().readTree(builder.toString())["resources"]
+        Assert.assertEquals(resources.size(), 3)
+        for (resource in resources) {
+            Assert.assertEquals(resource["tags"][AzureConstants.TAG_PROFILE].asText(), "profile")
+        }
+        Assert.assertEquals(resources[0]["tags"][AzureConstants.TAG_INSTANCE].asText(), "[parameters('vmName')]")
+        Assert.assertEquals(resources[2]["tags"][AzureConstants.TAG_INSTANCE].asText(), "[parameters('vmName')]")
+        Assert.assertNull(resources[1]["tags"][AzureConstants.TAG_INSTANCE])
+    }
+
     fun testSetTemplateVMTagsWithoutTemplateModification() {
         val builder = ArmTemplateBuilder("""{
         "resources": [
@@ -182,6 +199,28 @@ class ArmTemplateBuilderTest {
             """{"resources":[{"type":"Microsoft.ContainerInstance/containerGroups","name":"myName","properties":{"containers":[{"name":"myName","properties":{"environmentVariables":[{"name":"key","value":"value"}]}}]}}]}""")
     }
 
+    fun testAddContainerEnvironmentToNamedContainer() {
+        val builder = ArmTemplateBuilder("""{"resources": [
+            {
+                "type": "Microsoft.ContainerInstance/containerGroups",
+                "name": "myName",
+                "properties": {
+                    "containers": [
+                        {
+                            "name": "aci-1"
+                        },
+                        {
+                            "name": "aci-2"
+                        }
+                    ]
+                }
+            }
+        ]}""").addContainerEnvironment("myName", mapOf("key" to "value"), "aci-2")
+
+        Assert.assertEquals(builder.toString(),
+            """{"resources":[{"type":"Microsoft.ContainerInstance/containerGroups","name":"myName","properties":{"containers":[{"name":"aci-1"},{"name":"aci-2","properties":{"environmentVariables":[{"name":"key","value":"value"}]}}]}}]}""")
+    }
+
     fun testEnableAcceleratedNerworking() {
         val builder = ArmTemplateBuilder("""{"resources": [
             {
@@ -6,13 +6,17 @@ import io.mockk.coVerify
 import io.mockk.every
 import io.mockk.mockk
 import io.mockk.verify
+import jetbrains.buildServer.clouds.CloudException
 import jetbrains.buildServer.clouds.CloudInstanceUserData
 import jetbrains.buildServer.clouds.InstanceStatus
+import jetbrains.buildServer.clouds.azure.AzureUtils
 import jetbrains.buildServer.clouds.azure.arm.AzureCloudDeployTarget
 import jetbrains.buildServer.clouds.azure.arm.AzureCloudImage
 import jetbrains.buildServer.clouds.azure.arm.AzureCloudImageDetails
 import jetbrains.buildServer.clouds.azure.arm.AzureCloudImageType
 import jetbrains.buildServer.clouds.azure.arm.AzureCloudInstance
+import jetbrains.buildServer.clouds.azure.arm.AzureComputeQuota
+import jetbrains.buildServer.clouds.azure.arm.AzureConstants
 import jetbrains.buildServer.clouds.azure.arm.AzureInstanceEventListener
 import jetbrains.buildServer.clouds.azure.arm.connector.AzureApiConnector
 import jetbrains.buildServer.clouds.azure.arm.connector.AzureInstance
@@ -21,14 +25,21 @@ import kotlinx.coroutines.CompletableJob
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.runBlocking
 import org.jmock.MockObjectTestCase
 import org.testng.annotations.BeforeMethod
 import org.testng.annotations.Test
+import java.util.concurrent.CountDownLatch
 import java.util.concurrent.CyclicBarrier
+import java.util.concurrent.TimeUnit
 import kotlin.concurrent.thread
 
 class AzureCloudImageTest : MockObjectTestCase() {
+    companion object {
+        private const val SLOW_CALL_MS = 2000L
+    }
+
     private lateinit var myJob: CompletableJob
     private lateinit var myImageDetails: AzureCloudImageDetails
     private lateinit var myApiConnector: AzureApiConnector
@@ -46,6 +57,8 @@ class AzureCloudImageTest : MockObjectTestCase() {
             Unit
         }
         every { myApiConnector.fetchInstances<AzureInstance>(any<AzureCloudImage>()) } returns emptyMap()
+        every { myApiConnector.isResourceGroupDeletionPending(any()) } returns false
+        coEvery { myApiConnector.getLatestImageVersion(any()) } returns null
         coEvery { myApiConnector.stopInstance(any()) } coAnswers {
             val instance = firstArg<AzureCloudInstance>()
             TestCase.assertEquals(instance.hasVmInstance, true)
@@ -410,6 +423,382 @@ class AzureCloudImageTest : MockObjectTestCase() {
         verify { myInstanceListener.instanceTerminated(eq(stoppedInstance)) }
     }
 
+    @Test
+    fun shouldComputeVhdImageHashOncePerRefreshCycle() {
+        // Given
+        myImageDetails = createVhdImageDetails()
+        coEvery { myApiConnector.getVhdMetadata(any(), any()) } returns mapOf("etag" to "etag")
+
+        myScope = CoroutineScope(Dispatchers.Unconfined)
+        val image = createInstance()
+        val realInstances = (1..30).associate { index ->
+            val name = "vm$index"
+            name to AzureInstance(name).apply {
+                setPowerState("Deallocated")
+                setProperties(mapOf(
+                    AzureConstants.TAG_IMAGE_HASH to (if (index % 2 == 0) "etag" else "outdated"),
+                    AzureConstants.TAG_DATA_HASH to "outdated"
+                ))
+            }
+        }
+        image.detectNewInstances(realInstances.toMutableMap())
+
+        val userData = CloudInstanceUserData(
+            "agentName",
+            "authToken",
+            "",
+            0,
+            "profileId",
+            "profileDescr",
+            emptyMap()
+        )
+
+        // When
+        image.startNewInstance(userData)
+
+        // Then
+        coVerify(exactly = 1) { myApiConnector.getVhdMetadata(any(), any()) }
+        coVerify(exactly = 1) { myApiConnector.createInstance(any(), any()) }
+    }
+
+    @Test
+    fun shouldRecomputeExpiredImageHash() {
+        // Given
+        myImageDetails = createVhdImageDetails()
+        coEvery { myApiConnector.getVhdMetadata(any(), any()) } returns mapOf("etag" to "etag")
+        System.setProperty(AzureConstants.PROP_IMAGE_HASH_TTL_MS, "-1")
+
+        try {
+            myScope = CoroutineScope(Dispatchers.Unconfined)
+            val image = createInstance()
+            image.detectNewInstances(mutableMapOf())
+            val userData = CloudInstanceUserData(
+                "agentName",
+                "authToken",
+                "",
+                0,
+                "profileId",
+                "profileDescr",
+                emptyMap()
+            )
+
+            // When
+            image.startNewInstance(userData)
+            image.startNewInstance(userData)
+
+            // Then
+            coVerify(exactly = 2) { myApiConnector.getVhdMetadata(any(), any()) }
+        } finally {
+            System.clearProperty(AzureConstants.PROP_IMAGE_HASH_TTL_MS)
+        }
+    }
+
+    @Test
+    fun shouldNotWaitForSlowConnectorWhenStartingNewInstance() {
+        // Given
+        myImageDetails = createVhdImageDetails()
+        val imageHashRequested = CountDownLatch(1)
+        coEvery { myApiConnector.getVhdMetadata(any(), any()) } coAnswers {
+            imageHashRequested.countDown()
+            delay(SLOW_CALL_MS)
+            mapOf("etag" to "etag")
+        }
+        coEvery { myApiConnector.startInstance(any(), any()) } coAnswers { delay(SLOW_CALL_MS) }
+        coEvery { myApiConnector.createInstance(any(), any()) } coAnswers { delay(SLOW_CALL_MS) }
+
+        val image = createInstance()
+        val userData = CloudInstanceUserData(
+            "agentName",
+            "authToken",
+            "",
+            0,
+            "profileId",
+            "profileDescr",
+            emptyMap()
+        )
+        val stoppedName = "vm1"
+        image.detectNewInstances(mutableMapOf(stoppedName to AzureInstance(stoppedName).apply {
+            setPowerState("Deallocated")
+            setProperties(mapOf(
+                AzureConstants.TAG_IMAGE_HASH to "etag",
+                AzureConstants.TAG_DATA_HASH to AzureCloudImage.getDataHash(AzureUtils.setVmNameForTag(userData, stoppedName))
+            ))
+        }))
+
+        // When
+        val startTime = System.nanoTime()
+        val stoppedInstance = image.startNewInstance(userData)
+        val newInstance = image.startNewInstance(userData)
+        val elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime)
+
+        // Then
+        TestCase.assertTrue("startNewInstance took $elapsedMs ms", elapsedMs < SLOW_CALL_MS / 4)
+        TestCase.assertEquals(stoppedName, stoppedInstance.name)
+        TestCase.assertEquals("vm2", newInstance.name)
+        TestCase.assertTrue(imageHashRequested.await(SLOW_CALL_MS, TimeUnit.MILLISECONDS))
+
+        myJob.complete()
+        runBlocking { myJob.join() }
+
+        coVerify(exactly = 1) { myApiConnector.getVhdMetadata(any(), any()) }
+        coVerify(exactly = 1) { myApiConnector.startInstance(eq(stoppedInstance), any()) }
+        coVerify(exactly = 1) { myApiConnector.createInstance(eq(newInstance), any()) }
+    }
+
+    @Test
+    fun shouldStartStoppedInstanceBeforeRemovingOutdatedOnes() {
+        // Given
+        myImageDetails = createVhdImageDetails()
+        val instanceStarted = CountDownLatch(1)
+        coEvery { myApiConnector.getVhdMetadata(any(), any()) } returns mapOf("etag" to "etag")
+        coEvery { myApiConnector.startInstance(any(), any()) } coAnswers { instanceStarted.countDown() }
+        coEvery { myApiConnector.deleteInstance(any()) } coAnswers {
+            delay(SLOW_CALL_MS)
+            if (firstArg<AzureCloudInstance>().name == "vm3") throw CloudException("Failed to delete")
+        }
+
+        val image = createInstance()
+        val userData = CloudInstanceUserData(
+            "agentName",
+            "authToken",
+            "",
+            0,
+            "profileId",
+            "profileDescr",
+            emptyMap()
+        )
+        val instances = (1..6).associate { index ->
+            val name = "vm$index"
+            name to AzureInstance(name).apply {
+                setPowerState("Deallocated")
+                setProperties(mapOf(
+                    AzureConstants.TAG_IMAGE_HASH to "etag",
+                    AzureConstants.TAG_DATA_HASH to if (index == 1) AzureCloudImage.getDataHash(AzureUtils.setVmNameForTag(userData, name)) else "outdated"
+                ))
+            }
+        }
+        image.detectNewInstances(instances.toMutableMap())
+
+        // When
+        val startTime = System.nanoTime()
+        val instance = image.startNewInstance(userData)
+
+        // Then
+        TestCase.assertTrue(instanceStarted.await(SLOW_CALL_MS, TimeUnit.MILLISECONDS))
+        val elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime)
+        TestCase.assertTrue("startInstance was called after $elapsedMs ms", elapsedMs < SLOW_CALL_MS / 2)
+        TestCase.assertEquals("vm1", instance.name)
+
+        myJob.complete()
+        runBlocking { myJob.join() }
+
+        coVerify(exactly = 5) { myApiConnector.deleteInstance(any()) }
+        coVerify(exactly = 0) { myApiConnector.deleteInstance(eq(instance)) }
+        TestCase.assertEquals(listOf("vm1", "vm3"), image.instances.map { it.name }.sorted())
+        TestCase.assertEquals(InstanceStatus.ERROR, image.findInstanceById("vm3")!!.status)
+    }
+
+    @Test
+    fun shouldRefuseToStartInstanceWhenComputeQuotaIsExhausted() {
+        // Given
+        myImageDetails = createVhdImageDetails("Standard_D2s_v3")
+        coEvery { myApiConnector.getVhdMetadata(any(), any()) } returns mapOf("etag" to "etag")
+        coEvery { myApiConnector.getComputeQuota("regionId", "Standard_D2s_v3", false) } returns
+            AzureComputeQuota("Standard_D2s_v3", 2, "standardDSv3Family", 3, System.currentTimeMillis() - 1000)
+
+        myScope = CoroutineScope(Dispatchers.Unconfined)
+        val image = createInstance()
+        image.detectNewInstances(mutableMapOf())
+        val userData = CloudInstanceUserData(
+            "agentName",
+            "authToken",
+            "",
+            0,
+            "profileId",
+            "profileDescr",
+            emptyMap()
+        )
+        TestCase.assertTrue(image.canStartNewInstance().isPositive)
+
+        // When
+        image.startNewInstance(userData)
+        val result = image.canStartNewInstance()
+
+        // Then
+        TestCase.assertFalse(result.isPositive)
+        TestCase.assertEquals(
+            "Azure vCPU quota 'standardDSv3Family' exceeded: Standard_D2s_v3 requires 2 vCPUs, 3 available, 2 reserved by starting instances",
+            result.reason)
+    }
+
+    @Test
+    fun shouldPackContainersIntoSingleContainerGroup() {
+        // Given
+        myImageDetails = createContainerImageDetails(3)
+        coEvery { myApiConnector.createContainerGroup(any(), any()) } coAnswers {
+            secondArg<List<Pair<AzureCloudInstance, CloudInstanceUserData>>>().forEach { it.first.hasVmInstance = true }
+            Unit
+        }
+        coEvery { myApiConnector.deleteInstance(any()) } returns Unit
+
+        myScope = CoroutineScope(myJob + Dispatchers.Unconfined)
+        val image = createInstance()
+        image.detectNewInstances(mutableMapOf())
+        val userData = CloudInstanceUserData(
+            "agentName",
+            "authToken",
+            "",
+            0,
+            "profileId",
+            "profileDescr",
+            emptyMap()
+        )
+
+        // When
+        val instances = runBlocking(myJob) { (1..3).map { image.startNewInstance(userData) } }
+
+        // Then
+        coVerify(exactly = 0) { myApiConnector.createInstance(any(), any()) }
+        coVerify(exactly = 1) { myApiConnector.createContainerGroup(
+            "vm1-group",
+            match { members -> members.map { it.first.name } == listOf("vm1", "vm2", "vm3") &&
+                members.all { it.second.agentName == it.first.name } })
+        }
+        instances.forEach {
+            TestCase.assertEquals("vm1-group", it.properties[AzureConstants.TAG_CONTAINER_GROUP])
+        }
+
+        // When
+        runBlocking(myJob) { instances.take(2).forEach { image.terminateInstance(it) } }
+
+        // Then
+        coVerify(exactly = 0) { myApiConnector.deleteInstance(any()) }
+        instances.take(2).forEach {
+            TestCase.assertTrue(it.waitsForContainerGroup)
+        }
+
+        // When
+        runBlocking(myJob) { image.terminateInstance(instances.last()) }
+
+        // Then
+        coVerify(exactly = 1) { myApiConnector.deleteInstance(any()) }
+        instances.forEach {
+            TestCase.assertEquals(InstanceStatus.STOPPED, it.status)
+            TestCase.assertFalse(it.waitsForContainerGroup)
+        }
+    }
+
+    @Test
+    fun shouldUpdatePropertiesOfChangedInstancesOnly() {
+        // Given
+        myScope = CoroutineScope(Dispatchers.Unconfined)
+        val image = createInstance()
+        image.detectNewInstances(mutableMapOf(
+            "vm1" to createAzureInstance("vm1", mapOf("tag" to "value")),
+            "vm2" to createAzureInstance("vm2", mapOf("tag" to "value"))
+        ))
+
+        // When
+        image.detectNewInstances(mutableMapOf(
+            "vm1" to createAzureInstance("vm1", mapOf("tag" to "value")),
+            "vm2" to createAzureInstance("vm2", mapOf("tag" to "value"))
+        ))
+
+        // Then
+        TestCase.assertEquals(AzureCloudImage.ReconcileStats(0, 2), image.reconcileStats)
+
+        // When
+        image.detectNewInstances(mutableMapOf(
+            "vm1" to createAzureInstance("vm1", mapOf("tag" to "value")),
+            "vm2" to createAzureInstance("vm2", mapOf("tag" to "newValue"))
+        ))
+
+        // Then
+        TestCase.assertEquals(AzureCloudImage.ReconcileStats(1, 1), image.reconcileStats)
+        TestCase.assertEquals("value", image.findInstanceById("vm1")!!.properties["tag"])
+        TestCase.assertEquals("newValue", image.findInstanceById("vm2")!!.properties["tag"])
+    }
+
+    private fun createAzureInstance(name: String, tags: Map<String, String>) = AzureInstance(name).apply {
+        setProperties(tags)
+        setPowerState("Running")
+        setProvisioningState("Succeeded")
+        setIpAddress("10.0.0.1")
+    }
+
+    private fun createContainerImageDetails(containerGroupSize: Int) = AzureCloudImageDetails(
+        mySourceId = null,
+        deployTarget = AzureCloudDeployTarget.NewGroup,
+        regionId = "regionId",
+        groupId = null,
+        imageType = AzureCloudImageType.Container,
+        imageUrl = null,
+        imageId = "jetbrains/teamcity-agent",
+        instanceId = null,
+        osType = "Linux",
+        networkId = null,
+        subnetId = null,
+        vmNamePrefix = "vm",
+        vmSize = null,
+        vmPublicIp = null,
+        myMaxInstances = 6,
+        username = null,
+        storageAccountType = null,
+        template = null,
+        numberCores = "1",
+        memory = "1",
+        storageAccount = null,
+        registryUsername = null,
+        agentPoolId = null,
+        profileId = null,
+        myReuseVm = false,
+        customEnvironmentVariables = null,
+        spotVm = null,
+        enableSpotPrice = null,
+        spotPrice = null,
+        enableAcceleratedNetworking = null,
+        disableTemplateModification = null,
+        userAssignedIdentity = null,
+        enableSystemAssignedIdentity = null,
+        containerGroupSize = containerGroupSize
+    )
+
+    private fun createVhdImageDetails(vmSize: String? = null) = AzureCloudImageDetails(
+        mySourceId = null,
+        deployTarget = AzureCloudDeployTarget.SpecificGroup,
+        regionId = "regionId",
+        groupId = "groupId",
+        imageType = AzureCloudImageType.Vhd,
+        imageUrl = "https://storage.blob.core.windows.net/vhds/image.vhd",
+        imageId = null,
+        instanceId = null,
+        osType = null,
+        networkId = null,
+        subnetId = null,
+        vmNamePrefix = "vm",
+        vmSize = vmSize,
+        vmPublicIp = null,
+        myMaxInstances = 40,
+        username = null,
+        storageAccountType = null,
+        template = null,
+        numberCores = null,
+        memory = null,
+        storageAccount = null,
+        registryUsername = null,
+        agentPoolId = null,
+        profileId = null,
+        myReuseVm = true,
+        customEnvironmentVariables = null,
+        spotVm = null,
+        enableSpotPrice = null,
+        spotPrice = null,
+        enableAcceleratedNetworking = null,
+        disableTemplateModification = null,
+        userAssignedIdentity = null,
+        enableSystemAssignedIdentity = null
+    )
+
     private fun<T> runBlocking(job : CompletableJob, action: () -> T) : T {
         val result = action()
         runBlocking { job.children.forEach { it.join() } }
@@ -0,0 +1,87 @@
+package jetbrains.buildServer.clouds.azure.arm
+
+import com.microsoft.azure.management.compute.implementation.ResourceSkuInner
+import com.microsoft.azure.management.compute.implementation.UsageInner
+import com.microsoft.azure.serializer.AzureJacksonAdapter
+import jetbrains.buildServer.clouds.azure.arm.connector.tasks.FetchComputeUsagesTaskImpl
+import jetbrains.buildServer.clouds.azure.arm.connector.tasks.FetchVirtualMachineSkusTaskImpl
+import org.testng.Assert
+import org.testng.annotations.Test
+
+class AzureComputeQuotaTest {
+
+    @Test
+    fun shouldUseMostRestrictiveQuota() {
+        val quota = AzureComputeQuota.create("standard_d2s_v3", false, skus, usages.map { it.copy(timestamp = 1L) })!!
+
+        Assert.assertEquals(quota.vmSize, "Standard_D2s_v3")
+        Assert.assertEquals(quota.vCpus, 2)
+        Assert.assertEquals(quota.quotaName, "standardDSv3Family")
+        Assert.assertEquals(quota.available, 3L)
+        Assert.assertEquals(quota.timestamp, 1L)
+    }
+
+    @Test
+    fun shouldUseRegionalQuotaWhenItIsLower() {
+        val quota = AzureComputeQuota.create("Standard_F4s_v2", false, skus, usages)!!
+
+        Assert.assertEquals(quota.vCpus, 4)
+        Assert.assertEquals(quota.quotaName, "cores")
+        Assert.assertEquals(quota.available, 10L)
+    }
+
+    @Test
+    fun shouldUseLowPriorityQuotaForSpotVirtualMachines() {
+        val quota = AzureComputeQuota.create("Standard_D2s_v3", true, skus, usages)!!
+
+        Assert.assertEquals(quota.quotaName, "lowPriorityCores")
+        Assert.assertEquals(quota.available, 0L)
+    }
+
+    @Test
+    fun shouldReturnNullForUnknownSize() {
+        Assert.assertNull(AzureComputeQuota.create("Standard_Unknown", false, skus, usages))
+    }
+
+    @Test
+    fun shouldSkipSkusFromOtherRegionsAndResourceTypes() {
+        val regionSkus = recordedSkus.filter { FetchVirtualMachineSkusTaskImpl.isVirtualMachineSku(it, "WestEurope") }
+
+        Assert.assertEquals(regionSkus.map { it.name() }, listOf("Standard_D2s_v3", "Standard_F4s_v2"))
+    }
+
+    companion object {
+        private val adapter = AzureJacksonAdapter()
+
+        // Recorded from GET /subscriptions/{id}/providers/Microsoft.Compute/locations/westeurope/usages, "value" property
+        private val recordedUsages: List<UsageInner> = adapter.deserialize<Array<UsageInner>>("""
+            [
+              {"limit": 10, "unit": "Count", "currentValue": 0, "name": {"value": "availabilitySets", "localizedValue": "Availability Sets"}},
+              {"limit": 350, "unit": "Count", "currentValue": 340, "name": {"value": "cores", "localizedValue": "Total Regional vCPUs"}},
+              {"limit": 25000, "unit": "Count", "currentValue": 170, "name": {"value": "virtualMachines", "localizedValue": "Virtual Machines"}},
+              {"limit": 100, "unit": "Count", "currentValue": 97, "name": {"value": "standardDSv3Family", "localizedValue": "Standard DSv3 Family vCPUs"}},
+              {"limit": 200, "unit": "Count", "currentValue": 40, "name": {"value": "standardFSv2Family", "localizedValue": "Standard FSv2 Family vCPUs"}},
+              {"limit": 100, "unit": "Count", "currentValue": 100, "name": {"value": "lowPriorityCores", "localizedValue": "Total Regional Low-priority vCPUs"}}
+            ]
+        """.trimIndent(), Array<UsageInner>::class.java).toList()
+
+        // Recorded from GET /subscriptions/{id}/providers/Microsoft.Compute/skus, "value" property
+        private val recordedSkus: List<ResourceSkuInner> = adapter.deserialize<Array<ResourceSkuInner>>("""
+            [
+              {"resourceType": "virtualMachines", "name": "Standard_D2s_v3", "tier": "Standard", "size": "D2s_v3", "family": "standardDSv3Family",
+               "locations": ["westeurope"], "capabilities": [{"name": "vCPUs", "value": "2"}, {"name": "MemoryGB", "value": "8"}]},
+              {"resourceType": "virtualMachines", "name": "Standard_F4s_v2", "tier": "Standard", "size": "F4s_v2", "family": "standardFSv2Family",
+               "locations": ["westeurope"], "capabilities": [{"name": "vCPUs", "value": "4"}, {"name": "MemoryGB", "value": "8"}]},
+              {"resourceType": "virtualMachines", "name": "Standard_NC6", "tier": "Standard", "size": "NC6", "family": "standardNCFamily",
+               "locations": ["eastus"], "capabilities": [{"name": "vCPUs", "value": "6"}]},
+              {"resourceType": "disks", "name": "Premium_LRS", "tier": "Premium", "size": "P1",
+               "locations": ["westeurope"], "capabilities": [{"name": "MaxSizeGiB", "value": "4"}]}
+            ]
+        """.trimIndent(), Array<ResourceSkuInner>::class.java).toList()
+
+        private val usages = recordedUsages.map { FetchComputeUsagesTaskImpl.createDescriptor(it) }
+        private val skus = recordedSkus
+            .filter { FetchVirtualMachineSkusTaskImpl.isVirtualMachineSku(it, "westeurope") }
+            .map { FetchVirtualMachineSkusTaskImpl.createDescriptor(it) }
+    }
+}
@@ -0,0 +1,115 @@
+package jetbrains.buildServer.clouds.azure.arm
+
+import io.mockk.every
+import io.mockk.mockk
+import jetbrains.buildServer.clouds.base.AbstractCloudImage
+import org.testng.Assert
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+
+class AzureInstanceNameAllocatorTest {
+    private lateinit var myImage: AbstractCloudImage<*, *>
+    private lateinit var myInstances: MutableMap<String, AzureCloudInstance>
+    private lateinit var myAllocator: AzureInstanceNameAllocator
+
+    @BeforeMethod
+    fun beforeMethod() {
+        myInstances = hashMapOf()
+        myImage = mockk()
+        every { myImage.findInstanceById(any()) } answers { myInstances[firstArg()] }
+        myAllocator = AzureInstanceNameAllocator("Vm")
+    }
+
+    @Test
+    fun shouldAllocateLowestFreeIndex() {
+        Assert.assertEquals(myAllocator.allocate(), "vm1")
+        Assert.assertEquals(myAllocator.allocate(), "vm2")
+
+        add("vm3")
+        add("vm5")
+        Assert.assertEquals(myAllocator.allocate(), "vm4")
+        Assert.assertEquals(myAllocator.allocate(), "vm6")
+
+        remove("vm3")
+        Assert.assertEquals(myAllocator.allocate(), "vm3")
+    }
+
+    @Test
+    fun shouldSkipBusyNames() {
+        val busyNames = hashSetOf("vm1", "vm3")
+        val allocator = AzureInstanceNameAllocator("Vm") { busyNames.contains(it) }
+
+        Assert.assertEquals(allocator.allocate(), "vm2")
+        Assert.assertEquals(allocator.allocate(), "vm4")
+
+        busyNames.clear()
+        Assert.assertEquals(allocator.allocate(), "vm1")
+    }
+
+    @Test
+    fun shouldKeepReservedNameUntilRelease() {
+        add("vm1")
+        add("vm2")
+
+        myAllocator.reserve("vm1")
+        remove("vm1")
+        Assert.assertTrue(myAllocator.isUsed("vm1"))
+        Assert.assertEquals(myAllocator.allocate(), "vm3")
+
+        myAllocator.release("vm1", myImage)
+        Assert.assertFalse(myAllocator.isUsed("vm1"))
+        Assert.assertEquals(myAllocator.allocate(), "vm1")
+    }
+
+    @Test
+    fun shouldKeepNameWhenInstanceWasReturnedBeforeRelease() {
+        add("vm1")
+        myAllocator.reserve("vm1")
+        remove("vm1")
+        add("vm1")
+
+        myAllocator.release("vm1", myImage)
+        Assert.assertTrue(myAllocator.isUsed("vm1"))
+        Assert.assertEquals(myAllocator.allocate(), "vm2")
+    }
+
+    @Test
+    fun shouldIgnoreForeignNames() {
+        add("other1")
+        add("vm")
+        add("vm01")
+        add("vmx")
+        add("vm1234567890")
+
+        Assert.assertEquals(myAllocator.allocate(), "vm1")
+        Assert.assertFalse(myAllocator.isUsed("vm01"))
+    }
+
+    @Test
+    fun shouldAllocateNamesForThousandInstances() {
+        for (i in 1..1000) {
+            add(myAllocator.allocate())
+        }
+        for (i in 1..1000 step 3) {
+            remove("vm$i")
+        }
+
+        for (i in 1..1000 step 3) {
+            Assert.assertEquals(myAllocator.allocate(), "vm$i")
+        }
+        Assert.assertEquals(myAllocator.allocate(), "vm1001")
+    }
+
+    private fun add(name: String) {
+        val instance = mockk<AzureCloudInstance>()
+        every { instance.instanceId } returns name
+        myInstances[name] = instance
+        myAllocator.instanceAdded(myImage, instance)
+    }
+
+    private fun remove(name: String) {
+        myInstances.remove(name)?.let {
+            myAllocator.instanceRemoved(myImage, it)
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package jetbrains.buildServer.clouds.azure.arm
+
+import io.mockk.every
+import io.mockk.mockk
+import jetbrains.buildServer.clouds.InstanceStatus
+import jetbrains.buildServer.clouds.base.AbstractCloudImage
+import org.testng.Assert
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+
+class AzureInstanceStatusIndexTest {
+    private lateinit var myImage: AbstractCloudImage<*, *>
+    private lateinit var myStatuses: MutableMap<String, InstanceStatus>
+    private lateinit var myIndex: AzureInstanceStatusIndex
+
+    @BeforeMethod
+    fun beforeMethod() {
+        myImage = mockk()
+        myStatuses = hashMapOf()
+        myIndex = AzureInstanceStatusIndex(setOf(InstanceStatus.SCHEDULED_TO_START, InstanceStatus.STARTING, InstanceStatus.RUNNING))
+    }
+
+    @Test
+    fun shouldCountInstancesByStatus() {
+        val vm1 = add("vm1", InstanceStatus.RUNNING)
+        val vm2 = add("vm2", InstanceStatus.STOPPED)
+        add("vm3", InstanceStatus.STARTING)
+
+        Assert.assertEquals(myIndex.activeCount, 2)
+        Assert.assertEquals(myIndex.count(InstanceStatus.STOPPED), 1)
+        Assert.assertEquals(myIndex.getStoppedInstances(), listOf(vm2))
+
+        setStatus(vm1, InstanceStatus.STOPPED)
+        setStatus(vm2, InstanceStatus.SCHEDULED_TO_START)
+
+        Assert.assertEquals(myIndex.activeCount, 2)
+        Assert.assertEquals(myIndex.count(InstanceStatus.RUNNING), 0)
+        Assert.assertEquals(myIndex.count(InstanceStatus.SCHEDULED_TO_START), 1)
+        Assert.assertEquals(myIndex.getStoppedInstances(), listOf(vm1))
+
+        myIndex.instanceRemoved(myImage, vm1)
+        Assert.assertTrue(myIndex.getStoppedInstances().isEmpty())
+        Assert.assertEquals(myIndex.count(InstanceStatus.STOPPED), 0)
+    }
+
+    @Test
+    fun shouldChangeVersionOnlyWhenActiveInstancesChange() {
+        val vm1 = add("vm1", InstanceStatus.STARTING)
+        val vm2 = add("vm2", InstanceStatus.STOPPED)
+        val version = myIndex.activeVersion
+
+        setStatus(vm1, InstanceStatus.RUNNING)
+        myIndex.instanceRemoved(myImage, vm2)
+        Assert.assertEquals(myIndex.activeVersion, version)
+
+        setStatus(vm1, InstanceStatus.STOPPED)
+        Assert.assertNotEquals(myIndex.activeVersion, version)
+    }
+
+    @Test
+    fun shouldIgnoreNotificationsForUnknownInstances() {
+        val vm1 = instance("vm1", InstanceStatus.SCHEDULED_TO_START)
+        myIndex.statusChanged(vm1)
+        myIndex.instanceRemoved(myImage, vm1)
+        Assert.assertEquals(myIndex.activeCount, 0)
+
+        // status was changed before instance was added
+        setStatus(vm1, InstanceStatus.RUNNING)
+        myIndex.instanceAdded(myImage, vm1)
+        myIndex.statusChanged(vm1)
+        Assert.assertEquals(myIndex.activeCount, 1)
+        Assert.assertEquals(myIndex.count(InstanceStatus.RUNNING), 1)
+        Assert.assertEquals(myIndex.count(InstanceStatus.SCHEDULED_TO_START), 0)
+    }
+
+    @Test
+    fun shouldTrackThousandInstances() {
+        val instances = (1..1000).map { add("vm$it", InstanceStatus.RUNNING) }
+        instances.filterIndexed { index, _ -> index % 4 == 0 }.forEach { setStatus(it, InstanceStatus.STOPPED) }
+
+        Assert.assertEquals(myIndex.activeCount, 750)
+        Assert.assertEquals(myIndex.count(InstanceStatus.STOPPED), 250)
+        Assert.assertEquals(myIndex.getStoppedInstances().size, 250)
+
+        instances.forEach { myIndex.instanceRemoved(myImage, it) }
+        Assert.assertEquals(myIndex.activeCount, 0)
+        Assert.assertTrue(myIndex.getStoppedInstances().isEmpty())
+    }
+
+    private fun instance(name: String, status: InstanceStatus): AzureCloudInstance {
+        myStatuses[name] = status
+        val instance = mockk<AzureCloudInstance>()
+        every { instance.instanceId } returns name
+        every { instance.status } answers { myStatuses.getValue(name) }
+        return instance
+    }
+
+    private fun add(name: String, status: InstanceStatus): AzureCloudInstance {
+        val instance = instance(name, status)
+        myIndex.instanceAdded(myImage, instance)
+        return instance
+    }
+
+    private fun setStatus(instance: AzureCloudInstance, status: InstanceStatus) {
+        myStatuses[instance.instanceId] = status
+        myIndex.statusChanged(instance)
+    }
+}
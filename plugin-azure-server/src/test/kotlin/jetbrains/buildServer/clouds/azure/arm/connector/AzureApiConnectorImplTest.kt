@@ -0,0 +1,43 @@
+package jetbrains.buildServer.clouds.azure.arm.connector
+
+import jetbrains.buildServer.clouds.azure.arm.connector.tasks.CustomImageTaskImageDescriptor
+import jetbrains.buildServer.clouds.azure.arm.connector.tasks.GalleryImageDescriptor
+import org.testng.Assert
+import org.testng.annotations.Test
+
+class AzureApiConnectorImplTest {
+    @Test
+    fun shouldResolveLatestGalleryImageVersion() {
+        val images = listOf(
+            version("1.9.0"),
+            version("1.10.0"),
+            version("1.2.0"),
+            image(GalleryImageDescriptor("gallery", "gallery", IMAGE_ID, "image", null, "latest"), IMAGE_ID),
+            image(GalleryImageDescriptor("gallery", "gallery", "$IMAGE_ID-other", "image-other", "$IMAGE_ID-other/versions/2.0.0", "2.0.0"), "$IMAGE_ID-other/versions/2.0.0")
+        )
+
+        Assert.assertEquals(AzureApiConnectorImpl.getLatestImageVersion(images, IMAGE_ID.uppercase()), "$IMAGE_ID/versions/1.10.0")
+    }
+
+    @Test
+    fun shouldNotResolveVersionOfOtherImages() {
+        val images = listOf(
+            version("1.0.0"),
+            image(null, "managedImage")
+        )
+
+        Assert.assertNull(AzureApiConnectorImpl.getLatestImageVersion(images, "$IMAGE_ID/versions/1.0.0"))
+        Assert.assertNull(AzureApiConnectorImpl.getLatestImageVersion(images, "managedImage"))
+        Assert.assertNull(AzureApiConnectorImpl.getLatestImageVersion(images, "unknown"))
+    }
+
+    private fun version(name: String) =
+        image(GalleryImageDescriptor("gallery", "gallery", IMAGE_ID, "image", "$IMAGE_ID/versions/$name", name), "$IMAGE_ID/versions/$name")
+
+    private fun image(descriptor: GalleryImageDescriptor?, id: String) =
+        CustomImageTaskImageDescriptor(id, id, "westeurope", null, null, descriptor)
+
+    companion object {
+        private const val IMAGE_ID = "/subscriptions/subscription/resourceGroups/group/providers/Microsoft.Compute/galleries/gallery/images/image"
+    }
+}
@@ -0,0 +1,124 @@
+package jetbrains.buildServer.clouds.azure.arm.connector
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.yield
+import org.testng.Assert
+import org.testng.annotations.Test
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+class AzureDeploymentLocksTest {
+    @Test
+    fun shouldRemoveLocksOfChurnedDeployments() = runBlocking {
+        // Given
+        val locks = AzureDeploymentLocks()
+        val permits = Semaphore(PARALLELISM)
+        var maxSize = 0
+
+        // When
+        withContext(Dispatchers.Default) {
+            for (index in 1..100_000) {
+                launch {
+                    permits.withPermit {
+                        locks.withLock("group", "vm-$index") {
+                            synchronized(this@AzureDeploymentLocksTest) {
+                                maxSize = maxOf(maxSize, locks.size)
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        // Then
+        Assert.assertEquals(locks.size, 0)
+        Assert.assertEquals(locks.acquiredCount, 100_000L)
+        Assert.assertTrue(maxSize <= PARALLELISM, "Lock table size $maxSize exceeds number of concurrent operations")
+    }
+
+    @Test
+    fun shouldSerializeOperationsOnSameDeployment() = runBlocking {
+        // Given
+        val locks = AzureDeploymentLocks()
+        val holders = ConcurrentHashMap<String, AtomicInteger>()
+        val violations = AtomicInteger()
+        val completed = AtomicInteger()
+
+        // When
+        withContext(Dispatchers.Default) {
+            for (index in 1..100_000) {
+                val deploymentId = "vm-${index % 16}"
+                launch {
+                    locks.withLock("group", deploymentId) {
+                        val counter = holders.computeIfAbsent(deploymentId) { AtomicInteger() }
+                        if (counter.incrementAndGet() > 1) violations.incrementAndGet()
+                        yield()
+                        counter.decrementAndGet()
+                        completed.incrementAndGet()
+                    }
+                }
+            }
+        }
+
+        // Then
+        Assert.assertEquals(violations.get(), 0)
+        Assert.assertEquals(completed.get(), 100_000)
+        Assert.assertEquals(locks.size, 0)
+    }
+
+    @Test
+    fun shouldReleaseLockWhenOperationFails() = runBlocking {
+        val locks = AzureDeploymentLocks()
+
+        try {
+            locks.withLock("group", "vm") { throw IllegalStateException("Failure") }
+            Assert.fail("Exception expected")
+        } catch (e: IllegalStateException) {
+            // expected
+        }
+
+        Assert.assertEquals(locks.size, 0)
+        Assert.assertEquals(locks.withLock("group", "vm") { "done" }, "done")
+    }
+
+    @Test
+    fun shouldAccumulateLockWaitTime() = runBlocking {
+        // Given
+        val time = AtomicLong()
+        val locks = AzureDeploymentLocks { time.get() }
+        val holder = CompletableDeferred<Unit>()
+        val acquired = CompletableDeferred<Unit>()
+
+        // When
+        val first = launch {
+            locks.withLock("group", "vm") {
+                acquired.complete(Unit)
+                holder.await()
+            }
+        }
+        acquired.await()
+        val second = launch { locks.withLock("group", "vm") { } }
+        yield()
+        time.addAndGet(TimeUnit.MILLISECONDS.toNanos(1500))
+        holder.complete(Unit)
+        first.join()
+        second.join()
+
+        // Then
+        Assert.assertEquals(locks.acquiredCount, 2L)
+        Assert.assertEquals(locks.totalWaitTimeMs, 1500L)
+        Assert.assertEquals(locks.maxWaitTimeMs, 1500L)
+    }
+
+    companion object {
+        private const val PARALLELISM = 64
+    }
+}
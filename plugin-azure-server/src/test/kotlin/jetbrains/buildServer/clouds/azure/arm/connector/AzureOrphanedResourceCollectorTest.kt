@@ -0,0 +1,151 @@
+package jetbrains.buildServer.clouds.azure.arm.connector
+
+import jetbrains.buildServer.clouds.azure.arm.connector.AzureOrphanedResourceCollector.Mode
+import jetbrains.buildServer.clouds.azure.arm.connector.tasks.FetchTaggedResourcesTaskImpl
+import jetbrains.buildServer.clouds.azure.arm.resourceGraph.Table
+import jetbrains.buildServer.clouds.azure.arm.resourceGraph.TableColumnInner
+import jetbrains.buildServer.clouds.azure.arm.resourceGraph.TableInner
+import kotlinx.coroutines.CompletableJob
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.runBlocking
+import org.testng.Assert
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+
+class AzureOrphanedResourceCollectorTest {
+    private lateinit var myJob: CompletableJob
+    private lateinit var myRows: MutableList<List<String>>
+    private lateinit var myDeleted: MutableList<String>
+    private lateinit var myFailingIds: MutableSet<String>
+    private lateinit var myCollector: AzureOrphanedResourceCollector
+    private var myTime = 0L
+
+    @BeforeMethod
+    fun beforeMethod() {
+        myJob = SupervisorJob()
+        myRows = mutableListOf()
+        myDeleted = mutableListOf()
+        myFailingIds = hashSetOf()
+        myTime = 0L
+        myCollector = AzureOrphanedResourceCollector(
+            PROFILE_ID,
+            { FetchTaggedResourcesTaskImpl.readResources(Table(TableInner(COLUMNS, myRows.toList()))) },
+            { resourceId ->
+                if (myFailingIds.contains(resourceId)) throw IllegalStateException("Failure")
+                myDeleted.add(resourceId)
+            },
+            CoroutineScope(myJob + Dispatchers.IO),
+            { myTime }
+        )
+    }
+
+    @AfterMethod
+    fun afterMethod() {
+        myJob.cancel()
+    }
+
+    @Test
+    fun shouldDeleteOrphanedResourcesAfterGracePeriod() = runBlocking {
+        myRows.add(row("vm1", VM_TYPE, PROFILE_ID, "image", null))
+        myRows.add(row("vm1-net", NIC_TYPE, PROFILE_ID, "image", "vm1"))
+        myRows.add(row("vm2-net", NIC_TYPE, PROFILE_ID, "image", "vm2"))
+        myRows.add(row("vm2-pip", PIP_TYPE, PROFILE_ID, "image", "vm2"))
+        myRows.add(row("old1", VM_TYPE, PROFILE_ID, "removed", null))
+
+        Assert.assertTrue(myCollector.collect(Mode.Delete, setOf("image"), setOf("vm1")).isEmpty())
+        Assert.assertEquals(myCollector.orphanedCount, 3)
+        Assert.assertTrue(myDeleted.isEmpty())
+
+        myTime += GRACE_PERIOD_MS
+        myCollector.collect(Mode.Delete, setOf("image"), setOf("vm1"))
+
+        // virtual machines are deleted before network resources
+        Assert.assertEquals(myDeleted, listOf(id("old1"), id("vm2-net"), id("vm2-pip")))
+        Assert.assertEquals(myCollector.deletedCount, 3L)
+        Assert.assertEquals(myCollector.orphanedCount, 0)
+    }
+
+    @Test
+    fun shouldForgetResourcesWhichAreNotOrphanedAnymore() = runBlocking {
+        myRows.add(row("vm1-net", NIC_TYPE, PROFILE_ID, "image", "vm1"))
+        myCollector.collect(Mode.Delete, setOf("image"), emptySet())
+
+        // deployment has created the virtual machine
+        myTime += GRACE_PERIOD_MS / 2
+        myCollector.collect(Mode.Delete, setOf("image"), setOf("vm1"))
+        Assert.assertEquals(myCollector.orphanedCount, 0)
+
+        // virtual machine has gone, so grace period is started again
+        myTime += GRACE_PERIOD_MS / 2
+        myCollector.collect(Mode.Delete, setOf("image"), emptySet())
+        myTime += GRACE_PERIOD_MS / 2
+        myCollector.collect(Mode.Delete, setOf("image"), emptySet())
+        Assert.assertTrue(myDeleted.isEmpty())
+
+        myTime += GRACE_PERIOD_MS / 2
+        myCollector.collect(Mode.Delete, setOf("image"), emptySet())
+        Assert.assertEquals(myDeleted, listOf(id("vm1-net")))
+    }
+
+    @Test
+    fun shouldNotTouchResourcesOfOtherProfilesAndUnderInvestigation() = runBlocking {
+        myRows.add(row("vm1-net", NIC_TYPE, "other-profile", "image", "vm1"))
+        myRows.add(row("vm2", VM_TYPE, null, "image", null))
+        myRows.add(row("vm3-net", NIC_TYPE, PROFILE_ID, "image", "vm3", investigation = "true"))
+
+        myCollector.collect(Mode.Delete, setOf("image"), emptySet())
+        myTime += GRACE_PERIOD_MS
+        myCollector.collect(Mode.Delete, setOf("image"), emptySet())
+
+        Assert.assertEquals(myCollector.orphanedCount, 0)
+        Assert.assertTrue(myDeleted.isEmpty())
+    }
+
+    @Test
+    fun shouldNotDeleteResourcesInDryRunAndReportModes() = runBlocking {
+        myRows.add(row("vm1-net", NIC_TYPE, PROFILE_ID, "image", "vm1"))
+        myCollector.collect(Mode.Report, setOf("image"), emptySet())
+        myTime += GRACE_PERIOD_MS
+
+        Assert.assertEquals(myCollector.collect(Mode.Report, setOf("image"), emptySet()).map { it.id }, listOf(id("vm1-net")))
+        Assert.assertEquals(myCollector.collect(Mode.DryRun, setOf("image"), emptySet()).map { it.id }, listOf(id("vm1-net")))
+        Assert.assertTrue(myDeleted.isEmpty())
+        Assert.assertEquals(myCollector.orphanedCount, 1)
+    }
+
+    @Test
+    fun shouldRetryFailedDeletions() = runBlocking {
+        myRows.add(row("vm1-net", NIC_TYPE, PROFILE_ID, "image", "vm1"))
+        myRows.add(row("vm2-net", NIC_TYPE, PROFILE_ID, "image", "vm2"))
+        myFailingIds.add(id("vm1-net"))
+
+        myCollector.collect(Mode.Delete, setOf("image"), emptySet())
+        myTime += GRACE_PERIOD_MS
+        myCollector.collect(Mode.Delete, setOf("image"), emptySet())
+        Assert.assertEquals(myDeleted, listOf(id("vm2-net")))
+        Assert.assertEquals(myCollector.failedCount, 1L)
+
+        myRows.removeIf { it[1] == "vm2-net" }
+        myFailingIds.clear()
+        myCollector.collect(Mode.Delete, setOf("image"), emptySet())
+        Assert.assertEquals(myDeleted, listOf(id("vm2-net"), id("vm1-net")))
+    }
+
+    private fun row(name: String, type: String, profileId: String?, sourceId: String?, instanceName: String?, investigation: String? = null) =
+        listOf(id(name), name, type, profileId ?: "", sourceId ?: "", instanceName ?: "", investigation ?: "")
+
+    private fun id(name: String) = "/subscriptions/subscription/resourceGroups/group/providers/resource/$name"
+
+    companion object {
+        private const val PROFILE_ID = "arm-1"
+        private const val VM_TYPE = "microsoft.compute/virtualmachines"
+        private const val NIC_TYPE = "microsoft.network/networkinterfaces"
+        private const val PIP_TYPE = "microsoft.network/publicipaddresses"
+        private const val GRACE_PERIOD_MS = 30 * 60 * 1000L
+        private val COLUMNS = listOf("id", "name", "type", "profileId", "sourceId", "instanceName", "investigation")
+            .map { TableColumnInner(it, "string") }
+    }
+}
@@ -0,0 +1,105 @@
+package jetbrains.buildServer.clouds.azure.arm.connector
+
+import kotlinx.coroutines.CompletableJob
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.runBlocking
+import org.testng.Assert
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+
+class AzureResourceGroupDeletionTrackerTest {
+    private lateinit var myJob: CompletableJob
+    private lateinit var myStates: MutableMap<String, String>
+    private lateinit var myRequests: MutableList<Set<String>>
+    private lateinit var myTracker: AzureResourceGroupDeletionTracker
+    private var myTime = 0L
+
+    @BeforeMethod
+    fun beforeMethod() {
+        myJob = SupervisorJob()
+        myStates = hashMapOf()
+        myRequests = mutableListOf()
+        myTime = 0L
+        myTracker = AzureResourceGroupDeletionTracker(
+            { groupNames ->
+                myRequests.add(groupNames.toSet())
+                myStates.filterKeys { groupNames.contains(it) }
+            },
+            CoroutineScope(myJob + Dispatchers.IO),
+            { myTime }
+        )
+    }
+
+    @AfterMethod
+    fun afterMethod() {
+        myJob.cancel()
+    }
+
+    @Test
+    fun shouldCheckAllPendingDeletionsWithSingleQuery() = runBlocking {
+        myTracker.deletionAccepted("VM1")
+        myTracker.deletionAccepted("vm2")
+        myTracker.deletionAccepted("vm3")
+        myStates["vm1"] = "Deleting"
+        myStates["vm2"] = "Deleting"
+
+        myTracker.sweep()
+
+        Assert.assertEquals(myRequests, listOf(setOf("vm1", "vm2", "vm3")))
+        Assert.assertEquals(myTracker.inFlightCount, 3)
+        Assert.assertTrue(myTracker.isPending("vm1"))
+    }
+
+    @Test
+    fun shouldCompleteDeletionsAfterGracePeriod() = runBlocking {
+        myTracker.deletionAccepted("vm1")
+        myTracker.deletionAccepted("vm2")
+        myStates["vm2"] = "Deleting"
+
+        myTime += 3 * 60 * 1000L
+        myTracker.sweep()
+
+        Assert.assertFalse(myTracker.isPending("vm1"))
+        Assert.assertTrue(myTracker.isPending("vm2"))
+        Assert.assertEquals(myTracker.inFlightCount, 1)
+        Assert.assertEquals(myTracker.completedCount, 1L)
+
+        myStates.remove("vm2")
+        myTracker.sweep()
+        Assert.assertEquals(myTracker.inFlightCount, 0)
+        Assert.assertEquals(myTracker.completedCount, 2L)
+        Assert.assertEquals(myTracker.acceptedCount, 2L)
+    }
+
+    @Test
+    fun shouldReportFailedDeletions() = runBlocking {
+        myTracker.deletionAccepted("vm1")
+        myStates["vm1"] = "Succeeded"
+
+        myTracker.sweep()
+        Assert.assertTrue(myTracker.isPending("vm1"))
+
+        myTime += 3 * 60 * 1000L
+        myTracker.sweep()
+        Assert.assertFalse(myTracker.isPending("vm1"))
+        Assert.assertEquals(myTracker.failedCount, 1L)
+        Assert.assertEquals(myTracker.completedCount, 0L)
+    }
+
+    @Test
+    fun shouldKeepDeletionsWhenQueryFails() = runBlocking {
+        val tracker = AzureResourceGroupDeletionTracker(
+            { throw IllegalStateException("Failure") },
+            CoroutineScope(myJob + Dispatchers.IO),
+            { myTime }
+        )
+        tracker.deletionAccepted("vm1")
+
+        myTime += 3 * 60 * 1000L
+        tracker.sweep()
+        Assert.assertTrue(tracker.isPending("vm1"))
+    }
+}
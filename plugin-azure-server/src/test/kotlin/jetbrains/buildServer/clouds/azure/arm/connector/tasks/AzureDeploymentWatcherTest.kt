@@ -0,0 +1,131 @@
+package jetbrains.buildServer.clouds.azure.arm.connector.tasks
+
+import com.microsoft.azure.CloudException
+import com.microsoft.azure.management.resources.ProvisioningState
+import com.microsoft.azure.management.resources.implementation.DeploymentExtendedInner
+import io.mockk.every
+import io.mockk.mockk
+import org.testng.Assert
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+import rx.Observable
+import rx.observers.TestSubscriber
+import rx.schedulers.TestScheduler
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class AzureDeploymentWatcherTest {
+    private lateinit var myApi: AzureApi
+    private lateinit var myScheduler: TestScheduler
+    private lateinit var myStates: MutableMap<String, MutableMap<String, ProvisioningState>>
+    private lateinit var myFetchCount: AtomicInteger
+    private lateinit var myWatcher: AzureDeploymentWatcher
+
+    @BeforeMethod
+    fun beforeMethod() {
+        myApi = mockk()
+        myScheduler = TestScheduler()
+        myStates = ConcurrentHashMap()
+        myFetchCount = AtomicInteger()
+        myWatcher = AzureDeploymentWatcher(
+            { _, groupName ->
+                myFetchCount.incrementAndGet()
+                Observable.from(myStates[groupName].orEmpty().map { (name, state) -> deployment(name, state) })
+            },
+            myScheduler,
+            { INTERVAL_MS }
+        )
+    }
+
+    @Test
+    fun shouldCheckDeploymentsOfGroupWithSingleRequest() {
+        // Given
+        val groups = (1..5).map { "group$it" }
+        val subscribers = (1..500).map { index ->
+            val groupName = groups[index % groups.size]
+            val deploymentName = "vm$index"
+            myStates.getOrPut(groupName) { ConcurrentHashMap() }[deploymentName] = ProvisioningState.RUNNING
+
+            TestSubscriber<DeploymentExtendedInner>().apply {
+                myWatcher.watch(myApi, groupName, deploymentName).subscribe(this)
+            }
+        }
+        Assert.assertEquals(myWatcher.inFlightCount, 500)
+
+        // When
+        myScheduler.advanceTimeBy(INTERVAL_MS, TimeUnit.MILLISECONDS)
+        Assert.assertEquals(myFetchCount.get(), 5)
+        subscribers.forEach { it.assertNoTerminalEvent() }
+
+        myStates.values.forEach { deployments -> deployments.replaceAll { _, _ -> ProvisioningState.SUCCEEDED } }
+        myScheduler.advanceTimeBy(INTERVAL_MS, TimeUnit.MILLISECONDS)
+
+        // Then
+        subscribers.forEachIndexed { index, subscriber ->
+            subscriber.assertCompleted()
+            Assert.assertEquals(subscriber.onNextEvents.single().name(), "vm${index + 1}")
+        }
+        Assert.assertEquals(myFetchCount.get(), 10)
+        Assert.assertEquals(myWatcher.inFlightCount, 0)
+
+        // no requests when nothing is watched
+        myScheduler.advanceTimeBy(10 * INTERVAL_MS, TimeUnit.MILLISECONDS)
+        Assert.assertEquals(myFetchCount.get(), 10)
+    }
+
+    @Test
+    fun shouldFailDeploymentsInFailedState() {
+        myStates["group"] = ConcurrentHashMap(mapOf("vm1" to ProvisioningState.FAILED, "vm2" to ProvisioningState.CANCELED))
+        val failed = TestSubscriber<DeploymentExtendedInner>().apply { myWatcher.watch(myApi, "group", "vm1").subscribe(this) }
+        val canceled = TestSubscriber<DeploymentExtendedInner>().apply { myWatcher.watch(myApi, "group", "vm2").subscribe(this) }
+
+        myScheduler.advanceTimeBy(INTERVAL_MS, TimeUnit.MILLISECONDS)
+
+        failed.assertError(CloudException::class.java)
+        canceled.assertError(CloudException::class.java)
+        Assert.assertTrue(canceled.onErrorEvents.single().message!!.endsWith("Canceled"))
+    }
+
+    @Test
+    fun shouldFailDeploymentsWhichHaveGone() {
+        myStates["group"] = ConcurrentHashMap()
+        val subscriber = TestSubscriber<DeploymentExtendedInner>().apply { myWatcher.watch(myApi, "group", "vm1").subscribe(this) }
+
+        myScheduler.advanceTimeBy(INTERVAL_MS, TimeUnit.MILLISECONDS)
+
+        subscriber.assertError(AzureDeploymentWatcher.DeploymentNotFoundException::class.java)
+    }
+
+    @Test
+    fun shouldKeepWatchingWhenListRequestFails() {
+        var fail = true
+        val watcher = AzureDeploymentWatcher(
+            { _, _ ->
+                if (fail) Observable.error(IllegalStateException("Failure"))
+                else Observable.just(deployment("vm1", ProvisioningState.SUCCEEDED))
+            },
+            myScheduler,
+            { INTERVAL_MS }
+        )
+        val subscriber = TestSubscriber<DeploymentExtendedInner>().apply { watcher.watch(myApi, "group", "vm1").subscribe(this) }
+
+        myScheduler.advanceTimeBy(INTERVAL_MS, TimeUnit.MILLISECONDS)
+        subscriber.assertNoTerminalEvent()
+
+        fail = false
+        myScheduler.advanceTimeBy(INTERVAL_MS, TimeUnit.MILLISECONDS)
+        subscriber.assertCompleted()
+    }
+
+    private fun deployment(name: String, state: ProvisioningState): DeploymentExtendedInner {
+        val deployment = mockk<DeploymentExtendedInner>()
+        every { deployment.name() } returns name
+        every { deployment.properties().provisioningState() } returns state
+        return deployment
+    }
+
+    companion object {
+        private const val INTERVAL_MS = 10 * 1000L
+    }
+}
@@ -0,0 +1,125 @@
+package jetbrains.buildServer.clouds.azure.arm.types
+
+import io.mockk.coEvery
+import io.mockk.coVerify
+import io.mockk.mockk
+import jetbrains.buildServer.clouds.azure.arm.AzureCloudDeployTarget
+import jetbrains.buildServer.clouds.azure.arm.AzureCloudImageDetails
+import jetbrains.buildServer.clouds.azure.arm.AzureCloudImageType
+import jetbrains.buildServer.clouds.CloudException
+import jetbrains.buildServer.clouds.azure.arm.connector.AzureApiConnector
+import kotlinx.coroutines.runBlocking
+import org.testng.Assert
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+
+class AzureImageHandlerTest {
+    private lateinit var myApiConnector: AzureApiConnector
+    private lateinit var myHandler: AzureImageHandler
+
+    @BeforeMethod
+    fun beforeMethod() {
+        myApiConnector = mockk()
+        myHandler = AzureImageHandler(myApiConnector)
+    }
+
+    @Test
+    fun shouldComputeSha256ImageHash() = runBlocking {
+        coEvery { myApiConnector.getLatestImageVersion(IMAGE_ID) } returns null
+
+        val hash = myHandler.getImageHash(createImageDetails())
+
+        Assert.assertTrue(hash.matches(Regex("[0-9a-f]{64}")), hash)
+        Assert.assertEquals(myHandler.getImageHash(createImageDetails()), hash)
+    }
+
+    @Test
+    fun shouldChangeImageHashWhenLatestGalleryVersionChanges() = runBlocking {
+        coEvery { myApiConnector.getLatestImageVersion(IMAGE_ID) } returns "$IMAGE_ID/versions/1.0.0"
+        val hash = myHandler.getImageHash(createImageDetails())
+
+        coEvery { myApiConnector.getLatestImageVersion(IMAGE_ID) } returns "$IMAGE_ID/versions/1.0.1"
+
+        Assert.assertNotEquals(myHandler.getImageHash(createImageDetails()), hash)
+    }
+
+    @Test
+    fun shouldKeepImageHashWhenLatestGalleryVersionLookupFails() = runBlocking {
+        coEvery { myApiConnector.getLatestImageVersion(IMAGE_ID) } returns "$IMAGE_ID/versions/1.0.0"
+        val hash = myHandler.getImageHash(createImageDetails())
+
+        coEvery { myApiConnector.getLatestImageVersion(IMAGE_ID) } throws CloudException("Failed to get images")
+
+        Assert.assertEquals(myHandler.getImageHash(createImageDetails()), hash)
+    }
+
+    @Test(expectedExceptions = [CloudException::class])
+    fun shouldFailImageHashWhenLatestGalleryVersionIsUnknown() {
+        coEvery { myApiConnector.getLatestImageVersion(IMAGE_ID) } throws CloudException("Failed to get images")
+
+        runBlocking { myHandler.getImageHash(createImageDetails()) }
+    }
+
+    @Test
+    fun shouldNotResolveVersionOfManagedImage() = runBlocking {
+        val details = createImageDetails(imageId = MANAGED_IMAGE_ID)
+
+        Assert.assertEquals(myHandler.getImageHash(details), myHandler.getImageHash(details))
+        coVerify(exactly = 0) { myApiConnector.getLatestImageVersion(any()) }
+    }
+
+    @Test
+    fun shouldChangeImageHashWhenDeploymentSettingsChange() = runBlocking {
+        coEvery { myApiConnector.getLatestImageVersion(IMAGE_ID) } returns null
+
+        Assert.assertNotEquals(
+            myHandler.getImageHash(createImageDetails(vmSize = "Standard_D2s_v3")),
+            myHandler.getImageHash(createImageDetails(vmSize = "Standard_D4s_v3")))
+    }
+
+    @Test
+    fun shouldKeepLegacyImageHash() {
+        Assert.assertEquals(myHandler.getLegacyImageHash(createImageDetails()), Integer.toHexString(IMAGE_ID.hashCode()))
+    }
+
+    private fun createImageDetails(vmSize: String? = "Standard_D2s_v3", imageId: String = IMAGE_ID) = AzureCloudImageDetails(
+        mySourceId = null,
+        deployTarget = AzureCloudDeployTarget.SpecificGroup,
+        regionId = "regionId",
+        groupId = "groupId",
+        imageType = AzureCloudImageType.Image,
+        imageUrl = null,
+        imageId = imageId,
+        instanceId = null,
+        osType = "Linux",
+        networkId = "networkId",
+        subnetId = "subnetId",
+        vmNamePrefix = "vm",
+        vmSize = vmSize,
+        vmPublicIp = false,
+        myMaxInstances = 2,
+        username = "user",
+        storageAccountType = null,
+        template = null,
+        numberCores = null,
+        memory = null,
+        storageAccount = null,
+        registryUsername = null,
+        agentPoolId = null,
+        profileId = null,
+        myReuseVm = true,
+        customEnvironmentVariables = null,
+        spotVm = null,
+        enableSpotPrice = null,
+        spotPrice = null,
+        enableAcceleratedNetworking = null,
+        disableTemplateModification = null,
+        userAssignedIdentity = null,
+        enableSystemAssignedIdentity = null
+    )
+
+    companion object {
+        private const val IMAGE_ID = "/subscriptions/subscription/resourceGroups/group/providers/Microsoft.Compute/galleries/gallery/images/image"
+        private const val MANAGED_IMAGE_ID = "/subscriptions/subscription/resourceGroups/group/providers/Microsoft.Compute/images/image"
+    }
+}
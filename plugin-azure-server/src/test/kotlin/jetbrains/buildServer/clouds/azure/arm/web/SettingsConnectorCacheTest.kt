@@ -0,0 +1,168 @@
+package jetbrains.buildServer.clouds.azure.arm.web
+
+import io.mockk.coEvery
+import io.mockk.coVerify
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import jetbrains.buildServer.clouds.azure.arm.AzureConstants
+import jetbrains.buildServer.clouds.azure.arm.connector.AzureApiConnector
+import jetbrains.buildServer.clouds.azure.arm.connector.AzureApiConnectorFactory
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.yield
+import org.testng.Assert
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+import java.util.concurrent.atomic.AtomicInteger
+
+class SettingsConnectorCacheTest {
+    private lateinit var myFactory: AzureApiConnectorFactory
+    private lateinit var myConnector: AzureApiConnector
+    private lateinit var myCache: SettingsConnectorCache
+    @Volatile
+    private var myTime = 0L
+
+    @BeforeMethod
+    fun beforeMethod() {
+        myTime = 0L
+        myConnector = mockk(relaxed = true)
+        myFactory = mockk()
+        every { myFactory.create(any(), any()) } returns myConnector
+        myCache = SettingsConnectorCache(myFactory, { myTime })
+    }
+
+    @AfterMethod
+    fun afterMethod() {
+        myCache.dispose()
+    }
+
+    @Test
+    fun shouldReuseConnectorForSameCredentials() {
+        val first = myCache.getConnector(properties("secret", "subscription"))
+        val second = myCache.getConnector(properties("secret", "subscription"))
+        myCache.getConnector(properties("other", "subscription"))
+        myCache.getConnector(properties("secret", "other"))
+
+        Assert.assertSame(first, second)
+        verify(exactly = 3) { myFactory.create(any(), null) }
+        verify(exactly = 3) { myConnector.start() }
+    }
+
+    @Test
+    fun shouldEvictIdleConnectors() {
+        myCache.getConnector(properties("secret", "subscription"))
+        myTime += 60 * 1000L
+        myCache.getConnector(properties("secret", "subscription"))
+        verify(exactly = 1) { myFactory.create(any(), null) }
+
+        myTime += 10 * 60 * 1000L
+        myCache.getConnector(properties("secret", "subscription"))
+        verify(exactly = 2) { myFactory.create(any(), null) }
+        verify(exactly = 1) { myConnector.dispose() }
+    }
+
+    @Test
+    fun shouldEvictIdleConnectorsByTimer() {
+        val cache = SettingsConnectorCache(myFactory, { myTime }, 10L)
+        try {
+            cache.getConnector(properties("secret", "subscription"))
+
+            myTime += 10 * 60 * 1000L
+
+            verify(timeout = 5000L, exactly = 1) { myConnector.dispose() }
+        } finally {
+            cache.dispose()
+        }
+    }
+
+    @Test
+    fun shouldNotEvictConnectorsInUse() = runBlocking {
+        val response = CompletableDeferred<Map<String, String>>()
+        coEvery { myConnector.getSubscriptions() } coAnswers { response.await() }
+        val connector = myCache.getConnector(properties("secret", "subscription"))
+        val request = async { connector.getSubscriptions() }
+        yield()
+
+        myTime += 10 * 60 * 1000L
+        myCache.getConnector(properties("other", "subscription"))
+        verify(exactly = 0) { myConnector.dispose() }
+
+        response.complete(mapOf("id" to "name"))
+        Assert.assertEquals(request.await(), mapOf("id" to "name"))
+    }
+
+    @Test
+    fun shouldDisposeConnectorsOnDispose() {
+        myCache.getConnector(properties("secret", "subscription"))
+        myCache.getConnector(properties("other", "subscription"))
+
+        myCache.dispose()
+
+        verify(exactly = 2) { myConnector.dispose() }
+    }
+
+    @Test
+    fun shouldShareInFlightRequests() = runBlocking {
+        val calls = AtomicInteger()
+        val response = CompletableDeferred<List<String>>()
+        coEvery { myConnector.getVmSizes("westeurope") } coAnswers {
+            calls.incrementAndGet()
+            response.await()
+        }
+
+        val requests = (1..10).map {
+            async { myCache.getConnector(properties("secret", "subscription")).getVmSizes("westeurope") }
+        }
+        response.complete(listOf("Standard_A1"))
+
+        requests.awaitAll().forEach { Assert.assertEquals(it, listOf("Standard_A1")) }
+        Assert.assertEquals(calls.get(), 1)
+    }
+
+    @Test
+    fun shouldCacheResponsesForShortTime() = runBlocking {
+        coEvery { myConnector.getSubscriptions() } returns mapOf("id" to "name")
+        val connector = myCache.getConnector(properties("secret", "subscription"))
+
+        connector.getSubscriptions()
+        myTime += 1000L
+        connector.getSubscriptions()
+        coVerify(exactly = 1) { myConnector.getSubscriptions() }
+
+        myTime += 5 * 60 * 1000L
+        connector.getSubscriptions()
+        coVerify(exactly = 2) { myConnector.getSubscriptions() }
+    }
+
+    @Test
+    fun shouldNotCacheFailures() = runBlocking {
+        val calls = AtomicInteger()
+        coEvery { myConnector.getRegions() } coAnswers {
+            if (calls.incrementAndGet() == 1) throw IllegalStateException("Failure")
+            mapOf("westeurope" to "West Europe")
+        }
+        val connector = myCache.getConnector(properties("secret", "subscription"))
+
+        try {
+            connector.getRegions()
+            Assert.fail("Exception expected")
+        } catch (e: IllegalStateException) {
+            Assert.assertEquals(e.message, "Failure")
+        }
+
+        Assert.assertEquals(connector.getRegions(), mapOf("westeurope" to "West Europe"))
+        Assert.assertEquals(calls.get(), 2)
+    }
+
+    private fun properties(secret: String, subscriptionId: String) = mapOf(
+            AzureConstants.CREDENTIALS_TYPE to AzureConstants.CREDENTIALS_SERVICE,
+            AzureConstants.TENANT_ID to "tenant",
+            AzureConstants.CLIENT_ID to "client",
+            AzureConstants.CLIENT_SECRET to secret,
+            AzureConstants.SUBSCRIPTION_ID to subscriptionId
+    )
+}
@@ -6,8 +6,11 @@ import jetbrains.buildServer.BaseTestCase
 import jetbrains.buildServer.clouds.azure.arm.throttler.AzureDeferralSequenceTimeManagerImpl
 import jetbrains.buildServer.clouds.azure.arm.throttler.TEAMCITY_CLOUDS_AZURE_THROTTLER_TIMEMANAGER_BUCKET_REFILL_INTERVAL_MSEC
 import jetbrains.buildServer.clouds.azure.arm.throttler.TEAMCITY_CLOUDS_AZURE_THROTTLER_TIMEMANAGER_BUCKET_SIZE
+import org.testng.Assert
 import org.testng.annotations.Test
 import rx.functions.Action1
+import rx.schedulers.Schedulers
+import java.util.concurrent.TimeUnit
 
 class AzureDeferralSequenceTimeManagerImplTest : BaseTestCase() {
     @Test
@@ -73,5 +76,31 @@ class AzureDeferralSequenceTimeManagerImplTest : BaseTestCase() {
         subscription.unsubscribe()
     }
 
-    fun createInstance() = AzureDeferralSequenceTimeManagerImpl()
+    @Test
+    fun shouldGenerateElementAfterRefillIntervalInVirtualTime() {
+        // Given
+        setInternalProperty(TEAMCITY_CLOUDS_AZURE_THROTTLER_TIMEMANAGER_BUCKET_SIZE, "1")
+        setInternalProperty(TEAMCITY_CLOUDS_AZURE_THROTTLER_TIMEMANAGER_BUCKET_REFILL_INTERVAL_MSEC, "10000")
+        val scheduler = Schedulers.test()
+        val instance = AzureDeferralSequenceTimeManagerImpl(scheduler)
+
+        instance.getDeferralSequence("TestId").toBlocking().single()
+
+        val action = mockk<Action1<Unit>>(relaxed = true)
+        val subscription = instance.getDeferralSequence("TestId 2").subscribe(action)
+
+        // When
+        scheduler.advanceTimeBy(9, TimeUnit.SECONDS)
+        verify(exactly = 0) { action.call(Unit) }
+        scheduler.advanceTimeBy(1, TimeUnit.SECONDS)
+
+        // Then
+        verify(exactly = 1) { action.call(Unit) }
+        Assert.assertEquals(instance.getBucketSize(), 0L)
+
+        subscription.unsubscribe()
+        instance.dispose()
+    }
+
+    fun createInstance() = AzureDeferralSequenceTimeManagerImpl(Schedulers.io())
 }
@@ -0,0 +1,195 @@
+package jetbrains.buildServer.clouds.azure.throttler
+
+import jetbrains.buildServer.clouds.azure.arm.AzureConstants
+import jetbrains.buildServer.clouds.azure.arm.connector.tasks.AzureApi
+import jetbrains.buildServer.clouds.azure.arm.connector.tasks.AzureThrottlerActionTasks
+import jetbrains.buildServer.clouds.azure.arm.connector.tasks.AzureThrottlerReadTasks
+import jetbrains.buildServer.clouds.azure.arm.connector.tasks.CreateDeploymentTaskParameter
+import jetbrains.buildServer.clouds.azure.arm.connector.tasks.FetchInstancesTaskInstanceDescriptor
+import jetbrains.buildServer.clouds.azure.arm.connector.tasks.FetchInstancesTaskParameter
+import jetbrains.buildServer.clouds.azure.arm.connector.tasks.StopVirtualMachineTaskParameter
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureDeferralSequenceTimeManagerImpl
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureTaskNotificationsImpl
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottler
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerBulkhead
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerFactoryImpl
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerSchedulers
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureTicketTimeManagerImpl
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureTimeManagerImpl
+import jetbrains.buildServer.clouds.azure.arm.throttler.TEAMCITY_CLOUDS_AZURE_TASKS_CREATEDEPLOYMENT_SHARED_WATCHER_ENABLE
+import jetbrains.buildServer.clouds.azure.arm.throttler.TEAMCITY_CLOUDS_AZURE_TASKS_CREATEDEPLOYMENT_WATCHER_INTERVAL_MS
+import jetbrains.buildServer.clouds.azure.fake.FakeAzureConfiguration
+import jetbrains.buildServer.clouds.azure.fake.FakeAzureServer
+import jetbrains.buildServer.clouds.azure.fake.FakeAzureTokenCredentials
+import jetbrains.buildServer.clouds.azure.fake.FakeLatency
+import jetbrains.buildServer.clouds.azure.fake.FakeRateLimit
+import jetbrains.buildServer.clouds.azure.fake.FakeRequestCategory
+import org.testng.Assert
+import org.testng.Reporter
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+import rx.Observable
+import rx.Scheduler
+import rx.Single
+import rx.schedulers.Schedulers
+import java.time.Clock
+import java.util.concurrent.TimeUnit
+
+/**
+ * Scale-out and scale-in of a whole profile against the fake Azure endpoints.
+ *
+ * Size of the scenario is set by teamcity.azure.fake.scenario.instances property,
+ * throughput and 429 counts are reported to the test output.
+ * The scenario runs in real time, so it belongs to the load group which is executed by loadTest task only.
+ */
+class AzureThrottlerLoadScenarioTest {
+    private lateinit var server: FakeAzureServer
+    private lateinit var readThrottler: AzureThrottler<AzureApi, AzureThrottlerReadTasks.Values>
+    private lateinit var actionThrottler: AzureThrottler<AzureApi, AzureThrottlerActionTasks.Values>
+
+    @BeforeMethod
+    fun beforeMethod() {
+        System.setProperty(TEAMCITY_CLOUDS_AZURE_TASKS_CREATEDEPLOYMENT_SHARED_WATCHER_ENABLE, "true")
+        System.setProperty(TEAMCITY_CLOUDS_AZURE_TASKS_CREATEDEPLOYMENT_WATCHER_INTERVAL_MS, "200")
+
+        server = FakeAzureServer(FakeAzureConfiguration().apply {
+            readLatency = FakeLatency.logNormal(20, 200, 1)
+            writeLatency = FakeLatency.logNormal(50, 500, 2)
+            resourceGraphLatency = FakeLatency.logNormal(100, 1000, 3)
+            deploymentDuration = FakeLatency.uniform(500, 3000, 4)
+            operationDuration = FakeLatency.uniform(200, 1000, 5)
+            resourceGraphQuota = FakeRateLimit.unlimited()
+        }).start()
+        server.addResourceGroup(GROUP_NAME)
+    }
+
+    @AfterMethod
+    fun afterMethod() {
+        if (this::readThrottler.isInitialized) readThrottler.stop()
+        if (this::actionThrottler.isInitialized) actionThrottler.stop()
+        server.close()
+        System.clearProperty(TEAMCITY_CLOUDS_AZURE_TASKS_CREATEDEPLOYMENT_WATCHER_INTERVAL_MS)
+        System.clearProperty(TEAMCITY_CLOUDS_AZURE_TASKS_CREATEDEPLOYMENT_SHARED_WATCHER_ENABLE)
+    }
+
+    @Test(groups = [LOAD_GROUP])
+    fun shouldScaleOutAndScaleInProfile() {
+        // Given
+        val instancesCount = Integer.getInteger(INSTANCES_COUNT_PROPERTY, 20)
+        createThrottlers()
+
+        // When
+        scaleOut(instancesCount)
+        val startedInstances = fetchInstances()
+        scaleIn(instancesCount)
+        val stoppedInstances = fetchInstances()
+
+        // Then
+        Assert.assertEquals(startedInstances.size, instancesCount)
+        Assert.assertTrue(startedInstances.all { it.provisioningState == "Succeeded" && it.powerState == "running" }, startedInstances.toString())
+        Assert.assertEquals(stoppedInstances.size, instancesCount)
+        Assert.assertTrue(stoppedInstances.all { it.powerState == "deallocated" }, stoppedInstances.toString())
+        Assert.assertEquals(server.statistics.unhandledRequests, emptySet<String>())
+    }
+
+    @Test(groups = [LOAD_GROUP])
+    fun shouldCompleteScaleOutWhenWriteQuotaIsExhausted() {
+        // Given
+        server.configuration.subscriptionWrites = FakeRateLimit(8, 2000)
+        createThrottlers()
+
+        // When
+        scaleOut(16)
+
+        // Then
+        Assert.assertTrue(server.statistics.getThrottledCount(FakeRequestCategory.Write) > 0, server.statistics.toString())
+        Assert.assertEquals(server.resources.getVirtualMachines().count { it.provisioningState == "Succeeded" }, 16)
+    }
+
+    private fun createThrottlers() {
+        val factory = AzureThrottlerFactoryImpl()
+        val bulkhead = TestBulkhead()
+        val credentials = FakeAzureTokenCredentials(server)
+        val notifications = AzureTaskNotificationsImpl()
+        val subscriptionId = server.configuration.subscriptionId
+
+        readThrottler = factory.createReadRequestsThrottler(credentials, subscriptionId, notifications, createTimeManager(), bulkhead)
+        actionThrottler = factory.createActionRequestsThrottler(credentials, subscriptionId, notifications, createTimeManager(), bulkhead)
+        readThrottler.start()
+        actionThrottler.start()
+    }
+
+    private fun createTimeManager() = AzureTimeManagerImpl(AzureTicketTimeManagerImpl(Clock.systemUTC()), AzureDeferralSequenceTimeManagerImpl(Schedulers.io()))
+
+    private fun scaleOut(instancesCount: Int) {
+        server.statistics.reset()
+        val startTime = System.currentTimeMillis()
+        await((1..instancesCount).map {
+            val name = "$SOURCE_ID-$it"
+            actionThrottler.executeTask(AzureThrottlerActionTasks.CreateDeployment, CreateDeploymentTaskParameter(
+                GROUP_NAME,
+                name,
+                "{}",
+                "{}",
+                mapOf(
+                    AzureConstants.TAG_SERVER to SERVER_ID,
+                    AzureConstants.TAG_PROFILE to PROFILE_ID,
+                    AzureConstants.TAG_SOURCE to SOURCE_ID
+                ),
+                "Microsoft.Compute/virtualMachines"
+            )).flatMap { it.completion ?: Single.just(it) }
+        })
+        report("Scale-out of $instancesCount instances", startTime)
+    }
+
+    private fun scaleIn(instancesCount: Int) {
+        server.statistics.reset()
+        val startTime = System.currentTimeMillis()
+        await((1..instancesCount).map {
+            actionThrottler.executeTask(AzureThrottlerActionTasks.StopVirtualMachine, StopVirtualMachineTaskParameter(GROUP_NAME, "$SOURCE_ID-$it"))
+        })
+        report("Scale-in of $instancesCount instances", startTime)
+    }
+
+    private fun fetchInstances(): List<FetchInstancesTaskInstanceDescriptor> =
+        readThrottler
+            .executeTask(AzureThrottlerReadTasks.FetchInstances, FetchInstancesTaskParameter(SERVER_ID))
+            .timeout(SCENARIO_TIMEOUT_MINUTES, TimeUnit.MINUTES)
+            .toBlocking()
+            .value()
+            .filter { it.tags[AzureConstants.TAG_PROFILE] == PROFILE_ID }
+
+    private fun await(tasks: List<Single<*>>) {
+        Observable
+            .merge(tasks.map { it.toObservable() })
+            .timeout(SCENARIO_TIMEOUT_MINUTES, TimeUnit.MINUTES)
+            .toCompletable()
+            .await()
+    }
+
+    private fun report(scenario: String, startTime: Long) {
+        val durationMs = System.currentTimeMillis() - startTime
+        Reporter.log("$scenario took $durationMs ms. ${server.statistics}", true)
+    }
+
+    private class TestBulkhead : AzureThrottlerBulkhead {
+        override fun getScheduler(): Scheduler = Schedulers.io()
+
+        override fun getReadRequestsSchedulers() = AzureThrottlerSchedulers(Schedulers.immediate(), Schedulers.computation(), Schedulers.io())
+
+        override fun getActionRequestsSchedulers() = AzureThrottlerSchedulers(Schedulers.io(), Schedulers.computation(), Schedulers.io())
+
+        override fun close() = Unit
+    }
+
+    companion object {
+        private const val LOAD_GROUP = "load"
+        private const val INSTANCES_COUNT_PROPERTY = "teamcity.azure.fake.scenario.instances"
+        private const val SCENARIO_TIMEOUT_MINUTES = 3L
+        private const val GROUP_NAME = "agents"
+        private const val SERVER_ID = "server-1"
+        private const val PROFILE_ID = "arm-1"
+        private const val SOURCE_ID = "image"
+    }
+}
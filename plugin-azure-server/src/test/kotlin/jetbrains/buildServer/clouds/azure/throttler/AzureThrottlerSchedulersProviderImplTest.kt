@@ -0,0 +1,114 @@
+package jetbrains.buildServer.clouds.azure.throttler
+
+import io.mockk.mockk
+import jetbrains.buildServer.BaseTestCase
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerSchedulersProviderImpl
+import jetbrains.buildServer.clouds.azure.arm.throttler.TEAMCITY_CLOUDS_AZURE_THROTTLER_PROFILE_POOL_MAX_SIZE
+import org.testng.Assert
+import org.testng.annotations.Test
+import rx.Single
+import rx.plugins.RxJavaHooks
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+class AzureThrottlerSchedulersProviderImplTest : BaseTestCase() {
+    @Test
+    fun shouldNotDelayProfileWhenAnotherProfileIsBlocked() {
+        // Given
+        setInternalProperty(TEAMCITY_CLOUDS_AZURE_THROTTLER_PROFILE_POOL_MAX_SIZE, POOL_SIZE.toString())
+        val provider = AzureThrottlerSchedulersProviderImpl(mockk(relaxed = true))
+        val blockedBulkhead = provider.createBulkhead("blocked")
+        val bulkhead = provider.createBulkhead("profile")
+
+        val started = CountDownLatch(POOL_SIZE)
+        val release = CountDownLatch(1)
+        try {
+            repeat(POOL_SIZE * 2) {
+                Single
+                    .fromCallable {
+                        started.countDown()
+                        release.await()
+                    }
+                    .subscribeOn(blockedBulkhead.getActionRequestsSchedulers().requestScheduler)
+                    .subscribe({}, {})
+            }
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS), "Requests of the blocked profile should occupy its pool")
+
+            // When
+            val result = Single
+                .fromCallable { "Completed" }
+                .subscribeOn(bulkhead.getActionRequestsSchedulers().requestScheduler)
+                .timeout(5, TimeUnit.SECONDS)
+                .toBlocking()
+                .value()
+
+            // Then
+            Assert.assertEquals(result, "Completed")
+        } finally {
+            release.countDown()
+            blockedBulkhead.close()
+            bulkhead.close()
+            provider.close()
+        }
+    }
+
+    @Test
+    fun shouldTimeoutRequestWhenProfilePoolIsExhausted() {
+        // Given
+        setInternalProperty(TEAMCITY_CLOUDS_AZURE_THROTTLER_PROFILE_POOL_MAX_SIZE, POOL_SIZE.toString())
+        val provider = AzureThrottlerSchedulersProviderImpl(mockk(relaxed = true))
+        val bulkhead = provider.createBulkhead("blocked")
+        val schedulers = bulkhead.getActionRequestsSchedulers()
+
+        val started = CountDownLatch(POOL_SIZE)
+        val release = CountDownLatch(1)
+        try {
+            repeat(POOL_SIZE) {
+                Single
+                    .fromCallable {
+                        started.countDown()
+                        release.await()
+                    }
+                    .subscribeOn(schedulers.requestScheduler)
+                    .subscribe({}, {})
+            }
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS), "Requests should occupy the pool")
+
+            // When
+            val timedOut = CountDownLatch(1)
+            Single
+                .fromCallable { "Completed" }
+                .subscribeOn(schedulers.requestScheduler)
+                .timeout(100, TimeUnit.MILLISECONDS, schedulers.timeoutScheduler)
+                .subscribe({}, { if (it is TimeoutException) timedOut.countDown() })
+
+            // Then
+            Assert.assertTrue(timedOut.await(5, TimeUnit.SECONDS), "Timeout should fire while the pool is exhausted")
+        } finally {
+            release.countDown()
+            bulkhead.close()
+            provider.close()
+        }
+    }
+
+    @Test
+    fun shouldNotOverrideGlobalSchedulers() {
+        // Given
+        val provider = AzureThrottlerSchedulersProviderImpl(mockk(relaxed = true))
+
+        // When
+        provider.createBulkhead("profile").close()
+
+        // Then
+        Assert.assertNull(RxJavaHooks.getOnIOScheduler())
+        Assert.assertNull(RxJavaHooks.getOnComputationScheduler())
+        Assert.assertNull(RxJavaHooks.getOnNewThreadScheduler())
+
+        provider.close()
+    }
+
+    companion object {
+        private const val POOL_SIZE = 2
+    }
+}
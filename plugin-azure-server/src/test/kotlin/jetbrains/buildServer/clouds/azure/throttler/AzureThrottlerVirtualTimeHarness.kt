@@ -0,0 +1,245 @@
+package jetbrains.buildServer.clouds.azure.throttler
+
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureDeferralSequenceTimeManagerImpl
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureSchedulerClock
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureTaskContext
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureTaskNotificationsImpl
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerAdapter
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerAdapterResult
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerImpl
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerScheduledExecutor
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerScheduledExecutorFactorty
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerSchedulers
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerStrategyImpl
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerTask
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerTaskTimeExecutionType
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureTicketTimeManagerImpl
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureTimeManagerImpl
+import jetbrains.buildServer.clouds.azure.arm.throttler.ThrottlerRateLimitReachedException
+import rx.Observable
+import rx.Scheduler
+import rx.Single
+import rx.schedulers.TestScheduler
+import java.time.Duration
+import java.time.Instant
+import java.time.LocalDateTime
+import java.time.ZoneOffset
+import java.util.*
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Runs the throttler with all timers and dates on a single [TestScheduler] against
+ * an Azure subscription model with a fixed window quota, so hours of throttled traffic take milliseconds.
+ *
+ * Collects the invariants violations: retries sent before Retry-After deadline and the bucket size of the deferral sequence.
+ */
+class AzureThrottlerVirtualTimeHarness(
+    private val quotaLimit: Long,
+    private val quotaWindowMs: Long,
+    private val latencyMs: Long
+) {
+    val scheduler = TestScheduler()
+    val deferralSequenceTimeManager = AzureDeferralSequenceTimeManagerImpl(scheduler)
+    val api = FakeApi()
+    val throttler: AzureThrottlerImpl<FakeApi, String>
+
+    private val myTimeManager = AzureTimeManagerImpl(AzureTicketTimeManagerImpl(AzureSchedulerClock(scheduler)), deferralSequenceTimeManager)
+    private val myAdapter = FakeAdapter()
+    private val myRequestId = AtomicLong(0)
+    private val myRequests = mutableListOf<Request>()
+    private val myViolations = mutableListOf<String>()
+    private var myLoadWorker: Scheduler.Worker = scheduler.createWorker()
+    private var myMinBucketSize = Long.MAX_VALUE
+
+    init {
+        val strategy = AzureThrottlerStrategyImpl<FakeApi, String>(myAdapter, { 20 }, { 10 }, { 90 }, { 0L }, { 3000L })
+        throttler = AzureThrottlerImpl(
+            myAdapter,
+            strategy,
+            AzureThrottlerSchedulers(scheduler, scheduler, scheduler),
+            VirtualTimeExecutorFactory(),
+            AzureTaskNotificationsImpl()
+        )
+    }
+
+    val requests: List<Request>
+        get() = myRequests
+
+    val violations: List<String>
+        get() = myViolations
+
+    val minBucketSize: Long
+        get() = myMinBucketSize
+
+    fun registerTask(taskId: String, timeExecutionType: AzureThrottlerTaskTimeExecutionType) {
+        throttler.registerTask(taskId, FakeTask(), timeExecutionType, 60)
+    }
+
+    fun request(taskId: String) {
+        val request = Request(taskId, myRequestId.incrementAndGet(), scheduler.now())
+        myRequests.add(request)
+        throttler
+            .executeTask<Long, Long>(taskId, request.id)
+            .subscribe({ request.completedTime = scheduler.now() }, { request.error = it })
+    }
+
+    fun every(period: Duration, action: () -> Unit) {
+        myLoadWorker.schedulePeriodically({ action() }, period.toMillis(), period.toMillis(), TimeUnit.MILLISECONDS)
+    }
+
+    fun stopLoad() {
+        myLoadWorker.unsubscribe()
+        myLoadWorker = scheduler.createWorker()
+    }
+
+    fun run(duration: Duration) {
+        val endTime = scheduler.now() + duration.toMillis()
+        while (scheduler.now() < endTime) {
+            scheduler.advanceTimeBy(STEP_MS, TimeUnit.MILLISECONDS)
+            myMinBucketSize = minOf(myMinBucketSize, deferralSequenceTimeManager.getBucketSize())
+        }
+    }
+
+    class Request(val taskId: String, val id: Long, val requestedTime: Long) {
+        var completedTime: Long? = null
+        var error: Throwable? = null
+
+        val waitTime: Duration?
+            get() = completedTime?.let { Duration.ofMillis(it - requestedTime) }
+
+        override fun toString() = "$taskId-$id requested at $requestedTime, completed at $completedTime, error: $error"
+    }
+
+    /**
+     * Subscription quota with a fixed window which answers with Retry-After till the end of the window.
+     */
+    inner class FakeApi {
+        private val myRetryAfterDeadlines = HashMap<Long, Long>()
+        private var myWindow = 0L
+        private var myUsed = 0L
+
+        var acceptedCount = 0L
+            private set
+
+        var throttledCount = 0L
+            private set
+
+        val remaining: Long
+            get() {
+                resetWindow(scheduler.now())
+                return quotaLimit - myUsed
+            }
+
+        fun call(requestId: Long): Single<Long> = Single.defer<Long> {
+            val now = scheduler.now()
+            resetWindow(now)
+
+            myRetryAfterDeadlines.remove(requestId)?.let { deadline ->
+                if (now < deadline) {
+                    myViolations.add("Request $requestId was retried at $now before Retry-After deadline $deadline")
+                }
+            }
+
+            if (myUsed >= quotaLimit) {
+                val retryAfterInSeconds = ((myWindow + 1) * quotaWindowMs - now + 999) / 1000
+                myRetryAfterDeadlines[requestId] = now + retryAfterInSeconds * 1000
+                throttledCount++
+                return@defer Single.error<Long>(ThrottlerRateLimitReachedException(retryAfterInSeconds, 1, "Rate limit reached"))
+            }
+
+            myUsed++
+            acceptedCount++
+            Single.just(requestId).delay(latencyMs, TimeUnit.MILLISECONDS, scheduler)
+        }
+
+        private fun resetWindow(now: Long) {
+            val window = now / quotaWindowMs
+            if (window != myWindow) {
+                myWindow = window
+                myUsed = 0
+            }
+        }
+    }
+
+    private inner class FakeAdapter : AzureThrottlerAdapter<FakeApi> {
+        private val myThrottlerTime = AtomicLong(0)
+
+        override val api: FakeApi
+            get() = this@AzureThrottlerVirtualTimeHarness.api
+
+        override val name: String = "VirtualTimeAdapter"
+
+        override fun setThrottlerTime(milliseconds: Long) = myThrottlerTime.set(milliseconds)
+
+        override fun getThrottlerTime(): Long = myThrottlerTime.get()
+
+        override fun getWindowWidthInMilliseconds(): Long = quotaWindowMs - scheduler.now() % quotaWindowMs
+
+        override fun getWindowStartDateTime(): LocalDateTime =
+            LocalDateTime.ofInstant(Instant.ofEpochMilli(scheduler.now() - scheduler.now() % quotaWindowMs), ZoneOffset.UTC)
+
+        override fun getRemainingReads(): Long = api.remaining
+
+        override fun getDefaultReads(): Long = quotaLimit
+
+        override fun <T> execute(queryFactory: (FakeApi, AzureTaskContext) -> Single<T>): Single<AzureThrottlerAdapterResult<T>> {
+            val taskContext = TaskContext()
+            return taskContext
+                .getDeferralSequence()
+                .first()
+                .toSingle()
+                .flatMap { queryFactory(api, taskContext) }
+                .map { AzureThrottlerAdapterResult(it, taskContext.getRequestSequenceLength(), false) }
+        }
+
+        override fun logDiagnosticInfo() = Unit
+
+        override fun notifyRemainingReads(value: Long?, requestCount: Long) = Unit
+
+        override fun getContext(): AzureTaskContext? = null
+    }
+
+    private inner class TaskContext : AzureTaskContext {
+        override val corellationId: String = UUID.randomUUID().toString()
+
+        override fun apply() = Unit
+
+        override fun getRequestSequenceLength(): Long = 1
+
+        override fun increaseRequestsSequenceLength() = Unit
+
+        override fun getDeferralSequence(): Observable<Unit> = myTimeManager.getDeferralSequence(corellationId)
+    }
+
+    private class FakeTask : AzureThrottlerTask<FakeApi, Long, Long> {
+        override fun create(api: FakeApi, taskContext: AzureTaskContext, parameter: Long): Single<Long> = api.call(parameter)
+
+        override fun areParametersEqual(parameter: Long, other: Long): Boolean = parameter == other
+    }
+
+    private inner class VirtualTimeExecutorFactory : AzureThrottlerScheduledExecutorFactorty {
+        override fun create(scheduledAction: () -> Unit): AzureThrottlerScheduledExecutor = object : AzureThrottlerScheduledExecutor {
+            private var myWorker: Scheduler.Worker? = null
+
+            override fun start(): Boolean {
+                if (myWorker != null) return false
+
+                val worker = scheduler.createWorker()
+                worker.schedulePeriodically({ scheduledAction() }, 1000, QUEUE_PERIOD_MS, TimeUnit.MILLISECONDS)
+                myWorker = worker
+                return true
+            }
+
+            override fun stop() {
+                myWorker?.unsubscribe()
+                myWorker = null
+            }
+        }
+    }
+
+    companion object {
+        private const val STEP_MS = 100L
+        private const val QUEUE_PERIOD_MS = 300L
+    }
+}
@@ -0,0 +1,52 @@
+package jetbrains.buildServer.clouds.azure.throttler
+
+import jetbrains.buildServer.BaseTestCase
+import jetbrains.buildServer.clouds.azure.arm.throttler.AzureThrottlerTaskTimeExecutionType
+import jetbrains.buildServer.clouds.azure.arm.throttler.TEAMCITY_CLOUDS_AZURE_THROTTLER_TIMEMANAGER_BUCKET_REFILL_INTERVAL_MSEC
+import jetbrains.buildServer.clouds.azure.arm.throttler.TEAMCITY_CLOUDS_AZURE_THROTTLER_TIMEMANAGER_BUCKET_REFILL_VALUE
+import jetbrains.buildServer.clouds.azure.arm.throttler.TEAMCITY_CLOUDS_AZURE_THROTTLER_TIMEMANAGER_BUCKET_SIZE
+import org.testng.Assert
+import org.testng.annotations.Test
+import java.time.Duration
+
+class AzureThrottlerVirtualTimeTest : BaseTestCase() {
+    @Test
+    fun shouldServeThrottledTrafficForHours() {
+        // Given
+        setInternalProperty(TEAMCITY_CLOUDS_AZURE_THROTTLER_TIMEMANAGER_BUCKET_SIZE, "5")
+        setInternalProperty(TEAMCITY_CLOUDS_AZURE_THROTTLER_TIMEMANAGER_BUCKET_REFILL_INTERVAL_MSEC, "1100")
+        setInternalProperty(TEAMCITY_CLOUDS_AZURE_THROTTLER_TIMEMANAGER_BUCKET_REFILL_VALUE, "2")
+
+        val harness = AzureThrottlerVirtualTimeHarness(60, Duration.ofMinutes(1).toMillis(), 200)
+        harness.registerTask(RANDOM_TASK, AzureThrottlerTaskTimeExecutionType.Random)
+        harness.registerTask(PERIODICAL_TASK, AzureThrottlerTaskTimeExecutionType.Periodical)
+        harness.throttler.start()
+
+        harness.every(Duration.ofSeconds(3)) { harness.request(RANDOM_TASK) }
+        harness.every(Duration.ofSeconds(6)) { harness.request(PERIODICAL_TASK) }
+        harness.every(Duration.ofMinutes(30)) { repeat(100) { harness.request(RANDOM_TASK) } }
+
+        // When
+        harness.run(Duration.ofHours(3))
+        harness.stopLoad()
+        harness.run(Duration.ofMinutes(30))
+        harness.throttler.stop()
+
+        // Then
+        Assert.assertTrue(harness.api.throttledCount > 0, "Scenario should reach the rate limit")
+        Assert.assertEquals(harness.requests.filter { it.error != null }, emptyList<AzureThrottlerVirtualTimeHarness.Request>())
+        Assert.assertEquals(harness.requests.filter { it.completedTime == null }, emptyList<AzureThrottlerVirtualTimeHarness.Request>())
+        for (taskId in listOf(RANDOM_TASK, PERIODICAL_TASK)) {
+            val maxWaitTime = harness.requests.filter { it.taskId == taskId }.mapNotNull { it.waitTime }.maxOrNull()!!
+            Assert.assertTrue(maxWaitTime <= MAX_WAIT_TIME, "Task $taskId waited for $maxWaitTime")
+        }
+        Assert.assertTrue(harness.minBucketSize >= 0, "Bucket size was ${harness.minBucketSize}")
+        Assert.assertEquals(harness.violations, emptyList<String>())
+    }
+
+    companion object {
+        private const val RANDOM_TASK = "Random"
+        private const val PERIODICAL_TASK = "Periodical"
+        private val MAX_WAIT_TIME = Duration.ofMinutes(10)
+    }
+}
@@ -0,0 +1,53 @@
+package jetbrains.buildServer.clouds.azure.fake
+
+/**
+ * Behaviour of the fake Azure endpoints. Values can be changed while the server is running.
+ */
+class FakeAzureConfiguration {
+    var subscriptionId: String = "00000000-0000-0000-0000-000000000001"
+    var tenantId: String = "00000000-0000-0000-0000-000000000002"
+    var location: String = "westeurope"
+
+    @Volatile var readLatency: FakeLatency = FakeLatency.NONE
+    @Volatile var writeLatency: FakeLatency = FakeLatency.NONE
+    @Volatile var resourceGraphLatency: FakeLatency = FakeLatency.NONE
+    @Volatile var metadataLatency: FakeLatency = FakeLatency.NONE
+
+    /**
+     * Duration of deployments from submission to the succeeded state.
+     */
+    @Volatile var deploymentDuration: FakeLatency = FakeLatency.fixed(1000)
+
+    /**
+     * Duration of virtual machine start, stop, restart and delete operations.
+     */
+    @Volatile var operationDuration: FakeLatency = FakeLatency.fixed(500)
+
+    /**
+     * Value of Retry-After header returned while long running operation is in progress.
+     */
+    @Volatile var operationPollingIntervalSeconds: Int = 1
+
+    @Volatile var subscriptionReads: FakeRateLimit = FakeRateLimit(12000, HOUR_MS)
+    @Volatile var subscriptionWrites: FakeRateLimit = FakeRateLimit(1200, HOUR_MS)
+    @Volatile var subscriptionDeletes: FakeRateLimit = FakeRateLimit(15000, HOUR_MS)
+
+    /**
+     * Resource Graph quota is reported with x-ms-user-quota-* headers, the default is 15 queries per 5 seconds.
+     */
+    @Volatile var resourceGraphQuota: FakeRateLimit = FakeRateLimit(15, 5000)
+
+    /**
+     * Rows per Resource Graph response page, the rest is returned with $skipToken.
+     */
+    @Volatile var resourceGraphPageSize: Int = 1000
+
+    /**
+     * Instance metadata document returned by IMDS, a minimal document is returned when it is not set.
+     */
+    @Volatile var instanceMetadata: String? = null
+
+    companion object {
+        const val HOUR_MS = 60 * 60 * 1000L
+    }
+}
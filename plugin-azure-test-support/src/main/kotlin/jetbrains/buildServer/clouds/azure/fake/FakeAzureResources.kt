@@ -0,0 +1,166 @@
+package jetbrains.buildServer.clouds.azure.fake
+
+import java.time.Instant
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Resources of the fake subscription. Resource ids are case-insensitive like in Azure Resource Manager.
+ */
+class FakeAzureResources {
+    private val myResources = ConcurrentHashMap<String, FakeAzureResource>()
+    private val myResourceGroups = ConcurrentHashMap<String, FakeAzureResource>()
+
+    val size: Int
+        get() = myResources.size
+
+    fun getResourceGroups(): List<FakeAzureResource> = myResourceGroups.values.toList()
+
+    fun getResourceGroup(subscriptionId: String, name: String): FakeAzureResource? = myResourceGroups[getGroupId(subscriptionId, name).lowercase()]
+
+    fun putResourceGroup(subscriptionId: String, name: String, location: String, tags: Map<String, String>): FakeAzureResource {
+        val id = getGroupId(subscriptionId, name)
+        return myResourceGroups.compute(id.lowercase()) { _, group ->
+            (group ?: FakeAzureResource(id, name, RESOURCE_GROUPS_TYPE, location, emptyMap())).apply {
+                this.tags = tags
+            }
+        }!!
+    }
+
+    fun removeResourceGroup(subscriptionId: String, name: String): FakeAzureResource? {
+        val id = getGroupId(subscriptionId, name)
+        val prefix = "${id.lowercase()}/"
+        myResources.keys.removeIf { it.startsWith(prefix) }
+        return myResourceGroups.remove(id.lowercase())
+    }
+
+    fun get(id: String): FakeAzureResource? = myResources[normalize(id)]
+
+    fun put(resource: FakeAzureResource): FakeAzureResource {
+        myResources[normalize(resource.id)] = resource
+        return resource
+    }
+
+    fun remove(id: String): FakeAzureResource? = myResources.remove(normalize(id))
+
+    fun getAll(): List<FakeAzureResource> = myResources.values.sortedBy { it.id.lowercase() }
+
+    /**
+     * @param groupName resource group or null for resources of all groups.
+     */
+    fun list(type: String, groupName: String? = null): List<FakeAzureResource> = getAll()
+        .filter { it.type.equals(type, ignoreCase = true) && (groupName == null || it.resourceGroupName.equals(groupName, ignoreCase = true)) }
+
+    fun getVirtualMachines(): List<FakeAzureResource> = list(VIRTUAL_MACHINES_TYPE)
+
+    /**
+     * Adds virtual machine with attached network interface.
+     */
+    fun addVirtualMachine(subscriptionId: String,
+                          groupName: String,
+                          name: String,
+                          location: String,
+                          tags: Map<String, String>,
+                          provisioningState: String = "Succeeded",
+                          powerState: String = "running"): FakeAzureResource {
+        val groupId = getGroupId(subscriptionId, groupName)
+        val nic = put(FakeAzureResource("$groupId/providers/Microsoft.Network/networkInterfaces/$name-net", "$name-net", NETWORK_INTERFACES_TYPE, location, tags))
+        return put(FakeAzureResource("$groupId/providers/Microsoft.Compute/virtualMachines/$name", name, VIRTUAL_MACHINES_TYPE, location, tags).apply {
+            this.provisioningState = provisioningState
+            this.powerState = powerState
+            this.networkInterfaceId = nic.id
+        })
+    }
+
+    fun clear() {
+        myResources.clear()
+        myResourceGroups.clear()
+    }
+
+    private fun normalize(id: String) = id.trimEnd('/').lowercase()
+
+    companion object {
+        const val RESOURCE_GROUPS_TYPE = "Microsoft.Resources/resourceGroups"
+        const val DEPLOYMENTS_TYPE = "Microsoft.Resources/deployments"
+        const val VIRTUAL_MACHINES_TYPE = "Microsoft.Compute/virtualMachines"
+        const val NETWORK_INTERFACES_TYPE = "Microsoft.Network/networkInterfaces"
+
+        fun getGroupId(subscriptionId: String, groupName: String) = "/subscriptions/$subscriptionId/resourceGroups/$groupName"
+    }
+}
+
+class FakeAzureResource(
+    val id: String,
+    val name: String,
+    val type: String,
+    val location: String,
+    @Volatile var tags: Map<String, String>
+) {
+    val resourceGroupName: String? = RESOURCE_GROUP_PATTERN.find(id)?.groupValues?.get(1)
+    val createdTime: Instant = Instant.now()
+
+    @Volatile var provisioningState: String = "Succeeded"
+    @Volatile var powerState: String? = null
+    @Volatile var networkInterfaceId: String? = null
+    @Volatile var properties: Map<String, Any?> = emptyMap()
+
+    fun toJson(withInstanceView: Boolean = false): Map<String, Any?> {
+        val result = LinkedHashMap<String, Any?>()
+        result["id"] = id
+        result["name"] = name
+        result["type"] = type
+        result["location"] = location
+        result["tags"] = tags
+        result["properties"] = when {
+            type.equals(FakeAzureResources.VIRTUAL_MACHINES_TYPE, ignoreCase = true) -> getVirtualMachineProperties(withInstanceView)
+            type.equals(FakeAzureResources.RESOURCE_GROUPS_TYPE, ignoreCase = true) -> mapOf("provisioningState" to provisioningState)
+            else -> properties + ("provisioningState" to provisioningState)
+        }
+        return result
+    }
+
+    /**
+     * @return instance view in the format of virtualMachines/instanceView response.
+     */
+    fun getInstanceView(): Map<String, Any?> {
+        val statuses = mutableListOf<Map<String, Any?>>(mapOf(
+            "code" to "ProvisioningState/${provisioningState.lowercase()}",
+            "level" to "Info",
+            "displayStatus" to "Provisioning $provisioningState",
+            "time" to createdTime.toString()
+        ))
+        powerState?.let {
+            statuses.add(mapOf("code" to "PowerState/$it", "level" to "Info", "displayStatus" to "VM $it"))
+        }
+        return mapOf("computerName" to name, "osName" to "linux", "statuses" to statuses)
+    }
+
+    private fun getVirtualMachineProperties(withInstanceView: Boolean): Map<String, Any?> {
+        val result = LinkedHashMap<String, Any?>()
+        result["vmId"] = UUID.nameUUIDFromBytes(id.lowercase().toByteArray()).toString()
+        result["hardwareProfile"] = mapOf("vmSize" to "Standard_D2s_v3")
+        result["storageProfile"] = mapOf(
+            "osDisk" to mapOf(
+                "osType" to "Linux",
+                "name" to "$name-os",
+                "createOption" to "FromImage",
+                "managedDisk" to mapOf("id" to "${id.substringBefore("/providers/")}/providers/Microsoft.Compute/disks/$name-os")
+            ),
+            "dataDisks" to emptyList<Any>()
+        )
+        result["osProfile"] = mapOf("computerName" to name, "adminUsername" to "teamcity")
+        result["networkProfile"] = mapOf(
+            "networkInterfaces" to listOfNotNull(networkInterfaceId?.let { mapOf("id" to it, "properties" to mapOf("primary" to true)) })
+        )
+        result["provisioningState"] = provisioningState
+        result["timeCreated"] = createdTime.toString()
+        if (withInstanceView) {
+            result["instanceView"] = getInstanceView()
+        }
+        return result
+    }
+
+    companion object {
+        private val RESOURCE_GROUP_PATTERN = Regex("/resourceGroups/([^/]+)", RegexOption.IGNORE_CASE)
+    }
+}
@@ -0,0 +1,520 @@
+package jetbrains.buildServer.clouds.azure.fake
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+import java.io.Closeable
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.URLDecoder
+import java.time.Instant
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.max
+
+/**
+ * Local HTTP server which implements the subset of Azure Resource Manager, Resource Graph and
+ * instance metadata endpoints used by the plugin.
+ *
+ * Requests are delayed according to configured latency distributions and counted against subscription
+ * quotas which are reported with x-ms-ratelimit-remaining-* headers, exhausted quota results in
+ * 429 responses with Retry-After header. Deployments and virtual machine operations are long running
+ * operations which are polled by Azure-AsyncOperation url.
+ *
+ * The server is not thread-confined, all state is stored in concurrent collections.
+ */
+class FakeAzureServer(val configuration: FakeAzureConfiguration = FakeAzureConfiguration()) : Closeable {
+    val resources = FakeAzureResources()
+    val statistics = FakeAzureStatistics()
+
+    private val myServer: HttpServer = HttpServer.create(InetSocketAddress(InetAddress.getLoopbackAddress(), 0), BACKLOG)
+    private val myExecutor: ExecutorService = Executors.newCachedThreadPool(createThreadFactory("Fake Azure server"))
+    private val myScheduler: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor(createThreadFactory("Fake Azure operations"))
+    private val myOperations = ConcurrentHashMap<String, FakeOperation>()
+    private val myOperationId = AtomicLong()
+    private val myMapper = ObjectMapper()
+
+    init {
+        myServer.createContext("/") { handle(it) }
+        myServer.executor = myExecutor
+    }
+
+    val baseUrl: String
+        get() = "http://${myServer.address.hostString}:${myServer.address.port}/"
+
+    /**
+     * Endpoint of instance metadata service which replaces http://169.254.169.254.
+     */
+    val metadataEndpoint: String
+        get() = baseUrl.trimEnd('/')
+
+    fun start(): FakeAzureServer {
+        myServer.start()
+        return this
+    }
+
+    override fun close() {
+        myServer.stop(0)
+        myScheduler.shutdownNow()
+        myExecutor.shutdownNow()
+    }
+
+    /**
+     * Adds resource group to the subscription, deployments could be created only in existing groups.
+     */
+    fun addResourceGroup(name: String, tags: Map<String, String> = emptyMap()): FakeAzureResource =
+        resources.putResourceGroup(configuration.subscriptionId, name, configuration.location, tags)
+
+    private fun handle(exchange: HttpExchange) {
+        try {
+            val request = FakeRequest(exchange)
+            val category = getCategory(request)
+            statistics.addRequest(category)
+
+            val delay = getLatency(category).nextMs()
+            if (delay > 0) Thread.sleep(delay)
+
+            val quotaHeaders = LinkedHashMap<String, String>()
+            val response = acquireQuota(category, quotaHeaders)
+                ?: route(request)
+                ?: run {
+                    statistics.addUnhandled(request.method, request.path)
+                    createError(404, "NotFound", "The fake server does not support ${request.method} ${request.path}")
+                }
+            send(exchange, response, quotaHeaders)
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        } catch (e: Throwable) {
+            send(exchange, createError(500, "InternalServerError", e.toString()), emptyMap())
+        } finally {
+            exchange.close()
+        }
+    }
+
+    private fun getCategory(request: FakeRequest): FakeRequestCategory {
+        val path = request.path.trim('/').lowercase()
+        return when {
+            path.startsWith("metadata/") -> FakeRequestCategory.Metadata
+            path == RESOURCE_GRAPH_PATH -> FakeRequestCategory.ResourceGraph
+            request.method == "GET" || request.method == "HEAD" -> FakeRequestCategory.Read
+            request.method == "DELETE" -> FakeRequestCategory.Delete
+            else -> FakeRequestCategory.Write
+        }
+    }
+
+    private fun getLatency(category: FakeRequestCategory) = when (category) {
+        FakeRequestCategory.Read, FakeRequestCategory.Delete -> configuration.readLatency
+        FakeRequestCategory.Write -> configuration.writeLatency
+        FakeRequestCategory.ResourceGraph -> configuration.resourceGraphLatency
+        FakeRequestCategory.Metadata -> configuration.metadataLatency
+    }
+
+    /**
+     * @return 429 response if quota of the category is exhausted.
+     */
+    private fun acquireQuota(category: FakeRequestCategory, headers: MutableMap<String, String>): FakeResponse? {
+        val (quota, header) = when (category) {
+            FakeRequestCategory.Read -> configuration.subscriptionReads to REMAINING_READS_HEADER
+            FakeRequestCategory.Write -> configuration.subscriptionWrites to REMAINING_WRITES_HEADER
+            FakeRequestCategory.Delete -> configuration.subscriptionDeletes to REMAINING_DELETES_HEADER
+            FakeRequestCategory.ResourceGraph -> configuration.resourceGraphQuota to USER_QUOTA_REMAINING_HEADER
+            FakeRequestCategory.Metadata -> return null
+        }
+
+        val remaining = quota.tryAcquire()
+        headers[header] = (remaining ?: 0L).toString()
+        if (category == FakeRequestCategory.ResourceGraph) {
+            headers[USER_QUOTA_RESETS_AFTER_HEADER] = formatDuration(quota.getResetAfterMs())
+        }
+        if (remaining != null) return null
+
+        statistics.addThrottled(category)
+        val retryAfterSeconds = max(1L, TimeUnit.MILLISECONDS.toSeconds(quota.getResetAfterMs() + 999))
+        return createError(429,
+            if (category == FakeRequestCategory.ResourceGraph) "RateLimiting" else "SubscriptionRequestsThrottled",
+            "Number of ${category.name.lowercase()} requests for subscription '${configuration.subscriptionId}' exceeded the limit of " +
+                "'${quota.limit}' for time interval '${formatDuration(quota.windowMs)}'. Please try again after '$retryAfterSeconds' seconds.",
+            mapOf(RETRY_AFTER_HEADER to retryAfterSeconds.toString()))
+    }
+
+    private fun route(request: FakeRequest): FakeResponse? {
+        val segments = request.segments
+        val lowered = segments.map { it.lowercase() }
+        if (lowered.isEmpty()) return null
+
+        when (lowered[0]) {
+            "metadata" -> return if (lowered.size == 2) handleMetadata(request, lowered[1]) else null
+            "operations" -> return if (lowered.size == 2 && request.method == "GET") getOperation(segments[1]) else null
+            "providers" -> return if (lowered.joinToString("/") == RESOURCE_GRAPH_PATH && request.method == "POST") queryResourceGraph(request) else null
+            "subscriptions" -> Unit
+            else -> return null
+        }
+
+        if (lowered.size == 1) {
+            return if (request.method == "GET") FakeResponse(200, mapOf("value" to listOf(getSubscription()))) else null
+        }
+        val subscriptionId = segments[1]
+        if (!subscriptionId.equals(configuration.subscriptionId, ignoreCase = true)) {
+            return createError(404, "SubscriptionNotFound", "The subscription '$subscriptionId' could not be found.")
+        }
+        if (lowered.size == 2) {
+            return if (request.method == "GET") FakeResponse(200, getSubscription()) else null
+        }
+
+        if (lowered[2] == "resourcegroups") {
+            if (lowered.size == 3) {
+                return if (request.method == "GET") FakeResponse(200, mapOf("value" to resources.getResourceGroups().map { it.toJson() })) else null
+            }
+            val groupName = segments[3]
+            if (lowered.size == 4) {
+                return handleResourceGroup(request, subscriptionId, groupName)
+            }
+            if (lowered[4] == "providers" && lowered.size >= 7) {
+                if (resources.getResourceGroup(subscriptionId, groupName) == null) {
+                    return createError(404, "ResourceGroupNotFound", "Resource group '$groupName' could not be found.")
+                }
+                return handleGroupResource(request, subscriptionId, groupName, segments.subList(5, segments.size))
+            }
+            return null
+        }
+
+        if (lowered[2] == "providers" && lowered.size == 5 && request.method == "GET") {
+            val type = "${segments[3]}/${segments[4]}"
+            return FakeResponse(200, mapOf("value" to resources.list(type).map { it.toJson() }))
+        }
+        return null
+    }
+
+    private fun getSubscription() = mapOf(
+        "id" to "/subscriptions/${configuration.subscriptionId}",
+        "subscriptionId" to configuration.subscriptionId,
+        "tenantId" to configuration.tenantId,
+        "displayName" to "Fake subscription",
+        "state" to "Enabled"
+    )
+
+    private fun handleResourceGroup(request: FakeRequest, subscriptionId: String, groupName: String): FakeResponse? {
+        val group = resources.getResourceGroup(subscriptionId, groupName)
+        return when (request.method) {
+            "HEAD" -> FakeResponse(if (group != null) 204 else 404)
+            "GET" -> if (group != null) FakeResponse(200, group.toJson()) else createError(404, "ResourceGroupNotFound", "Resource group '$groupName' could not be found.")
+            "PUT" -> {
+                val body = request.getJsonBody()
+                val created = resources.putResourceGroup(subscriptionId, groupName, body?.get("location")?.toString() ?: configuration.location, getTags(body))
+                FakeResponse(if (group == null) 201 else 200, created.toJson())
+            }
+            "DELETE" -> {
+                if (group == null) return FakeResponse(204)
+                group.provisioningState = "Deleting"
+                val operation = startOperation(configuration.operationDuration) { resources.removeResourceGroup(subscriptionId, groupName) }
+                FakeResponse(202, null, getOperationHeaders(operation))
+            }
+            else -> null
+        }
+    }
+
+    /**
+     * @param path resource path after resource group providers segment: namespace, type, name and action.
+     */
+    private fun handleGroupResource(request: FakeRequest, subscriptionId: String, groupName: String, path: List<String>): FakeResponse? {
+        val type = "${path[0]}/${path[1]}"
+        if (path.size == 2) {
+            return if (request.method == "GET") FakeResponse(200, mapOf("value" to resources.list(type, groupName).map { it.toJson() })) else null
+        }
+
+        val name = path[2]
+        val id = "${FakeAzureResources.getGroupId(subscriptionId, groupName)}/providers/$type/$name"
+        val isDeployment = type.equals(FakeAzureResources.DEPLOYMENTS_TYPE, ignoreCase = true)
+        val isVirtualMachine = type.equals(FakeAzureResources.VIRTUAL_MACHINES_TYPE, ignoreCase = true)
+
+        if (path.size == 4) {
+            val action = path[3].lowercase()
+            return when {
+                isDeployment && action == "cancel" && request.method == "POST" -> cancelDeployment(id)
+                isVirtualMachine && action == "instanceview" && request.method == "GET" ->
+                    resources.get(id)?.let { FakeResponse(200, it.getInstanceView()) } ?: createNotFound(id)
+                isVirtualMachine && request.method == "POST" -> executeVirtualMachineAction(id, action)
+                else -> null
+            }
+        }
+        if (path.size != 3) return null
+
+        return when (request.method) {
+            "GET" -> resources.get(id)
+                ?.let { FakeResponse(200, it.toJson(withInstanceView = request.query["\$expand"].equals("instanceView", ignoreCase = true))) }
+                ?: if (isDeployment) createError(404, "DeploymentNotFound", "Deployment '$name' could not be found.") else createNotFound(id)
+            "PUT" -> if (isDeployment) createDeployment(request, subscriptionId, groupName, name) else putResource(request, id, name, type)
+            "DELETE" -> deleteResource(id)
+            else -> null
+        }
+    }
+
+    /**
+     * Deployment creates virtual machine with the deployment name and tags, the machine is provisioned
+     * until the deployment is completed.
+     */
+    private fun createDeployment(request: FakeRequest, subscriptionId: String, groupName: String, name: String): FakeResponse {
+        val group = resources.getResourceGroup(subscriptionId, groupName)!!
+        val tags = getTags(request.getJsonBody())
+        val id = "${FakeAzureResources.getGroupId(subscriptionId, groupName)}/providers/${FakeAzureResources.DEPLOYMENTS_TYPE}/$name"
+        val virtualMachineId = "${FakeAzureResources.getGroupId(subscriptionId, groupName)}/providers/${FakeAzureResources.VIRTUAL_MACHINES_TYPE}/$name"
+
+        val virtualMachine = resources.get(virtualMachineId)?.apply {
+            provisioningState = "Updating"
+        } ?: resources.addVirtualMachine(subscriptionId, groupName, name, group.location, tags, "Creating", "starting")
+
+        val deployment = FakeAzureResource(id, name, FakeAzureResources.DEPLOYMENTS_TYPE, group.location, tags).apply {
+            provisioningState = "Running"
+            properties = mapOf(
+                "mode" to "Incremental",
+                "timestamp" to Instant.now().toString(),
+                "correlationId" to UUID.randomUUID().toString(),
+                "providers" to listOf(mapOf(
+                    "namespace" to "Microsoft.Compute",
+                    "resourceTypes" to listOf(mapOf("resourceType" to "virtualMachines", "locations" to listOf(group.location)))
+                )),
+                "dependencies" to listOf(mapOf(
+                    "id" to virtualMachine.id,
+                    "resourceType" to FakeAzureResources.VIRTUAL_MACHINES_TYPE,
+                    "resourceName" to virtualMachine.name,
+                    "dependsOn" to listOf(mapOf(
+                        "id" to virtualMachine.networkInterfaceId,
+                        "resourceType" to FakeAzureResources.NETWORK_INTERFACES_TYPE,
+                        "resourceName" to "$name-net"
+                    ))
+                ))
+            )
+        }
+        resources.put(deployment)
+
+        val operation = startOperation(configuration.deploymentDuration) {
+            if (deployment.provisioningState == "Running") {
+                deployment.provisioningState = "Succeeded"
+                virtualMachine.provisioningState = "Succeeded"
+                virtualMachine.powerState = "running"
+            }
+        }
+        return FakeResponse(201, deployment.toJson(), getOperationHeaders(operation))
+    }
+
+    private fun cancelDeployment(id: String): FakeResponse {
+        val deployment = resources.get(id) ?: return createError(404, "DeploymentNotFound", "Deployment '$id' could not be found.")
+        if (deployment.provisioningState != "Running") {
+            return createError(409, "DeploymentCannotBeCancelled", "Deployment is in ${deployment.provisioningState} state.")
+        }
+        deployment.provisioningState = "Canceled"
+        return FakeResponse(204)
+    }
+
+    private fun executeVirtualMachineAction(id: String, action: String): FakeResponse? {
+        val (transitionalState, finalState) = when (action) {
+            "start", "restart" -> "starting" to "running"
+            "poweroff" -> "stopping" to "stopped"
+            "deallocate" -> "deallocating" to "deallocated"
+            else -> return null
+        }
+        val virtualMachine = resources.get(id) ?: return createNotFound(id)
+        virtualMachine.powerState = transitionalState
+        val operation = startOperation(configuration.operationDuration) { virtualMachine.powerState = finalState }
+        return FakeResponse(202, null, getOperationHeaders(operation))
+    }
+
+    private fun putResource(request: FakeRequest, id: String, name: String, type: String): FakeResponse {
+        val body = request.getJsonBody()
+        val existing = resources.get(id)
+        val resource = resources.put(FakeAzureResource(id, name, type, body?.get("location")?.toString() ?: configuration.location, getTags(body)).apply {
+            @Suppress("UNCHECKED_CAST")
+            properties = (body?.get("properties") as? Map<String, Any?>) ?: emptyMap()
+        })
+        return FakeResponse(if (existing == null) 201 else 200, resource.toJson())
+    }
+
+    private fun deleteResource(id: String): FakeResponse {
+        val resource = resources.get(id) ?: return FakeResponse(204)
+        resource.provisioningState = "Deleting"
+        val operation = startOperation(configuration.operationDuration) { resources.remove(id) }
+        return FakeResponse(202, null, getOperationHeaders(operation))
+    }
+
+    private fun startOperation(duration: FakeLatency, action: () -> Unit): FakeOperation {
+        val operation = FakeOperation(myOperationId.incrementAndGet().toString(), Instant.now())
+        myOperations[operation.id] = operation
+        myScheduler.schedule({
+            try {
+                action()
+            } finally {
+                operation.endTime = Instant.now()
+            }
+        }, duration.nextMs(), TimeUnit.MILLISECONDS)
+        return operation
+    }
+
+    private fun getOperation(operationId: String): FakeResponse {
+        val operation = myOperations[operationId] ?: return createError(404, "OperationNotFound", "Operation $operationId could not be found.")
+        val endTime = operation.endTime
+        val body = mapOf(
+            "name" to operation.id,
+            "status" to if (endTime == null) "InProgress" else "Succeeded",
+            "startTime" to operation.startTime.toString(),
+            "endTime" to endTime?.toString()
+        )
+        return if (endTime == null) {
+            FakeResponse(200, body, mapOf(RETRY_AFTER_HEADER to configuration.operationPollingIntervalSeconds.toString()))
+        } else {
+            myOperations.remove(operationId)
+            FakeResponse(200, body)
+        }
+    }
+
+    private fun getOperationHeaders(operation: FakeOperation) = mapOf(
+        AZURE_ASYNC_OPERATION_HEADER to "${baseUrl}operations/${operation.id}",
+        RETRY_AFTER_HEADER to configuration.operationPollingIntervalSeconds.toString()
+    )
+
+    /**
+     * Query text is not interpreted, the result table is selected by the query of the plugin.
+     */
+    private fun queryResourceGraph(request: FakeRequest): FakeResponse {
+        val body = request.getJsonBody() ?: return createError(400, "BadRequest", "Query is not specified")
+        val query = body["query"]?.toString() ?: ""
+        val serverId = SERVER_TAG_PATTERN.find(query)?.groupValues?.get(1)
+
+        val (columns, rows) = when {
+            query.contains("powerStateCode") -> FakeResourceGraphTables.getInstances(resources, serverId)
+            query.contains("ResourceContainers") -> FakeResourceGraphTables.getResourceGroupStates(resources, QUOTED_VALUE_PATTERN.findAll(query.substringAfter(" in~ (").substringBefore(")")).map { it.groupValues[1] }.toSet())
+            query.contains("teamcity-profile") -> FakeResourceGraphTables.getTaggedResources(resources, serverId)
+            else -> {
+                statistics.addUnhandled(request.method, "${request.path}: ${query.lineSequence().firstOrNull()}")
+                emptyList<Pair<String, String>>() to emptyList()
+            }
+        }
+
+        @Suppress("UNCHECKED_CAST")
+        val offset = ((body["options"] as? Map<String, Any?>)?.get("\$skipToken") as? String)?.toIntOrNull() ?: 0
+        val pageSize = max(1, configuration.resourceGraphPageSize)
+        val page = rows.drop(offset).take(pageSize)
+        val nextOffset = offset + page.size
+
+        val response = LinkedHashMap<String, Any?>()
+        response["totalRecords"] = rows.size
+        response["count"] = page.size
+        response["resultTruncated"] = "false"
+        if (nextOffset < rows.size) {
+            response["\$skipToken"] = nextOffset.toString()
+        }
+        response["data"] = mapOf(
+            "columns" to columns.map { (name, type) -> mapOf("name" to name, "type" to type) },
+            "rows" to page
+        )
+        return FakeResponse(200, response)
+    }
+
+    private fun handleMetadata(request: FakeRequest, path: String): FakeResponse? {
+        if (!"true".equals(request.getHeader("Metadata"), ignoreCase = true)) {
+            return FakeResponse(400, mapOf("error" to "Bad request. Required metadata header not specified"))
+        }
+        return when {
+            path == "instance" && request.method == "GET" ->
+                FakeResponse(200, configuration.instanceMetadata?.let { myMapper.readValue(it, Map::class.java) } ?: getDefaultInstanceMetadata())
+            path == "scheduledevents" && request.method == "GET" ->
+                FakeResponse(200, mapOf("DocumentIncarnation" to 1, "Events" to emptyList<Any>()))
+            path == "scheduledevents" && request.method == "POST" -> FakeResponse(200)
+            else -> null
+        }
+    }
+
+    private fun getDefaultInstanceMetadata() = mapOf(
+        "compute" to mapOf(
+            "name" to "fake-vm",
+            "osType" to "Linux",
+            "vmId" to UUID.nameUUIDFromBytes(configuration.subscriptionId.toByteArray()).toString(),
+            "vmSize" to "Standard_D2s_v3",
+            "priority" to "Regular",
+            "tags" to "",
+            "userData" to ""
+        ),
+        "network" to mapOf("interface" to emptyList<Any>())
+    )
+
+    private fun send(exchange: HttpExchange, response: FakeResponse, quotaHeaders: Map<String, String>) {
+        val headers = exchange.responseHeaders
+        quotaHeaders.forEach { (name, value) -> headers.set(name, value) }
+        response.headers.forEach { (name, value) -> headers.set(name, value) }
+        headers.set("x-ms-request-id", UUID.randomUUID().toString())
+
+        val body = response.body?.let { myMapper.writeValueAsBytes(it) }
+        if (body == null || exchange.requestMethod == "HEAD") {
+            exchange.sendResponseHeaders(response.status, -1)
+            return
+        }
+        headers.set("Content-Type", "application/json; charset=utf-8")
+        exchange.sendResponseHeaders(response.status, body.size.toLong())
+        exchange.responseBody.use { it.write(body) }
+    }
+
+    private fun createNotFound(id: String) =
+        createError(404, "ResourceNotFound", "The Resource '$id' was not found.")
+
+    private fun createError(status: Int, code: String, message: String, headers: Map<String, String> = emptyMap()) =
+        FakeResponse(status, mapOf("error" to mapOf("code" to code, "message" to message)), headers)
+
+    private fun getTags(body: Map<*, *>?): Map<String, String> =
+        (body?.get("tags") as? Map<*, *>)?.entries?.associate { it.key.toString() to it.value.toString() } ?: emptyMap()
+
+    private fun formatDuration(ms: Long): String {
+        val seconds = TimeUnit.MILLISECONDS.toSeconds(ms + 999)
+        return "%02d:%02d:%02d".format(seconds / 3600, seconds % 3600 / 60, seconds % 60)
+    }
+
+    private inner class FakeRequest(private val myExchange: HttpExchange) {
+        val method: String = myExchange.requestMethod.uppercase()
+        val path: String = myExchange.requestURI.rawPath
+        val segments: List<String> = path.split('/').filter { it.isNotEmpty() }.map { URLDecoder.decode(it, "UTF-8") }
+        val query: Map<String, String> = (myExchange.requestURI.rawQuery ?: "")
+            .split('&')
+            .filter { it.isNotEmpty() }
+            .associate { URLDecoder.decode(it.substringBefore('='), "UTF-8") to URLDecoder.decode(it.substringAfter('=', ""), "UTF-8") }
+
+        fun getHeader(name: String): String? = myExchange.requestHeaders.getFirst(name)
+
+        fun getJsonBody(): Map<*, *>? {
+            val bytes = myExchange.requestBody.use { it.readBytes() }
+            return if (bytes.isEmpty()) null else myMapper.readValue(bytes, Map::class.java)
+        }
+    }
+
+    private class FakeResponse(val status: Int, val body: Any? = null, val headers: Map<String, String> = emptyMap())
+
+    private class FakeOperation(val id: String, val startTime: Instant) {
+        @Volatile var endTime: Instant? = null
+    }
+
+    companion object {
+        private const val BACKLOG = 256
+        private const val RESOURCE_GRAPH_PATH = "providers/microsoft.resourcegraph/resources"
+
+        private const val REMAINING_READS_HEADER = "x-ms-ratelimit-remaining-subscription-reads"
+        private const val REMAINING_WRITES_HEADER = "x-ms-ratelimit-remaining-subscription-writes"
+        private const val REMAINING_DELETES_HEADER = "x-ms-ratelimit-remaining-subscription-deletes"
+        private const val USER_QUOTA_REMAINING_HEADER = "x-ms-user-quota-remaining"
+        private const val USER_QUOTA_RESETS_AFTER_HEADER = "x-ms-user-quota-resets-after"
+        private const val RETRY_AFTER_HEADER = "Retry-After"
+        private const val AZURE_ASYNC_OPERATION_HEADER = "Azure-AsyncOperation"
+
+        private val SERVER_TAG_PATTERN = Regex("tags\\[\"teamcity-server\"] =~ \"([^\"]*)\"")
+        private val QUOTED_VALUE_PATTERN = Regex("[\"']([^\"']*)[\"']")
+
+        private fun createThreadFactory(name: String): ThreadFactory {
+            val counter = AtomicLong()
+            return ThreadFactory { runnable ->
+                Thread(runnable, "$name ${counter.incrementAndGet()}").apply { isDaemon = true }
+            }
+        }
+    }
+}
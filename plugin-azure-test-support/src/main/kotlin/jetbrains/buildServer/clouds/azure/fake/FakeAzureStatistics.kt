@@ -0,0 +1,69 @@
+package jetbrains.buildServer.clouds.azure.fake
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Counters of requests served by the fake Azure endpoints.
+ */
+class FakeAzureStatistics {
+    private val myRequests = ConcurrentHashMap<FakeRequestCategory, AtomicLong>()
+    private val myThrottled = ConcurrentHashMap<FakeRequestCategory, AtomicLong>()
+    private val myUnhandled = ConcurrentHashMap.newKeySet<String>()
+    private val myStartTime = AtomicLong(System.currentTimeMillis())
+
+    val requestCount: Long
+        get() = myRequests.values.sumOf { it.get() }
+
+    val throttledCount: Long
+        get() = myThrottled.values.sumOf { it.get() }
+
+    /**
+     * Requests which are not supported by the fake server, "METHOD path" for each of them.
+     */
+    val unhandledRequests: Set<String>
+        get() = myUnhandled.toSet()
+
+    fun getRequestCount(category: FakeRequestCategory): Long = myRequests[category]?.get() ?: 0L
+
+    fun getThrottledCount(category: FakeRequestCategory): Long = myThrottled[category]?.get() ?: 0L
+
+    /**
+     * @return served requests per second since the start or the last reset.
+     */
+    fun getThroughput(): Double {
+        val elapsedMs = System.currentTimeMillis() - myStartTime.get()
+        return if (elapsedMs <= 0) 0.0 else requestCount * 1000.0 / elapsedMs
+    }
+
+    fun reset() {
+        myRequests.clear()
+        myThrottled.clear()
+        myUnhandled.clear()
+        myStartTime.set(System.currentTimeMillis())
+    }
+
+    override fun toString(): String =
+        "requests: $requestCount, 429 responses: $throttledCount, throughput: ${"%.1f".format(getThroughput())} req/s, " +
+            FakeRequestCategory.values().joinToString { "${it.name.lowercase()}: ${getRequestCount(it)}/${getThrottledCount(it)}" }
+
+    internal fun addRequest(category: FakeRequestCategory) {
+        myRequests.computeIfAbsent(category) { AtomicLong() }.incrementAndGet()
+    }
+
+    internal fun addThrottled(category: FakeRequestCategory) {
+        myThrottled.computeIfAbsent(category) { AtomicLong() }.incrementAndGet()
+    }
+
+    internal fun addUnhandled(method: String, path: String) {
+        myUnhandled.add("$method $path")
+    }
+}
+
+enum class FakeRequestCategory {
+    Read,
+    Write,
+    Delete,
+    ResourceGraph,
+    Metadata
+}
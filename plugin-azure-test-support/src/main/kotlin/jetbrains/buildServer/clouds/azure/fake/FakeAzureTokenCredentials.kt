@@ -0,0 +1,39 @@
+package jetbrains.buildServer.clouds.azure.fake
+
+import com.microsoft.azure.AzureEnvironment
+import com.microsoft.azure.credentials.AzureTokenCredentials
+
+/**
+ * Credentials of the environment which points all management endpoints to the fake server.
+ */
+class FakeAzureTokenCredentials(baseUrl: String, tenantId: String) : AzureTokenCredentials(createEnvironment(baseUrl), tenantId) {
+    constructor(server: FakeAzureServer) : this(server.baseUrl, server.configuration.tenantId)
+
+    override fun getToken(resource: String?): String = TOKEN
+
+    companion object {
+        const val TOKEN = "fake-access-token"
+
+        fun createEnvironment(baseUrl: String) = AzureEnvironment(mapOf(
+            "portalUrl" to baseUrl,
+            "publishingProfileUrl" to baseUrl,
+            "managementEndpointUrl" to baseUrl,
+            "resourceManagerEndpointUrl" to baseUrl,
+            "sqlManagementEndpointUrl" to baseUrl,
+            "sqlServerHostnameSuffix" to ".database.fake",
+            "galleryEndpointUrl" to baseUrl,
+            "activeDirectoryEndpointUrl" to baseUrl,
+            "activeDirectoryResourceId" to baseUrl,
+            "activeDirectoryGraphResourceId" to baseUrl,
+            "microsoftGraphResourceId" to baseUrl,
+            "dataLakeEndpointResourceId" to baseUrl,
+            "activeDirectoryGraphApiVersion" to "2013-04-05",
+            "storageEndpointSuffix" to ".core.fake",
+            "keyVaultDnsSuffix" to ".vault.fake",
+            "azureDataLakeStoreFileSystemEndpointSuffix" to "azuredatalakestore.fake",
+            "azureDataLakeAnalyticsCatalogAndJobEndpointSuffix" to "azuredatalakeanalytics.fake",
+            "azureLogAnalyticsResourceId" to baseUrl,
+            "azureApplicationInsightsResourceId" to baseUrl
+        ))
+    }
+}
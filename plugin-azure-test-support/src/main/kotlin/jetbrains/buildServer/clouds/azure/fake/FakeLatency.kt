@@ -0,0 +1,40 @@
+package jetbrains.buildServer.clouds.azure.fake
+
+import java.util.*
+import kotlin.math.exp
+import kotlin.math.ln
+import kotlin.math.max
+import kotlin.math.roundToLong
+
+/**
+ * Distribution of response times or durations of long running operations.
+ */
+fun interface FakeLatency {
+    fun nextMs(): Long
+
+    companion object {
+        val NONE = FakeLatency { 0L }
+
+        fun fixed(ms: Long) = FakeLatency { ms }
+
+        fun uniform(minMs: Long, maxMs: Long, seed: Long = 0): FakeLatency {
+            val random = Random(seed)
+            return FakeLatency { synchronized(random) { minMs + (random.nextDouble() * (maxMs - minMs)).roundToLong() } }
+        }
+
+        /**
+         * Long-tailed distribution which is close to the one observed for ARM requests.
+         *
+         * @param medianMs median of the distribution.
+         * @param p99Ms 99th percentile of the distribution.
+         */
+        fun logNormal(medianMs: Long, p99Ms: Long, seed: Long = 0): FakeLatency {
+            val random = Random(seed)
+            val mu = ln(max(1L, medianMs).toDouble())
+            val sigma = max(0.0, (ln(max(medianMs, p99Ms).toDouble()) - mu) / Z_99)
+            return FakeLatency { exp(mu + sigma * synchronized(random) { random.nextGaussian() }).roundToLong() }
+        }
+
+        private const val Z_99 = 2.326
+    }
+}
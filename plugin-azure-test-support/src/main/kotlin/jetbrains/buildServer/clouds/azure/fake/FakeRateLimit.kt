@@ -0,0 +1,50 @@
+package jetbrains.buildServer.clouds.azure.fake
+
+import kotlin.math.max
+
+/**
+ * Fixed window request quota, Azure Resource Manager resets subscription quotas every hour.
+ */
+class FakeRateLimit(
+    val limit: Long,
+    val windowMs: Long,
+    private val myTimeSource: () -> Long = System::currentTimeMillis
+) {
+    private var myWindowStart = myTimeSource()
+    private var myUsed = 0L
+
+    /**
+     * @return remaining requests after the acquired one or null if quota is exhausted.
+     */
+    @Synchronized
+    fun tryAcquire(): Long? {
+        resetIfExpired()
+        if (myUsed >= limit) return null
+        myUsed++
+        return limit - myUsed
+    }
+
+    @Synchronized
+    fun getRemaining(): Long {
+        resetIfExpired()
+        return limit - myUsed
+    }
+
+    @Synchronized
+    fun getResetAfterMs(): Long {
+        resetIfExpired()
+        return max(0L, myWindowStart + windowMs - myTimeSource())
+    }
+
+    private fun resetIfExpired() {
+        val now = myTimeSource()
+        if (now - myWindowStart >= windowMs) {
+            myWindowStart = now
+            myUsed = 0
+        }
+    }
+
+    companion object {
+        fun unlimited() = FakeRateLimit(Long.MAX_VALUE, Long.MAX_VALUE)
+    }
+}
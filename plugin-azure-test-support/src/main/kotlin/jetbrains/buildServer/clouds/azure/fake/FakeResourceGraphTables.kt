@@ -0,0 +1,94 @@
+package jetbrains.buildServer.clouds.azure.fake
+
+import com.fasterxml.jackson.databind.ObjectMapper
+
+/**
+ * Resource Graph results in the format of the plugin queries.
+ */
+internal object FakeResourceGraphTables {
+    private val mapper = ObjectMapper()
+
+    private val INSTANCES_COLUMNS = listOf(
+        "resourceId" to "string",
+        "resourceName" to "string",
+        "nicId" to "string",
+        "resourceType" to "string",
+        "provisioningState" to "string",
+        "startDate" to "datetime",
+        "powerStateCode" to "string",
+        "resourceTags" to "string",
+        "publicIpAddress" to "string"
+    )
+
+    private val RESOURCE_GROUP_STATES_COLUMNS = listOf(
+        "name" to "string",
+        "provisioningState" to "string"
+    )
+
+    private val TAGGED_RESOURCES_COLUMNS = listOf(
+        "id" to "string",
+        "name" to "string",
+        "type" to "string",
+        "profileId" to "string",
+        "sourceId" to "string",
+        "instanceName" to "string",
+        "investigation" to "string"
+    )
+
+    /**
+     * @return rows of fetch_instances query.
+     */
+    fun getInstances(resources: FakeAzureResources, serverId: String?): Pair<List<Pair<String, String>>, List<List<Any?>>> =
+        INSTANCES_COLUMNS to resources.getVirtualMachines()
+            .filter { isServerResource(it, serverId, true) }
+            .map {
+                listOf(
+                    it.id,
+                    it.name,
+                    it.networkInterfaceId ?: "",
+                    it.type.lowercase(),
+                    it.provisioningState,
+                    it.createdTime.toString(),
+                    it.powerState ?: "",
+                    mapper.writeValueAsString(it.tags),
+                    ""
+                )
+            }
+
+    /**
+     * @return rows of fetch_resourceGroupStates query.
+     */
+    fun getResourceGroupStates(resources: FakeAzureResources, names: Set<String>): Pair<List<Pair<String, String>>, List<List<Any?>>> =
+        RESOURCE_GROUP_STATES_COLUMNS to resources.getResourceGroups()
+            .filter { group -> names.any { it.equals(group.name, ignoreCase = true) } }
+            .map { listOf(it.name, it.provisioningState) }
+
+    /**
+     * @return rows of fetch_taggedResources query.
+     */
+    fun getTaggedResources(resources: FakeAzureResources, serverId: String?): Pair<List<Pair<String, String>>, List<List<Any?>>> =
+        TAGGED_RESOURCES_COLUMNS to (resources.getResourceGroups() + resources.getAll())
+            .filter { isServerResource(it, serverId, false) }
+            .map {
+                listOf(
+                    it.id,
+                    it.name,
+                    it.type,
+                    it.tags[TAG_PROFILE] ?: "",
+                    it.tags[TAG_SOURCE] ?: "",
+                    it.tags[TAG_INSTANCE] ?: "",
+                    it.tags[TAG_INVESTIGATION] ?: ""
+                )
+            }
+
+    private fun isServerResource(resource: FakeAzureResource, serverId: String?, includeUntagged: Boolean): Boolean {
+        val resourceServerId = resource.tags[TAG_SERVER] ?: return includeUntagged
+        return serverId == null || resourceServerId.equals(serverId, ignoreCase = true)
+    }
+
+    private const val TAG_SERVER = "teamcity-server"
+    private const val TAG_PROFILE = "teamcity-profile"
+    private const val TAG_SOURCE = "teamcity-source"
+    private const val TAG_INSTANCE = "teamcity-instance"
+    private const val TAG_INVESTIGATION = "teamcity-investigation"
+}